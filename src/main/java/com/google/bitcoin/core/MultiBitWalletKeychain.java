@@ -0,0 +1,75 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes to a bitcoinj Wallet keychain made whilst holding the wallet lock, which Wallet keeps protected.
+ */
+public class MultiBitWalletKeychain {
+
+    private MultiBitWalletKeychain() {
+    }
+
+    /**
+     * @return A copy of the wallet keys, taken whilst holding the wallet lock
+     */
+    public static List<ECKey> copyKeys(Wallet wallet) {
+        wallet.lock.lock();
+        try {
+            return new ArrayList<ECKey>(wallet.getKeychain());
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Replace the wallet keys with replacement keys (for instance the same keys encrypted with a new password)
+     * whilst holding the wallet lock, so wallet listeners and saves see either all the old keys or all the new keys.
+     *
+     * @param wallet The wallet to replace the keys of
+     * @param expectedKeys The keys the keychain must still hold, in keychain order
+     * @param replacementKeys The keys to replace them with, in the same order
+     * @return true if the keys were replaced, false if the keychain no longer holds exactly the expected keys
+     */
+    public static boolean replaceKeys(Wallet wallet, List<ECKey> expectedKeys, List<ECKey> replacementKeys) {
+        if (expectedKeys.size() != replacementKeys.size()) {
+            throw new IllegalArgumentException("There must be a replacement for each key");
+        }
+
+        wallet.lock.lock();
+        try {
+            List<ECKey> keychain = wallet.getKeychain();
+            if (keychain.size() != expectedKeys.size()) {
+                return false;
+            }
+            for (int i = 0; i < expectedKeys.size(); i++) {
+                if (keychain.get(i) != expectedKeys.get(i)) {
+                    return false;
+                }
+            }
+
+            for (int i = 0; i < replacementKeys.size(); i++) {
+                keychain.set(i, replacementKeys.get(i));
+            }
+            return true;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+}
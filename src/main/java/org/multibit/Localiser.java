@@ -276,7 +276,7 @@ public class Localiser {
         }
                 
         BigDecimal valueInBTC = new BigDecimal(value).divide(new BigDecimal(Utils.COIN));
-        toReturn = toReturn + numberFormat.format(valueInBTC.doubleValue());
+        toReturn = toReturn + copyNumberFormat().format(valueInBTC.doubleValue());
 
         if (addUnit) {
             toReturn = toReturn + " " + getString("sendBitcoinPanel.amountUnitLabel");
@@ -324,11 +324,18 @@ public class Localiser {
         }
            
         String toReturn = "";
-        toReturn = numberFormat.format(value.getAmount().doubleValue());
+        toReturn = copyNumberFormat().format(value.getAmount().doubleValue());
 
         return toReturn;     
     }
 
+    /**
+     * NumberFormat is not thread safe so each call formats with its own copy of the localised format.
+     */
+    private NumberFormat copyNumberFormat() {
+        return (NumberFormat) numberFormat.clone();
+    }
+
     public java.text.DecimalFormatSymbols getDecimalFormatSymbols() {
         return decimalFormatSymbols;
     }
@@ -24,6 +24,7 @@ import org.multibit.controller.exchange.ExchangeController;
 import org.multibit.exchange.CurrencyConverter;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandler;
+import org.multibit.file.WalletSaveScheduler;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.BitcoinModel;
@@ -197,6 +198,9 @@ public final class MultiBit {
             // Initialise replay manager.
             ReplayManager.INSTANCE.initialise(bitcoinController, false);
 
+            // Initialise the background wallet saver.
+            WalletSaveScheduler.INSTANCE.initialise(bitcoinController);
+
             log.debug("Setting look and feel");
             try {
                 String lookAndFeel = userPreferences.getProperty(CoreModel.LOOK_AND_FEEL);
@@ -334,6 +338,8 @@ public final class MultiBit {
                     controller.fireDataChangedUpdateNow();
                 }
             } else {
+                final List<WalletData> walletsLoaded = new ArrayList<WalletData>();
+                final Set<String> walletsToMoveBackupsFor = new HashSet<String>();
                 try {
                     List<String> walletFilenamesToLoad = new ArrayList<String>();
                     try {
@@ -414,8 +420,6 @@ public final class MultiBit {
                     }
 
                     if (actualOrderToLoad.size() > 0) {
-                        boolean thereWasAnErrorLoadingTheWallet = false;
-
                         ((MultiBitFrame) swingViewSystem).setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
                         for (String actualOrder : actualOrderToLoad) {
                             log.debug("Loading wallet from '{}'", actualOrder);
@@ -423,52 +427,35 @@ public final class MultiBit {
                                     new Object[] { actualOrder }));
                             message.setShowInStatusBar(false);
                             MessageManager.INSTANCE.addMessage(message);
-                            try {
-                                // Check if this is the first time this wallet has been opened post addition of data directories.
-                                String topLevelWalletDirectory = BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(new File(actualOrder));
-                                boolean firstUsageSinceWalletDirectoriesIntroduced = !(new File(topLevelWalletDirectory).exists());
-
-                                WalletData perWalletModelData;
-                                if (activeWalletFilename != null && activeWalletFilename.equals(actualOrder)) {
-                                    perWalletModelData = bitcoinController.addWalletFromFilename(actualOrder);
-                                    bitcoinController.getModel().setActiveWalletByFilename(actualOrder);
-                                } else {
-                                    perWalletModelData = bitcoinController.addWalletFromFilename(actualOrder);
-                                }
+
+                            // Check if this is the first time this wallet has been opened post addition of data directories.
+                            String topLevelWalletDirectory = BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(new File(actualOrder));
+                            if (!(new File(topLevelWalletDirectory).exists())) {
+                                walletsToMoveBackupsFor.add(actualOrder);
+                            }
+                        }
+
+                        // The wallet files are read in parallel and added to the model in the order given.
+                        Map<String, Exception> loadErrors = new HashMap<String, Exception>();
+                        walletsLoaded.addAll(bitcoinController.addWalletsFromFilenames(actualOrderToLoad, loadErrors));
+
+                        if (activeWalletFilename != null && bitcoinController.getModel().getPerWalletModelDataByWalletFilename(activeWalletFilename) != null) {
+                            bitcoinController.getModel().setActiveWalletByFilename(activeWalletFilename);
+                        }
+
+                        for (String actualOrder : actualOrderToLoad) {
+                            Exception loadError = loadErrors.get(actualOrder);
+                            if (loadError == null) {
                                 Message message2 = new Message(controller.getLocaliser().getString("multiBit.openingWalletIsDone",
                                         new Object[] { actualOrder }));
                                 message2.setShowInStatusBar(false);
                                 MessageManager.INSTANCE.addMessage(message2);
-
-                                // Clean out the "1Enjoy 1Sochi" spam
-                                WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
-                                String walletCleanedOfSpam = walletInfo.getProperty(BitcoinModel.WALLET_CLEANED_OF_SPAM);
-                                if (!Boolean.TRUE.toString().equalsIgnoreCase(walletCleanedOfSpam)) {
-                                    log.debug("Cleaning wallet '" + activeWalletFilename + "' of spam ...");
-                                    perWalletModelData.getWallet().cleanup();
-                                    walletInfo.put(BitcoinModel.WALLET_CLEANED_OF_SPAM, Boolean.TRUE.toString());
-                                    bitcoinController.getFileHandler().savePerWalletModelData(perWalletModelData, false);
-                                    log.debug("done.");
-                                }
-
-                                if (firstUsageSinceWalletDirectoriesIntroduced) {
-                                    if (perWalletModelData != null && perWalletModelData.getWallet() != null) {
-                                        // Backup the wallet and wallet info.
-                                        BackupManager.INSTANCE.backupPerWalletModelData(bitcoinController.getFileHandler(), perWalletModelData);
-
-                                        // Move any timestamped key and wallet files into their appropriate directories
-                                        BackupManager.INSTANCE.moveSiblingTimestampedKeyAndWalletBackups(actualOrder);
-                                    }
-                                }
-                            } catch (Exception e) {
-                                message = new Message(controller.getLocaliser().getString("openWalletSubmitAction.walletNotLoaded",
-                                        new Object[] { actualOrder, e.getMessage() }));
+                            } else {
+                                Message message = new Message(controller.getLocaliser().getString("openWalletSubmitAction.walletNotLoaded",
+                                        new Object[] { actualOrder, loadError.getMessage() }));
                                 MessageManager.INSTANCE.addMessage(message);
                                 log.error(message.getText());
-                                thereWasAnErrorLoadingTheWallet = true;
-                            }
 
-                            if (thereWasAnErrorLoadingTheWallet) {
                                 WalletData loopData = bitcoinController.getModel().getPerWalletModelDataByWalletFilename(actualOrder);
                                 if (loopData != null) {
                                     // Clear the backup wallet filename - this prevents it being automatically overwritten.
@@ -490,6 +477,18 @@ public final class MultiBit {
 
                     ((MultiBitFrame) swingViewSystem).setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
                 }
+
+                // Spam cleaning and backups are not needed to show the wallets so are done in the background.
+                if (!walletsLoaded.isEmpty()) {
+                    Thread walletHousekeepingThread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            tidyUpLoadedWallets(bitcoinController, walletsLoaded, walletsToMoveBackupsFor);
+                        }
+                    }, "wallet-housekeeping");
+                    walletHousekeepingThread.setDaemon(true);
+                    walletHousekeepingThread.start();
+                }
             }
 
             log.debug("Checking for Bitcoin URI on command line");
@@ -534,6 +533,10 @@ public final class MultiBit {
             List<WalletData> replayPerWalletModelList = new ArrayList<WalletData>();
             if (perWalletModelDataList != null) {
                 for (WalletData perWalletModelData : perWalletModelDataList) {
+                    if (perWalletModelData.isStub()) {
+                        // A stub is replayed when its wallet is loaded.
+                        continue;
+                    }
                     Wallet wallet = perWalletModelData.getWallet();
                     if (wallet != null) {
                         int lastBlockSeenHeight = wallet.getLastBlockSeenHeight();
@@ -646,6 +649,42 @@ public final class MultiBit {
         }
     }
 
+    /**
+     * Clean the loaded wallets of spam and, for wallets opened for the first time since wallet directories
+     * were introduced, back them up and move their sibling backup files into the wallet directories.
+     * A wallet that changes is marked dirty so that the WalletSaveScheduler saves it.
+     */
+    private static void tidyUpLoadedWallets(BitcoinController bitcoinController, List<WalletData> walletsLoaded, Set<String> walletsToMoveBackupsFor) {
+        for (WalletData perWalletModelData : walletsLoaded) {
+            String walletFilename = perWalletModelData.getWalletFilename();
+            try {
+                // Clean out the "1Enjoy 1Sochi" spam
+                // (A stub has no wallet to clean - it was cleaned when it was last saved.)
+                WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+                if (walletInfo != null) {
+                    String walletCleanedOfSpam = walletInfo.getProperty(BitcoinModel.WALLET_CLEANED_OF_SPAM);
+                    if (!Boolean.TRUE.toString().equalsIgnoreCase(walletCleanedOfSpam) && perWalletModelData.getWallet() != null) {
+                        log.debug("Cleaning wallet '" + walletFilename + "' of spam ...");
+                        perWalletModelData.getWallet().cleanup();
+                        walletInfo.put(BitcoinModel.WALLET_CLEANED_OF_SPAM, Boolean.TRUE.toString());
+                        perWalletModelData.setDirty(true);
+                        log.debug("done.");
+                    }
+                }
+
+                if (walletsToMoveBackupsFor.contains(walletFilename) && perWalletModelData.getWallet() != null) {
+                    // Backup the wallet and wallet info.
+                    BackupManager.INSTANCE.backupPerWalletModelData(bitcoinController.getFileHandler(), perWalletModelData);
+
+                    // Move any timestamped key and wallet files into their appropriate directories
+                    BackupManager.INSTANCE.moveSiblingTimestampedKeyAndWalletBackups(walletFilename);
+                }
+            } catch (Exception e) {
+                log.error("Could not tidy up wallet '" + walletFilename + "'. " + e.getClass().getCanonicalName() + " " + e.getMessage());
+            }
+        }
+    }
+
     public static Controller getController() {
         return controller;
     }
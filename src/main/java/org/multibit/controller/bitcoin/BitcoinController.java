@@ -19,6 +19,8 @@ import com.google.bitcoin.core.*;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.uri.BitcoinURI;
 import com.google.bitcoin.uri.BitcoinURIParseException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import org.multibit.controller.AbstractController;
 import org.multibit.controller.AbstractEventHandler;
 import org.multibit.controller.core.CoreController;
@@ -34,6 +36,7 @@ import org.multibit.viewsystem.swing.action.ExitAction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.swing.SwingUtilities;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
@@ -43,6 +46,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The MVC controller for MultiBit.
@@ -138,6 +142,55 @@ public class BitcoinController extends AbstractController<CoreController> implem
         }
         return perWalletModelDataToReturn;
     }
+
+    /**
+     * Add several wallets to the model, reading the wallet files in parallel.
+     *
+     * @return The model data of the wallets loaded, in the order given
+     */
+    public List<WalletData> addWalletsFromFilenames(List<String> walletFilenames, Map<String, Exception> loadErrors) {
+        if (multiBitService != null) {
+            return multiBitService.addWalletsFromFilenames(walletFilenames, loadErrors);
+        }
+        return new ArrayList<WalletData>();
+    }
+
+    /**
+     * Make the wallet with the given filename the active wallet.
+     * A stub wallet is loaded on a background thread first and is only made active once it is loaded,
+     * so the EDT does no file IO and the views never see a stub as the active wallet.
+     *
+     * @param walletFilename The wallet filename
+     */
+    public void setActiveWalletByFilename(final String walletFilename) {
+        WalletData perWalletModelData = getModel().getPerWalletModelDataByWalletFilename(walletFilename);
+        if (perWalletModelData == null || !perWalletModelData.isStub()) {
+            getModel().setActiveWalletByFilename(walletFilename);
+            return;
+        }
+
+        Futures.addCallback(perWalletModelData.loadWalletIfStubInBackground(), new FutureCallback<WalletData>() {
+            @Override
+            public void onSuccess(WalletData loadedPerWalletModelData) {
+                if (loadedPerWalletModelData.getWallet() == null) {
+                    // The wallet could not be loaded - the loader has told the user why.
+                    return;
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        getModel().setActiveWalletByFilename(walletFilename);
+                        fireDataChangedUpdateNow();
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.error("Could not load the wallet '" + walletFilename + "'. " + t.getClass().getCanonicalName() + " " + t.getMessage());
+            }
+        });
+    }
        
     /**
      * Fire that a wallet has changed its busy state.
@@ -159,18 +212,12 @@ public class BitcoinController extends AbstractController<CoreController> implem
             viewSystem.blockDownloaded();
         }
         
-        // Mark all the wallets as dirty as their lastBlockSeenHeight will need changing.
+        // Journal the wallets' new lastBlockSeenHeight.
         if (getModel() != null) {
             List<WalletData> perWalletModelDataList = getModel().getPerWalletModelDataList();
             if (perWalletModelDataList != null) {
                 for (WalletData loopPerWalletModelData : perWalletModelDataList) {
-                    if (loopPerWalletModelData.getWalletInfo() != null) {
-                        synchronized(loopPerWalletModelData.getWalletInfo()) {
-                            loopPerWalletModelData.setDirty(true);
-                        }
-                    } else {
-                        loopPerWalletModelData.setDirty(true);                        
-                    }
+                    fileHandler.journalLastBlockSeen(loopPerWalletModelData);
                 }
             }
         }
@@ -179,6 +226,10 @@ public class BitcoinController extends AbstractController<CoreController> implem
     @Override
     public void onCoinsReceived(Wallet wallet, Transaction transaction, BigInteger prevBalance, BigInteger newBalance) {
         //log.debug("onCoinsReceived called");
+        WalletData perWalletModelData = findPerWalletModelData(wallet);
+        if (perWalletModelData != null) {
+            fileHandler.journalTransaction(perWalletModelData, transaction);
+        }
         for (ViewSystem viewSystem : super.getViewSystem()) {
             viewSystem.onCoinsReceived(wallet, transaction, prevBalance, newBalance);
         }
@@ -187,6 +238,10 @@ public class BitcoinController extends AbstractController<CoreController> implem
     @Override
     public void onCoinsSent(Wallet wallet, Transaction transaction, BigInteger prevBalance, BigInteger newBalance) {
         //log.debug("onCoinsSent called");
+        WalletData perWalletModelData = findPerWalletModelData(wallet);
+        if (perWalletModelData != null) {
+            fileHandler.journalTransaction(perWalletModelData, transaction);
+        }
         for (ViewSystem viewSystem : super.getViewSystem()) {
             viewSystem.onCoinsSent(wallet, transaction, prevBalance, newBalance);
         }
@@ -198,21 +253,18 @@ public class BitcoinController extends AbstractController<CoreController> implem
             return;
         }
         // log.debug("onWalletChanged called");
-        final int walletIdentityHashCode = System.identityHashCode(wallet);
-        for (WalletData loopPerWalletModelData : getModel().getPerWalletModelDataList()) {
-            // Find the wallet object and mark as dirty.
-            if (System.identityHashCode(loopPerWalletModelData.getWallet()) == walletIdentityHashCode) {
-                loopPerWalletModelData.setDirty(true);
-                break;
-            }
-        }
-
+        // This is fired for every block, transaction and confidence change. Those are journalled by the other
+        // callbacks and reorganisations mark the wallet as dirty in onReorganize, so the wallet is not marked here.
         fireDataChangedUpdateLater();
     }
 
     @Override
     public void onTransactionConfidenceChanged(Wallet wallet, Transaction transaction) {
         //log.debug("onTransactionConfidenceChanged called");
+        WalletData perWalletModelData = findPerWalletModelData(wallet);
+        if (perWalletModelData != null) {
+            fileHandler.journalTransactionConfidence(perWalletModelData, transaction);
+        }
         for (ViewSystem viewSystem : super.getViewSystem()) {
             viewSystem.onTransactionConfidenceChanged(wallet, transaction);
         }
@@ -221,6 +273,30 @@ public class BitcoinController extends AbstractController<CoreController> implem
     @Override
     public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
         log.debug("Keys added : " + keys.toString());
+        // Keys are never journalled - the whole wallet is written at the next save.
+        WalletData perWalletModelData = findPerWalletModelData(wallet);
+        if (perWalletModelData != null) {
+            perWalletModelData.setDirty(true);
+        }
+    }
+
+    /**
+     * Find the WalletData for a wallet object.
+     * 
+     * @return the WalletData or null if the wallet is not in the model
+     */
+    private WalletData findPerWalletModelData(Wallet wallet) {
+        if (wallet == null || getModel() == null) {
+            return null;
+        }
+        final int walletIdentityHashCode = System.identityHashCode(wallet);
+        for (WalletData loopPerWalletModelData : getModel().getPerWalletModelDataList()) {
+            // A stub has no wallet to send events.
+            if (!loopPerWalletModelData.isStub() && System.identityHashCode(loopPerWalletModelData.getWallet()) == walletIdentityHashCode) {
+                return loopPerWalletModelData;
+            }
+        }
+        return null;
     }
 
   @Override
@@ -234,8 +310,8 @@ public class BitcoinController extends AbstractController<CoreController> implem
         log.debug("onReorganize called");
         List<WalletData> perWalletModelDataList = getModel().getPerWalletModelDataList();
         for (WalletData loopPerWalletModelData : perWalletModelDataList) {
-            if (loopPerWalletModelData.getWallet().equals(wallet)) {
-                loopPerWalletModelData.setDirty(true);
+            if (!loopPerWalletModelData.isStub() && wallet.equals(loopPerWalletModelData.getWallet())) {
+                fileHandler.journalUnjournalledChange(loopPerWalletModelData);
                 log.debug("Marking wallet '" + loopPerWalletModelData.getWalletFilename() + "' as dirty.");
             }
         }
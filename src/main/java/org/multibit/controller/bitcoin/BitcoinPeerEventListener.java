@@ -1,8 +1,11 @@
 package org.multibit.controller.bitcoin;
 
 import com.google.bitcoin.core.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import org.multibit.controller.Controller;
 import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletInfoData;
 import org.multibit.model.core.StatusEnum;
 import org.multibit.network.ReplayManager;
 import org.multibit.viewsystem.swing.view.panels.SendBitcoinConfirmPanel;
@@ -82,28 +85,14 @@ public class BitcoinPeerEventListener implements PeerEventListener {
 
         if (perWalletModelDataList != null) {
           for (WalletData perWalletModelData : perWalletModelDataList) {
-            Wallet loopWallet = perWalletModelData.getWallet();
-            if (loopWallet != null) {
-              if (loopWallet.isTransactionRelevant(transaction)) {
-                if (!(transaction.isTimeLocked()
-                        && transaction.getConfidence().getSource() != TransactionConfidence.Source.SELF)
-                        && loopWallet.isTransactionRisky(transaction, null)) {
-                  if (loopWallet.getTransaction(transaction.getHash()) == null) {
-                    log.debug("MultiBit adding a new pending transaction for the wallet '"
-                            + perWalletModelData.getWalletDescription() + "'\n" + transaction.toString());
-                    // The perWalletModelData is marked as dirty.
-                    if (perWalletModelData.getWalletInfo() != null) {
-                      synchronized (perWalletModelData.getWalletInfo()) {
-                        perWalletModelData.setDirty(true);
-                      }
-                    } else {
-                      perWalletModelData.setDirty(true);
-                    }
-                    loopWallet.receivePending(transaction, null);
-                  }
-                }
+            if (perWalletModelData.isStub()) {
+              if (paysReceivingAddress(perWalletModelData, transaction)) {
+                // The stub is loaded off this peer thread and given the transaction once it is loaded.
+                receivePendingOnceLoaded(perWalletModelData, transaction);
               }
+              continue;
             }
+            receivePendingIfRelevant(perWalletModelData, transaction);
           }
         }
       } catch (ScriptException e) {
@@ -114,6 +103,75 @@ public class BitcoinPeerEventListener implements PeerEventListener {
     }
   }
 
+  private void receivePendingOnceLoaded(WalletData perWalletModelData, final Transaction transaction) {
+    Futures.addCallback(perWalletModelData.loadWalletIfStubInBackground(), new FutureCallback<WalletData>() {
+      @Override
+      public void onSuccess(WalletData loadedPerWalletModelData) {
+        try {
+          receivePendingIfRelevant(loadedPerWalletModelData, transaction);
+        } catch (ScriptException e) {
+          log.error(e.getMessage(), e);
+        } catch (VerificationException e) {
+          log.error(e.getMessage(), e);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        log.error(t.getMessage(), t);
+      }
+    });
+  }
+
+  /**
+   * Add the transaction to the wallet as pending if it is relevant and not already in the wallet.
+   */
+  private void receivePendingIfRelevant(WalletData perWalletModelData, Transaction transaction) throws ScriptException, VerificationException {
+    Wallet loopWallet = perWalletModelData.getWallet();
+    if (loopWallet != null) {
+      if (loopWallet.isTransactionRelevant(transaction)) {
+        if (!(transaction.isTimeLocked()
+                && transaction.getConfidence().getSource() != TransactionConfidence.Source.SELF)
+                && loopWallet.isTransactionRisky(transaction, null)) {
+          if (loopWallet.getTransaction(transaction.getHash()) == null) {
+            log.debug("MultiBit adding a new pending transaction for the wallet '"
+                    + perWalletModelData.getWalletDescription() + "'\n" + transaction.toString());
+            // The perWalletModelData is marked as dirty.
+            if (perWalletModelData.getWalletInfo() != null) {
+              synchronized (perWalletModelData.getWalletInfo()) {
+                perWalletModelData.setDirty(true);
+              }
+            } else {
+              perWalletModelData.setDirty(true);
+            }
+            loopWallet.receivePending(transaction, null);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the transaction pays one of the receiving addresses of the wallet, using its wallet info only.
+   */
+  private boolean paysReceivingAddress(WalletData perWalletModelData, Transaction transaction) {
+    WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+    if (walletInfo == null || transaction.getOutputs() == null) {
+      return false;
+    }
+    NetworkParameters networkParameters = bitcoinController.getModel().getNetworkParameters();
+    for (TransactionOutput output : transaction.getOutputs()) {
+      try {
+        Address address = output.getScriptPubKey().getToAddress(networkParameters);
+        if (address != null && walletInfo.containsReceivingAddress(address.toString())) {
+          return true;
+        }
+      } catch (ScriptException e) {
+        // Not a pay to address output.
+      }
+    }
+    return false;
+  }
 
   @Override
   public List<Message> getData(Peer peer, GetDataMessage m) {
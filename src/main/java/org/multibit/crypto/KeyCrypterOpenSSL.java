@@ -22,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.BufferedBlockCipher;
 import org.spongycastle.crypto.CipherParameters;
+import org.spongycastle.crypto.InvalidCipherTextException;
 import org.spongycastle.crypto.PBEParametersGenerator;
 import org.spongycastle.crypto.engines.AESFastEngine;
 import org.spongycastle.crypto.generators.OpenSSLPBEParametersGenerator;
@@ -29,7 +30,16 @@ import org.spongycastle.crypto.modes.CBCBlockCipher;
 import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.spongycastle.crypto.params.ParametersWithIV;
 
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.security.SecureRandom;
 import java.util.Arrays;
 
@@ -97,6 +107,27 @@ public class KeyCrypterOpenSSL {
 
     public static final int NUMBER_OF_CHARACTERS_TO_MATCH_IN_OPENSSL_MAGIC_TEXT = 10;
 
+    /**
+     * The number of bytes base64 encoded onto each line of encrypted output.
+     * (The encoded line is 76 characters long).
+     */
+    private static final int BYTES_PER_BASE64_LINE = 57;
+
+    /**
+     * The number of base64 lines the streaming encryption encodes at a time.
+     */
+    private static final int BASE64_LINES_PER_BLOCK = 1024;
+
+    /**
+     * The line separator used between lines of base64 encoded output.
+     */
+    private static final String BASE64_LINE_SEPARATOR = "\r\n";
+
+    /**
+     * The number of base64 characters the streaming decryption decodes at a time.
+     */
+    private static final int BASE64_CHARACTERS_PER_BLOCK = 4096;
+
     private static SecureRandom secureRandom = new SecureRandom();
 
     public KeyCrypterOpenSSL()  {
@@ -263,6 +294,308 @@ public class KeyCrypterOpenSSL {
         }
     }
 
+    /**
+     * Create a Writer that encrypts the text written to it with password based AES - CBC 256 bits.
+     * 
+     * The text is encrypted and base64 encoded a block at a time as it is written so the
+     * plain text is never held in memory as a whole. When the returned Writer is closed the
+     * output written to 'out' is identical in format to that produced by encrypt(String, CharSequence)
+     * and 'out' is closed.
+     * 
+     * @param out
+     *            The Writer to write the encrypted, base64 encoded text to
+     * @param password
+     *            The password to use for encryption
+     * @return A Writer to write the plain text to
+     * @throws KeyCrypterException
+     */
+    public Writer createEncryptingWriter(Writer out, CharSequence password) throws KeyCrypterException {
+        try {
+            // Generate salt - each encryption call has a different salt.
+            byte[] salt = new byte[SALT_LENGTH];
+            secureRandom.nextBytes(salt);
+
+            ParametersWithIV key = (ParametersWithIV) getAESPasswordKey(password, salt);
+
+            BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+            cipher.init(true, key);
+
+            // OpenSSL prefixes the salt bytes + encryptedBytes with Salted___ and then base64 encodes it
+            OutputStream base64OutputStream = new Base64LineOutputStream(out);
+            base64OutputStream.write(openSSLSaltedBytes);
+            base64OutputStream.write(salt);
+
+            return new OutputStreamWriter(new CipherOutputStream(base64OutputStream, cipher), STRING_ENCODING);
+        } catch (IOException ioe) {
+            throw new KeyCrypterException("Could not create encrypting writer", ioe);
+        }
+    }
+
+    /**
+     * Create a Reader that decrypts text previously encrypted with this class.
+     * 
+     * The text is base64 decoded and decrypted a block at a time as it is read.
+     * 
+     * @param in
+     *            The Reader to read the encrypted, base64 encoded text from
+     * @param password
+     *            The password to use for decryption
+     * @return A Reader to read the decrypted text from
+     * @throws KeyCrypterException
+     */
+    public Reader createDecryptingReader(Reader in, CharSequence password) throws KeyCrypterException {
+        try {
+            InputStream base64InputStream = new Base64InputStream(in);
+
+            // Strip off the bytes due to the OPENSSL_SALTED_TEXT prefix text and separate the salt.
+            byte[] saltedPrefix = new byte[openSSLSaltedBytes.length + SALT_LENGTH];
+            readFully(base64InputStream, saltedPrefix);
+            byte[] salt = Arrays.copyOfRange(saltedPrefix, openSSLSaltedBytes.length, saltedPrefix.length);
+
+            ParametersWithIV key = (ParametersWithIV) getAESPasswordKey(password, salt);
+
+            BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+            cipher.init(false, key);
+
+            return new InputStreamReader(new CipherInputStream(base64InputStream, cipher), STRING_ENCODING);
+        } catch (IOException ioe) {
+            throw new KeyCrypterException("Could not decrypt input string", ioe);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read == -1) {
+                throw new EOFException("Encrypted text is too short");
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * OutputStream that base64 encodes the bytes written to it onto lines of 76 characters, each followed by a CRLF.
+     * 
+     * Whole blocks of lines are encoded as they fill. The final block is held back until close and encoded by
+     * Base64.encodeBase64String so that the end of the output is exactly as it would be if all the bytes had
+     * been encoded in one go.
+     */
+    private static class Base64LineOutputStream extends OutputStream {
+        private final Writer out;
+        private final byte[] block = new byte[BYTES_PER_BASE64_LINE * BASE64_LINES_PER_BLOCK];
+        private int blockLength = 0;
+
+        Base64LineOutputStream(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (blockLength == block.length) {
+                    // There is more to come so this block is not the final one.
+                    writeLines();
+                }
+                int toCopy = Math.min(length, block.length - blockLength);
+                System.arraycopy(bytes, offset, block, blockLength, toCopy);
+                blockLength += toCopy;
+                offset += toCopy;
+                length -= toCopy;
+            }
+        }
+
+        private void writeLines() throws IOException {
+            String encoded = new String(Base64.encodeBase64(block, false), "US-ASCII");
+            int lineLength = encoded.length() / BASE64_LINES_PER_BLOCK;
+            for (int start = 0; start < encoded.length(); start += lineLength) {
+                out.write(encoded, start, lineLength);
+                out.write(BASE64_LINE_SEPARATOR);
+            }
+            blockLength = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.write(Base64.encodeBase64String(Arrays.copyOf(block, blockLength)));
+                blockLength = 0;
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * InputStream that base64 decodes the characters read from a Reader, ignoring line separators.
+     */
+    private static class Base64InputStream extends InputStream {
+        private final Reader in;
+        private final char[] characters = new char[BASE64_CHARACTERS_PER_BLOCK];
+        private final byte[] encoded = new byte[BASE64_CHARACTERS_PER_BLOCK];
+        private byte[] decoded = new byte[0];
+        private int decodedPosition = 0;
+        private boolean endOfInput = false;
+
+        Base64InputStream(Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] singleByte = new byte[1];
+            return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            while (decodedPosition == decoded.length) {
+                if (endOfInput) {
+                    return -1;
+                }
+                decodeBlock();
+            }
+            int toCopy = Math.min(length, decoded.length - decodedPosition);
+            System.arraycopy(decoded, decodedPosition, bytes, offset, toCopy);
+            decodedPosition += toCopy;
+            return toCopy;
+        }
+
+        /**
+         * Decode the next block of base64 characters. Blocks are a multiple of four characters
+         * (other than the last) so each decodes independently of the others.
+         */
+        private void decodeBlock() throws IOException {
+            int encodedLength = 0;
+            while (encodedLength < encoded.length) {
+                int read = in.read(characters, 0, encoded.length - encodedLength);
+                if (read == -1) {
+                    endOfInput = true;
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (!Character.isWhitespace(characters[i])) {
+                        encoded[encodedLength++] = (byte) characters[i];
+                    }
+                }
+            }
+            decoded = Base64.decodeBase64(Arrays.copyOf(encoded, encodedLength));
+            decodedPosition = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * OutputStream that passes the bytes written to it through a cipher. The cipher is finished on close.
+     */
+    private static class CipherOutputStream extends FilterOutputStream {
+        private final BufferedBlockCipher cipher;
+
+        CipherOutputStream(OutputStream out, BufferedBlockCipher cipher) {
+            super(out);
+            this.cipher = cipher;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            byte[] processed = new byte[cipher.getUpdateOutputSize(length)];
+            int processedLength = cipher.processBytes(bytes, offset, length, processed, 0);
+            out.write(processed, 0, processedLength);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                byte[] processed = new byte[cipher.getOutputSize(0)];
+                int processedLength = cipher.doFinal(processed, 0);
+                out.write(processed, 0, processedLength);
+            } catch (InvalidCipherTextException icte) {
+                throw new KeyCrypterException("Could not encrypt output", icte);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * InputStream that passes the bytes read from it through a cipher. The cipher is finished at the end of the input.
+     */
+    private static class CipherInputStream extends InputStream {
+        private final InputStream in;
+        private final BufferedBlockCipher cipher;
+        private final byte[] input = new byte[BASE64_CHARACTERS_PER_BLOCK];
+        private byte[] processed = new byte[0];
+        private int processedPosition = 0;
+        private int processedLength = 0;
+        private boolean finished = false;
+
+        CipherInputStream(InputStream in, BufferedBlockCipher cipher) {
+            this.in = in;
+            this.cipher = cipher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] singleByte = new byte[1];
+            return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            while (processedPosition == processedLength) {
+                if (finished) {
+                    return -1;
+                }
+                processNextBlock();
+            }
+            int toCopy = Math.min(length, processedLength - processedPosition);
+            System.arraycopy(processed, processedPosition, bytes, offset, toCopy);
+            processedPosition += toCopy;
+            return toCopy;
+        }
+
+        private void processNextBlock() throws IOException {
+            int read = in.read(input, 0, input.length);
+            processedPosition = 0;
+            if (read == -1) {
+                finished = true;
+                processed = new byte[cipher.getOutputSize(0)];
+                try {
+                    processedLength = cipher.doFinal(processed, 0);
+                } catch (InvalidCipherTextException icte) {
+                    throw new KeyCrypterException("Could not decrypt input string", icte);
+                }
+            } else {
+                processed = new byte[cipher.getUpdateOutputSize(read)];
+                processedLength = cipher.processBytes(input, 0, read, processed, 0);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
     /**
      * Concatenate two byte arrays.
      */
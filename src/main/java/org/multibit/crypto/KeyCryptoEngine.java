@@ -0,0 +1,255 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.MultiBitWalletKeychain;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import org.multibit.Localiser;
+import org.multibit.message.Message;
+import org.multibit.message.MessageManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Engine that encrypts, decrypts and otherwise processes a batch of wallet keys in parallel.
+ *
+ * The AES key is derived once by the caller (scrypt is deliberately slow) and the per key AES work is
+ * then spread across a ForkJoin pool. Progress is reported through the MessageManager as the keys are processed.
+ */
+public enum KeyCryptoEngine {
+    INSTANCE;
+
+    private static final Logger log = LoggerFactory.getLogger(KeyCryptoEngine.class);
+
+    /**
+     * The number of keys processed by a single task before it stops splitting its share of the batch.
+     */
+    private static final int KEYS_PER_TASK = 64;
+
+    /**
+     * Progress is reported each time another REPORT_PROGRESS_PERCENTAGE percent of the batch is done.
+     */
+    private static final int REPORT_PROGRESS_PERCENTAGE = 5;
+
+    /**
+     * The work to do on each key of a batch.
+     */
+    public interface KeyTask<T> {
+        public T process(ECKey key) throws KeyCrypterException;
+    }
+
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Process a batch of keys in parallel.
+     *
+     * @param keys The keys to process
+     * @param task The work to do on each key
+     * @param localiser The localiser for the progress messages, or null for no progress messages
+     * @return The result for each key, in the same order as the keys
+     * @throws KeyCrypterException If the task fails for any key
+     */
+    public <T> List<T> processKeys(List<ECKey> keys, KeyTask<T> task, Localiser localiser) throws KeyCrypterException {
+        if (keys == null || keys.isEmpty()) {
+            return new ArrayList<T>();
+        }
+
+        Object[] results = new Object[keys.size()];
+        pool.invoke(new KeyBatchAction<T>(keys, task, results, 0, keys.size(), new Progress(keys.size(), localiser)));
+
+        @SuppressWarnings("unchecked")
+        List<T> resultList = (List<T>) Arrays.asList(results);
+        return resultList;
+    }
+
+    /**
+     * Create a batch of new keys in parallel.
+     *
+     * @param numberOfKeys The number of keys to create
+     * @param localiser The localiser for the progress messages, or null for no progress messages
+     * @return The new, unencrypted keys
+     */
+    public List<ECKey> createKeys(int numberOfKeys, Localiser localiser) {
+        // There are no keys to process yet so each task is handed a placeholder and returns a new key.
+        return processKeys(Collections.<ECKey>nCopies(numberOfKeys, null), new KeyTask<ECKey>() {
+            @Override
+            public ECKey process(ECKey placeholder) {
+                return new ECKey();
+            }
+        }, localiser);
+    }
+
+    /**
+     * Decrypt a batch of keys in parallel. Keys that are not encrypted are returned as is.
+     *
+     * @return The decrypted keys, in the same order as the keys
+     */
+    public List<ECKey> decryptKeys(List<ECKey> keys, final KeyCrypter keyCrypter, final KeyParameter aesKey, Localiser localiser)
+            throws KeyCrypterException {
+        return processKeys(keys, new KeyTask<ECKey>() {
+            @Override
+            public ECKey process(ECKey key) {
+                return key.isEncrypted() ? key.decrypt(keyCrypter, aesKey) : key;
+            }
+        }, localiser);
+    }
+
+    /**
+     * Encrypt a batch of keys in parallel. Keys that are already encrypted are returned as is.
+     *
+     * @return The encrypted keys, in the same order as the keys
+     * @throws KeyCrypterException If any key cannot be decrypted again after it is encrypted
+     */
+    public List<ECKey> encryptKeys(List<ECKey> keys, final KeyCrypter keyCrypter, final KeyParameter aesKey, Localiser localiser)
+            throws KeyCrypterException {
+        return processKeys(keys, new KeyTask<ECKey>() {
+            @Override
+            public ECKey process(ECKey key) {
+                return key.isEncrypted() ? key : encryptReversibly(key, keyCrypter, aesKey);
+            }
+        }, localiser);
+    }
+
+    /**
+     * Change the password of an encrypted wallet.
+     *
+     * Each key is decrypted with the current password and encrypted with the new password in parallel. The wallet
+     * keychain is then replaced by the re-keyed keys in one step under the wallet lock, so the wallet is never left
+     * (or seen by its listeners) with some keys encrypted with one password and some with the other, nor with its
+     * keys unencrypted. The caller should mark the wallet dirty afterwards.
+     *
+     * @param wallet The encrypted wallet to change the password of
+     * @param currentPassword The current wallet password
+     * @param newPassword The new wallet password
+     * @param localiser The localiser for the progress messages, or null for no progress messages
+     * @throws KeyCrypterException If the current password is wrong or any key cannot be re-keyed, in which case the wallet is unchanged
+     */
+    public void changePassword(Wallet wallet, CharSequence currentPassword, CharSequence newPassword, Localiser localiser)
+            throws KeyCrypterException {
+        final KeyCrypter keyCrypter = wallet.getKeyCrypter();
+        if (keyCrypter == null) {
+            throw new KeyCrypterException("The wallet is not encrypted so its password cannot be changed");
+        }
+
+        final KeyParameter currentAesKey = keyCrypter.deriveKey(currentPassword);
+        final KeyParameter newAesKey = keyCrypter.deriveKey(newPassword);
+
+        List<ECKey> keysToRekey = MultiBitWalletKeychain.copyKeys(wallet);
+
+        List<ECKey> rekeyedKeys = processKeys(keysToRekey, new KeyTask<ECKey>() {
+            @Override
+            public ECKey process(ECKey key) {
+                if (!key.isEncrypted()) {
+                    return encryptReversibly(key, keyCrypter, newAesKey);
+                }
+                return encryptReversibly(key.decrypt(keyCrypter, currentAesKey), keyCrypter, newAesKey);
+            }
+        }, localiser);
+
+        // Only commit if nothing changed the keychain whilst the keys were being re-keyed.
+        if (!MultiBitWalletKeychain.replaceKeys(wallet, keysToRekey, rekeyedKeys)) {
+            throw new KeyCrypterException("The wallet keys changed whilst the password was being changed. Please try again.");
+        }
+        log.debug("Changed the password of " + rekeyedKeys.size() + " keys");
+    }
+
+    private static ECKey encryptReversibly(ECKey key, KeyCrypter keyCrypter, KeyParameter aesKey) throws KeyCrypterException {
+        ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+        if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey)) {
+            throw new KeyCrypterException("The key " + key.toString()
+                    + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+        }
+        return encryptedKey;
+    }
+
+    /**
+     * Counts the keys processed and reports progress through the MessageManager.
+     */
+    private static class Progress {
+        private final int numberOfKeys;
+        private final Localiser localiser;
+        private final AtomicInteger numberOfKeysDone = new AtomicInteger();
+
+        Progress(int numberOfKeys, Localiser localiser) {
+            this.numberOfKeys = numberOfKeys;
+            this.localiser = localiser;
+        }
+
+        void keysDone(int count) {
+            int before = numberOfKeysDone.getAndAdd(count);
+            int after = before + count;
+            if (localiser != null && percent(before) / REPORT_PROGRESS_PERCENTAGE != percent(after) / REPORT_PROGRESS_PERCENTAGE) {
+                Message message = new Message(localiser.getString("keyCryptoEngine.progress", new Object[] { after, numberOfKeys }),
+                        percent(after));
+                message.setShowInMessagesTab(false);
+                MessageManager.INSTANCE.addMessage(message);
+            }
+        }
+
+        private int percent(int done) {
+            return (int) (100L * done / numberOfKeys);
+        }
+    }
+
+    /**
+     * Processes the keys in the range [start, end), splitting the range until it is small enough.
+     */
+    private static class KeyBatchAction<T> extends RecursiveAction {
+        private static final long serialVersionUID = 6158427390210245891L;
+
+        private final List<ECKey> keys;
+        private final KeyTask<T> task;
+        private final Object[] results;
+        private final int start;
+        private final int end;
+        private final Progress progress;
+
+        KeyBatchAction(List<ECKey> keys, KeyTask<T> task, Object[] results, int start, int end, Progress progress) {
+            this.keys = keys;
+            this.task = task;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= KEYS_PER_TASK) {
+                for (int i = start; i < end; i++) {
+                    results[i] = task.process(keys.get(i));
+                }
+                progress.keysDone(end - start);
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new KeyBatchAction<T>(keys, task, results, start, middle, progress),
+                        new KeyBatchAction<T>(keys, task, results, middle, end, progress));
+            }
+        }
+    }
+}
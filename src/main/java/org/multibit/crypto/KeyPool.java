@@ -0,0 +1,126 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.multibit.Localiser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of new keys generated ahead of time so that receiving addresses can be created without waiting for key generation.
+ *
+ * The pool is topped up in parallel on a low priority background thread. The pooled keys are never written to disk.
+ * They are only encrypted when they are taken from the pool as the AES key is derived from the wallet password,
+ * which is not kept.
+ */
+public enum KeyPool {
+    INSTANCE;
+
+    private static final Logger log = LoggerFactory.getLogger(KeyPool.class);
+
+    /**
+     * The number of keys the pool is topped up to.
+     */
+    public static final int TARGET_NUMBER_OF_READY_KEYS = 100;
+
+    private final LinkedBlockingQueue<ECKey> readyKeys = new LinkedBlockingQueue<ECKey>();
+
+    private final AtomicBoolean refillPending = new AtomicBoolean(false);
+
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("key-pool-refill-%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+    /**
+     * Top up the pool in the background if it has fewer than TARGET_NUMBER_OF_READY_KEYS keys.
+     */
+    public void refillInBackground() {
+        if (readyKeys.size() >= TARGET_NUMBER_OF_READY_KEYS || !refillPending.compareAndSet(false, true)) {
+            return;
+        }
+
+        refillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int numberOfKeysToCreate = TARGET_NUMBER_OF_READY_KEYS - readyKeys.size();
+                    if (numberOfKeysToCreate > 0) {
+                        readyKeys.addAll(KeyCryptoEngine.INSTANCE.createKeys(numberOfKeysToCreate, null));
+                        log.debug("Added " + numberOfKeysToCreate + " keys to the key pool");
+                    }
+                } catch (RuntimeException re) {
+                    log.error("Could not refill the key pool. " + re.getClass().getName() + " " + re.getMessage());
+                } finally {
+                    refillPending.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take new keys from the pool, creating any the pool cannot supply, and encrypt them if a KeyCrypter is given.
+     * The pool is then topped up again in the background.
+     *
+     * @param numberOfKeys The number of keys to take
+     * @param keyCrypter The wallet KeyCrypter to encrypt the keys with, or null to return them unencrypted
+     * @param aesKey The AES key to encrypt the keys with, or null to return them unencrypted
+     * @param localiser The localiser for the progress messages, or null for no progress messages
+     * @return The new keys, with a creation time of now
+     * @throws KeyCrypterException If any key cannot be encrypted
+     */
+    public List<ECKey> takeKeys(int numberOfKeys, KeyCrypter keyCrypter, KeyParameter aesKey, Localiser localiser)
+            throws KeyCrypterException {
+        List<ECKey> keys = new ArrayList<ECKey>(numberOfKeys);
+        readyKeys.drainTo(keys, numberOfKeys);
+        int numberOfPooledKeys = keys.size();
+        if (numberOfPooledKeys < numberOfKeys) {
+            keys.addAll(KeyCryptoEngine.INSTANCE.createKeys(numberOfKeys - numberOfPooledKeys, localiser));
+        }
+        log.debug("Took " + numberOfPooledKeys + " of " + numberOfKeys + " keys from the key pool");
+
+        // The keys are only handed out now so that is when they were created as far as the wallet is concerned.
+        long now = Utils.now().getTime() / 1000;
+        for (ECKey key : keys) {
+            key.setCreationTimeSeconds(now);
+        }
+
+        if (keyCrypter != null && aesKey != null) {
+            keys = KeyCryptoEngine.INSTANCE.encryptKeys(keys, keyCrypter, aesKey, localiser);
+        }
+
+        refillInBackground();
+        return keys;
+    }
+
+    /**
+     * @return The number of keys ready in the pool
+     */
+    public int getNumberOfReadyKeys() {
+        return readyKeys.size();
+    }
+}
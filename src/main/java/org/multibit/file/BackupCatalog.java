@@ -0,0 +1,393 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * A catalog of the wallet backups in one backup directory, so that the backups can be thinned
+ * without listing the directory and parsing every filename each time a backup is made.
+ *
+ * The catalog is kept in memory in backup time order and saved in the backup directory as 'backup.catalog'.
+ * When it is first opened it is checked against the directory once, to pick up any backups added or
+ * removed by hand. The format is:
+ * 9 magic bytes 'mbcatalog' in ASCII
+ * 1 byte version number of format - initially set to 0
+ * 4 bytes number of backups
+ * then for each backup: the filename (modified UTF-8), 8 bytes backup time in milliseconds, 1 byte flags
+ */
+class BackupCatalog {
+    private static final Logger log = LoggerFactory.getLogger(BackupCatalog.class);
+
+    public static final String CATALOG_FILENAME = "backup.catalog";
+
+    static final byte[] CATALOG_FILE_FORMAT_MAGIC_BYTES = new byte[]{(byte) 0x6D, (byte) 0x62, (byte) 0x63, (byte) 0x61,
+            (byte) 0x74, (byte) 0x61, (byte) 0x6C, (byte) 0x6F, (byte) 0x67}; // mbcatalog in ASCII
+    static final byte CATALOG_VERSION_NUMBER = (byte) 0x00;
+
+    /**
+     * The backup has a data directory so may have been opened in MultiBit. It is never thinned.
+     */
+    static final byte HAS_DATA_DIRECTORY_FLAG = 0x01;
+
+    private final File backupDirectory;
+    private final File catalogFile;
+
+    /**
+     * The backups, in backup time order.
+     */
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Map<String, Entry> filenameToEntryMap = new HashMap<String, Entry>();
+
+    private final DateFormat dateFormat = new SimpleDateFormat(BackupManager.BACKUP_SUFFIX_FORMAT);
+
+    private static class Entry {
+        final String filename;
+        final long backupTime;
+        byte flags;
+
+        Entry(String filename, long backupTime, byte flags) {
+            this.filename = filename;
+            this.backupTime = backupTime;
+            this.flags = flags;
+        }
+
+        boolean hasDataDirectory() {
+            return (flags & HAS_DATA_DIRECTORY_FLAG) != 0;
+        }
+    }
+
+    private BackupCatalog(File backupDirectory) {
+        this.backupDirectory = backupDirectory;
+        this.catalogFile = new File(backupDirectory, CATALOG_FILENAME);
+    }
+
+    /**
+     * Open the catalog of a backup directory, checking it against the backups actually in the directory.
+     *
+     * @param backupDirectory The backup directory e.g. <wallet>-data/wallet-backup
+     * @return The catalog
+     */
+    static BackupCatalog open(File backupDirectory) {
+        BackupCatalog catalog = new BackupCatalog(backupDirectory);
+        if (catalog.catalogFile.isFile()) {
+            try {
+                catalog.read();
+            } catch (IOException ioe) {
+                log.error("Backup catalog '" + catalog.catalogFile.getAbsolutePath() + "' could not be read so will be rebuilt. "
+                        + ioe.getClass().getName() + " " + ioe.getMessage());
+                catalog.entries.clear();
+                catalog.filenameToEntryMap.clear();
+            }
+        }
+        if (catalog.reconcile()) {
+            catalog.save();
+        }
+        return catalog;
+    }
+
+    /**
+     * Add a backup that has just been written to the directory.
+     */
+    synchronized void addBackup(File backupFile) {
+        if (addEntry(backupFile.getName(), false)) {
+            save();
+        }
+    }
+
+    /**
+     * Remove a backup that has been deleted from the directory.
+     */
+    synchronized void removeBackup(File backupFile) {
+        if (removeEntry(backupFile.getName())) {
+            save();
+        }
+    }
+
+    /**
+     * Record that a backup has been opened in MultiBit (so it has a data directory).
+     */
+    synchronized void markHasDataDirectory(File backupFile) {
+        Entry entry = filenameToEntryMap.get(backupFile.getName());
+        if (entry != null && !entry.hasDataDirectory()) {
+            entry.flags = (byte) (entry.flags | HAS_DATA_DIRECTORY_FLAG);
+            save();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the most recent backup, or null if there are none or it has been opened in MultiBit
+     */
+    synchronized File getLatestBackup() {
+        if (entries.isEmpty() || entries.get(entries.size() - 1).hasDataDirectory()) {
+            return null;
+        }
+        return new File(backupDirectory, entries.get(entries.size() - 1).filename);
+    }
+
+    /**
+     * Choose the backups to thin so that there is room for one more backup within maximumNumberOfBackups.
+     * The most quickly replaced backup is thinned first, then the next most quickly replaced of those left,
+     * and so on. The first and last few backups and backups with a data directory are never thinned.
+     *
+     * The chosen backups are removed from the catalog (which is not saved) and returned. The caller deletes them.
+     *
+     * @return The backup files to delete, in the order they were chosen
+     */
+    synchronized List<File> removeBackupsToThin(int maximumNumberOfBackups, int numberOfFirstToKeep, int numberOfLastToKeep) {
+        final int numberOfBackups = entries.size();
+        int numberToThin = numberOfBackups - maximumNumberOfBackups + 1;
+        List<File> backupsToThin = new ArrayList<File>();
+        if (numberToThin <= 0) {
+            return backupsToThin;
+        }
+
+        // The backups left are kept in a linked list so that removing one only changes its neighbour's replacement time.
+        final int[] previous = new int[numberOfBackups];
+        final int[] next = new int[numberOfBackups];
+        final long[] replacementTime = new long[numberOfBackups];
+        boolean[] thinned = new boolean[numberOfBackups];
+        for (int i = 0; i < numberOfBackups; i++) {
+            previous[i] = i - 1;
+            next[i] = i + 1;
+        }
+
+        // Queue of candidates (as {replacement time, index}), most quickly replaced first then earliest first.
+        PriorityQueue<long[]> candidates = new PriorityQueue<long[]>(numberOfBackups, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                if (a[0] != b[0]) {
+                    return a[0] < b[0] ? -1 : 1;
+                }
+                return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+            }
+        });
+        for (int i = numberOfFirstToKeep; i < numberOfBackups - numberOfLastToKeep; i++) {
+            if (!entries.get(i).hasDataDirectory()) {
+                replacementTime[i] = entries.get(i + 1).backupTime - entries.get(i).backupTime;
+                candidates.add(new long[]{replacementTime[i], i});
+            }
+        }
+
+        while (backupsToThin.size() < numberToThin && !candidates.isEmpty()) {
+            long[] candidate = candidates.poll();
+            int index = (int) candidate[1];
+            if (thinned[index] || candidate[0] != replacementTime[index]) {
+                // Already thinned, or superseded by a later replacement time.
+                continue;
+            }
+            if (candidate[0] >= Integer.MAX_VALUE) {
+                // As before, backups replaced after a gap of this length (about 24 days) are always kept.
+                break;
+            }
+
+            thinned[index] = true;
+            backupsToThin.add(new File(backupDirectory, entries.get(index).filename));
+
+            // The previous backup is now replaced by the next one.
+            int previousIndex = previous[index];
+            int nextIndex = next[index];
+            if (previousIndex >= 0) {
+                next[previousIndex] = nextIndex;
+            }
+            previous[nextIndex] = previousIndex;
+            if (previousIndex >= numberOfFirstToKeep && !entries.get(previousIndex).hasDataDirectory()) {
+                replacementTime[previousIndex] = entries.get(nextIndex).backupTime - entries.get(previousIndex).backupTime;
+                candidates.add(new long[]{replacementTime[previousIndex], previousIndex});
+            }
+        }
+
+        if (!backupsToThin.isEmpty()) {
+            List<Entry> entriesLeft = new ArrayList<Entry>(numberOfBackups - backupsToThin.size());
+            for (int i = 0; i < numberOfBackups; i++) {
+                if (thinned[i]) {
+                    filenameToEntryMap.remove(entries.get(i).filename);
+                } else {
+                    entriesLeft.add(entries.get(i));
+                }
+            }
+            entries.clear();
+            entries.addAll(entriesLeft);
+        }
+        return backupsToThin;
+    }
+
+    /**
+     * Save the catalog to the backup directory. Errors are logged as the catalog can always be rebuilt.
+     */
+    synchronized void save() {
+        try {
+            File temporaryCatalogFile = File.createTempFile(CATALOG_FILENAME, ".tmp", backupDirectory);
+            try {
+                FileOutputStream fileOutputStream = new FileOutputStream(temporaryCatalogFile);
+                try {
+                    DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+                    dataOutputStream.write(CATALOG_FILE_FORMAT_MAGIC_BYTES);
+                    dataOutputStream.writeByte(CATALOG_VERSION_NUMBER);
+                    dataOutputStream.writeInt(entries.size());
+                    for (Entry entry : entries) {
+                        dataOutputStream.writeUTF(entry.filename);
+                        dataOutputStream.writeLong(entry.backupTime);
+                        dataOutputStream.writeByte(entry.flags);
+                    }
+                    dataOutputStream.flush();
+                    fileOutputStream.getFD().sync();
+                } finally {
+                    fileOutputStream.close();
+                }
+
+                try {
+                    Files.move(temporaryCatalogFile.toPath(), catalogFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException amnse) {
+                    Files.move(temporaryCatalogFile.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                if (temporaryCatalogFile.exists() && !temporaryCatalogFile.delete()) {
+                    log.error("Could not delete temporary file '" + temporaryCatalogFile.getAbsolutePath() + "'");
+                }
+            }
+        } catch (IOException ioe) {
+            log.error("Could not save backup catalog '" + catalogFile.getAbsolutePath() + "'. " + ioe.getClass().getName() + " "
+                    + ioe.getMessage());
+        }
+    }
+
+    private void read() throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(catalogFile)));
+        try {
+            byte[] magicBytes = new byte[CATALOG_FILE_FORMAT_MAGIC_BYTES.length];
+            dataInputStream.readFully(magicBytes);
+            if (!Arrays.equals(CATALOG_FILE_FORMAT_MAGIC_BYTES, magicBytes)) {
+                throw new IOException("File '" + catalogFile.getAbsolutePath() + "' is not a backup catalog");
+            }
+            byte version = dataInputStream.readByte();
+            if (version != CATALOG_VERSION_NUMBER) {
+                throw new IOException("File '" + catalogFile.getAbsolutePath() + "' did not have the expected version number of "
+                        + CATALOG_VERSION_NUMBER + ". It was " + version);
+            }
+            int numberOfEntries = dataInputStream.readInt();
+            for (int i = 0; i < numberOfEntries; i++) {
+                String filename = dataInputStream.readUTF();
+                long backupTime = dataInputStream.readLong();
+                byte flags = dataInputStream.readByte();
+                insertEntry(new Entry(filename, backupTime, flags));
+            }
+        } finally {
+            dataInputStream.close();
+        }
+    }
+
+    /**
+     * Bring the catalog into line with the backups in the directory, with a single listing of it.
+     *
+     * @return true if the catalog was changed
+     */
+    private boolean reconcile() {
+        Set<String> backupFilenames = new HashSet<String>();
+        File[] listOfFiles = backupDirectory.listFiles();
+        if (listOfFiles != null) {
+            for (File file : listOfFiles) {
+                if (file.getName().matches(BackupManager.REGEX_FOR_TIMESTAMP_AND_WALLET_SUFFIX) && file.isFile() && file.length() > 0) {
+                    backupFilenames.add(file.getName());
+                }
+            }
+        }
+
+        boolean changed = false;
+        for (Entry entry : new ArrayList<Entry>(entries)) {
+            if (!backupFilenames.contains(entry.filename)) {
+                changed = removeEntry(entry.filename) || changed;
+            }
+        }
+        for (String backupFilename : backupFilenames) {
+            if (!filenameToEntryMap.containsKey(backupFilename)) {
+                // Only a backup that was not in the catalog needs checking for a data directory.
+                changed = addEntry(backupFilename, true) || changed;
+            }
+        }
+        return changed;
+    }
+
+    private boolean addEntry(String filename, boolean checkForDataDirectory) {
+        if (filenameToEntryMap.containsKey(filename)) {
+            return false;
+        }
+
+        // Work out the date the backup was made using the timestamp rather than the write time of the file.
+        if (filename.length() <= 22) { // 22 = 1 for hyphen + 14 for timestamp + 1 for dot + 6 for wallet.
+            return false;
+        }
+        int startOfTimestamp = filename.length() - 21; // 21 = 14 for timestamp + 1 for dot + 6 for wallet.
+        String timestampText = filename.substring(startOfTimestamp, startOfTimestamp + BackupManager.BACKUP_SUFFIX_FORMAT.length());
+        Date parsedTimestamp;
+        try {
+            parsedTimestamp = dateFormat.parse(timestampText);
+        } catch (ParseException pe) {
+            // Cannot parse text - may be some other type of file the user has put in the directory.
+            log.debug("For wallet '" + filename + " could not parse the timestamp of '" + timestampText + "'.");
+            return false;
+        }
+
+        byte flags = 0;
+        if (checkForDataDirectory) {
+            // If there is a data directory for the backup then it may have been opened in MultiBit.
+            String possibleDataDirectory = BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(new File(backupDirectory, filename));
+            if (new File(possibleDataDirectory).exists()) {
+                flags = HAS_DATA_DIRECTORY_FLAG;
+            }
+        }
+        insertEntry(new Entry(filename, parsedTimestamp.getTime(), flags));
+        return true;
+    }
+
+    private void insertEntry(Entry entry) {
+        Entry existingEntry = filenameToEntryMap.put(entry.filename, entry);
+        if (existingEntry != null) {
+            entries.remove(existingEntry);
+        }
+
+        // New backups are almost always the latest so search back from the end.
+        int index = entries.size();
+        while (index > 0 && (entries.get(index - 1).backupTime > entry.backupTime
+                || (entries.get(index - 1).backupTime == entry.backupTime && entries.get(index - 1).filename.compareTo(entry.filename) > 0))) {
+            index--;
+        }
+        entries.add(index, entry);
+    }
+
+    private boolean removeEntry(String filename) {
+        Entry entry = filenameToEntryMap.remove(filename);
+        if (entry == null) {
+            return false;
+        }
+        entries.remove(entry);
+        return true;
+    }
+}
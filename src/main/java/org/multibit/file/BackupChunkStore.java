@@ -0,0 +1,423 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A deduplicating store for wallet backups.
+ *
+ * A backup is cut into chunks at content defined boundaries (found with a rolling hash) so that
+ * an insertion or deletion in a wallet only changes the chunks around it. Each chunk is stored once,
+ * named by its SHA-256 hash, in the 'backup-chunks' directory of the wallet's data directory.
+ *
+ * The latest backup is always kept whole, so that it can be copied out of the backup directory and
+ * opened by hand. When the next backup is written the previous one is replaced by a manifest listing
+ * its chunks. A manifest backup is restored by opening it in MultiBit (File | Open Wallet), which
+ * rebuilds it from the chunks - FileHandler.read does this for any file that is a manifest.
+ *
+ * The manifest format is:
+ * 8 magic bytes 'mbchunks' in ASCII
+ * 1 byte version number of format - initially set to 0
+ * 4 bytes length of the backup
+ * 32 bytes SHA-256 hash of the backup
+ * 4 bytes number of chunks
+ * then for each chunk: 4 bytes chunk length, 32 bytes SHA-256 hash of the chunk
+ */
+final class BackupChunkStore {
+    private static final Logger log = LoggerFactory.getLogger(BackupChunkStore.class);
+
+    public static final String CHUNK_DIRECTORY_NAME = "backup-chunks";
+
+    static final byte[] MANIFEST_MAGIC_BYTES = new byte[] { (byte) 0x6D, (byte) 0x62, (byte) 0x63, (byte) 0x68, (byte) 0x75,
+            (byte) 0x6E, (byte) 0x6B, (byte) 0x73 }; // mbchunks in ASCII
+    static final byte MANIFEST_VERSION_NUMBER = (byte) 0x00;
+
+    private static final int HASH_LENGTH = 32;
+    private static final int MANIFEST_HEADER_LENGTH = MANIFEST_MAGIC_BYTES.length + 1 + 4 + HASH_LENGTH + 4;
+    private static final int MANIFEST_ENTRY_LENGTH = 4 + HASH_LENGTH;
+
+    static final int MINIMUM_CHUNK_LENGTH = 2 * 1024;
+    static final int NORMAL_CHUNK_LENGTH = 8 * 1024;
+    static final int MAXIMUM_CHUNK_LENGTH = 64 * 1024;
+
+    /**
+     * A chunk boundary is where the rolling hash has the bits of the mask clear. The masks use the top bits
+     * of the hash, which depend on the last 64 bytes, as the low bits of a gear hash only depend on the last few.
+     * Up to the normal chunk length the stricter mask is used and after it the looser one, so that chunk
+     * lengths cluster around the normal length ('normalised chunking') rather than spreading out exponentially.
+     */
+    private static final long STRICT_CHUNK_BOUNDARY_MASK = -1L << (64 - 15);
+    private static final long LOOSE_CHUNK_BOUNDARY_MASK = -1L << (64 - 11);
+
+    /**
+     * The random values for the 'gear' rolling hash. The seed is fixed so that the chunk boundaries never change.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6D62636875L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Chunks are only removed whilst no backup is being written.
+     */
+    private static final Object storeLock = new Object();
+
+    /**
+     * Utilities have private constructor
+     */
+    private BackupChunkStore() {
+    }
+
+    /**
+     * @return true if the bytes (from their position) are the start of a backup manifest.
+     */
+    static boolean isManifest(ByteBuffer bytes) {
+        if (bytes == null || bytes.remaining() < MANIFEST_HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MANIFEST_MAGIC_BYTES.length; i++) {
+            if (bytes.get(bytes.position() + i) != MANIFEST_MAGIC_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a backup. The backup file is written whole and the previous backup, if it is whole,
+     * is moved into the store, leaving its manifest in its place.
+     *
+     * @param contents The contents to back up
+     * @param backupFile The backup file, which must be in a subdirectory of the wallet's data directory
+     * @param previousBackupFile The previous backup in the same directory (may be null)
+     */
+    static void writeBackup(byte[] contents, File backupFile, File previousBackupFile) throws IOException {
+        synchronized (storeLock) {
+            if (previousBackupFile != null && previousBackupFile.isFile() && !previousBackupFile.equals(backupFile)) {
+                try {
+                    ByteBuffer previousBackupBytes = FileHandler.mapFile(previousBackupFile);
+                    if (!isManifest(previousBackupBytes)) {
+                        byte[] previousContents = new byte[previousBackupBytes.remaining()];
+                        previousBackupBytes.get(previousContents);
+                        writeManifest(previousContents, previousBackupFile);
+                    }
+                } catch (IOException ioe) {
+                    // The previous backup is left whole, which only costs space.
+                    log.error("Could not move backup '" + previousBackupFile.getAbsolutePath() + "' into the backup chunk store. "
+                            + ioe.getClass().getName() + " " + ioe.getMessage());
+                }
+            }
+            writeAtomically(backupFile, contents, 0, contents.length);
+        }
+    }
+
+    /**
+     * Write the contents to the store. The chunks not already in the store are written to it and the manifest
+     * is written to the backup file.
+     *
+     * @param contents The contents to back up
+     * @param backupFile The backup file, which must be in a subdirectory of the wallet's data directory
+     */
+    static void writeManifest(byte[] contents, File backupFile) throws IOException {
+        File chunkDirectory = getChunkDirectory(backupFile);
+
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        DataOutputStream manifest = new DataOutputStream(manifestBytes);
+        manifest.write(MANIFEST_MAGIC_BYTES);
+        manifest.writeByte(MANIFEST_VERSION_NUMBER);
+        manifest.writeInt(contents.length);
+        manifest.write(sha256(contents, 0, contents.length));
+
+        List<Integer> chunkBoundaries = findChunkBoundaries(contents);
+        manifest.writeInt(chunkBoundaries.size());
+
+        int numberOfChunksWritten = 0;
+        synchronized (storeLock) {
+            int chunkStart = 0;
+            for (int chunkEnd : chunkBoundaries) {
+                int chunkLength = chunkEnd - chunkStart;
+                byte[] chunkHash = sha256(contents, chunkStart, chunkLength);
+                manifest.writeInt(chunkLength);
+                manifest.write(chunkHash);
+
+                File chunkFile = getChunkFile(chunkDirectory, chunkHash);
+                if (!chunkFile.exists()) {
+                    writeAtomically(chunkFile, contents, chunkStart, chunkLength);
+                    numberOfChunksWritten++;
+                }
+                chunkStart = chunkEnd;
+            }
+            manifest.flush();
+            byte[] manifestContents = manifestBytes.toByteArray();
+            writeAtomically(backupFile, manifestContents, 0, manifestContents.length);
+        }
+        log.debug("Backup '" + backupFile.getAbsolutePath() + "' has " + chunkBoundaries.size() + " chunks, of which "
+                + numberOfChunksWritten + " were new");
+    }
+
+    /**
+     * Read a backup back from the store.
+     *
+     * @param backupFile The backup file
+     * @param manifestBytes The contents of the backup file
+     * @return The contents that were backed up
+     * @throws IOException if the manifest is invalid or a chunk is missing or damaged
+     */
+    static byte[] readBackup(File backupFile, ByteBuffer manifestBytes) throws IOException {
+        ByteBuffer manifest = manifestBytes.duplicate();
+        if (!isManifest(manifest)) {
+            throw new IOException("File '" + backupFile.getAbsolutePath() + "' is not a backup manifest");
+        }
+        manifest.position(manifest.position() + MANIFEST_MAGIC_BYTES.length);
+        byte version = manifest.get();
+        if (version != MANIFEST_VERSION_NUMBER) {
+            throw new IOException("File '" + backupFile.getAbsolutePath() + "' did not have the expected version number of "
+                    + MANIFEST_VERSION_NUMBER + ". It was " + version);
+        }
+        int length = manifest.getInt();
+        byte[] expectedHash = new byte[HASH_LENGTH];
+        manifest.get(expectedHash);
+        int numberOfChunks = manifest.getInt();
+        if (length < 0 || numberOfChunks < 0 || manifest.remaining() < (long) numberOfChunks * MANIFEST_ENTRY_LENGTH) {
+            throw new IOException("File '" + backupFile.getAbsolutePath() + "' is not a valid backup manifest");
+        }
+
+        File chunkDirectory = getChunkDirectory(backupFile);
+        byte[] contents = new byte[length];
+        int position = 0;
+        byte[] chunkHash = new byte[HASH_LENGTH];
+        for (int i = 0; i < numberOfChunks; i++) {
+            int chunkLength = manifest.getInt();
+            manifest.get(chunkHash);
+            if (chunkLength < 0 || chunkLength > length - position) {
+                throw new IOException("File '" + backupFile.getAbsolutePath() + "' is not a valid backup manifest");
+            }
+            File chunkFile = getChunkFile(chunkDirectory, chunkHash);
+            if (!chunkFile.isFile()) {
+                throw new IOException("Backup chunk '" + chunkFile.getAbsolutePath() + "' of backup '" + backupFile.getAbsolutePath()
+                        + "' is missing");
+            }
+            ByteBuffer chunk = FileHandler.mapFile(chunkFile);
+            if (chunk.remaining() != chunkLength) {
+                throw new IOException("Backup chunk '" + chunkFile.getAbsolutePath() + "' has the wrong length");
+            }
+            chunk.get(contents, position, chunkLength);
+            if (!java.util.Arrays.equals(chunkHash, sha256(contents, position, chunkLength))) {
+                throw new IOException("Backup chunk '" + chunkFile.getAbsolutePath() + "' is damaged");
+            }
+            position = position + chunkLength;
+        }
+        if (position != length || !java.util.Arrays.equals(expectedHash, sha256(contents, 0, length))) {
+            throw new IOException("Backup '" + backupFile.getAbsolutePath() + "' could not be rebuilt from its chunks");
+        }
+        return contents;
+    }
+
+    /**
+     * Remove the chunks that are no longer in any backup of the wallet.
+     *
+     * @param topLevelBackupDirectoryName The wallet's data directory
+     * @return The number of chunks removed
+     */
+    static int removeUnreferencedChunks(String topLevelBackupDirectoryName) {
+        File topLevelBackupDirectory = new File(topLevelBackupDirectoryName);
+        File chunkDirectory = new File(topLevelBackupDirectory, CHUNK_DIRECTORY_NAME);
+        if (!chunkDirectory.isDirectory()) {
+            return 0;
+        }
+
+        int numberOfChunksRemoved = 0;
+        synchronized (storeLock) {
+            // Find the chunks of all the manifests in the data directory.
+            Set<String> referencedChunks = new HashSet<String>();
+            File[] backupDirectories = topLevelBackupDirectory.listFiles();
+            if (backupDirectories != null) {
+                for (File backupDirectory : backupDirectories) {
+                    if (!backupDirectory.isDirectory() || backupDirectory.equals(chunkDirectory)) {
+                        continue;
+                    }
+                    File[] backupFiles = backupDirectory.listFiles();
+                    if (backupFiles == null) {
+                        continue;
+                    }
+                    for (File backupFile : backupFiles) {
+                        if (!addChunksOfManifest(backupFile, referencedChunks)) {
+                            // A manifest could not be read - keep every chunk rather than risk losing one it uses.
+                            return 0;
+                        }
+                    }
+                }
+            }
+
+            File[] chunkSubdirectories = chunkDirectory.listFiles();
+            if (chunkSubdirectories != null) {
+                for (File chunkSubdirectory : chunkSubdirectories) {
+                    File[] chunkFiles = chunkSubdirectory.listFiles();
+                    if (chunkFiles == null) {
+                        continue;
+                    }
+                    for (File chunkFile : chunkFiles) {
+                        if (!referencedChunks.contains(chunkFile.getName())) {
+                            try {
+                                SecureFiles.secureDelete(chunkFile);
+                                numberOfChunksRemoved++;
+                            } catch (IOException ioe) {
+                                log.error(ioe.getClass().getName() + " " + ioe.getMessage());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        log.debug("Removed " + numberOfChunksRemoved + " unused backup chunks from '" + chunkDirectory.getAbsolutePath() + "'");
+        return numberOfChunksRemoved;
+    }
+
+    /**
+     * Add the chunks of the manifest to referencedChunks. Files that are not manifests are ignored.
+     *
+     * @return false if the file is a manifest that could not be read
+     */
+    private static boolean addChunksOfManifest(File file, Set<String> referencedChunks) {
+        if (!file.isFile() || file.length() < MANIFEST_HEADER_LENGTH) {
+            return true;
+        }
+        try {
+            ByteBuffer manifest = FileHandler.mapFile(file);
+            if (!isManifest(manifest)) {
+                return true;
+            }
+            manifest.position(MANIFEST_HEADER_LENGTH - 4);
+            int numberOfChunks = manifest.getInt();
+            if (numberOfChunks < 0 || manifest.remaining() < (long) numberOfChunks * MANIFEST_ENTRY_LENGTH) {
+                log.error("Backup manifest '" + file.getAbsolutePath() + "' is damaged");
+                return false;
+            }
+            byte[] chunkHash = new byte[HASH_LENGTH];
+            for (int i = 0; i < numberOfChunks; i++) {
+                manifest.getInt();
+                manifest.get(chunkHash);
+                referencedChunks.add(Utils.bytesToHexString(chunkHash));
+            }
+            return true;
+        } catch (IOException ioe) {
+            log.error(ioe.getClass().getName() + " " + ioe.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Work out where the chunks end, using a 'gear' rolling hash over the contents.
+     *
+     * @return The end (exclusive) of each chunk, in order
+     */
+    static List<Integer> findChunkBoundaries(byte[] contents) {
+        List<Integer> chunkBoundaries = new ArrayList<Integer>();
+        int chunkStart = 0;
+        long hash = 0;
+        for (int i = 0; i < contents.length; i++) {
+            hash = (hash << 1) + GEAR[contents[i] & 0xff];
+            int chunkLength = i + 1 - chunkStart;
+            long chunkBoundaryMask = chunkLength < NORMAL_CHUNK_LENGTH ? STRICT_CHUNK_BOUNDARY_MASK : LOOSE_CHUNK_BOUNDARY_MASK;
+            if ((chunkLength >= MINIMUM_CHUNK_LENGTH && (hash & chunkBoundaryMask) == 0) || chunkLength >= MAXIMUM_CHUNK_LENGTH) {
+                chunkBoundaries.add(i + 1);
+                chunkStart = i + 1;
+                hash = 0;
+            }
+        }
+        if (chunkStart < contents.length) {
+            chunkBoundaries.add(contents.length);
+        }
+        return chunkBoundaries;
+    }
+
+    /**
+     * The chunk directory is 'backup-chunks' in the wallet's data directory i.e. the parent of the backup's directory.
+     */
+    private static File getChunkDirectory(File backupFile) throws IOException {
+        File backupDirectory = backupFile.getAbsoluteFile().getParentFile();
+        if (backupDirectory == null || backupDirectory.getParentFile() == null) {
+            throw new IOException("Backup '" + backupFile.getAbsolutePath() + "' is not in a wallet data directory");
+        }
+        return new File(backupDirectory.getParentFile(), CHUNK_DIRECTORY_NAME);
+    }
+
+    /**
+     * Chunks are spread over 256 subdirectories by the first byte of their hash.
+     */
+    private static File getChunkFile(File chunkDirectory, byte[] chunkHash) {
+        String chunkName = Utils.bytesToHexString(chunkHash);
+        return new File(chunkDirectory, chunkName.substring(0, 2) + File.separator + chunkName);
+    }
+
+    private static void writeAtomically(File file, byte[] contents, int offset, int length) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+            throw new IOException("Could not create directory '" + directory.getAbsolutePath() + "'");
+        }
+        File temporaryFile = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)) {
+                fileOutputStream.write(contents, offset, length);
+                fileOutputStream.flush();
+                fileOutputStream.getFD().sync();
+            }
+            try {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (temporaryFile.exists() && !temporaryFile.delete()) {
+                log.error("Could not delete temporary file '" + temporaryFile.getAbsolutePath() + "'");
+            }
+        }
+    }
+
+    private static byte[] sha256(byte[] contents, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(contents, offset, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+    }
+}
@@ -1,11 +1,9 @@
 package org.multibit.file;
 
-import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.Wallet;
-import com.google.bitcoin.crypto.EncryptedPrivateKey;
-import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.ScryptParameters;
@@ -15,14 +13,24 @@ import org.multibit.model.bitcoin.WalletData;
 import org.multibit.model.bitcoin.WalletInfoData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.BufferedBlockCipher;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESFastEngine;
+import org.spongycastle.crypto.modes.CBCBlockCipher;
+import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.crypto.params.ParametersWithIV;
 import org.spongycastle.util.Arrays;
 
 import java.io.*;
 import java.security.SecureRandom;
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -37,8 +45,26 @@ public enum BackupManager {
 
     public static final String BACKUP_SUFFIX_FORMAT = "yyyyMMddHHmmss";
     private static final String SEPARATOR = "-";
-    private DateFormat dateFormat;
-    private Date dateForBackupName = null;
+
+    /**
+     * Backups are named on the wallet save threads and SimpleDateFormat is not thread safe, so each thread has its own.
+     */
+    private static final ThreadLocal<DateFormat> dateFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat(BACKUP_SUFFIX_FORMAT);
+        }
+    };
+
+    /**
+     * The backup date saved for reuse, per thread so that concurrent saves cannot pick up each other's date.
+     */
+    private static final ThreadLocal<Date> dateForBackupName = new ThreadLocal<Date>();
+
+    /**
+     * The catalogs of the backup directories opened so far, keyed by backup directory path.
+     */
+    private final Map<String, BackupCatalog> backupCatalogs = new HashMap<String, BackupCatalog>();
 
     public static final String TOP_LEVEL_WALLET_BACKUP_SUFFIX = "-data";
     public static final String PRIVATE_KEY_BACKUP_DIRECTORY_NAME = "key-backup";
@@ -64,6 +90,14 @@ public enum BackupManager {
     public static final byte FILE_ENCRYPTED_VERSION_NUMBER = (byte) 0x00;
 
     public static final byte[] ENCRYPTED_FILE_FORMAT_MAGIC_BYTES = new byte[]{(byte) 0x6D, (byte) 0x65, (byte) 0x6E, (byte) 0x64, (byte) 0x6F, (byte) 0x7A, (byte) 0x61}; // mendoza in ASCII
+    private static final int ENCRYPTED_FILE_HEADER_LENGTH = ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + EXPECTED_LENGTH_OF_SALT + EXPECTED_LENGTH_OF_IV;
+
+    /**
+     * Files are encrypted and decrypted this many bytes at a time, so the memory used does not depend on the size of the file.
+     */
+    static final int FILE_ENCRYPTION_CHUNK_SIZE = 64 * 1024;
+
+    public static final int MAXIMUM_NUMBER_OF_FILE_ENCRYPTION_THREADS = 4;
      
     /**
      * Backup the perWalletModelData to the <wallet>-data/wallet-backup (encrypted) or wallet-unenc-backup (unencrypted) directories.
@@ -74,6 +108,11 @@ public enum BackupManager {
         if (perWalletModelData == null || fileHandler == null) {
             return;
         }
+
+        if (perWalletModelData.getWallet() == null) {
+            // A stub - its wallet file has not changed since it was last backed up.
+            return;
+        }
         
         // Write to backup files.
         try {
@@ -92,7 +131,16 @@ public enum BackupManager {
             // If the backup directory is needs thinning, do so.
             thinBackupDirectory(perWalletModelData.getWalletFilename(), backupSuffixText);
             
-            fileHandler.saveWalletAndWalletInfoSimple(perWalletModelData, walletBackupFilename, walletInfoBackupFilename);
+            if (ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME.equals(backupSuffixText)) {
+                // Encrypted backups share their unchanged chunks with earlier backups. The latest is kept whole.
+                File previousWalletBackupFile = getBackupCatalog(perWalletModelData.getWalletFilename(), backupSuffixText).getLatestBackup();
+                fileHandler.saveWalletAndWalletInfoAsBackup(perWalletModelData, walletBackupFilename, walletInfoBackupFilename,
+                        previousWalletBackupFile);
+            } else {
+                // Unencrypted backups are later file level encrypted and secure deleted individually so are kept whole.
+                fileHandler.saveWalletAndWalletInfoSimple(perWalletModelData, walletBackupFilename, walletInfoBackupFilename);
+            }
+            getBackupCatalog(perWalletModelData.getWalletFilename(), backupSuffixText).addBackup(new File(walletBackupFilename));
 
             log.info("Written backup wallet files to '" + walletBackupFilename + "', '" + walletInfoBackupFilename + "'");
         } catch (IOException ioe) {
@@ -104,20 +152,55 @@ public enum BackupManager {
         }
     }
     
-    public void fileLevelEncryptUnencryptedWalletBackups(WalletData perWalletModelData, CharSequence passwordToUse) {
+    public void fileLevelEncryptUnencryptedWalletBackups(final WalletData perWalletModelData, CharSequence passwordToUse) {
         // See if there are any unencrypted wallet backups.
         Collection<File> unencryptedWalletBackups = getWalletsInBackupDirectory(perWalletModelData.getWalletFilename(),
                 UNENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME);
+        if (unencryptedWalletBackups.isEmpty()) {
+            return;
+        }
+        if (passwordToUse == null || passwordToUse.length() == 0) {
+            throw new IllegalArgumentException("Password cannot be blank");
+        }
 
-        // Copy and encrypt each file and secure delete the original.
-        for (File loopFile : unencryptedWalletBackups) {
-            try {
-                String encryptedFilename = loopFile.getAbsolutePath() + "." + FILE_ENCRYPTED_WALLET_SUFFIX;
-                copyFileAndEncrypt(loopFile, new File(encryptedFilename), passwordToUse);
-                SecureFiles.secureDelete(loopFile);
-            } catch (IOException | IllegalArgumentException | IllegalStateException | KeyCrypterException ioe) {
-                log.error(ioe.getClass().getName() + " " + ioe.getMessage());
+        // The backups all use the same salt (and each their own IV) so the key is only derived once.
+        final byte[] salt = createSalt();
+        final KeyParameter aesKey = deriveFileEncryptionKey(passwordToUse, salt);
+
+        // Copy and encrypt each file and secure delete the original, several at a time.
+        int numberOfThreads = Math.max(1, Math.min(Math.min(MAXIMUM_NUMBER_OF_FILE_ENCRYPTION_THREADS, Runtime.getRuntime().availableProcessors()),
+                unencryptedWalletBackups.size()));
+        ExecutorService encryptExecutor = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactoryBuilder()
+                .setNameFormat("backup-encrypt-%d").setDaemon(true).build());
+        try {
+            List<Future<?>> encryptions = new ArrayList<Future<?>>();
+            for (final File loopFile : unencryptedWalletBackups) {
+                encryptions.add(encryptExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            String encryptedFilename = loopFile.getAbsolutePath() + "." + FILE_ENCRYPTED_WALLET_SUFFIX;
+                            copyFileAndEncrypt(loopFile, new File(encryptedFilename), salt, aesKey);
+                            SecureFiles.secureDelete(loopFile);
+                            getBackupCatalog(perWalletModelData.getWalletFilename(), UNENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME).removeBackup(loopFile);
+                        } catch (IOException | IllegalArgumentException | IllegalStateException | KeyCrypterException ioe) {
+                            log.error(ioe.getClass().getName() + " " + ioe.getMessage());
+                        }
+                    }
+                }));
             }
+
+            for (Future<?> encryption : encryptions) {
+                try {
+                    encryption.get();
+                } catch (ExecutionException ee) {
+                    log.error(ee.getClass().getName() + " " + ee.getMessage());
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            encryptExecutor.shutdown();
         }
     }
     
@@ -131,9 +214,9 @@ public enum BackupManager {
      *
      * @param file
      * @param subDirectorySuffix - subdirectory to add to backup file e.g key-backup. null for no subdirectory.
-     * @param saveBackupDate - save the backup date for use later
+     * @param saveBackupDate - save the backup date for use later on this thread
      * @param reusePreviousBackupDate
-     *            Reuse the previously created backup date so that wallet and wallet info names match
+     *            Reuse the backup date previously saved on this thread so that wallet and wallet info names match
      * @param suffixToUse
      *            the suffix text to use
      * @return String the name of the created filename.
@@ -164,25 +247,21 @@ public enum BackupManager {
         Date backupDateToUse = new Date();
 
         if (saveBackupDate) {
-            dateForBackupName = backupDateToUse;
+            dateForBackupName.set(backupDateToUse);
         }
 
-        if (reusePreviousBackupDate) {
-            backupDateToUse = dateForBackupName;
+        if (reusePreviousBackupDate && dateForBackupName.get() != null) {
+            backupDateToUse = dateForBackupName.get();
         }
         String backupFilename;
         
-        if (dateFormat == null) {
-            dateFormat = new SimpleDateFormat(BACKUP_SUFFIX_FORMAT);
-        }
-        
         if (subDirectorySuffix != null && subDirectorySuffix.length() > 0) {
-            String backupFilenameShort = stemShort + SEPARATOR + dateFormat.format(backupDateToUse) + suffix;
+            String backupFilenameShort = stemShort + SEPARATOR + dateFormat.get().format(backupDateToUse) + suffix;
             String subDirectoryName =  topLevelBackupDirectoryName + File.separator + subDirectorySuffix;
             createDirectoryIfNecessary(subDirectoryName);
             backupFilename = subDirectoryName + File.separator + backupFilenameShort;
         } else {
-            backupFilename = stemLong + SEPARATOR + dateFormat.format(backupDateToUse) + suffix;
+            backupFilename = stemLong + SEPARATOR + dateFormat.get().format(backupDateToUse) + suffix;
         }
 
         return backupFilename;
@@ -190,99 +269,80 @@ public enum BackupManager {
    
     /**
      * Thin the wallet backups when they reach the MAXIMUM_NUMBER_OF_BACKUPS setting.
-     * Thinning is done by removing the most quickly replaced backup, except for the first and last few 
-     * (as they are considered to be more valuable backups).
+     * Thinning is done by removing the most quickly replaced backups, except for the first and last few 
+     * (as they are considered to be more valuable backups), until there is room for one more backup.
+     * The backups are found from the backup directory's catalog rather than by listing the directory.
      * 
      * @param backupDirectoryName
      */
     void thinBackupDirectory(String walletFilename, String backupSuffixText) {
-        if (dateFormat == null) {
-            dateFormat = new SimpleDateFormat(BACKUP_SUFFIX_FORMAT);
-        }
-        
         if (walletFilename == null || backupSuffixText == null) {
             return;
         }
         
-        // Find out how many wallet backups there are.
-        List<File> backupWallets = getWalletsInBackupDirectory(walletFilename, backupSuffixText);
-        
-        if (backupWallets.size() < MAXIMUM_NUMBER_OF_BACKUPS) {
+        BackupCatalog backupCatalog = getBackupCatalog(walletFilename, backupSuffixText);
+        List<File> backupWalletsToDelete = backupCatalog.removeBackupsToThin(MAXIMUM_NUMBER_OF_BACKUPS,
+                NUMBER_OF_FIRST_WALLETS_TO_ALWAYS_KEEP, NUMBER_OF_LAST_WALLETS_TO_ALWAYS_KEEP);
+        if (backupWalletsToDelete.isEmpty()) {
             // No thinning required.
             return;
         }
         
-        // Work out the date the backup was made for each of the wallet.
-        // This is done using the timestamp rather than the write time of the file.
-        Map<File, Date> mapOfFileToBackupTimes = new HashMap<File, Date>();
-        for (int i = 0; i < backupWallets.size(); i++) {
-            String filename = backupWallets.get(i).getName();
-            if (filename.length() > 22) { // 22 = 1 for hyphen + 14 for timestamp + 1 for dot + 6 for wallet.
-                int startOfTimestamp = filename.length() - 21; // 21 = 14 for timestamp + 1 for dot + 6 for wallet.
-                String timestampText = filename.substring(startOfTimestamp, startOfTimestamp + BACKUP_SUFFIX_FORMAT.length() );
-                try {
-                    Date parsedTimestamp = dateFormat.parse(timestampText);
-                    mapOfFileToBackupTimes.put(backupWallets.get(i), parsedTimestamp);
-                } catch (ParseException pe) {
-                    // Cannot parse text - may be some other type of file the user has put in the directory.
-                    log.debug("For wallet '" + filename + " could not parse the timestamp of '" + timestampText + "'.");
-                }
-            }
-        }
+        for (File backupWalletToDelete : backupWalletsToDelete) {
+            // Secure delete the chosen backup wallet and its info file if present, in the background.
+            log.debug("To save space, secure deleting backup wallet '" + backupWalletToDelete.getAbsolutePath() + "'.");
+            SecureFiles.secureDeleteLater(backupWalletToDelete);
 
-        // See which wallet is most quickly replaced by another backup - this will be thinned.
-        int walletBackupToDeleteIndex = -1; // Not set yet.
-        long walletBackupToDeleteReplacementTimeMillis = Integer.MAX_VALUE; // How quickly the wallet was replaced by a later one.
-        
-        for (int i = 0; i < backupWallets.size(); i++) {
-            if ((i < NUMBER_OF_FIRST_WALLETS_TO_ALWAYS_KEEP)
-                    || (i >= backupWallets.size() - NUMBER_OF_LAST_WALLETS_TO_ALWAYS_KEEP)) {
-                // Keep the very first and last wallets always.
-            } else {
-                // If there is a data directory for the backup then it may have been opened
-                // in MultiBit so we will skip considering it for deletion.
-                String possibleDataDirectory = calculateTopLevelBackupDirectoryName(backupWallets.get(i));
-                boolean theWalletHasADataDirectory = (new File(possibleDataDirectory)).exists();
-
-                // Work out how quickly the wallet is replaced by the next backup.
-                Date thisWalletTimestamp = mapOfFileToBackupTimes.get(backupWallets.get(i));
-                Date nextWalletTimestamp = mapOfFileToBackupTimes.get(backupWallets.get(i + 1));
-                if (thisWalletTimestamp != null && nextWalletTimestamp != null) {
-                    long deltaTimeMillis = nextWalletTimestamp.getTime() - thisWalletTimestamp.getTime();
-                    if (deltaTimeMillis < walletBackupToDeleteReplacementTimeMillis && !theWalletHasADataDirectory) {
-                        // This is the best candidate for deletion so far.
-                        walletBackupToDeleteIndex = i;
-                        walletBackupToDeleteReplacementTimeMillis = deltaTimeMillis;
-                    }
-                }
-            }
-        }
-        
-        if (walletBackupToDeleteIndex > -1) {
-           try {
-                // Secure delete the chosen backup wallet and its info file if present.
-                log.debug("To save space, secure deleting backup wallet '"
-                        + backupWallets.get(walletBackupToDeleteIndex).getAbsolutePath() + "'.");
-                SecureFiles.secureDelete(backupWallets.get(walletBackupToDeleteIndex));
-
-                String walletInfoBackupFilename = backupWallets.get(walletBackupToDeleteIndex).getAbsolutePath()
-                        .replaceAll(BitcoinModel.WALLET_FILE_EXTENSION + "$", INFO_FILE_SUFFIX_STRING);
-                File walletInfoBackup = new File(walletInfoBackupFilename);
-                if (walletInfoBackup.exists()) {
-                    log.debug("To save space, secure deleting backup info file '" + walletInfoBackup.getAbsolutePath() + "'.");
-                    SecureFiles.secureDelete(walletInfoBackup);
-                }
-            } catch (IOException ioe) {
-                log.error(ioe.getClass().getName() + " " + ioe.getMessage());
-            }
+            String walletInfoBackupFilename = backupWalletToDelete.getAbsolutePath()
+                    .replaceAll(BitcoinModel.WALLET_FILE_EXTENSION + "$", INFO_FILE_SUFFIX_STRING);
+            SecureFiles.secureDeleteLater(new File(walletInfoBackupFilename));
         }
+        backupCatalog.save();
+
+        // Remove any backup chunks that are no longer used. Chunks used only by backups still queued
+        // for deletion are removed the next time the directory is thinned.
+        BackupChunkStore.removeUnreferencedChunks(calculateTopLevelBackupDirectoryName(new File(walletFilename)));
+    }
+
+    /**
+     * Get the catalog of a wallet backup directory, opening it the first time it is used.
+     */
+    synchronized BackupCatalog getBackupCatalog(String walletFilename, String backupSuffixText) {
+        String topLevelBackupDirectoryName = calculateTopLevelBackupDirectoryName(new File(walletFilename));
+        String backupDirectoryName = topLevelBackupDirectoryName + File.separator + backupSuffixText;
+        BackupCatalog backupCatalog = backupCatalogs.get(backupDirectoryName);
+        if (backupCatalog == null) {
+            createDirectoryIfNecessary(topLevelBackupDirectoryName);
+            createDirectoryIfNecessary(backupDirectoryName);
+            backupCatalog = BackupCatalog.open(new File(backupDirectoryName));
+            backupCatalogs.put(backupDirectoryName, backupCatalog);
+        }
+        return backupCatalog;
     }
         
     void copyFileAndEncrypt(File sourceFile, File destinationFile, CharSequence passwordToUse) throws IOException {
         if (passwordToUse == null || passwordToUse.length() == 0) {
             throw new IllegalArgumentException("Password cannot be blank");
         }
-       
+
+        byte[] salt = createSalt();
+        copyFileAndEncrypt(sourceFile, destinationFile, salt, deriveFileEncryptionKey(passwordToUse, salt));
+    }
+
+    /**
+     * Copy a file to an encrypted file, a chunk at a time.
+     *
+     * The format of the encrypted data is:
+     * 7 magic bytes 'mendoza' in ASCII.
+     * 1 byte version number of format - initially set to 0
+     * 8 bytes salt
+     * 16 bytes iv
+     * rest of file is the encrypted byte data (AES/CBC/PKCS7 as written by KeyCrypterScrypt)
+     *
+     * @param salt The salt that aesKey was derived with
+     * @param aesKey The key derived from the password and salt
+     */
+    private void copyFileAndEncrypt(File sourceFile, File destinationFile, byte[] salt, KeyParameter aesKey) throws IOException {
         if (destinationFile.exists()) {
             throw new IllegalArgumentException("The destination file '" + destinationFile.getAbsolutePath() + "' already exists.");            
         } else {
@@ -291,95 +351,184 @@ public enum BackupManager {
                 throw new IllegalArgumentException("The destination file '" + destinationFile.getAbsolutePath() + "' could not be created. Check permissions.");
             }
         }
-        
-        // Read in the source file.
-        byte[] sourceFileUnencrypted = FileHandler.read(sourceFile);
 
-        // Encrypt the data.
-        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
-        secureRandom.nextBytes(salt);
-        
-        Protos.ScryptParameters.Builder scryptParametersBuilder = Protos.ScryptParameters.newBuilder()
-        .setSalt(ByteString.copyFrom(salt));
-        ScryptParameters scryptParameters = scryptParametersBuilder.build();
-        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(scryptParameters);
-        EncryptedPrivateKey encryptedData = keyCrypter.encrypt(sourceFileUnencrypted, keyCrypter.deriveKey(passwordToUse));
-        
-        // The format of the encrypted data is:
-        // 7 magic bytes 'mendoza' in ASCII.
-        // 1 byte version number of format - initially set to 0
-        // 8 bytes salt
-        // 16 bytes iv
-        // rest of file is the encrypted byte data
-        
-        FileOutputStream fileOutputStream = null;
-        try {
-            fileOutputStream = new FileOutputStream(destinationFile);
-            fileOutputStream.write(ENCRYPTED_FILE_FORMAT_MAGIC_BYTES);
+        byte[] iv = new byte[KeyCrypterScrypt.BLOCK_LENGTH];
+        secureRandom.nextBytes(iv);
+        BufferedBlockCipher cipher = createFileCipher(true, aesKey, iv);
+
+        try (InputStream inputStream = new FileInputStream(sourceFile);
+             OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(destinationFile))) {
+            outputStream.write(ENCRYPTED_FILE_FORMAT_MAGIC_BYTES);
             
             // file format version.
-            fileOutputStream.write(FILE_ENCRYPTED_VERSION_NUMBER);
+            outputStream.write(FILE_ENCRYPTED_VERSION_NUMBER);
             
-            fileOutputStream.write(salt); // 8 bytes.
-            fileOutputStream.write(encryptedData.getInitialisationVector()); // 16 bytes.
-            System.out.println(Utils.bytesToHexString(encryptedData.getInitialisationVector()));
-            
-            fileOutputStream.write(encryptedData.getEncryptedBytes());
-            System.out.println(Utils.bytesToHexString(encryptedData.getEncryptedBytes()));
-        } finally {
-            if (fileOutputStream != null) {
-                fileOutputStream.flush();
-                fileOutputStream.close();
-            }
+            outputStream.write(salt); // 8 bytes.
+            outputStream.write(iv); // 16 bytes.
+
+            processFileCipher(cipher, inputStream, outputStream);
         }
         
         // Read in the file again and decrypt it to make sure everything was ok.
-        byte[] phoenix = readFileAndDecrypt(destinationFile, passwordToUse);
-        
-        if (!Arrays.areEqual(sourceFileUnencrypted, phoenix)) {
-            throw new IOException("File '" + sourceFile.getAbsolutePath() + "' was not correctly encrypted to file '" + destinationFile.getAbsolutePath());
+        try (InputStream sourceInputStream = new FileInputStream(sourceFile)) {
+            ComparingOutputStream comparingOutputStream = new ComparingOutputStream(sourceInputStream);
+            decryptFile(destinationFile, null, aesKey, comparingOutputStream);
+            if (!comparingOutputStream.isSameAsSource()) {
+                throw new IOException("File '" + sourceFile.getAbsolutePath() + "' was not correctly encrypted to file '" + destinationFile.getAbsolutePath());
+            }
         }
     }
     
     public byte[] readFileAndDecrypt(File encryptedFile, CharSequence passwordToUse) throws IOException {
-        // Read in the encrypted file.
-        byte[] sourceFileEncrypted = FileHandler.read(encryptedFile);
-        
-        // Check the first bytes match the magic number.
-        if (!Arrays.areEqual(ENCRYPTED_FILE_FORMAT_MAGIC_BYTES, Arrays.copyOfRange(sourceFileEncrypted, 0, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length))) {
-            throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' did not start with the correct magic bytes.");            
+        ByteArrayOutputStream decryptedBytes = new ByteArrayOutputStream((int) Math.max(0, encryptedFile.length() - ENCRYPTED_FILE_HEADER_LENGTH));
+        decryptFile(encryptedFile, passwordToUse, null, decryptedBytes);
+        return decryptedBytes.toByteArray();
+    }
+
+    /**
+     * Decrypt an encrypted file to a regular file, a chunk at a time.
+     * If the file cannot be decrypted (e.g. the password is wrong) no regular file is left behind.
+     */
+    public void decryptFile(File encryptedFile, File destinationFile, CharSequence passwordToUse) throws IOException {
+        boolean decryptedSuccessfully = false;
+        try {
+            try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(destinationFile))) {
+                decryptFile(encryptedFile, passwordToUse, null, outputStream);
+            }
+            decryptedSuccessfully = true;
+        } finally {
+            if (!decryptedSuccessfully) {
+                SecureFiles.secureDelete(destinationFile);
+            }
         }
-        
+    }
+
+    /**
+     * Decrypt an encrypted file, a chunk at a time, to the outputStream.
+     *
+     * @param passwordToUse The password to derive the key from, with the file's salt, if aesKey is null
+     * @param aesKey The key, or null to derive it from the password
+     */
+    private void decryptFile(File encryptedFile, CharSequence passwordToUse, KeyParameter aesKey, OutputStream outputStream) throws IOException {
         // If the file is too short don't process it.
-        if (sourceFileEncrypted.length < ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH + KeyCrypterScrypt.BLOCK_LENGTH) {
-            throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' is too short to decrypt. It is " + sourceFileEncrypted.length + " bytes long.");                        
+        long encryptedFileLength = encryptedFile.length();
+        if (encryptedFileLength < ENCRYPTED_FILE_HEADER_LENGTH) {
+            throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' is too short to decrypt. It is " + encryptedFileLength + " bytes long.");                        
         }
-        
-        // Check the format version.
-        String versionNumber = "" + sourceFileEncrypted[ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length];
-        //System.out.println("FileHandler - versionNumber = " + versionNumber);
-        if (!("0".equals(versionNumber))) {
-            throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' did not have the expected version number of 0. It was " + versionNumber);            
+
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(encryptedFile))) {
+            // Check the first bytes match the magic number.
+            byte[] magicBytes = new byte[ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length];
+            inputStream.readFully(magicBytes);
+            if (!Arrays.areEqual(ENCRYPTED_FILE_FORMAT_MAGIC_BYTES, magicBytes)) {
+                throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' did not start with the correct magic bytes.");            
+            }
+
+            // Check the format version.
+            String versionNumber = "" + inputStream.readByte();
+            if (!("0".equals(versionNumber))) {
+                throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' did not have the expected version number of 0. It was " + versionNumber);            
+            }
+
+            // Read the salt and IV.
+            byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
+            inputStream.readFully(salt);
+            byte[] iv = new byte[KeyCrypterScrypt.BLOCK_LENGTH];
+            inputStream.readFully(iv);
+
+            // Decrypt the data.
+            if (aesKey == null) {
+                aesKey = deriveFileEncryptionKey(passwordToUse, salt);
+            }
+            processFileCipher(createFileCipher(false, aesKey, iv), inputStream, outputStream);
         }
+    }
 
-        // Extract the salt.
-        byte[] salt = Arrays.copyOfRange(sourceFileEncrypted, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH);
-        //System.out.println("FileHandler - salt = " + Utils.bytesToHexString(salt));
-        
-        // Extract the IV.
-        byte[] iv = Arrays.copyOfRange(sourceFileEncrypted, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH , ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH + KeyCrypterScrypt.BLOCK_LENGTH);
-        //System.out.println("FileHandler - iv = " + Utils.bytesToHexString(iv));
-        
-        // Extract the encrypted bytes.
-        byte[] encryptedBytes = Arrays.copyOfRange(sourceFileEncrypted, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH + KeyCrypterScrypt.BLOCK_LENGTH , sourceFileEncrypted.length);
-        //System.out.println("FileHandler - encryptedBytes = " + Utils.bytesToHexString(encryptedBytes));
-         
-        // Decrypt the data.
-        Protos.ScryptParameters.Builder scryptParametersBuilder = Protos.ScryptParameters.newBuilder().setSalt(ByteString.copyFrom(salt));
-        ScryptParameters scryptParameters = scryptParametersBuilder.build();
-        KeyCrypter keyCrypter = new KeyCrypterScrypt(scryptParameters);
-        EncryptedPrivateKey encryptedPrivateKey = new EncryptedPrivateKey(iv, encryptedBytes);
-        return keyCrypter.decrypt(encryptedPrivateKey, keyCrypter.deriveKey(passwordToUse));
+    private static byte[] createSalt() {
+        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
+        secureRandom.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Run scrypt on the password and salt to get the file encryption key. This is deliberately slow.
+     */
+    private static KeyParameter deriveFileEncryptionKey(CharSequence passwordToUse, byte[] salt) {
+        ScryptParameters scryptParameters = Protos.ScryptParameters.newBuilder().setSalt(ByteString.copyFrom(salt)).build();
+        return new KeyCrypterScrypt(scryptParameters).deriveKey(passwordToUse);
+    }
+
+    /**
+     * The same cipher as KeyCrypterScrypt uses, so files encrypted in one go can be decrypted in chunks and vice versa.
+     */
+    private static BufferedBlockCipher createFileCipher(boolean forEncryption, KeyParameter aesKey, byte[] iv) {
+        BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+        cipher.init(forEncryption, new ParametersWithIV(aesKey, iv));
+        return cipher;
+    }
+
+    private static void processFileCipher(BufferedBlockCipher cipher, InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] inputBuffer = new byte[FILE_ENCRYPTION_CHUNK_SIZE];
+        byte[] outputBuffer = new byte[cipher.getOutputSize(FILE_ENCRYPTION_CHUNK_SIZE)];
+        try {
+            int bytesRead;
+            while ((bytesRead = inputStream.read(inputBuffer)) != -1) {
+                int bytesProcessed = cipher.processBytes(inputBuffer, 0, bytesRead, outputBuffer, 0);
+                outputStream.write(outputBuffer, 0, bytesProcessed);
+            }
+            int bytesProcessed = cipher.doFinal(outputBuffer, 0);
+            outputStream.write(outputBuffer, 0, bytesProcessed);
+        } catch (InvalidCipherTextException icte) {
+            // The key or data is wrong.
+            throw new KeyCrypterException("Could not decrypt bytes", icte);
+        }
+    }
+
+    /**
+     * An OutputStream that checks what is written to it is the same as what is read from a source stream.
+     */
+    private static class ComparingOutputStream extends OutputStream {
+        private final DataInputStream sourceInputStream;
+        private byte[] sourceBuffer = new byte[FILE_ENCRYPTION_CHUNK_SIZE];
+        private boolean same = true;
+
+        ComparingOutputStream(InputStream sourceInputStream) {
+            this.sourceInputStream = new DataInputStream(new BufferedInputStream(sourceInputStream));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (!same || length == 0) {
+                return;
+            }
+            if (sourceBuffer.length < length) {
+                sourceBuffer = new byte[length];
+            }
+            try {
+                sourceInputStream.readFully(sourceBuffer, 0, length);
+            } catch (EOFException eofe) {
+                same = false;
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                if (sourceBuffer[i] != bytes[offset + i]) {
+                    same = false;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true if everything written matched the whole of the source
+         */
+        boolean isSameAsSource() throws IOException {
+            return same && sourceInputStream.read() == -1;
+        }
     }
     
     void createBackupDirectories(File walletFile) {
@@ -406,6 +555,19 @@ public enum BackupManager {
         String encryptedWalletBackupDirectoryName = topLevelBackupDirectoryName + File.separator
                 + ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME;
         createDirectoryIfNecessary(encryptedWalletBackupDirectoryName);
+
+        // If the wallet is itself a backup it now has a data directory, so make sure it is never thinned.
+        File parentDirectory = walletFile.getAbsoluteFile().getParentFile();
+        if (parentDirectory != null && parentDirectory.getParentFile() != null
+                && (ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME.equals(parentDirectory.getName())
+                || UNENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME.equals(parentDirectory.getName()))) {
+            String backupDataDirectoryName = parentDirectory.getParent();
+            if (backupDataDirectoryName.endsWith(TOP_LEVEL_WALLET_BACKUP_SUFFIX)) {
+                String backedUpWalletFilename = backupDataDirectoryName.substring(0,
+                        backupDataDirectoryName.length() - TOP_LEVEL_WALLET_BACKUP_SUFFIX.length()) + "." + BitcoinModel.WALLET_FILE_EXTENSION;
+                getBackupCatalog(backedUpWalletFilename, parentDirectory.getName()).markHasDataDirectory(walletFile);
+            }
+        }
     }
  
     /**
@@ -644,8 +806,8 @@ public enum BackupManager {
                     }
                     try {
                         // Rename the wallet.
-                        if (destinationWalletFile != null) {
-                            walletSourceFile.renameTo(destinationWalletFile);
+                        if (destinationWalletFile != null && walletSourceFile.renameTo(destinationWalletFile)) {
+                            getBackupCatalog(walletFilename, destinationWalletFile.getParentFile().getName()).addBackup(destinationWalletFile);
                         }
                         
                         // Rename the info file.
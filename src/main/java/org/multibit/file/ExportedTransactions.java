@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.Sha256Hash;
+import org.multibit.model.bitcoin.WalletData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The record of which transactions of a wallet have been exported to CSV.
+ *
+ * An export of the transactions 'since the last export' exports the transactions not in the record, so a transaction
+ * found later by a replay or rescan is exported even if it is dated before the last export.
+ *
+ * The record is kept in the file 'exported-transactions' in the wallet's data directory. It holds the 32 byte
+ * hashes of the exported transactions, appended to as each export completes.
+ */
+public class ExportedTransactions {
+    public static final String EXPORTED_TRANSACTIONS_FILENAME = "exported-transactions";
+
+    private static final int HASH_LENGTH = 32;
+
+    private final File recordFile;
+
+    private final Set<Sha256Hash> exportedHashes = new HashSet<Sha256Hash>();
+
+    /**
+     * The hashes added since the record was last saved.
+     */
+    private final List<Sha256Hash> unsavedHashes = new ArrayList<Sha256Hash>();
+
+    public ExportedTransactions(File recordFile) {
+        this.recordFile = recordFile;
+    }
+
+    /**
+     * @return the record of the exported transactions of the wallet, which is not yet loaded
+     */
+    public static ExportedTransactions forWallet(WalletData walletData) {
+        File walletDataDirectory = new File(BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(new File(walletData.getWalletFilename())));
+        return new ExportedTransactions(new File(walletDataDirectory, EXPORTED_TRANSACTIONS_FILENAME));
+    }
+
+    /**
+     * @return true if the record file exists and has any transactions in it
+     */
+    public boolean exists() {
+        return recordFile.length() >= HASH_LENGTH;
+    }
+
+    /**
+     * Load the record. A missing record file is an empty record. A partly written hash at the end is ignored.
+     */
+    public synchronized void load() throws IOException {
+        exportedHashes.clear();
+        unsavedHashes.clear();
+        if (!recordFile.isFile()) {
+            return;
+        }
+        ByteBuffer record = FileHandler.mapFile(recordFile);
+        byte[] hash = new byte[HASH_LENGTH];
+        while (record.remaining() >= HASH_LENGTH) {
+            record.get(hash);
+            exportedHashes.add(new Sha256Hash(hash.clone()));
+        }
+    }
+
+    public synchronized boolean contains(Sha256Hash transactionHash) {
+        return exportedHashes.contains(transactionHash);
+    }
+
+    /**
+     * Record that a transaction has been exported. The record is written out by save.
+     */
+    public synchronized void add(Sha256Hash transactionHash) {
+        if (exportedHashes.add(transactionHash)) {
+            unsavedHashes.add(transactionHash);
+        }
+    }
+
+    public synchronized int size() {
+        return exportedHashes.size();
+    }
+
+    /**
+     * Append the transactions exported since the record was loaded or last saved to the record file.
+     */
+    public synchronized void save() throws IOException {
+        if (unsavedHashes.isEmpty()) {
+            return;
+        }
+        File directory = recordFile.getAbsoluteFile().getParentFile();
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+            throw new IOException("Could not create directory '" + directory.getAbsolutePath() + "'");
+        }
+        ByteBuffer hashes = ByteBuffer.allocate(unsavedHashes.size() * HASH_LENGTH);
+        for (Sha256Hash unsavedHash : unsavedHashes) {
+            hashes.put(unsavedHash.getBytes());
+        }
+        hashes.flip();
+        try (FileChannel channel = FileChannel.open(recordFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Drop any partly written hash so that the hashes appended line up.
+            long length = channel.size() - channel.size() % HASH_LENGTH;
+            channel.truncate(length);
+            channel.position(length);
+            while (hashes.hasRemaining()) {
+                channel.write(hashes);
+            }
+            channel.force(true);
+        }
+        unsavedHashes.clear();
+    }
+}
@@ -17,9 +17,13 @@ package org.multibit.file;
 
 import com.google.bitcoin.core.BlockChain;
 import com.google.bitcoin.core.ECKey;
-import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.bitcoin.store.BlockStoreException;
 import org.multibit.ApplicationDataDirectoryLocator;
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
@@ -33,12 +37,17 @@ import org.multibit.network.MultiBitService;
 import org.multibit.store.MultiBitWalletProtobufSerializer;
 import org.multibit.store.MultiBitWalletVersion;
 import org.multibit.store.WalletVersionException;
+import org.multibit.utils.OSUtils;
 import org.multibit.viewsystem.View;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 /**
@@ -58,6 +67,8 @@ public class FileHandler {
     
     private static final int MAX_FILE_SIZE = 1024 * 1024 * 1024; // Dont read files greater than 1 gigabyte.
 
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
     private MultiBitWalletProtobufSerializer walletProtobufSerializer;
 
     public FileHandler(BitcoinController bitcoinController) {
@@ -68,7 +79,7 @@ public class FileHandler {
     }
 
     /**
-     * Load up a WalletData from a specified wallet file.
+     * Load up a WalletData from a specified wallet file and add it to the model.
      * If the main wallet cannot be loaded, the most recent backup is tried, 
      * followed by the next recent.
      * 
@@ -78,6 +89,59 @@ public class FileHandler {
      * @throws WalletVersionException
      */
     public WalletData loadFromFile(File walletFile) throws WalletLoadException, WalletVersionException {
+        return addToModel(readFromFile(walletFile));
+    }
+
+    /**
+     * Add a WalletData read by readFromFile to the model.
+     * This must be called on the thread that owns the model. A wallet read from a backup is saved once it is added.
+     * 
+     * @param loadedPerWalletModelData the WalletData returned by readFromFile
+     * @return WalletData - the walletData in the model
+     */
+    public WalletData addToModel(WalletData loadedPerWalletModelData) {
+        if (loadedPerWalletModelData == null) {
+            return null;
+        }
+
+        WalletData perWalletModelData = bitcoinController.getModel().addWallet(this.bitcoinController,
+                loadedPerWalletModelData.getWallet(), loadedPerWalletModelData.getWalletFilename());
+
+        WalletInfoData walletInfo = loadedPerWalletModelData.getWalletInfo();
+        perWalletModelData.setWalletInfo(walletInfo);
+        perWalletModelData.setWalletJournal(loadedPerWalletModelData.getWalletJournal());
+
+        synchronized (walletInfo) {
+            perWalletModelData.setDirty(false);
+        }
+
+        if (loadedPerWalletModelData.isLoadedFromBackup()) {
+            // Save the wallet immediately just to be on the safe side.
+            try {
+                savePerWalletModelData(perWalletModelData, true);
+            } catch (WalletSaveException wse) {
+                // The wallet is left dirty so the save is tried again.
+                log.error("Could not save wallet '" + perWalletModelData.getWalletFilename() + "' loaded from a backup. "
+                        + wse.getClass().getCanonicalName() + " " + wse.getMessage());
+            }
+        }
+        return perWalletModelData;
+    }
+
+    /**
+     * Read a WalletData from a specified wallet file without adding it to the model.
+     * If the main wallet cannot be loaded, the most recent backup is tried, 
+     * followed by the next recent.
+     * 
+     * This does not change the model, or save the wallet, so several wallets can be read at the same time.
+     * A wallet read from a backup is marked as loaded from backup and is saved when it is added to the model.
+     * 
+     * @param walletFile the file of the wallet to load
+     * @return WalletData - the walletData read, or null if neither the wallet nor its backups could be loaded
+     * @throws WalletLoadException
+     * @throws WalletVersionException
+     */
+    public WalletData readFromFile(File walletFile) throws WalletLoadException, WalletVersionException {
         if (walletFile == null) {
             return null;
         }
@@ -85,10 +149,20 @@ public class FileHandler {
         String walletFilenameToUseInModel = walletFile.getAbsolutePath();
 
         try {
+            // Map the wallet file once - the mapping is used both to check the format and to load the wallet.
+            ByteBuffer walletBytes = null;
+            if (walletFile.exists()) {
+                try {
+                    walletBytes = mapFile(walletFile);
+                } catch (IOException ioe) {
+                    log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                }
+            }
+
             // See if the wallet is serialized or protobuf.
             WalletInfoData walletInfo;
 
-            if (isWalletSerialised(walletFile)) {
+            if (isWalletSerialised(walletBytes)) {
                 // Serialised wallets are no longer supported.
                 throw new WalletLoadException("Could not load wallet '" + walletFilenameToUseInModel
                         + "'. Serialized wallets are no longer supported.");
@@ -99,7 +173,7 @@ public class FileHandler {
             // If the wallet file is missing or empty but the backup file exists
             // load that instead. This indicates that the write was interrupted
             // (e.g. power loss).
-            boolean useBackupWallets = ( !walletFile.exists() || walletFile.length() == 0 );
+            boolean useBackupWallets = ( walletBytes == null || walletBytes.limit() == 0 );
             boolean walletWasLoadedSuccessfully = false;
             Collection<String> errorMessages = new ArrayList<String>();
 
@@ -107,12 +181,8 @@ public class FileHandler {
 
             // Try the main wallet first unless it is obviously broken.
             if (!useBackupWallets) {
-                FileInputStream fileInputStream = new FileInputStream(walletFile);
-                InputStream stream = null;
-
                 try {
-                    stream = new BufferedInputStream(fileInputStream);
-                    wallet = Wallet.loadFromFileStream(stream);
+                    wallet = Wallet.loadFromFileStream(new ByteBufferInputStream(walletBytes.duplicate()));
                     walletWasLoadedSuccessfully = true;
                 } catch (WalletVersionException wve) {
                     // We want this exception to propagate out.
@@ -122,11 +192,6 @@ public class FileHandler {
                     String description = e.getClass().getCanonicalName() + " " + e.getMessage();
                     log.error(description);
                     errorMessages.add(description);
-                } finally {
-                    if (stream != null) {
-                        stream.close();
-                    }
-                    fileInputStream.close();
                 }
             }
             
@@ -141,12 +206,8 @@ public class FileHandler {
                  while (!walletWasLoadedSuccessfully && iterator.hasNext()) {
                     String walletToTry = iterator.next();
 
-                    FileInputStream fileInputStream = new FileInputStream(new File(walletToTry));
-                    InputStream stream = null;
-
                     try {
-                        stream = new BufferedInputStream(fileInputStream);
-                        wallet = Wallet.loadFromFileStream(stream);
+                        wallet = Wallet.loadFromFileStream(new ByteBufferInputStream(mapBackupFile(new File(walletToTry))));
                         walletWasLoadedSuccessfully = true;
                         
                         // Mention to user that backup is being used.
@@ -158,11 +219,6 @@ public class FileHandler {
                         String description = e.getClass().getCanonicalName() + " " + e.getMessage();
                         log.error(description);
                         errorMessages.add(description);
-                    } finally {
-                        if (stream != null) {
-                            stream.close();
-                        }
-                        fileInputStream.close();
                     }
                 }
             }
@@ -193,27 +249,30 @@ public class FileHandler {
                 // keys, rolling backups and regular backups exist.
                 BackupManager.INSTANCE.createBackupDirectories(walletFile);
 
-                // Add the new wallet into the model.
                 wallet.setNetworkParameters(bitcoinController.getModel().getNetworkParameters());
 
-                perWalletModelData = bitcoinController.getModel().addWallet(this.bitcoinController, wallet,
-                        walletFilenameToUseInModel);
+                // Replay any changes journalled since the wallet was last written out in full.
+                WalletJournal walletJournal = new WalletJournal(walletFile);
+                try {
+                    walletJournal.replay(wallet);
+                } catch (IOException ioe) {
+                    log.error("Could not replay the journal for wallet '" + walletFilenameToUseInModel + "'. "
+                            + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                }
 
+                perWalletModelData = new WalletData();
+                perWalletModelData.setWallet(wallet);
+                perWalletModelData.setWalletFilename(walletFilenameToUseInModel);
                 perWalletModelData.setWalletInfo(walletInfo);
+                perWalletModelData.setWalletJournal(walletJournal);
 
-                // If the backup files were used save them immediately and don't
-                // delete any rolling backups.
+                // If the backup files were used don't delete any rolling backups. The wallet is
+                // saved by addToModel, on the thread that owns the model.
                 if (useBackupWallets) {
                     // Wipe the wallet backup property so that the rolling
                     // backup file will not be overwritten
                     walletInfo.put(BitcoinModel.WALLET_BACKUP_FILE, "");
-
-                    // Save the wallet immediately just to be on the safe side.
-                    savePerWalletModelData(perWalletModelData, true);
-                }
-
-                synchronized (walletInfo) {
-                    perWalletModelData.setDirty(false);
+                    perWalletModelData.setLoadedFromBackup(true);
                 }
             } else {
                 // No wallet was loaded successfully.
@@ -247,31 +306,52 @@ public class FileHandler {
         }
     }
 
-    private boolean isWalletSerialised(File walletFile) {
-        boolean isWalletSerialised = false;
-        InputStream stream = null;
-        try {
-            // Determine what kind of wallet stream this is: Java Serialization
-            // or protobuf format.
-            stream = new BufferedInputStream(new FileInputStream(walletFile));
-            isWalletSerialised = stream.read() == 0xac && stream.read() == 0xed;
-        } catch (IOException e) {
-            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
-        } finally {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
-                }
-            }
+    /**
+     * Read the wallet info of a wallet file without reading the wallet itself, to make a stub WalletData.
+     * The model is not changed.
+     * 
+     * A wallet can only be opened as a stub if its wallet info has the wallet summary written at the last save
+     * and it has no journalled changes since then (which would make the summary out of date).
+     * 
+     * @param walletFile the file of the wallet
+     * @return WalletData - the WalletData with only the wallet info, or null if the wallet cannot be opened as a stub
+     */
+    public WalletData readStubFromFile(File walletFile) {
+        if (walletFile == null || !walletFile.isFile()) {
+            return null;
+        }
+
+        File journalFile = WalletJournal.createJournalFile(walletFile);
+        if (journalFile.exists() && journalFile.length() > WalletJournal.HEADER_LENGTH) {
+            return null;
         }
-        return isWalletSerialised;
+
+        String walletFilenameToUseInModel = walletFile.getAbsolutePath();
+        WalletInfoData walletInfo = new WalletInfoData(walletFilenameToUseInModel, null, MultiBitWalletVersion.PROTOBUF_ENCRYPTED);
+        if (!walletInfo.hasCachedWalletSummary()) {
+            return null;
+        }
+
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletFilename(walletFilenameToUseInModel);
+        perWalletModelData.setWalletInfo(walletInfo);
+        return perWalletModelData;
+    }
+
+    /**
+     * Determine what kind of wallet this is: Java Serialization or protobuf format.
+     */
+    private boolean isWalletSerialised(ByteBuffer walletBytes) {
+        return walletBytes != null && walletBytes.limit() >= 2 && (walletBytes.get(0) & 0xff) == 0xac
+                && (walletBytes.get(1) & 0xff) == 0xed;
     }
 
     /**
      * Save the perWalletModelData to file.
      * 
+     * The WalletInfoData monitor is only held whilst the wallet is snapshotted into memory.
+     * The snapshot is then written to disk without blocking other users of the wallet.
+     * 
      * @param perWalletModelData the wallet data
      * @param forceWrite
      *            force the write of the perWalletModelData
@@ -284,18 +364,228 @@ public class FileHandler {
         WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
 
         if (walletInfo != null) {
-            synchronized (walletInfo) {
-                // Save the perWalletModelData if it is dirty or if forceWrite is true.
-                if (perWalletModelData.isDirty() || forceWrite) {
-                    // Normal write of data.
-                    String walletInfoFilename = WalletInfoData.createWalletInfoFilename(perWalletModelData.getWalletFilename());
-                    saveWalletAndWalletInfo(perWalletModelData, perWalletModelData.getWalletFilename(), walletInfoFilename);
+            synchronized (perWalletModelData.getSaveLock()) {
+                WalletJournal walletJournal = perWalletModelData.getWalletJournal();
+                long journalPosition;
+                long snapshotTime;
+                byte[] walletSnapshot;
+                synchronized (walletInfo) {
+                    // Save the perWalletModelData if it is dirty, if its journal needs compacting or if forceWrite is true.
+                    if (!perWalletModelData.isDirty() && !perWalletModelData.isJournalCompactionDue() && !forceWrite) {
+                        return;
+                    }
+                    // The journal position is read before the snapshot so that no journalled change can be missed.
+                    journalPosition = walletJournal == null ? Long.MAX_VALUE : walletJournal.getPosition();
+                    snapshotTime = System.currentTimeMillis();
+                    walletSnapshot = snapshotWallet(perWalletModelData);
 
-                    // The perWalletModelData is no longer dirty.
+                    // The perWalletModelData is no longer dirty - later changes will be picked up by the next save.
                     perWalletModelData.setDirty(false);
                 }
+
+                try {
+                    String walletInfoFilename = WalletInfoData.createWalletInfoFilename(perWalletModelData.getWalletFilename());
+                    saveWalletAndWalletInfo(perWalletModelData, walletSnapshot, perWalletModelData.getWalletFilename(), walletInfoFilename);
+                } catch (RuntimeException re) {
+                    // The snapshot did not make it to disk so it will need saving again.
+                    perWalletModelData.setDirty(true);
+                    throw re;
+                }
+
+                if (walletSnapshot == null) {
+                    // Only the wallet info was written (e.g. for a stub) so the journal is still needed.
+                    return;
+                }
+
+                // The journalled changes are now in the wallet file.
+                if (walletJournal == null) {
+                    walletJournal = new WalletJournal(new File(perWalletModelData.getWalletFilename()));
+                    perWalletModelData.setWalletJournal(walletJournal);
+                }
+                try {
+                    walletJournal.discardUpTo(journalPosition, snapshotTime);
+                } catch (IOException ioe) {
+                    // Not fatal - replaying changes that are already in the wallet has no effect.
+                    log.error("Could not compact the journal for wallet '" + perWalletModelData.getWalletFilename() + "'. "
+                            + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Journal a new or updated transaction rather than rewriting the whole wallet.
+     * If the change cannot be journalled the wallet is marked as dirty instead.
+     *
+     * @param perWalletModelData the wallet data
+     * @param transaction the transaction
+     */
+    public void journalTransaction(WalletData perWalletModelData, Transaction transaction) {
+        WalletJournal walletJournal = perWalletModelData.getWalletJournal();
+        if (walletJournal == null || transaction == null) {
+            markDirty(perWalletModelData);
+            return;
+        }
+
+        TransactionConfidence.ConfidenceType confidenceType = transaction.getConfidence().getConfidenceType();
+        if (TransactionConfidence.ConfidenceType.DEAD == confidenceType) {
+            // Dead transactions also move other transactions between pools - write the whole wallet.
+            journalUnjournalledChange(perWalletModelData);
+            return;
+        }
+
+        try {
+            StoredBlock block = null;
+            if (TransactionConfidence.ConfidenceType.BUILDING == confidenceType) {
+                block = findBlockContaining(transaction);
+                if (block == null) {
+                    markDirty(perWalletModelData);
+                    return;
+                }
             }
+            walletJournal.appendTransaction(transaction, block);
+            scheduleSaveIfCompactionDue(perWalletModelData);
+        } catch (IOException | BlockStoreException e) {
+            log.error("Could not journal transaction " + transaction.getHashAsString() + ". " + e.getClass().getCanonicalName() + " " + e.getMessage());
+            markDirty(perWalletModelData);
+        }
+    }
+
+    /**
+     * Journal a transaction that is known to appear in the specified block, such as one found by a rescan
+     * of blocks that are not in the block store.
+     * If the change cannot be journalled the wallet is marked as dirty instead.
+     *
+     * @param perWalletModelData the wallet data
+     * @param transaction the transaction
+     * @param block the block the transaction appears in
+     */
+    public void journalTransaction(WalletData perWalletModelData, Transaction transaction, StoredBlock block) {
+        WalletJournal walletJournal = perWalletModelData.getWalletJournal();
+        if (walletJournal == null || transaction == null || block == null) {
+            markDirty(perWalletModelData);
+            return;
+        }
+
+        try {
+            walletJournal.appendTransaction(transaction, block);
+            scheduleSaveIfCompactionDue(perWalletModelData);
+        } catch (IOException ioe) {
+            log.error("Could not journal transaction " + transaction.getHashAsString() + ". " + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+            markDirty(perWalletModelData);
+        }
+    }
+
+    /**
+     * Journal a change in the confidence of a transaction.
+     * Changes that only increase the depth are not journalled as depths are recalculated from the last block seen.
+     *
+     * @param perWalletModelData the wallet data
+     * @param transaction the transaction
+     */
+    public void journalTransactionConfidence(WalletData perWalletModelData, Transaction transaction) {
+        TransactionConfidence confidence = transaction.getConfidence();
+        if (TransactionConfidence.ConfidenceType.BUILDING == confidence.getConfidenceType() && confidence.getDepthInBlocks() > 1) {
+            return;
         }
+        journalTransaction(perWalletModelData, transaction);
+    }
+
+    /**
+     * Journal the last block seen by the wallet. It is written at the journal's next group commit,
+     * so a run of blocks costs the wallet one record.
+     *
+     * @param perWalletModelData the wallet data
+     */
+    public void journalLastBlockSeen(WalletData perWalletModelData) {
+        if (perWalletModelData.isStub()) {
+            // A stub is not on the block chain - it catches up when it is loaded.
+            return;
+        }
+        WalletJournal walletJournal = perWalletModelData.getWalletJournal();
+        Wallet wallet = perWalletModelData.getWallet();
+        if (walletJournal == null || wallet == null) {
+            markDirty(perWalletModelData);
+            return;
+        }
+
+        walletJournal.noteLastBlockSeen(wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
+        scheduleSaveIfCompactionDue(perWalletModelData);
+    }
+
+    /**
+     * Commit the wallet's journal now rather than waiting for the group commit, such as at the end of a batch
+     * of rescanned blocks. If the journal cannot be written the wallet is marked as dirty instead.
+     *
+     * @param perWalletModelData the wallet data
+     */
+    public void commitJournal(WalletData perWalletModelData) {
+        WalletJournal walletJournal = perWalletModelData.getWalletJournal();
+        if (walletJournal == null) {
+            return;
+        }
+
+        try {
+            walletJournal.commit();
+            scheduleSaveIfCompactionDue(perWalletModelData);
+        } catch (IOException ioe) {
+            log.error("Could not commit the journal for wallet '" + perWalletModelData.getWalletFilename() + "'. "
+                    + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+            markDirty(perWalletModelData);
+        }
+    }
+
+    /**
+     * Note a wallet change that the journal cannot replay - a reorganisation or a dead transaction. The wallet is
+     * marked as dirty so that the change is saved in full as soon as the WalletSaveScheduler gets to it.
+     * Other wallet changes are journalled and must not be marked as dirty, or every block would rewrite the wallet.
+     *
+     * @param perWalletModelData the wallet data
+     */
+    public void journalUnjournalledChange(WalletData perWalletModelData) {
+        WalletJournal walletJournal = perWalletModelData.getWalletJournal();
+        if (walletJournal != null) {
+            walletJournal.markUnjournalledChange();
+        }
+        markDirty(perWalletModelData);
+    }
+
+    private void scheduleSaveIfCompactionDue(WalletData perWalletModelData) {
+        if (perWalletModelData.isJournalCompactionDue()) {
+            WalletSaveScheduler.INSTANCE.scheduleSave(perWalletModelData);
+        }
+    }
+
+    private void markDirty(WalletData perWalletModelData) {
+        if (perWalletModelData.getWalletInfo() != null) {
+            synchronized (perWalletModelData.getWalletInfo()) {
+                perWalletModelData.setDirty(true);
+            }
+        } else {
+            perWalletModelData.setDirty(true);
+        }
+    }
+
+    /**
+     * Find the best chain block a building transaction appears in from the block store.
+     *
+     * @return the block, or null if it is not in the block store
+     */
+    private StoredBlock findBlockContaining(Transaction transaction) throws BlockStoreException {
+        MultiBitService multiBitService = bitcoinController.getMultiBitService();
+        Map<Sha256Hash, Integer> appearsInHashes = transaction.getAppearsInHashes();
+        if (multiBitService == null || multiBitService.getBlockStore() == null || appearsInHashes == null) {
+            return null;
+        }
+
+        int appearedAtChainHeight = transaction.getConfidence().getAppearedAtChainHeight();
+        for (Sha256Hash blockHash : appearsInHashes.keySet()) {
+            StoredBlock block = multiBitService.getBlockStore().get(blockHash);
+            if (block != null && block.getHeight() == appearedAtChainHeight) {
+                return block;
+            }
+        }
+        return null;
     }
 
     /**
@@ -383,144 +673,269 @@ public class FileHandler {
     }
 
     /**
-     * To protect the wallet data, the write is in steps: 1) Create a backup
-     * file called <wallet file name>-<yyyymmddhhmmss>.wallet and copy the
-     * original wallet to that 2) Write the new wallet to the walletFilename 3)
-     * Delete the old backup file 4) Make the backup file in step 1) the new
-     * backup file
+     * Save the wallet as a backup, and the wallet info as a plain file. The backup is written whole and
+     * the previous backup is moved into the backup chunk store, where it shares its unchanged chunks with earlier backups.
+     *
+     * @param perWalletModelData the wallet data
+     * @param walletBackupFilename the wallet backup filename
+     * @param walletInfoBackupFilename the wallet info backup filename
+     * @param previousWalletBackupFile the previous wallet backup (may be null)
+     */
+    void saveWalletAndWalletInfoAsBackup(WalletData perWalletModelData, String walletBackupFilename, String walletInfoBackupFilename,
+            File previousWalletBackupFile) {
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+
+        byte[] walletSnapshot;
+        synchronized (walletInfo) {
+            walletSnapshot = snapshotWallet(perWalletModelData);
+        }
+
+        if (walletSnapshot != null) {
+            try {
+                log.debug("Saving wallet backup '" + walletBackupFilename + "' ...");
+                BackupChunkStore.writeBackup(walletSnapshot, new File(walletBackupFilename), previousWalletBackupFile);
+                log.debug("... done saving wallet backup.");
+            } catch (IOException ioe) {
+                throw new WalletSaveException("Cannot backup wallet '" + perWalletModelData.getWalletFilename(), ioe);
+            }
+        }
+
+        // Write wallet info.
+        synchronized (walletInfo) {
+            walletInfo.writeToFile(walletInfoBackupFilename, walletInfo.getWalletVersion());
+        }
+    }
+
+    /**
+     * Serialise the wallet into memory, ready to be written to disk by saveWalletAndWalletInfo.
+     * The caller must hold the WalletInfoData monitor.
+     * 
+     * @param perWalletModelData the wallet data
+     * @return the serialised wallet, or null if there is no wallet to save
+     */
+    private byte[] snapshotWallet(WalletData perWalletModelData) {
+        if (perWalletModelData.isStub()) {
+            // The wallet has not been loaded so it cannot have changed - only the wallet info is written.
+            return null;
+        }
+        Wallet wallet = perWalletModelData.getWallet();
+        if (wallet == null) {
+            return null;
+        }
+
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+
+        // Summarise the wallet in the wallet info so that it can be opened as a stub.
+        walletInfo.put(WalletInfoData.CACHED_ESTIMATED_BALANCE_PROPERTY, wallet.getBalance(Wallet.BalanceType.ESTIMATED).toString());
+        walletInfo.put(WalletInfoData.CACHED_AVAILABLE_BALANCE_PROPERTY, wallet.getBalance(Wallet.BalanceType.AVAILABLE).toString());
+        walletInfo.put(WalletInfoData.CACHED_LAST_BLOCK_SEEN_HEIGHT_PROPERTY, String.valueOf(wallet.getLastBlockSeenHeight()));
+        walletInfo.putCachedPublicKeys(wallet);
+
+        // Wallet description is currently stored in the wallet info
+        // file but is now available on the wallet itself.
+        // Store the description from the wallet info in the wallet - in
+        // the future the wallet value will be primary
+        // and wallet infos can be deprecated.
+        String walletDescriptionInInfoFile = walletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY);
+        if (walletDescriptionInInfoFile != null) {
+            wallet.setDescription(walletDescriptionInInfoFile);
+        }
+
+        if (MultiBitWalletVersion.SERIALIZED == walletInfo.getWalletVersion()) {
+            throw new WalletSaveException("Cannot save wallet '" + perWalletModelData.getWalletFilename() + "'. Serialized wallets are no longer supported.");
+        }
+
+        // See if there are any encrypted private keys - if there
+        // are the wallet will be saved
+        // as encrypted and the version set to PROTOBUF_ENCRYPTED.
+        for (ECKey key : wallet.getKeychain()) {
+            if (key.isEncrypted()) {
+                walletInfo.setWalletVersion(MultiBitWalletVersion.PROTOBUF_ENCRYPTED);
+                break;
+            }
+        }
+
+        ByteArrayOutputStream walletBytes = new ByteArrayOutputStream();
+        try {
+            if (MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()) {
+                // Save as a Wallet message.
+                wallet.saveToFileStream(walletBytes);
+            } else if (MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion()) {
+                // Save as a Wallet message with a mandatory extension
+                // to prevent loading by older versions of multibit.
+                walletProtobufSerializer.writeWallet(wallet, walletBytes);
+            } else {
+                throw new WalletVersionException("Cannot save wallet '" + perWalletModelData.getWalletFilename()
+                        + "'. Its wallet version is '" + (walletInfo.getWalletVersion() == null ? "UNKNOWN" : walletInfo.getWalletVersion().toString())
+                        + "' but this version of MultiBit does not understand that format.");
+            }
+        } catch (IOException ioe) {
+            String message = "Cannot save wallet '" + perWalletModelData.getWalletFilename();
+            log.error(message + " (0) " + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+            throw new WalletSaveException(message, ioe);
+        }
+        return walletBytes.toByteArray();
+    }
+
+    /**
+     * To protect the wallet data, the write is in steps: 1) Write the wallet
+     * snapshot to a temporary file in the wallet directory and force it to disk
+     * 2) Link the current wallet into the rolling backup directory as
+     * <wallet file name>-<yyyymmddhhmmss>.wallet 3) Atomically move the
+     * temporary file over the wallet 4) Make the link in step 2) the new rolling
+     * backup and delete the old one.
      * 
+     * At every point the wallet file is either the complete old wallet or the complete new one.
      **/
-    private void saveWalletAndWalletInfo(WalletData perWalletModelData, String walletFilename, String walletInfoFilename) {
+    private void saveWalletAndWalletInfo(WalletData perWalletModelData, byte[] walletSnapshot, String walletFilename, String walletInfoFilename) {
         File walletFile = new File(walletFilename);
         WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
 
-        FileOutputStream fileOutputStream = null;
-
         // Save the wallet file
-        try {
-            if (perWalletModelData.getWallet() != null) {
-                // Wallet description is currently stored in the wallet info
-                // file but is now available on the wallet itself.
-                // Store the description from the wallet info in the wallet - in
-                // the future the wallet value will be primary
-                // and wallet infos can be deprecated.
-                if (walletInfo != null) {
-                    String walletDescriptionInInfoFile = walletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY);
-                    if (walletDescriptionInInfoFile != null) {
-                        perWalletModelData.getWallet().setDescription(walletDescriptionInInfoFile);
-                    }
-                }
-                String oldBackupFilename = perWalletModelData.getWalletInfo().getProperty(BitcoinModel.WALLET_BACKUP_FILE);
-                File oldBackupFile = null;
-                String newBackupFilename = null;
-                if (null != oldBackupFilename && !"".equals(oldBackupFilename)) {
-                    oldBackupFile = new File(oldBackupFilename);
-                }
-                if (walletInfo != null && (MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()
-                        || MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion())) {
-                    newBackupFilename = BackupManager.INSTANCE.createBackupFilename(walletFile, BackupManager.ROLLING_WALLET_BACKUP_DIRECTORY_NAME, false, false, BitcoinModel.WALLET_FILE_EXTENSION);
-                    File newWalletBackupFile = new File(newBackupFilename);
-
-                    // Rename the existing wallet to the newWalletBackupFile
-                    boolean result = rename(walletFile, newWalletBackupFile);
-                    log.debug("Result of the wallet rename to backup file was " + result);
+        if (walletSnapshot != null) {
+            try {
+                String oldBackupFilename = walletInfo.getProperty(BitcoinModel.WALLET_BACKUP_FILE);
+                if ("".equals(oldBackupFilename)) {
+                    oldBackupFilename = null;
                 }
 
                 log.debug("Saving wallet file '" + walletFile.getAbsolutePath() + "' ...");
-                if (walletInfo != null && MultiBitWalletVersion.SERIALIZED == walletInfo.getWalletVersion()) {
-                    throw new WalletSaveException("Cannot save wallet '" + walletFile.getAbsolutePath() + "'. Serialized wallets are no longer supported.");
-                } else {
-                    // See if there are any encrypted private keys - if there
-                    // are the wallet will be saved
-                    // as encrypted and the version set to PROTOBUF_ENCRYPTED.
-                    boolean walletIsActuallyEncrypted = false;
-                    Wallet wallet = perWalletModelData.getWallet();
-                    // Check all the keys individually.
-                    for (ECKey key : wallet.getKeychain()) {
-                        if (key.isEncrypted()) {
-                            walletIsActuallyEncrypted = true;
-                            break;
-                        }
-                    }
+                File temporaryWalletFile = writeTemporaryFile(walletSnapshot, walletFile);
 
-                    if (walletIsActuallyEncrypted) {
-                        if (walletInfo == null) {
-                            walletInfo = new WalletInfoData(walletFilename, wallet, MultiBitWalletVersion.PROTOBUF_ENCRYPTED);
-                            perWalletModelData.setWalletInfo(walletInfo);
-                        } else {
-                            walletInfo.setWalletVersion(MultiBitWalletVersion.PROTOBUF_ENCRYPTED);
-                        }
+                String newBackupFilename = null;
+                try {
+                    if (walletFile.exists() && walletFile.length() > 0) {
+                        newBackupFilename = BackupManager.INSTANCE.createBackupFilename(walletFile, BackupManager.ROLLING_WALLET_BACKUP_DIRECTORY_NAME, false, false, BitcoinModel.WALLET_FILE_EXTENSION);
+                        linkOrCopy(walletFile, new File(newBackupFilename));
                     }
 
-                    if (walletInfo != null && MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()) {
-                        // Save as a Wallet message.
-                        perWalletModelData.getWallet().saveToFile(walletFile);
-                    } else if (walletInfo != null && MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion()) {
-                        // Create wallet output file if it does not exist
-                        if (!walletFile.exists()) {
-                            boolean createdOk = walletFile.createNewFile();
-                            log.debug("Result of empty wallet create for file {} was {}", walletFile, createdOk);
-                        } else {
-                            log.debug("Wallet file {} already exists - does not need creating", walletFile);
-                        }
-                        fileOutputStream = new FileOutputStream(walletFile);
+                    moveAtomically(temporaryWalletFile, walletFile);
+                    temporaryWalletFile = null;
+                } finally {
+                    if (temporaryWalletFile != null) {
+                        SecureFiles.secureDelete(temporaryWalletFile);
 
-                        // Save as a Wallet message with a mandatory extension
-                        // to prevent loading by older versions of multibit.
-                        walletProtobufSerializer.writeWallet(perWalletModelData.getWallet(), fileOutputStream);
-                    } else {
-                        throw new WalletVersionException("Cannot save wallet '" + perWalletModelData.getWalletFilename()
-                                + "'. Its wallet version is '" + (walletInfo == null ? "UNKNOWN" : walletInfo.getWalletVersion().toString())
-                                + "' but this version of MultiBit does not understand that format.");
+                        // The wallet was not replaced so the new backup is not needed. It may be a link to the wallet.
+                        if (newBackupFilename != null) {
+                            deleteBackup(new File(newBackupFilename), walletFile);
+                        }
                     }
                 }
                 log.debug("... done saving wallet file. Wallet file size is " + walletFile.length() + " bytes.");
 
-                if (MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()
-                        || MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion()) {
-                    if (newBackupFilename != null) {
-                        perWalletModelData.getWalletInfo().put(BitcoinModel.WALLET_BACKUP_FILE, newBackupFilename);
-                    }
-
-                    // Delete the oldBackupFile unless the user has manually opened it.
-                    boolean userHasOpenedBackupFile = false;
-                    List<WalletData> perWalletModelDataList = this.bitcoinController.getModel().getPerWalletModelDataList();
-                    if (perWalletModelDataList != null) {
-                        for (WalletData perWalletModelDataLoop : perWalletModelDataList) {
-                            if ((oldBackupFilename != null && oldBackupFilename.equals(perWalletModelDataLoop.getWalletFilename()))
-                                    || (newBackupFilename != null && newBackupFilename.equals(perWalletModelDataLoop
-                                            .getWalletFilename()))) {
-                                userHasOpenedBackupFile = true;
-                                break;
+                // Rotate the rolling backups now that the new wallet is in place.
+                if (newBackupFilename != null) {
+                    walletInfo.put(BitcoinModel.WALLET_BACKUP_FILE, newBackupFilename);
+
+                    if (oldBackupFilename != null && !oldBackupFilename.equals(newBackupFilename)) {
+                        File oldBackupFile = new File(oldBackupFilename);
+
+                        // Delete the oldBackupFile unless the user has manually opened it.
+                        boolean userHasOpenedBackupFile = false;
+                        List<WalletData> perWalletModelDataList = this.bitcoinController.getModel().getPerWalletModelDataList();
+                        if (perWalletModelDataList != null) {
+                            for (WalletData perWalletModelDataLoop : perWalletModelDataList) {
+                                if (oldBackupFilename.equals(perWalletModelDataLoop.getWalletFilename())
+                                        || newBackupFilename.equals(perWalletModelDataLoop.getWalletFilename())) {
+                                    userHasOpenedBackupFile = true;
+                                    break;
+                                }
                             }
                         }
-                    }
-                    if (!userHasOpenedBackupFile) {
-                        SecureFiles.secureDelete(oldBackupFile);
+                        if (!userHasOpenedBackupFile && oldBackupFile.exists() && !Files.isSameFile(oldBackupFile.toPath(), walletFile.toPath())) {
+                            // The save does not need to wait for the old backup to be overwritten.
+                            SecureFiles.secureDeleteLater(oldBackupFile);
+                        }
                     }
                 }
+            } catch (IOException ioe) {
+                String message = "Cannot save wallet '" + perWalletModelData.getWalletFilename();
+                log.error(message + " (1) " + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                throw new WalletSaveException(message, ioe);
             }
-        } catch (IOException ioe) {
-            String message = "Cannot save wallet '" + perWalletModelData.getWalletFilename();
-            log.error(message + " (1) " + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
-            throw new WalletSaveException(message, ioe);
+        }
+
+        // Write wallet info.
+        synchronized (walletInfo) {
+            walletInfo.writeToFile(walletInfoFilename, walletInfo.getWalletVersion());
+        }
+    }
+
+    /**
+     * Write the bytes to a new temporary file in the same directory as the destination file
+     * (so that it can be atomically moved over it) and force them to the storage device.
+     *
+     * @param sourceBytes the bytes to write
+     * @param destinationFile the file that the temporary file will replace
+     * @return the temporary file
+     * @throws IOException
+     */
+    private static File writeTemporaryFile(byte[] sourceBytes, File destinationFile) throws IOException {
+        File temporaryFile = File.createTempFile(destinationFile.getName(), TEMPORARY_FILE_SUFFIX, destinationFile.getAbsoluteFile().getParentFile());
+        boolean writtenOk = false;
+        FileOutputStream fileOutputStream = null;
+        try {
+            fileOutputStream = new FileOutputStream(temporaryFile);
+            fileOutputStream.write(sourceBytes);
+            fileOutputStream.flush();
+            fileOutputStream.getFD().sync();
+            writtenOk = true;
         } finally {
             if (fileOutputStream != null) {
-                try {
-                    fileOutputStream.flush();
-                    fileOutputStream.close();
-                } catch (IOException e) {
-                    String message = "Cannot save wallet '" + perWalletModelData.getWalletFilename();
-                    log.error(message + " (2) " + e.getClass().getCanonicalName() + " " + e.getMessage());
-                    throw new WalletSaveException(message, e);
-                }
+                fileOutputStream.close();
+            }
+            if (!writtenOk) {
+                SecureFiles.secureDelete(temporaryFile);
             }
         }
+        return temporaryFile;
+    }
 
-        // Write wallet info.
-        walletInfo.writeToFile(walletInfoFilename, walletInfo.getWalletVersion());
+    /**
+     * Move the source file over the destination file as a single atomic file system operation where supported.
+     */
+    static void moveAtomically(File sourceFile, File destinationFile) throws IOException {
+        try {
+            Files.move(sourceFile.toPath(), destinationFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            log.debug("Atomic move is not supported for '" + destinationFile.getAbsolutePath() + "' - using a replacing move instead");
+            Files.move(sourceFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Make the destination file refer to the same data as the source file.
+     * A hard link is used where the file system supports it as no data needs copying. 
+     */
+    private static void linkOrCopy(File sourceFile, File destinationFile) throws IOException {
+        if (destinationFile.exists()) {
+            if (Files.isSameFile(sourceFile.toPath(), destinationFile.toPath())) {
+                return;
+            }
+            deleteBackup(destinationFile, sourceFile);
+        }
+        try {
+            Files.createLink(destinationFile.toPath(), sourceFile.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Could not link '" + destinationFile.getAbsolutePath() + "' (" + e.getClass().getSimpleName() + ") - copying instead");
+            Files.copy(sourceFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 
+    /**
+     * Delete a rolling backup. A backup that is the same file as the wallet, or is linked to other files, is only
+     * unlinked as overwriting it in place would overwrite the wallet too.
+     */
+    private static void deleteBackup(File backupFile, File walletFile) throws IOException {
+        if (!backupFile.exists()) {
+            return;
+        }
+        if ((walletFile.exists() && Files.isSameFile(backupFile.toPath(), walletFile.toPath())) || SecureFiles.hasOtherLinks(backupFile)) {
+            Files.deleteIfExists(backupFile.toPath());
+        } else {
+            SecureFiles.secureDelete(backupFile);
+        }
+    }
 
     /**
      * Backup the private keys of the active wallet to a file with name <wallet-name>-data/key-backup/<wallet
@@ -593,29 +1008,6 @@ public class FileHandler {
         return newWalletBackupFilename;
     }
 
-    /**
-        Rename a file from the original to the new File
-     **/
-    private boolean rename(File originalFile, File newFile) {
-        try {
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = newFile.getCanonicalFile();
-                if (canonical.exists() && !canonical.delete())
-                    throw new IOException("Failed to delete canonical destination file");
-                if (originalFile.renameTo(canonical))
-                    return true;  // else fall through.
-                throw new IOException("Failed to rename " + originalFile + " to " + canonical);
-            } else if (!originalFile.renameTo(newFile)) {
-                throw new IOException("Failed to rename " + originalFile + " to " + newFile);
-            }
-            return true;
-        } catch (IOException ioe) {
-            log.error("Error in renaming file " + originalFile + "  to " + newFile, ioe);
-            return false;
-        }
-     }
-
     /**
      * Secure delete the wallet and the wallet info file.
      * 
@@ -641,6 +1033,9 @@ public class FileHandler {
             try {
                 SecureFiles.secureDelete(walletInfoFile);
                 SecureFiles.secureDelete(walletFile);
+                if (perWalletModelData.getWalletJournal() != null) {
+                    perWalletModelData.getWalletJournal().delete();
+                }
                 walletInfo.setDeleted(true);
             } catch (IOException ioe) {
                 log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
@@ -909,28 +1304,72 @@ public class FileHandler {
         if (file == null) {
             throw new IllegalArgumentException("File must be provided");
         }
-        
-        if ( file.length() > MAX_FILE_SIZE ) {
+
+        ByteBuffer fileBytes = mapFile(file);
+        byte[] buffer = new byte[fileBytes.remaining()];
+        fileBytes.get(buffer);
+        return buffer;
+    }
+
+    /**
+     * Read a wallet backup. A backup that has been moved into the backup chunk store is rebuilt from its chunks.
+     * 
+     * @param backupFile The backup file
+     * @return The contents that were backed up
+     * @throws IOException if the backup cannot be read or a chunk of it is missing or damaged
+     */
+    static byte[] readBackup(File backupFile) throws IOException {
+        ByteBuffer backupBytes = mapBackupFile(backupFile);
+        byte[] buffer = new byte[backupBytes.remaining()];
+        backupBytes.get(buffer);
+        return buffer;
+    }
+
+    /**
+     * Map a wallet backup as mapFile does, except that a backup that has been moved into the backup chunk store
+     * is rebuilt from its chunks.
+     * 
+     * @param backupFile The backup file
+     * @return A buffer holding the whole backup
+     * @throws IOException if the backup cannot be read or a chunk of it is missing or damaged
+     */
+    static ByteBuffer mapBackupFile(File backupFile) throws IOException {
+        ByteBuffer backupBytes = mapFile(backupFile);
+        if (BackupChunkStore.isManifest(backupBytes)) {
+            return ByteBuffer.wrap(BackupChunkStore.readBackup(backupFile, backupBytes));
+        }
+        return backupBytes;
+    }
+
+    /**
+     * Map a file into memory, read only, so that it can be read without copying it onto the heap.
+     * 
+     * On Windows the file is read into a heap buffer instead, as a mapped file cannot be replaced
+     * or deleted until its mapping is garbage collected.
+     * 
+     * @param file The file to map
+     * @return A buffer holding the whole file
+     */
+    public static ByteBuffer mapFile(File file) throws IOException {
+        if (file.length() > MAX_FILE_SIZE) {
             throw new IOException("File '" + file.getAbsolutePath() + "' is too large to input");
         }
 
-        byte []buffer = new byte[(int) file.length()];
-        InputStream ios = null;
-        try {
-            ios = new FileInputStream(file);
-            if ( ios.read(buffer) == -1 ) {
-                throw new IOException("EOF reached while trying to read the whole file");
-            }        
-        } finally { 
-            try {
-                 if ( ios != null )  {
-                      ios.close();
-                 }
-            } catch ( IOException e) {
-                log.error(e.getClass().getName() + " " + e.getMessage());
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            long size = channel.size();
+            if (!OSUtils.isWindows()) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
             }
-        }
 
-        return buffer;
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("EOF reached while trying to read the whole file '" + file.getAbsolutePath() + "'");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Index of when keys were used by a set of transactions, built in a single pass over the transactions.
+ *
+ * A key is used by a transaction when one of its outputs pays to the key's pubkey hash or one of its
+ * inputs is signed with the key's pubkey. The index maps each pubkey hash to the earliest and latest
+ * update times of the transactions using it.
+ *
+ * An index created for a wallet also holds a copy of the wallet's keys, so that an export, its verification
+ * and a replay date calculation can all work from the one index.
+ */
+public class KeyUsageIndex {
+    private static final Logger log = LoggerFactory.getLogger(KeyUsageIndex.class);
+
+    /**
+     * Below this many transactions the index is built on the calling thread.
+     */
+    static final int MINIMUM_NUMBER_OF_TRANSACTIONS_TO_INDEX_IN_PARALLEL = 5000;
+
+    private static final int MAXIMUM_NUMBER_OF_INDEXING_THREADS = 4;
+
+    /**
+     * The earliest and latest update times of the transactions using a key.
+     */
+    private static class KeyUsage {
+        private Date earliest;
+        private Date latest;
+
+        KeyUsage(Date updateTime) {
+            earliest = updateTime;
+            latest = updateTime;
+        }
+
+        void merge(Date earliestUpdateTime, Date latestUpdateTime) {
+            earliest = earliest.before(earliestUpdateTime) ? earliest : earliestUpdateTime;
+            latest = latest.after(latestUpdateTime) ? latest : latestUpdateTime;
+        }
+    }
+
+    private final Map<ByteBuffer, KeyUsage> keyUsages;
+
+    private final List<ECKey> keys;
+
+    private final Set<ByteBuffer> keyPubKeyHashes;
+
+    private KeyUsageIndex(Map<ByteBuffer, KeyUsage> keyUsages, List<ECKey> keys) {
+        this.keyUsages = keyUsages;
+        this.keys = Collections.unmodifiableList(keys);
+
+        keyPubKeyHashes = new HashSet<ByteBuffer>();
+        for (ECKey key : keys) {
+            keyPubKeyHashes.add(ByteBuffer.wrap(key.getPubKeyHash()));
+        }
+    }
+
+    /**
+     * Build the index for the wallet's keys and transactions. Only the keys are copied whilst the keychain is locked.
+     *
+     * @param wallet The wallet to index, may be null
+     * @return The index
+     */
+    public static KeyUsageIndex create(Wallet wallet) {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        if (wallet == null) {
+            return new KeyUsageIndex(new HashMap<ByteBuffer, KeyUsage>(), keys);
+        }
+
+        Collection<ECKey> keychain = wallet.getKeychain();
+        if (keychain != null) {
+            synchronized (keychain) {
+                keys.addAll(keychain);
+            }
+        }
+        return new KeyUsageIndex(index(wallet.getTransactions(true)), keys);
+    }
+
+    /**
+     * Build the index for the transactions, indexing large numbers of transactions in parallel.
+     *
+     * @param transactions The transactions to index, may be null
+     * @return The index
+     */
+    static KeyUsageIndex create(Collection<Transaction> transactions) {
+        return new KeyUsageIndex(index(transactions), new ArrayList<ECKey>());
+    }
+
+    private static Map<ByteBuffer, KeyUsage> index(Collection<Transaction> transactions) {
+        if (transactions == null || transactions.isEmpty()) {
+            return new HashMap<ByteBuffer, KeyUsage>();
+        }
+
+        List<Transaction> transactionList = new ArrayList<Transaction>(transactions);
+        int numberOfThreads = Math.min(MAXIMUM_NUMBER_OF_INDEXING_THREADS, Runtime.getRuntime().availableProcessors());
+        if (transactionList.size() < MINIMUM_NUMBER_OF_TRANSACTIONS_TO_INDEX_IN_PARALLEL || numberOfThreads < 2) {
+            return indexOnThisThread(transactionList);
+        }
+
+        // Each thread indexes its own share of the transactions and the results are then merged.
+        ExecutorService indexExecutor = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactoryBuilder()
+                .setNameFormat("key-usage-index-%d").setDaemon(true).build());
+        try {
+            List<Future<Map<ByteBuffer, KeyUsage>>> partialIndexes = new ArrayList<Future<Map<ByteBuffer, KeyUsage>>>();
+            int shareSize = (transactionList.size() + numberOfThreads - 1) / numberOfThreads;
+            for (int start = 0; start < transactionList.size(); start += shareSize) {
+                final List<Transaction> share = transactionList.subList(start, Math.min(start + shareSize, transactionList.size()));
+                partialIndexes.add(indexExecutor.submit(new Callable<Map<ByteBuffer, KeyUsage>>() {
+                    @Override
+                    public Map<ByteBuffer, KeyUsage> call() {
+                        return indexOnThisThread(share);
+                    }
+                }));
+            }
+
+            Map<ByteBuffer, KeyUsage> keyUsages = partialIndexes.get(0).get();
+            for (int i = 1; i < partialIndexes.size(); i++) {
+                for (Map.Entry<ByteBuffer, KeyUsage> entry : partialIndexes.get(i).get().entrySet()) {
+                    KeyUsage keyUsage = keyUsages.get(entry.getKey());
+                    if (keyUsage == null) {
+                        keyUsages.put(entry.getKey(), entry.getValue());
+                    } else {
+                        keyUsage.merge(entry.getValue().earliest, entry.getValue().latest);
+                    }
+                }
+            }
+            return keyUsages;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted indexing transactions in parallel - indexing them on this thread");
+            return indexOnThisThread(transactionList);
+        } catch (ExecutionException ee) {
+            log.error("Could not index transactions in parallel - indexing them on this thread. " + ee.getClass().getName() + " " + ee.getMessage());
+            return indexOnThisThread(transactionList);
+        } finally {
+            indexExecutor.shutdown();
+        }
+    }
+
+    /**
+     * @return The keys of the indexed wallet, in keychain order
+     */
+    public List<ECKey> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return true if the key, compressed or uncompressed as given, is one of the indexed wallet's keys
+     */
+    public boolean containsKey(ECKey key) {
+        return keyPubKeyHashes.contains(ByteBuffer.wrap(key.getPubKeyHash()));
+    }
+
+    /**
+     * @return The update time of the earliest transaction using the key, or null if no transaction uses it
+     */
+    Date getEarliestUsageDate(ECKey key) {
+        KeyUsage keyUsage = keyUsages.get(ByteBuffer.wrap(key.getPubKeyHash()));
+        return keyUsage == null ? null : keyUsage.earliest;
+    }
+
+    /**
+     * @return The update time of the latest transaction using the key, or null if no transaction uses it
+     */
+    Date getLatestUsageDate(ECKey key) {
+        KeyUsage keyUsage = keyUsages.get(ByteBuffer.wrap(key.getPubKeyHash()));
+        return keyUsage == null ? null : keyUsage.latest;
+    }
+
+    private static Map<ByteBuffer, KeyUsage> indexOnThisThread(List<Transaction> transactions) {
+        Map<ByteBuffer, KeyUsage> keyUsages = new HashMap<ByteBuffer, KeyUsage>();
+        List<byte[]> pubKeyHashes = new ArrayList<byte[]>();
+        for (Transaction transaction : transactions) {
+            Date updateTime = transaction.getUpdateTime();
+            if (updateTime == null) {
+                continue;
+            }
+
+            pubKeyHashes.clear();
+            addPubKeyHashesUsed(transaction, pubKeyHashes);
+            for (byte[] pubKeyHash : pubKeyHashes) {
+                ByteBuffer key = ByteBuffer.wrap(pubKeyHash);
+                KeyUsage keyUsage = keyUsages.get(key);
+                if (keyUsage == null) {
+                    keyUsages.put(key, new KeyUsage(updateTime));
+                } else {
+                    keyUsage.merge(updateTime, updateTime);
+                }
+            }
+        }
+        return keyUsages;
+    }
+
+    /**
+     * Add the pubkey hashes of the keys the transaction uses.
+     *
+     * Scripts are inspected in order and inspection stops at the first script that cannot be parsed,
+     * in which case the transaction's inputs are not inspected if it was an output that could not be parsed.
+     */
+    private static void addPubKeyHashesUsed(Transaction transaction, List<byte[]> pubKeyHashes) {
+        for (TransactionOutput output : transaction.getOutputs()) {
+            try {
+                pubKeyHashes.add(output.getScriptPubKey().getPubKeyHash());
+            } catch (ScriptException e) {
+                log.error("Could not parse tx output script: {}", e.toString());
+                return;
+            }
+        }
+
+        for (TransactionInput input : transaction.getInputs()) {
+            try {
+                pubKeyHashes.add(Utils.sha256hash160(input.getScriptSig().getPubKey()));
+            } catch (ScriptException e) {
+                log.error("Could not parse tx input script: {}", e.toString());
+                return;
+            }
+        }
+    }
+}
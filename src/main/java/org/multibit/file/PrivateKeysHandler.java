@@ -26,6 +26,8 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -64,47 +66,67 @@ public class PrivateKeysHandler {
 
     public void exportPrivateKeys(File exportFile, Wallet wallet, BlockChain blockChain, boolean performEncryptionOfExportFile, CharSequence exportPassword, CharSequence walletPassword)
             throws IOException, KeyCrypterException {
+        exportPrivateKeys(exportFile, wallet, KeyUsageIndex.create(wallet), blockChain, performEncryptionOfExportFile, exportPassword, walletPassword);
+    }
 
-        // Construct a StringBuffer with the private key export text.
-        StringBuffer outputStringBuffer = new StringBuffer();
-
-        if (!performEncryptionOfExportFile) {
-            outputHeaderComment(outputStringBuffer);
-        }
-        
-        // Get the wallet's private keys and output them.
-        Collection<PrivateKeyAndDate> keyAndDates = createKeyAndDates(wallet, blockChain, walletPassword);
-        outputKeys(outputStringBuffer, keyAndDates);
-        
-        if (!performEncryptionOfExportFile) {
-            outputFooterComment(outputStringBuffer);
+    /**
+     * Export the private keys of the wallet using an index of its keys already built, which can then be reused
+     * to verify the export.
+     */
+    public void exportPrivateKeys(File exportFile, Wallet wallet, KeyUsageIndex keyUsageIndex, BlockChain blockChain, boolean performEncryptionOfExportFile,
+            CharSequence exportPassword, CharSequence walletPassword) throws IOException, KeyCrypterException {
+
+        // The export is written to a temporary file that only replaces the export file once it is complete,
+        // so a failure part way through never leaves a truncated export (which may hold unencrypted keys).
+        File exportDirectory = exportFile.getAbsoluteFile().getParentFile();
+        File temporaryExportFile = File.createTempFile(exportFile.getName(), ".tmp", exportDirectory);
+        boolean exportWasWritten = false;
+        try {
+            writeExport(temporaryExportFile, wallet, keyUsageIndex, blockChain, performEncryptionOfExportFile, exportPassword, walletPassword);
+            try (FileChannel channel = FileChannel.open(temporaryExportFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            FileHandler.moveAtomically(temporaryExportFile, exportFile);
+            exportWasWritten = true;
+        } finally {
+            if (!exportWasWritten) {
+                try {
+                    SecureFiles.secureDelete(temporaryExportFile);
+                } catch (IOException ioe) {
+                    log.error("Could not delete the temporary export file '" + temporaryExportFile.getAbsolutePath() + "'", ioe);
+                }
+            }
         }
-        
-        String keyOutputText = outputStringBuffer.toString();
+    }
 
-        if (performEncryptionOfExportFile) {
-            KeyCrypterOpenSSL keyCrypter = new KeyCrypterOpenSSL();
-            keyOutputText = keyCrypter.encrypt(keyOutputText, exportPassword);
-        }
-        
-        FileWriter fileWriter = null;
-        PrintWriter printWriter = null;
+    private void writeExport(File file, Wallet wallet, KeyUsageIndex keyUsageIndex, BlockChain blockChain, boolean performEncryptionOfExportFile,
+            CharSequence exportPassword, CharSequence walletPassword) throws IOException, KeyCrypterException {
+        // The private key export text is written a line at a time, encrypting as it goes if required.
+        Writer writer = new FileWriter(file);
         try {
-            fileWriter = new FileWriter(exportFile);
-            printWriter = new PrintWriter(fileWriter);
+            if (performEncryptionOfExportFile) {
+                writer = keyCrypter.createEncryptingWriter(writer, exportPassword);
+            }
+            final BufferedWriter out = new BufferedWriter(writer);
+            writer = out;
 
-            printWriter.write(keyOutputText);
+            if (!performEncryptionOfExportFile) {
+                outputHeaderComment(out);
+            }
 
-            // Close the output stream.
-            printWriter.close();
+            // Get the wallet's private keys and output them.
+            visitKeyAndDates(wallet, keyUsageIndex, blockChain, walletPassword, new KeyAndDateVisitor() {
+                @Override
+                public void visit(PrivateKeyAndDate privateKeyAndDate) throws IOException {
+                    outputKey(out, privateKeyAndDate);
+                }
+            });
 
-        } finally {
-            if (printWriter != null) {
-                printWriter.close();
-            }
-            if (fileWriter != null) {
-                fileWriter.close();
+            if (!performEncryptionOfExportFile) {
+                outputFooterComment(out);
             }
+        } finally {
+            writer.close();
         }
     }
 
@@ -122,45 +144,41 @@ public class PrivateKeysHandler {
      */
     public Verification verifyExportFile(File exportFile, Wallet wallet, BlockChain blockChain,
             CharSequence exportPassword, CharSequence walletPassword) throws KeyCrypterException {
+        return verifyExportFile(exportFile, KeyUsageIndex.create(wallet), blockChain, exportPassword);
+    }
+
+    /**
+     * Verify the export file against the index of the wallet's keys the export was written from.
+     *
+     * The file is read a line at a time and each key is compared, by pubkey hash, with the indexed key at the
+     * same position so only one key is held in memory and no wallet key needs decrypting.
+     *
+     * @param exportFile
+     *            The export file to verify
+     * @param keyUsageIndex
+     *            The index of the wallet's keys the export was written from
+     * @param exportPassword
+     *            the password to use is encryption is required
+     * @return Verification The result of verification
+     * @throws KeyCrypterException
+     */
+    public Verification verifyExportFile(File exportFile, KeyUsageIndex keyUsageIndex, BlockChain blockChain, CharSequence exportPassword)
+            throws KeyCrypterException {
         boolean thereWereFailures = false;
 
         String messageKey = "privateKeysHandler.failedForUnknownReason";
         Object[] messageData = new Object[0];
 
         try {
-            // Create the expected export file contents.
-             Collection<PrivateKeyAndDate> expectedKeysAndDates = createKeyAndDates(wallet, blockChain, walletPassword);
+            ExportVerifier exportVerifier = new ExportVerifier(keyUsageIndex, calculateOverallLastUsageDate(keyUsageIndex, blockChain));
+            visitPrivateKeys(exportFile, exportPassword, exportVerifier);
 
-            // Read in the specified export file.
-            Collection<PrivateKeyAndDate> importedKeysAndDates = readInPrivateKeys(exportFile, exportPassword);
-
-            if (expectedKeysAndDates.size() != importedKeysAndDates.size()) {
+            if (exportVerifier.numberOfKeys != keyUsageIndex.getKeys().size()) {
                 messageKey = "privateKeysHandler.wrongNumberOfKeys";
                 thereWereFailures = true;
-            } else {
-                for (int i = 0; i < expectedKeysAndDates.size(); i++) {
-                    Iterator<PrivateKeyAndDate> iteratorExpected = expectedKeysAndDates.iterator();
-                    Iterator<PrivateKeyAndDate> iteratorImported = importedKeysAndDates.iterator();
-
-                    PrivateKeyAndDate expected = iteratorExpected.next();
-                    PrivateKeyAndDate imported = iteratorImported.next();
-
-                    if (!Utils.bytesToHexString(expected.getKey().getPrivKeyBytes()).equals(
-                            Utils.bytesToHexString(imported.getKey().getPrivKeyBytes()))) {
-                        messageKey = "privateKeysHandler.keysDidNotMatch";
-                        thereWereFailures = true;
-                        break;
-                    }
-
-                    // Imported keydate must be at or before expected (further back in time is safe).
-                    if ((imported.getDate() != null && imported.getDate().after(expected.getDate()))
-                            || (imported.getDate() == null && expected.getDate() != null)) {
-                        messageKey = "privateKeysHandler.keysDidNotMatch";
-                        thereWereFailures = true;
-                        break;
-                    }
-                }
-
+            } else if (!exportVerifier.keysMatched) {
+                messageKey = "privateKeysHandler.keysDidNotMatch";
+                thereWereFailures = true;
             }
         } catch (PrivateKeysHandlerException pkhe) {
             messageKey = "privateKeysHandler.thereWasAnException";
@@ -174,183 +192,263 @@ public class PrivateKeysHandler {
         return new Verification(!thereWereFailures, messageKey, messageData);
     }
 
+    /**
+     * Compares each key read from an export file with the indexed key at the same position.
+     */
+    private static class ExportVerifier implements KeyAndDateVisitor {
+        private final KeyUsageIndex keyUsageIndex;
+        private final Date overallLastUsageDate;
+
+        private int numberOfKeys = 0;
+        private boolean keysMatched = true;
+
+        ExportVerifier(KeyUsageIndex keyUsageIndex, Date overallLastUsageDate) {
+            this.keyUsageIndex = keyUsageIndex;
+            this.overallLastUsageDate = overallLastUsageDate;
+        }
+
+        @Override
+        public void visit(PrivateKeyAndDate imported) {
+            int position = numberOfKeys++;
+            if (!keysMatched || position >= keyUsageIndex.getKeys().size()) {
+                // A surplus key is reported as the wrong number of keys.
+                return;
+            }
+
+            ECKey expectedKey = keyUsageIndex.getKeys().get(position);
+            if (!Arrays.equals(expectedKey.getPubKeyHash(), imported.getKey().getPubKeyHash())) {
+                keysMatched = false;
+                return;
+            }
+
+            // Imported keydate must be at or before expected (further back in time is safe).
+            Date expectedDate = calculateKeyDate(keyUsageIndex, expectedKey, overallLastUsageDate);
+            if ((imported.getDate() != null && expectedDate != null && imported.getDate().after(expectedDate))
+                    || (imported.getDate() == null && expectedDate != null)) {
+                keysMatched = false;
+            }
+        }
+    }
+
     public Collection<PrivateKeyAndDate> readInPrivateKeys(File importFile, CharSequence password) throws PrivateKeysHandlerException, KeyCrypterException {
+        final ArrayList<PrivateKeyAndDate> parseResults = new ArrayList<PrivateKeyAndDate>();
+        visitPrivateKeys(importFile, password, new KeyAndDateVisitor() {
+            @Override
+            public void visit(PrivateKeyAndDate privateKeyAndDate) {
+                parseResults.add(privateKeyAndDate);
+            }
+        });
+        return parseResults;
+    }
+
+    /**
+     * Read the private keys from the file a line at a time, visiting each in turn as it is read.
+     */
+    private void visitPrivateKeys(File importFile, CharSequence password, KeyAndDateVisitor visitor) throws PrivateKeysHandlerException,
+            KeyCrypterException {
         if (importFile == null) {
             throw new PrivateKeysHandlerException("Import file cannot be null");
         }
 
-        ArrayList<PrivateKeyAndDate> parseResults = new ArrayList<PrivateKeyAndDate>();
-
-        Scanner scanner = null;
+        InputStream inputStream = null;
 
         try {
-            // Read in the file.
-            String importFileContents = readFile(importFile);
+            inputStream = new BufferedInputStream(new FileInputStream(importFile));
 
-            if (importFileContents != null && importFileContents.startsWith(keyCrypter.getOpenSSLMagicText())) {
+            Reader fileReader = new InputStreamReader(inputStream);
+            if (startsWithOpenSSLMagicText(inputStream)) {
                 // Decryption required.
-                KeyCrypterOpenSSL keyCrypter = new KeyCrypterOpenSSL();
-                importFileContents = keyCrypter.decrypt(importFileContents, password);
+                fileReader = keyCrypter.createDecryptingReader(fileReader, password);
             }
-
-            scanner = new Scanner(new StringReader(importFileContents));
-
-            // First use a Scanner to get each line.
-            while (scanner.hasNextLine()) {
-                processLine(scanner.nextLine(), parseResults);
+            BufferedReader reader = new BufferedReader(fileReader);
+
+            // Parse the file a line at a time.
+            String line;
+            while ((line = reader.readLine()) != null) {
+                PrivateKeyAndDate privateKeyAndDate = parseLine(line);
+                if (privateKeyAndDate != null) {
+                    visitor.visit(privateKeyAndDate);
+                }
             }
         } catch (IOException ioe) {
             throw new PrivateKeysHandlerException("Could not read import file '" + importFile.getAbsolutePath() + "'", ioe);
         } finally {
-            // Ensure the underlying stream is always closed
-            // this only has any effect if the item passed
-            // to the Scanner
-            // constructor implements Closeable (which it
-            // does in this case).
-            if (scanner != null) {
-                scanner.close();
+            // Closing the file stream closes everything reading from it.
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ioe) {
+                    log.error("Could not close import file '" + importFile.getAbsolutePath() + "'", ioe);
+                }
             }
         }
-        return parseResults;
     }
 
-    private void outputHeaderComment(StringBuffer out) {
-        out.append("# KEEP YOUR PRIVATE KEYS SAFE !").append("\n");
-        out.append("# Anyone who can read this file can spend your bitcoin.").append("\n");
-        out.append("#").append("\n");
-        out.append("# Format:").append("\n");
-        out.append("#   <Base58 encoded private key>[<whitespace>[<key createdAt>]]").append("\n");
-        out.append("#").append("\n");
-        out.append("#   The Base58 encoded private keys are the same format as").append("\n");
-        out.append("#   produced by the Satoshi client/ sipa dumpprivkey utility.").append("\n");
-        out.append("#").append("\n");
-        out.append("#   Key createdAt is in UTC format as specified by ISO 8601").append("\n");
-        out.append("#   e.g: 2011-12-31T16:42:00Z . The century, 'T' and 'Z' are mandatory").append("\n");
-        out.append("#").append("\n");
+    /**
+     * Check whether the stream starts with the text every OpenSSL encrypted file starts with, leaving the stream
+     * positioned at its start.
+     */
+    private boolean startsWithOpenSSLMagicText(InputStream inputStream) throws IOException {
+        String magicText = keyCrypter.getOpenSSLMagicText();
+        byte[] start = new byte[magicText.length()];
+
+        inputStream.mark(start.length);
+        int length = 0;
+        try {
+            int read;
+            while (length < start.length && (read = inputStream.read(start, length, start.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            inputStream.reset();
+        }
+
+        return length == start.length && magicText.equals(new String(start, "US-ASCII"));
+    }
+
+    private void outputHeaderComment(Writer out) throws IOException {
+        out.write("# KEEP YOUR PRIVATE KEYS SAFE !\n");
+        out.write("# Anyone who can read this file can spend your bitcoin.\n");
+        out.write("#\n");
+        out.write("# Format:\n");
+        out.write("#   <Base58 encoded private key>[<whitespace>[<key createdAt>]]\n");
+        out.write("#\n");
+        out.write("#   The Base58 encoded private keys are the same format as\n");
+        out.write("#   produced by the Satoshi client/ sipa dumpprivkey utility.\n");
+        out.write("#\n");
+        out.write("#   Key createdAt is in UTC format as specified by ISO 8601\n");
+        out.write("#   e.g: 2011-12-31T16:42:00Z . The century, 'T' and 'Z' are mandatory\n");
+        out.write("#\n");
+    }
+
+    /**
+     * Visitor called with each of the wallet's private keys, and its date, in turn.
+     */
+    private interface KeyAndDateVisitor {
+        public void visit(PrivateKeyAndDate privateKeyAndDate) throws IOException;
     }
 
-    private Collection<PrivateKeyAndDate> createKeyAndDates(Wallet wallet, BlockChain blockChain, CharSequence walletPassword) throws KeyCrypterException {
-       // Determine if keys need to be decrypted.
+    /**
+     * Visit each of the indexed wallet keys in turn, decrypting each key only as it is visited.
+     */
+    private void visitKeyAndDates(Wallet wallet, KeyUsageIndex keyUsageIndex, BlockChain blockChain, CharSequence walletPassword,
+            KeyAndDateVisitor visitor) throws KeyCrypterException, IOException {
+        // Determine if keys need to be decrypted.
         boolean decryptionRequired = false;
 
-        Collection<ECKey> keychain = wallet.getKeychain();
-        Collection<PrivateKeyAndDate> keyAndDates = new ArrayList<PrivateKeyAndDate>();
+        // The index holds a copy of the keys so they are decrypted and visited (which may write them to a
+        // slow disk) without the wallet being blocked meanwhile.
+        Collection<ECKey> keychain = keyUsageIndex.getKeys();
 
-        synchronized (keychain) {
-            if (wallet != null) {
-                // Wallet keys need to be decrypted before output.
-                if (wallet.getEncryptionType() != EncryptionType.UNENCRYPTED) {
-                    decryptionRequired = true;
-                }
+        if (wallet != null) {
+            // Wallet keys need to be decrypted before output.
+            if (wallet.getEncryptionType() != EncryptionType.UNENCRYPTED) {
+                decryptionRequired = true;
             }
+        }
 
-            Set<Transaction> allTransactions = wallet.getTransactions(true);
-            if (keychain != null) {
-                HashMap<ECKey, Date> keyToEarliestUsageDateMap = new HashMap<ECKey, Date>();
-
-                // The date of the last transaction in the wallet - used where
-                // there are no tx for a key.
-                Date overallLastUsageDate = null;
-
-                for (ECKey ecKey : keychain) {
-                    // Find the earliest usage of this key.
-                    Date earliestUsageDate = null;
-                    if (allTransactions != null) {
-                        for (Transaction tx : allTransactions) {
-                            if (transactionUsesKey(tx, ecKey)) {
-                                Date updateTime = tx.getUpdateTime();
-                                if (updateTime != null) {
-                                    if (overallLastUsageDate == null) {
-                                        overallLastUsageDate = updateTime;
-                                    } else {
-                                        overallLastUsageDate = overallLastUsageDate.after(updateTime) ? overallLastUsageDate
-                                                    : updateTime;
-                                    }
-                                    if (earliestUsageDate == null) {
-                                        earliestUsageDate = updateTime;
-                                    } else {
-                                        earliestUsageDate = earliestUsageDate.before(updateTime) ? earliestUsageDate : updateTime;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    if (earliestUsageDate != null) {
-                        keyToEarliestUsageDateMap.put(ecKey, earliestUsageDate);
-                    }
-                }
-
-                // If there are no transactions in the wallet
-                // overallLastUsageDate will be null.
-                // We do not want keys output with a missing date as this forces
-                // a replay from the genesis block
-                // In this case we know there are no transactions up to the date
-                // of the head of the
-                // chain so can set the overallLastUsageDate to then.
-                // On import this will replay from the current chain head to
-                // include any future tx.
-                if (overallLastUsageDate == null) {
-                    if (blockChain != null) {
-                        StoredBlock chainHead = blockChain.getChainHead();
-                        if (chainHead != null) {
-                            Block header = chainHead.getHeader();
-                            if (header != null) {
-                                long timeSeconds = header.getTimeSeconds();
-                                if (timeSeconds != 0) {
-                                    overallLastUsageDate = new Date(timeSeconds * NUMBER_OF_MILLISECONDS_IN_A_SECOND);
-                                }
-                            }
-                        }
-                    }
-                }
+        if (!keychain.isEmpty()) {
+            Date overallLastUsageDate = calculateOverallLastUsageDate(keyUsageIndex, blockChain);
 
-                KeyCrypter walletKeyCrypter = wallet.getKeyCrypter();
-                KeyParameter aesKey = null;
+            KeyCrypter walletKeyCrypter = wallet.getKeyCrypter();
+            KeyParameter aesKey = null;
+            if (decryptionRequired) {
+                aesKey = walletKeyCrypter.deriveKey(walletPassword);
+            }
+            
+            for (ECKey ecKey : keychain) {
+                Date earliestUsageDate = calculateKeyDate(keyUsageIndex, ecKey, overallLastUsageDate);
                 if (decryptionRequired) {
-                    aesKey = walletKeyCrypter.deriveKey(walletPassword);
+                    // Create a new decrypted key holding the private key.
+                    ECKey decryptedKey = ecKey.decrypt(walletKeyCrypter, aesKey);
+                    visitor.visit(new PrivateKeyAndDate(decryptedKey, earliestUsageDate));
+                } else {
+                    visitor.visit(new PrivateKeyAndDate(ecKey, earliestUsageDate));
                 }
-                
-                for (ECKey ecKey : keychain) {
-                    Date earliestUsageDate = keyToEarliestUsageDateMap.get(ecKey);
-                    if (earliestUsageDate == null) {
-                        if (overallLastUsageDate != null) {
-                            // Put the last tx date for the whole wallet in for
-                            // this key - there are no tx for this key so this
-                            // will be early enough.
-                            earliestUsageDate = overallLastUsageDate;
+            }
+        }
+    }
+
+    /**
+     * @return The date of the last transaction in the wallet - used where there are no tx for a key
+     */
+    private static Date calculateOverallLastUsageDate(KeyUsageIndex keyUsageIndex, BlockChain blockChain) {
+        Date overallLastUsageDate = null;
+
+        for (ECKey ecKey : keyUsageIndex.getKeys()) {
+            Date lastUsageDate = keyUsageIndex.getLatestUsageDate(ecKey);
+            if (lastUsageDate != null && (overallLastUsageDate == null || lastUsageDate.after(overallLastUsageDate))) {
+                overallLastUsageDate = lastUsageDate;
+            }
+        }
+
+        // If there are no transactions in the wallet
+        // overallLastUsageDate will be null.
+        // We do not want keys output with a missing date as this forces
+        // a replay from the genesis block
+        // In this case we know there are no transactions up to the date
+        // of the head of the
+        // chain so can set the overallLastUsageDate to then.
+        // On import this will replay from the current chain head to
+        // include any future tx.
+        if (overallLastUsageDate == null) {
+            if (blockChain != null) {
+                StoredBlock chainHead = blockChain.getChainHead();
+                if (chainHead != null) {
+                    Block header = chainHead.getHeader();
+                    if (header != null) {
+                        long timeSeconds = header.getTimeSeconds();
+                        if (timeSeconds != 0) {
+                            overallLastUsageDate = new Date(timeSeconds * NUMBER_OF_MILLISECONDS_IN_A_SECOND);
                         }
                     }
-                    if (decryptionRequired) {
-                        // Create a new decrypted key holding the private key.
-                        ECKey decryptedKey = ecKey.decrypt(walletKeyCrypter, aesKey);
-                        keyAndDates.add(new PrivateKeyAndDate(decryptedKey, earliestUsageDate));
-                    } else {
-                        keyAndDates.add(new PrivateKeyAndDate(ecKey, earliestUsageDate));
-                    }
                 }
             }
         }
+        return overallLastUsageDate;
+    }
 
-        return keyAndDates;
+    /**
+     * @return The date exported with the key
+     */
+    private static Date calculateKeyDate(KeyUsageIndex keyUsageIndex, ECKey ecKey, Date overallLastUsageDate) {
+        Date earliestUsageDate = keyUsageIndex.getEarliestUsageDate(ecKey);
+        if (earliestUsageDate == null) {
+            // Put the last tx date for the whole wallet in for
+            // this key - there are no tx for this key so this
+            // will be early enough.
+            earliestUsageDate = overallLastUsageDate;
+        }
+        return earliestUsageDate;
     }
 
-    private void outputKeys(StringBuffer out, Collection<PrivateKeyAndDate> keyAndDates) {
-        for (PrivateKeyAndDate privateKeyAndDate : keyAndDates) {
-            DumpedPrivateKey dumpedPrivateKey = privateKeyAndDate.getKey().getPrivateKeyEncoded(networkParameters);
-            String keyOutputString = dumpedPrivateKey.toString();
+    private void outputKey(Writer out, PrivateKeyAndDate privateKeyAndDate) throws IOException {
+        DumpedPrivateKey dumpedPrivateKey = privateKeyAndDate.getKey().getPrivateKeyEncoded(networkParameters);
+        out.write(dumpedPrivateKey.toString());
 
-            if (privateKeyAndDate.getDate() != null) {
-                keyOutputString = keyOutputString + SEPARATOR + formatter.format(privateKeyAndDate.getDate());
-            }
-            out.append(keyOutputString).append("\n");
+        if (privateKeyAndDate.getDate() != null) {
+            out.write(SEPARATOR);
+            out.write(formatter.format(privateKeyAndDate.getDate()));
         }
+        out.write("\n");
     }
 
-    private void outputFooterComment(StringBuffer out) {
-        out.append("# End of private keys").append("\n");
+    private void outputFooterComment(Writer out) throws IOException {
+        out.write("# End of private keys\n");
     }
 
     public Date calculateReplayDate(Collection<PrivateKeyAndDate> privateKeyAndDates, Wallet wallet) {
+        return calculateReplayDate(privateKeyAndDates, wallet == null ? null : KeyUsageIndex.create(wallet));
+    }
+
+    /**
+     * Calculate the date to replay from to find the transactions of the keys that are not already in the indexed
+     * wallet. Keys are matched by their pubkey hash, as the import does.
+     *
+     * @param keyUsageIndex The index of the wallet's keys, or null if there is no wallet
+     * @return The replay date, or null if some of the keys have no date
+     */
+    public Date calculateReplayDate(Collection<PrivateKeyAndDate> privateKeyAndDates, KeyUsageIndex keyUsageIndex) {
         boolean thereWereMissingDates = false;
         Date replayDate =  new Date(DateUtils.nowUtc().getMillis());
         for (PrivateKeyAndDate loop : privateKeyAndDates) {
@@ -358,7 +456,7 @@ public class PrivateKeysHandler {
                 thereWereMissingDates = true;
             } else {
                 if (loop.getKey() != null) {
-                    if (wallet != null && !keyChainContainsPrivateKey(wallet.getKeychain(), loop.getKey())) {
+                    if (keyUsageIndex != null && !keyUsageIndex.containsKey(loop.getKey())) {
                         replayDate = replayDate.before(loop.getDate()) ? replayDate : loop.getDate();
                     }
                 }
@@ -373,53 +471,9 @@ public class PrivateKeysHandler {
     }
 
     /**
-     * This method is here because there is no equals on ECKey.
+     * @return The key and date on the line, or null if the line is blank or a comment
      */
-    private boolean keyChainContainsPrivateKey(Collection<ECKey> keyChain, ECKey keyToAdd) {
-        if (keyChain == null || keyToAdd == null) {
-            return false;
-        } else {
-            for (ECKey loopKey : keyChain) {
-                if (Arrays.equals(keyToAdd.getPrivKeyBytes(), loopKey.getPrivKeyBytes())) {
-                    return true;
-                }
-            }
-            return false;
-        }
-    }
-
-    private boolean transactionUsesKey(Transaction transaction, ECKey ecKey) {
-        for (TransactionOutput output : transaction.getOutputs()) {
-            // This is not thread safe as a key could be removed between the
-            // call to isMine and receive.
-            try {
-                byte[] pubkeyHash = output.getScriptPubKey().getPubKeyHash();
-                if (Arrays.equals(ecKey.getPubKeyHash(), pubkeyHash)) {
-                    return true;
-                }
-            } catch (ScriptException e) {
-                log.error("Could not parse tx output script: {}", e.toString());
-                return false;
-            }
-        }
-
-        for (TransactionInput input : transaction.getInputs()) {
-            // This is not thread safe as a key could be removed between the
-            // call to isPubKeyMine and receive.
-            try {
-                byte[] pubkey = input.getScriptSig().getPubKey();
-                if (Arrays.equals(ecKey.getPubKey(), pubkey)) {
-                    return true;
-                }
-            } catch (ScriptException e) {
-                log.error("Could not parse tx output script: {}", e.toString());
-                return false;
-            }
-        }
-        return false;
-    }
-
-    private void processLine(String line, ArrayList<PrivateKeyAndDate> parseResults) {
+    private PrivateKeyAndDate parseLine(String line) {
         if (line != null && !line.trim().equals("") && !line.startsWith(COMMENT_STRING_PREFIX)) {
             Scanner scanner = null;
             try {
@@ -445,7 +499,7 @@ public class PrivateKeysHandler {
                     privateKeyAndDate.setDate(date);
                 }
 
-                parseResults.add(privateKeyAndDate);
+                return privateKeyAndDate;
             } catch (AddressFormatException e) {
                 throw new PrivateKeysHandlerException("Could not understand address in import file", e);
             } catch (ParseException pe) {
@@ -456,6 +510,7 @@ public class PrivateKeysHandler {
                 }
             }
         }
+        return null;
     }
 
     public static String readFile(File file) throws IOException {
@@ -1,5 +1,6 @@
 package org.multibit.file;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.multibit.utils.OSUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -7,10 +8,17 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.security.SecureRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>Utilties to provide the following to applications:</p>
@@ -27,8 +35,6 @@ public class SecureFiles {
 
   private static SecureRandom secureRandom = new SecureRandom();
 
-  private static boolean initialised = false;
-
    // Nonsense bytes to fill up deleted files - these have no meaning.
   static final byte[] NONSENSE_BYTES = new byte[]{(byte) 0xF0, (byte) 0xA6, (byte) 0x55, (byte) 0xAA, (byte) 0x33,
     (byte) 0x77, (byte) 0x33, (byte) 0x37, (byte) 0x12, (byte) 0x34, (byte) 0x56, (byte) 0x78, (byte) 0xC2, (byte) 0xB3,
@@ -38,21 +44,38 @@ public class SecureFiles {
     (byte) 0x34, (byte) 0xB6, (byte) 0x72, (byte) 0x32, (byte) 0xB3, (byte) 0xA4, (byte) 0x4B, (byte) 0x80, (byte) 0x7F,
     (byte) 0xC5, (byte) 0x43, (byte) 0x23, (byte) 0x47, (byte) 0x13, (byte) 0xB7, (byte) 0xA5, (byte) 0x32, (byte) 0xDC,
     (byte) 0x79, (byte) 0x19, (byte) 0xB1, (byte) 0x03, (byte) 0x9D};
-  static final int BULKING_UP_FACTOR = 16;
-  static final byte[] SECURE_DELETE_FILL_BYTES = new byte[NONSENSE_BYTES.length * BULKING_UP_FACTOR];
-
-  private static void initialise() {
-    // Make some SECURE_DELETE_FILL_BYTES bytes = x BULKING_UP_FACTOR the
-    // NONSENSE just to save write time.
-    for (int i = 0; i < BULKING_UP_FACTOR; i++) {
-      System.arraycopy(
-        NONSENSE_BYTES, 0,
-        SECURE_DELETE_FILL_BYTES, NONSENSE_BYTES.length * i,
-        NONSENSE_BYTES.length);
+
+  /**
+   * Files are overwritten from a direct buffer of this size, so a large file takes a few big writes.
+   */
+  static final int OVERWRITE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  private static final ThreadLocal<ByteBuffer> overwriteBuffers = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(OVERWRITE_BUFFER_SIZE);
+    }
+  };
+
+  /**
+   * Deletes of the same file are serialised by the lock its path hashes to. Deletes of other files run in parallel.
+   */
+  private static final int NUMBER_OF_FILE_LOCKS = 64;
+  private static final Object[] fileLocks = new Object[NUMBER_OF_FILE_LOCKS];
+
+  static {
+    for (int i = 0; i < NUMBER_OF_FILE_LOCKS; i++) {
+      fileLocks[i] = new Object();
     }
-    initialised = true;
   }
 
+  /**
+   * Queue of deletes that callers do not need to wait for, run one at a time in the background.
+   */
+  private static final ExecutorService deleteExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+    .setNameFormat("secure-delete-%d").setDaemon(true).build());
+  private static final AtomicInteger numberOfPendingDeletes = new AtomicInteger();
+
   /**
    * Utilities have private constructor
    */
@@ -62,17 +85,12 @@ public class SecureFiles {
   /**
    * Delete a file with an overwrite of all of the data.
    * <p/>
-   * Set bit patterns are used rather than random numbers to avoid a
-   * futex_wait_queue_me error on Linux systems (related to /dev/random usage)
+   * Only deletes of the same file wait for each other.
    *
    * @param file The file to secure delete
    * @throws java.io.IOException if the operation fails for any reason
    */
-  public static synchronized void secureDelete(File file) throws IOException {
-    if (!initialised) {
-      initialise();
-    }
-
+  public static void secureDelete(File file) throws IOException {
     log.trace("Start of secureDelete");
 
     if (OSUtils.isWindows()) {
@@ -84,6 +102,59 @@ public class SecureFiles {
     log.trace("End of secureDelete");
   }
 
+  /**
+   * Queue a file to be secure deleted in the background, so that the caller does not wait for the overwrite.
+   * Failures are logged.
+   *
+   * @param file The file to secure delete
+   */
+  public static void secureDeleteLater(final File file) {
+    if (file == null) {
+      return;
+    }
+    numberOfPendingDeletes.incrementAndGet();
+    deleteExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          secureDelete(file);
+        } catch (IOException ioe) {
+          log.error("Could not secure delete '" + file.getAbsolutePath() + "'. " + ioe.getClass().getName() + " " + ioe.getMessage());
+        } finally {
+          numberOfPendingDeletes.decrementAndGet();
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait for the deletes queued by secureDeleteLater to finish.
+   *
+   * @return true if all the queued deletes finished in time
+   */
+  public static boolean waitForPendingDeletes(long timeout, TimeUnit unit) {
+    Future<?> marker = deleteExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        // Deletes are run in order so everything queued before this has finished.
+      }
+    });
+    try {
+      marker.get(timeout, unit);
+      return true;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | TimeoutException e) {
+      log.error("Secure deletes did not finish. " + numberOfPendingDeletes.get() + " were still pending.");
+      return false;
+    }
+  }
+
+  static int getNumberOfPendingDeletes() {
+    return numberOfPendingDeletes.get();
+  }
+
   /**
      * Delete a file with an overwrite of all of the data.
      * <p/>
@@ -94,9 +165,12 @@ public class SecureFiles {
      *
      * @throws java.io.IOException if the operation fails for any reason
      */
-    public static synchronized void slowSecureDelete(File file) throws IOException {
+    public static void slowSecureDelete(File file) throws IOException {
       if (file != null && file.exists()) {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rws")) {
+        synchronized (lockFor(file)) {
+          if (!file.exists()) {
+            return;
+          }
           // Prep for file delete as this can be fiddly on Windows
           // Make sure it is writable and any references to it are garbage
           // collected and finalized.
@@ -105,77 +179,108 @@ public class SecureFiles {
           }
           System.gc();
 
-          long length = file.length();
-          raf.seek(0);
-          raf.getFilePointer();
-          int pos = 0;
-          while (pos < length) {
-            raf.write(SECURE_DELETE_FILL_BYTES);
-            pos += SECURE_DELETE_FILL_BYTES.length;
-          }
+          overwrite(file, false);
+
+          boolean deleteSuccess = file.delete();
+          log.trace("Result of delete of file '" + file.getAbsolutePath() + "' was " + deleteSuccess);
         }
-        boolean deleteSuccess = file.delete();
-        log.trace("Result of delete of file '" + file.getAbsolutePath() + "' was " + deleteSuccess);
       }
     }
 
   /**
-   * An alternative secure delete algorithm from http://www.cafeaulait.org/books/javaio2/ioexamples/14/SecureDelete.java
+   * Overwrite the file with random data and delete it.
+   * The random data is made once per file (up to the overwrite buffer size) and written repeatedly.
    *
    * @param file the file to secure delete
    */
   private static void fastSecureDelete(File file) throws IOException {
     if (file != null && file.exists()) {
-      RandomAccessFile raf = null;
-      FileChannel channel = null;
-      MappedByteBuffer buffer;
-      try {
-        raf = new RandomAccessFile(file, "rw");
-        channel = raf.getChannel();
-
-        buffer = channel.map(
-                FileChannel.MapMode.READ_WRITE,
-                0,
-                raf.length()
-        );
-
-        // Overwrite with random data; one byte at a time
-        byte[] data = new byte[1];
-        while (buffer.hasRemaining()) {
-          secureRandom.nextBytes(data);
-          buffer.put(data[0]);
+      synchronized (lockFor(file)) {
+        if (!file.exists()) {
+          return;
         }
+        overwrite(file, true);
 
-        // Ensure we push this out to the file system
-        buffer.force();
-        channel.close();
-      } finally {
-        buffer = null;
+        // Delete file
+        // Use JDK7 NIO Files to delete the file since it offers the following benefits:
+        // * best chance at an atomic operation
+        // * relies on native code
+        // * works on Windows
+        boolean deleteSuccess = Files.deleteIfExists(file.toPath());
+        log.trace("Result of initial delete was {} for:\n'{}'", deleteSuccess, file.getAbsolutePath());
 
-        if (channel != null) {
-          channel.close();
-          channel = null;
+        if (OSUtils.isWindows()) {
+          // Work around an issue on Windows whereby files are not deleted
+          File canonical = file.getCanonicalFile();
+          if (canonical.exists() && !canonical.delete())
+            log.debug("Failed to delete canonical file {}", file.getCanonicalPath());
         }
-        if (raf != null) {
-          raf.close();
-          raf = null;
+      }
+    }
+  }
+
+  /**
+   * Overwrite the whole of a file in large chunks and force the overwrite to the storage device.
+   *
+   * @param file the file to overwrite
+   * @param useRandomData true to overwrite with random data, false to overwrite with the nonsense bytes
+   */
+  private static void overwrite(File file, boolean useRandomData) throws IOException {
+    if (hasOtherLinks(file)) {
+      // The data is still in use under another name, such as a wallet and its rolling backup, so only the name is deleted.
+      log.debug("Not overwriting '" + file.getAbsolutePath() + "' as it has other hard links");
+      return;
+    }
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         FileChannel channel = raf.getChannel()) {
+      long length = channel.size();
+      if (length == 0) {
+        return;
+      }
+
+      // Fill as much of the buffer as will be used.
+      ByteBuffer buffer = overwriteBuffers.get();
+      int fillLength = (int) Math.min(length, OVERWRITE_BUFFER_SIZE);
+      buffer.clear();
+      if (useRandomData) {
+        byte[] randomBytes = new byte[fillLength];
+        secureRandom.nextBytes(randomBytes);
+        buffer.put(randomBytes);
+      } else {
+        while (buffer.position() < fillLength) {
+          buffer.put(NONSENSE_BYTES, 0, Math.min(NONSENSE_BYTES.length, fillLength - buffer.position()));
         }
       }
+      buffer.flip();
 
-      // Delete file
-      // Use JDK7 NIO Files to delete the file since it offers the following benefits:
-      // * best chance at an atomic operation
-      // * relies on native code
-      // * works on Windows
-      boolean deleteSuccess = Files.deleteIfExists(file.toPath());
-      log.trace("Result of initial delete was {} for:\n'{}'", deleteSuccess, file.getAbsolutePath());
-
-      if (OSUtils.isWindows()) {
-        // Work around an issue on Windows whereby files are not deleted
-        File canonical = file.getCanonicalFile();
-        if (canonical.exists() && !canonical.delete())
-          log.debug("Failed to delete canonical file {}", file.getCanonicalPath());
+      long position = 0;
+      while (position < length) {
+        buffer.rewind();
+        buffer.limit((int) Math.min(fillLength, length - position));
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
       }
+
+      // Ensure we push this out to the file system
+      channel.force(true);
     }
   }
+
+  /**
+   * @return true if the file system says the file has more than one hard link. File systems without link counts say no.
+   */
+  static boolean hasOtherLinks(File file) {
+    try {
+      Object numberOfLinks = Files.getAttribute(file.toPath(), "unix:nlink");
+      return numberOfLinks instanceof Integer && (Integer) numberOfLinks > 1;
+    } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+      return false;
+    }
+  }
+
+  private static Object lockFor(File file) {
+    return fileLocks[(file.getAbsolutePath().hashCode() & 0x7fffffff) % NUMBER_OF_FILE_LOCKS];
+  }
 }
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.jcsv.CSVStrategy;
+import com.googlecode.jcsv.writer.CSVEntryConverter;
+import com.googlecode.jcsv.writer.CSVWriter;
+import com.googlecode.jcsv.writer.internal.CSVWriterBuilder;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.BitcoinModel;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletTableData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports the transactions of a wallet to a CSV file, newest first.
+ *
+ * The transactions are read straight from the wallet and rendered into CSV rows a chunk at a time on a small
+ * thread pool. The chunks are written in order as they are rendered so only a few chunks of rows are ever held in memory.
+ */
+public class TransactionsCsvExporter {
+    private static final Logger log = LoggerFactory.getLogger(TransactionsCsvExporter.class);
+
+    /**
+     * The number of transactions rendered by a single task.
+     */
+    static final int ROWS_PER_CHUNK = 500;
+
+    private static final int MAXIMUM_NUMBER_OF_RENDERING_THREADS = 4;
+
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private final BitcoinController bitcoinController;
+
+    public TransactionsCsvExporter(BitcoinController bitcoinController) {
+        this.bitcoinController = bitcoinController;
+    }
+
+    /**
+     * A wallet transaction and the date it is shown with.
+     */
+    private static class DatedTransaction {
+        private final Transaction transaction;
+        private final Date date;
+
+        DatedTransaction(Transaction transaction, Date date) {
+            this.transaction = transaction;
+            this.date = date;
+        }
+    }
+
+    /**
+     * Orders dates oldest first with missing dates after all the others.
+     */
+    private static final Comparator<DatedTransaction> DATE_COMPARATOR = new Comparator<DatedTransaction>() {
+        @Override
+        public int compare(DatedTransaction o1, DatedTransaction o2) {
+            if (isMissing(o1.date)) {
+                // Object 1 has missing date.
+                return 1;
+            }
+            if (isMissing(o2.date)) {
+                // Object 2 has missing date.
+                return -1;
+            }
+            long n1 = o1.date.getTime();
+            long n2 = o2.date.getTime();
+            if (n1 < n2) {
+                return -1;
+            } else if (n1 > n2) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    };
+
+    /**
+     * Export the wallet transactions dated in the range [fromDate, toDate), appending them to the export file after a header row.
+     * Transactions with no date are only exported when no range is given.
+     *
+     * @param walletData The wallet to export the transactions of
+     * @param exportFile The file to write to
+     * @param fromDate The earliest date to export, inclusive, or null for no lower limit
+     * @param toDate The latest date to export, exclusive, or null for no upper limit
+     * @return The number of transactions exported
+     */
+    public int exportTransactions(WalletData walletData, File exportFile, Date fromDate, Date toDate) throws IOException {
+        return exportTransactions(walletData, exportFile, fromDate, toDate, null, false);
+    }
+
+    /**
+     * Export the wallet transactions as above, recording the transactions exported.
+     *
+     * @param exportedTransactions The record of the transactions already exported, to which the transactions exported are added (may be null)
+     * @param onlyNotYetExported If true only the transactions not in exportedTransactions are exported
+     * @return The number of transactions exported
+     */
+    public int exportTransactions(WalletData walletData, File exportFile, Date fromDate, Date toDate,
+            ExportedTransactions exportedTransactions, boolean onlyNotYetExported) throws IOException {
+        List<DatedTransaction> datedTransactions = selectTransactions(walletData, fromDate, toDate,
+                onlyNotYetExported ? exportedTransactions : null);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(exportFile, true), "UTF-8"), WRITE_BUFFER_SIZE);
+        try {
+            // Write the header row.
+            WalletTableDataHeaderEntryConverter headerConverter = new WalletTableDataHeaderEntryConverter();
+            headerConverter.setBitcoinController(bitcoinController);
+            CSVWriter<WalletTableData> csvHeaderWriter = new CSVWriterBuilder<WalletTableData>(writer).strategy(CSVStrategy.UK_DEFAULT)
+                    .entryConverter(headerConverter).build();
+            csvHeaderWriter.write(new WalletTableData(null));
+
+            // Write the body of the CSV file.
+            CSVWriter<String[]> csvWriter = new CSVWriterBuilder<String[]>(writer).strategy(CSVStrategy.UK_DEFAULT)
+                    .entryConverter(new CSVEntryConverter<String[]>() {
+                        @Override
+                        public String[] convertEntry(String[] columns) {
+                            return columns;
+                        }
+                    }).build();
+            writeRows(walletData, datedTransactions, csvWriter);
+
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+
+        if (exportedTransactions != null) {
+            for (DatedTransaction datedTransaction : datedTransactions) {
+                exportedTransactions.add(datedTransaction.transaction.getHash());
+            }
+        }
+        return datedTransactions.size();
+    }
+
+    /**
+     * @return The wallet transactions in the date range and not in excludedTransactions (if given), newest first
+     */
+    private List<DatedTransaction> selectTransactions(WalletData walletData, Date fromDate, Date toDate,
+            ExportedTransactions excludedTransactions) {
+        List<DatedTransaction> datedTransactions = new ArrayList<DatedTransaction>();
+        if (walletData == null || walletData.getWallet() == null) {
+            return datedTransactions;
+        }
+
+        // Wallet.getTransactions copies the transactions while holding the wallet lock (which the wallet does not expose), so
+        // the rows are rendered from this snapshot and transactions the wallet receives meanwhile are not exported.
+        BitcoinModel model = bitcoinController.getModel();
+        List<Transaction> transactions = new ArrayList<Transaction>(walletData.getWallet().getTransactions(false));
+        for (Transaction transaction : transactions) {
+            if (excludedTransactions != null && excludedTransactions.contains(transaction.getHash())) {
+                continue;
+            }
+            Date date = model.createDate(bitcoinController, transaction);
+            if (fromDate != null || toDate != null) {
+                if (isMissing(date) || (fromDate != null && date.before(fromDate)) || (toDate != null && !date.before(toDate))) {
+                    continue;
+                }
+            }
+            datedTransactions.add(new DatedTransaction(transaction, date));
+        }
+
+        Collections.sort(datedTransactions, Collections.reverseOrder(DATE_COMPARATOR));
+        return datedTransactions;
+    }
+
+    /**
+     * Render the rows a chunk at a time in parallel and write each chunk as soon as it and all the chunks before it are rendered.
+     */
+    private void writeRows(final WalletData walletData, List<DatedTransaction> datedTransactions, CSVWriter<String[]> csvWriter)
+            throws IOException {
+        if (datedTransactions.isEmpty()) {
+            return;
+        }
+
+        int numberOfThreads = Math.min(MAXIMUM_NUMBER_OF_RENDERING_THREADS, Runtime.getRuntime().availableProcessors());
+        if (datedTransactions.size() <= ROWS_PER_CHUNK || numberOfThreads < 2) {
+            csvWriter.writeAll(renderRows(walletData, datedTransactions));
+            return;
+        }
+
+        ExecutorService renderExecutor = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactoryBuilder()
+                .setNameFormat("transaction-export-%d").setDaemon(true).build());
+        try {
+            // Keep a couple of chunks per thread in flight so that the threads are busy whilst earlier chunks are written.
+            Deque<Future<List<String[]>>> renderedChunks = new ArrayDeque<Future<List<String[]>>>();
+            int maximumNumberOfChunksInFlight = 2 * numberOfThreads;
+            for (int start = 0; start < datedTransactions.size(); start += ROWS_PER_CHUNK) {
+                final List<DatedTransaction> chunk = datedTransactions.subList(start, Math.min(start + ROWS_PER_CHUNK, datedTransactions.size()));
+                renderedChunks.addLast(renderExecutor.submit(new Callable<List<String[]>>() {
+                    @Override
+                    public List<String[]> call() {
+                        return renderRows(walletData, chunk);
+                    }
+                }));
+                if (renderedChunks.size() >= maximumNumberOfChunksInFlight) {
+                    csvWriter.writeAll(renderedChunks.removeFirst().get());
+                }
+            }
+            while (!renderedChunks.isEmpty()) {
+                csvWriter.writeAll(renderedChunks.removeFirst().get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst exporting transactions", ie);
+        } catch (ExecutionException ee) {
+            log.error("Could not render transactions for export. " + ee.getClass().getName() + " " + ee.getMessage());
+            throw new IOException("Could not render transactions for export", ee.getCause());
+        } finally {
+            renderExecutor.shutdownNow();
+        }
+    }
+
+    private List<String[]> renderRows(WalletData walletData, List<DatedTransaction> datedTransactions) {
+        // The converter's date formatter is not thread safe so each chunk has its own converter.
+        WalletTableDataEntryConverter converter = new WalletTableDataEntryConverter();
+        converter.setBitcoinController(bitcoinController);
+
+        BitcoinModel model = bitcoinController.getModel();
+        List<String[]> rows = new ArrayList<String[]>(datedTransactions.size());
+        for (DatedTransaction datedTransaction : datedTransactions) {
+            rows.add(converter.convertEntry(model.createWalletTableDataRow(bitcoinController, walletData, datedTransaction.transaction)));
+        }
+        return rows;
+    }
+
+    private static boolean isMissing(Date date) {
+        return date == null || date.getTime() == 0;
+    }
+}
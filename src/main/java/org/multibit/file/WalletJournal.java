@@ -0,0 +1,600 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.multibit.model.bitcoin.BitcoinModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the changes made to a wallet since it was last written out in full.
+ *
+ * Most wallet changes only touch one or two transactions or the last block seen so they are
+ * appended here rather than rewriting the whole wallet. The wallet is rewritten in full (compacted)
+ * periodically or on exit and the journal is replayed when the wallet is loaded.
+ * Replaying is idempotent: transactions the wallet already has are skipped.
+ *
+ * The journal is stored in the <wallet>-data directory as <wallet>.journal. The format is:
+ * 9 magic bytes 'mbjournal' in ASCII.
+ * 1 byte version number of format - initially set to 0
+ * then any number of records, each of which is
+ * 4 bytes record length, 8 bytes CRC32 of the record, the record bytes.
+ * A record torn by a crash fails its check and it, and anything after it, is discarded.
+ *
+ * Records are group committed: they are forced to the storage device together, at most GROUP_COMMIT_DELAY after
+ * they are written, or when commit is called. The last block seen changes with every block so it is only
+ * journalled at the commit, as one record for the latest block.
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    public static final String JOURNAL_FILE_EXTENSION = "journal";
+
+    static final byte[] JOURNAL_FILE_FORMAT_MAGIC_BYTES = new byte[]{(byte) 0x6D, (byte) 0x62, (byte) 0x6A, (byte) 0x6F,
+            (byte) 0x75, (byte) 0x72, (byte) 0x6E, (byte) 0x61, (byte) 0x6C}; // mbjournal in ASCII
+    static final byte JOURNAL_VERSION_NUMBER = (byte) 0x00;
+    static final int HEADER_LENGTH = JOURNAL_FILE_FORMAT_MAGIC_BYTES.length + 1;
+
+    private static final int RECORD_HEADER_LENGTH = 4 + 8; // Length and checksum.
+    private static final int MAXIMUM_RECORD_LENGTH = 1024 * 1024;
+
+    private static final byte TRANSACTION_RECORD = 1;
+    private static final byte LAST_BLOCK_SEEN_RECORD = 2;
+
+    /**
+     * When the journal has this many records the wallet is compacted at the next save.
+     */
+    public static final int MAXIMUM_NUMBER_OF_RECORDS = 2000;
+
+    /**
+     * A journal with changes in it is compacted at least this often.
+     */
+    public static final long MAXIMUM_TIME_BETWEEN_COMPACTIONS = 10 * 60 * 1000; // milliseconds
+
+    /**
+     * Records are forced to the storage device at most this long after they are written.
+     */
+    public static final long GROUP_COMMIT_DELAY = 1000; // milliseconds
+
+    private static final ScheduledExecutorService commitExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("wallet-journal-commit-%d").setDaemon(true).build());
+
+    private final File journalFile;
+
+    private DataOutputStream journalOutputStream;
+    private FileOutputStream journalFileOutputStream;
+
+    /**
+     * The length of the journal file, including the header.
+     */
+    private long position;
+
+    private int numberOfRecords;
+
+    private long lastCompactionTime;
+
+    /**
+     * The time of the last wallet change that could not be journalled (0 if none since the last compaction).
+     */
+    private long lastUnjournalledChangeTime;
+
+    private int lastBlockSeenHeightJournalled = -1;
+
+    /**
+     * The last block seen to be journalled at the next commit (-1 if none).
+     */
+    private int pendingLastBlockSeenHeight = -1;
+    private Sha256Hash pendingLastBlockSeenHash;
+
+    /**
+     * True if records have been written since the journal was last forced to the storage device.
+     */
+    private boolean uncommittedRecords;
+
+    private boolean commitScheduled;
+
+    public WalletJournal(File walletFile) {
+        this.journalFile = createJournalFile(walletFile);
+        this.lastCompactionTime = System.currentTimeMillis();
+        this.position = journalFile.exists() ? journalFile.length() : 0;
+    }
+
+    /**
+     * Work out the journal file for a wallet i.e. <wallet>-data/<wallet>.journal
+     */
+    public static File createJournalFile(File walletFile) {
+        String topLevelBackupDirectoryName = BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(walletFile);
+        String walletName = walletFile.getName();
+        String walletSuffix = "." + BitcoinModel.WALLET_FILE_EXTENSION;
+        if (walletName.endsWith(walletSuffix)) {
+            walletName = walletName.substring(0, walletName.length() - walletSuffix.length());
+        }
+        return new File(topLevelBackupDirectoryName + File.separator + walletName + "." + JOURNAL_FILE_EXTENSION);
+    }
+
+    /**
+     * Journal a new or updated transaction, together with the block it appears in, if any.
+     */
+    public synchronized void appendTransaction(Transaction transaction, StoredBlock block) throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeByte(TRANSACTION_RECORD);
+
+        byte[] transactionBytes = transaction.bitcoinSerialize();
+        record.writeInt(transactionBytes.length);
+        record.write(transactionBytes);
+
+        Date updateTime = transaction.getUpdateTime();
+        record.writeLong(updateTime == null ? 0 : updateTime.getTime());
+
+        if (block == null) {
+            record.writeBoolean(false);
+        } else {
+            record.writeBoolean(true);
+            ByteBuffer blockBytes = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+            block.serializeCompact(blockBytes);
+            record.write(blockBytes.array());
+        }
+        record.flush();
+
+        appendRecord(recordBytes.toByteArray());
+    }
+
+    /**
+     * Journal the last block seen by the wallet straight away. Repeats of the same height are not journalled.
+     */
+    public synchronized void appendLastBlockSeen(int lastBlockSeenHeight, Sha256Hash lastBlockSeenHash) throws IOException {
+        if (lastBlockSeenHeight == lastBlockSeenHeightJournalled) {
+            return;
+        }
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeByte(LAST_BLOCK_SEEN_RECORD);
+        record.writeInt(lastBlockSeenHeight);
+        if (lastBlockSeenHash == null) {
+            record.writeBoolean(false);
+        } else {
+            record.writeBoolean(true);
+            record.write(lastBlockSeenHash.getBytes());
+        }
+        record.flush();
+
+        appendRecord(recordBytes.toByteArray());
+        lastBlockSeenHeightJournalled = lastBlockSeenHeight;
+        pendingLastBlockSeenHeight = -1;
+        pendingLastBlockSeenHash = null;
+    }
+
+    /**
+     * Note the last block seen by the wallet. It is journalled at the next commit, so a run of blocks
+     * costs one record.
+     */
+    public synchronized void noteLastBlockSeen(int lastBlockSeenHeight, Sha256Hash lastBlockSeenHash) {
+        if (lastBlockSeenHeight == lastBlockSeenHeightJournalled && pendingLastBlockSeenHeight == -1) {
+            return;
+        }
+        pendingLastBlockSeenHeight = lastBlockSeenHeight;
+        pendingLastBlockSeenHash = lastBlockSeenHash;
+        scheduleCommit();
+    }
+
+    /**
+     * Journal any pending last block seen and force the records written so far to the storage device.
+     */
+    public synchronized void commit() throws IOException {
+        commitScheduled = false;
+        if (pendingLastBlockSeenHeight != -1) {
+            int lastBlockSeenHeight = pendingLastBlockSeenHeight;
+            Sha256Hash lastBlockSeenHash = pendingLastBlockSeenHash;
+            pendingLastBlockSeenHeight = -1;
+            pendingLastBlockSeenHash = null;
+            appendLastBlockSeen(lastBlockSeenHeight, lastBlockSeenHash);
+        }
+        if (uncommittedRecords && journalFileOutputStream != null) {
+            journalFileOutputStream.getFD().sync();
+        }
+        uncommittedRecords = false;
+    }
+
+    /**
+     * Note that the wallet has changed in a way that the journal cannot record, so the journal alone
+     * does not bring the wallet file up to date.
+     */
+    public synchronized void markUnjournalledChange() {
+        lastUnjournalledChangeTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the journal holds changes that are not in the wallet file.
+     */
+    public synchronized boolean hasChanges() {
+        return numberOfRecords > 0 || pendingLastBlockSeenHeight != -1 || lastUnjournalledChangeTime > 0;
+    }
+
+    /**
+     * @return true if the wallet should be written out in full at the next save.
+     */
+    public synchronized boolean isCompactionDue() {
+        if (numberOfRecords >= MAXIMUM_NUMBER_OF_RECORDS) {
+            return true;
+        }
+        return hasChanges() && System.currentTimeMillis() - lastCompactionTime >= MAXIMUM_TIME_BETWEEN_COMPACTIONS;
+    }
+
+    public synchronized int getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    /**
+     * @return The current end of the journal. Read this before snapshotting the wallet and pass it
+     * to discardUpTo once the snapshot is safely on disk.
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Discard the records that are now in the wallet file, keeping any added whilst the wallet was being written.
+     *
+     * @param discardPosition The journal position read before the wallet was snapshotted
+     * @param snapshotTime The time the wallet was snapshotted
+     */
+    public synchronized void discardUpTo(long discardPosition, long snapshotTime) throws IOException {
+        closeJournalOutputStream();
+
+        if (journalFile.exists()) {
+            long journalLength = journalFile.length();
+            if (discardPosition >= journalLength) {
+                // Everything in the journal is now in the wallet.
+                if (journalLength > HEADER_LENGTH) {
+                    RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+                    try {
+                        randomAccessFile.setLength(HEADER_LENGTH);
+                    } finally {
+                        randomAccessFile.close();
+                    }
+                }
+                numberOfRecords = 0;
+            } else if (discardPosition > HEADER_LENGTH) {
+                // Keep the records added since the wallet was snapshotted.
+                byte[] remainingRecords = new byte[(int) (journalLength - discardPosition)];
+                RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "r");
+                try {
+                    randomAccessFile.seek(discardPosition);
+                    randomAccessFile.readFully(remainingRecords);
+                } finally {
+                    randomAccessFile.close();
+                }
+                rewriteJournal(remainingRecords);
+                numberOfRecords = countRecords(remainingRecords);
+            }
+            position = journalFile.length();
+        } else {
+            position = 0;
+            numberOfRecords = 0;
+        }
+
+        if (lastUnjournalledChangeTime <= snapshotTime) {
+            lastUnjournalledChangeTime = 0;
+        }
+        lastCompactionTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Replay the journal into the wallet.
+     * Any torn or corrupt records at the end of the journal are discarded.
+     *
+     * @param wallet The wallet, as loaded from the wallet file
+     * @return The number of records that changed the wallet
+     */
+    public synchronized int replay(Wallet wallet) throws IOException {
+        closeJournalOutputStream();
+        numberOfRecords = 0;
+
+        if (!journalFile.exists() || journalFile.length() == 0) {
+            position = 0;
+            return 0;
+        }
+
+        int numberOfRecordsApplied = 0;
+        long validLength = 0;
+        DataInputStream journalInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            byte[] magicBytes = new byte[JOURNAL_FILE_FORMAT_MAGIC_BYTES.length];
+            journalInputStream.readFully(magicBytes);
+            byte versionNumber = journalInputStream.readByte();
+            if (!Arrays.equals(JOURNAL_FILE_FORMAT_MAGIC_BYTES, magicBytes) || versionNumber != JOURNAL_VERSION_NUMBER) {
+                log.error("File '" + journalFile.getAbsolutePath() + "' is not a wallet journal that can be read. It will be discarded.");
+            } else {
+                validLength = HEADER_LENGTH;
+                while (true) {
+                    int recordLength;
+                    try {
+                        recordLength = journalInputStream.readInt();
+                    } catch (EOFException eofe) {
+                        // Normal end of the journal.
+                        break;
+                    }
+                    if (recordLength <= 0 || recordLength > MAXIMUM_RECORD_LENGTH) {
+                        log.error("Wallet journal '" + journalFile.getAbsolutePath() + "' has a bad record length of " + recordLength);
+                        break;
+                    }
+                    long checksum = journalInputStream.readLong();
+                    byte[] record = new byte[recordLength];
+                    journalInputStream.readFully(record);
+                    if (checksum != calculateChecksum(record)) {
+                        log.error("Wallet journal '" + journalFile.getAbsolutePath() + "' has a record with a bad checksum");
+                        break;
+                    }
+
+                    try {
+                        if (applyRecord(wallet, record)) {
+                            numberOfRecordsApplied++;
+                        }
+                    } catch (VerificationException ve) {
+                        // Leave the record in the journal - the next compaction will drop it.
+                        log.error("Could not replay wallet journal record. " + ve.getClass().getCanonicalName() + " " + ve.getMessage());
+                    }
+                    numberOfRecords++;
+                    validLength = validLength + RECORD_HEADER_LENGTH + recordLength;
+                }
+            }
+        } catch (EOFException eofe) {
+            log.debug("Wallet journal '" + journalFile.getAbsolutePath() + "' ends with a torn record");
+        } finally {
+            journalInputStream.close();
+        }
+
+        if (validLength < journalFile.length()) {
+            // Cut off the damaged tail so that new records follow on from the last good one.
+            if (validLength == 0) {
+                Files.deleteIfExists(journalFile.toPath());
+            } else {
+                RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+                try {
+                    randomAccessFile.setLength(validLength);
+                } finally {
+                    randomAccessFile.close();
+                }
+            }
+        }
+        position = validLength;
+
+        if (numberOfRecordsApplied > 0) {
+            updateDepthsInBlocks(wallet);
+        }
+        log.debug("Replayed " + numberOfRecords + " records from wallet journal '" + journalFile.getAbsolutePath() + "', "
+                + numberOfRecordsApplied + " of which changed the wallet.");
+        return numberOfRecordsApplied;
+    }
+
+    /**
+     * Delete the journal (used when the wallet is deleted).
+     */
+    public synchronized void delete() throws IOException {
+        pendingLastBlockSeenHeight = -1;
+        pendingLastBlockSeenHash = null;
+        closeJournalOutputStream();
+        SecureFiles.secureDelete(journalFile);
+        position = 0;
+        numberOfRecords = 0;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    private boolean applyRecord(Wallet wallet, byte[] record) throws IOException, VerificationException {
+        NetworkParameters networkParameters = wallet.getNetworkParameters();
+        DataInputStream recordInputStream = new DataInputStream(new ByteArrayInputStream(record));
+        byte recordType = recordInputStream.readByte();
+
+        if (TRANSACTION_RECORD == recordType) {
+            byte[] transactionBytes = new byte[recordInputStream.readInt()];
+            recordInputStream.readFully(transactionBytes);
+            long updateTime = recordInputStream.readLong();
+            StoredBlock block = null;
+            if (recordInputStream.readBoolean()) {
+                byte[] blockBytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+                recordInputStream.readFully(blockBytes);
+                block = StoredBlock.deserializeCompact(networkParameters, ByteBuffer.wrap(blockBytes));
+            }
+
+            Transaction transaction = new Transaction(networkParameters, transactionBytes);
+            if (updateTime != 0) {
+                transaction.setUpdateTime(new Date(updateTime));
+            }
+
+            Transaction walletTransaction = wallet.getTransaction(transaction.getHash());
+            if (walletTransaction == null) {
+                if (block == null) {
+                    wallet.receivePending(transaction, null);
+                } else {
+                    wallet.receiveFromBlock(transaction, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+                }
+                return true;
+            } else if (block != null && walletTransaction.getConfidence().getConfidenceType() != ConfidenceType.BUILDING) {
+                // A pending transaction that has since been seen in a block.
+                return wallet.notifyTransactionIsInBlock(transaction.getHash(), block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+            }
+            return false;
+        } else if (LAST_BLOCK_SEEN_RECORD == recordType) {
+            int lastBlockSeenHeight = recordInputStream.readInt();
+            Sha256Hash lastBlockSeenHash = null;
+            if (recordInputStream.readBoolean()) {
+                byte[] hashBytes = new byte[32];
+                recordInputStream.readFully(hashBytes);
+                lastBlockSeenHash = new Sha256Hash(hashBytes);
+            }
+            wallet.setLastBlockSeenHeight(lastBlockSeenHeight);
+            wallet.setLastBlockSeenHash(lastBlockSeenHash);
+            lastBlockSeenHeightJournalled = lastBlockSeenHeight;
+            return true;
+        } else {
+            log.error("Wallet journal '" + journalFile.getAbsolutePath() + "' has a record of unknown type " + recordType);
+            return false;
+        }
+    }
+
+    /**
+     * Depth changes are not journalled, they are recalculated from the last block seen.
+     */
+    private void updateDepthsInBlocks(Wallet wallet) {
+        int lastBlockSeenHeight = wallet.getLastBlockSeenHeight();
+        for (Transaction transaction : wallet.getTransactions(true)) {
+            TransactionConfidence confidence = transaction.getConfidence();
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING && lastBlockSeenHeight >= confidence.getAppearedAtChainHeight()) {
+                confidence.setDepthInBlocks(lastBlockSeenHeight - confidence.getAppearedAtChainHeight() + 1);
+            }
+        }
+    }
+
+    private void appendRecord(byte[] record) throws IOException {
+        if (journalOutputStream == null) {
+            openJournalOutputStream();
+        }
+        journalOutputStream.writeInt(record.length);
+        journalOutputStream.writeLong(calculateChecksum(record));
+        journalOutputStream.write(record);
+        journalOutputStream.flush();
+
+        position = position + RECORD_HEADER_LENGTH + record.length;
+        numberOfRecords++;
+        uncommittedRecords = true;
+        scheduleCommit();
+    }
+
+    private void scheduleCommit() {
+        if (commitScheduled) {
+            return;
+        }
+        commitScheduled = true;
+        commitExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commit();
+                } catch (IOException ioe) {
+                    log.error("Could not commit wallet journal '" + journalFile.getAbsolutePath() + "'. "
+                            + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                }
+            }
+        }, GROUP_COMMIT_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void openJournalOutputStream() throws IOException {
+        if (!journalFile.exists() || journalFile.length() < HEADER_LENGTH) {
+            File journalDirectory = journalFile.getAbsoluteFile().getParentFile();
+            if (!journalDirectory.exists() && !journalDirectory.mkdirs()) {
+                throw new IOException("Could not create directory '" + journalDirectory.getAbsolutePath() + "' for the wallet journal");
+            }
+            FileOutputStream headerOutputStream = new FileOutputStream(journalFile);
+            try {
+                headerOutputStream.write(JOURNAL_FILE_FORMAT_MAGIC_BYTES);
+                headerOutputStream.write(JOURNAL_VERSION_NUMBER);
+                headerOutputStream.getFD().sync();
+            } finally {
+                headerOutputStream.close();
+            }
+        }
+        position = journalFile.length();
+        journalFileOutputStream = new FileOutputStream(journalFile, true);
+        journalOutputStream = new DataOutputStream(new BufferedOutputStream(journalFileOutputStream));
+    }
+
+    private void closeJournalOutputStream() throws IOException {
+        if (journalOutputStream != null) {
+            try {
+                // Records written since the last commit are forced out before the journal is rewritten or read.
+                journalOutputStream.flush();
+                if (uncommittedRecords) {
+                    journalFileOutputStream.getFD().sync();
+                    uncommittedRecords = false;
+                }
+            } finally {
+                try {
+                    journalOutputStream.close();
+                } finally {
+                    journalOutputStream = null;
+                    journalFileOutputStream = null;
+                }
+            }
+        }
+    }
+
+    private void rewriteJournal(byte[] records) throws IOException {
+        File temporaryJournalFile = File.createTempFile(journalFile.getName(), ".tmp", journalFile.getAbsoluteFile().getParentFile());
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryJournalFile);
+        try {
+            fileOutputStream.write(JOURNAL_FILE_FORMAT_MAGIC_BYTES);
+            fileOutputStream.write(JOURNAL_VERSION_NUMBER);
+            fileOutputStream.write(records);
+            fileOutputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+
+        try {
+            Files.move(temporaryJournalFile.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(temporaryJournalFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static int countRecords(byte[] records) {
+        int count = 0;
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+            int recordLength = buffer.getInt();
+            if (recordLength <= 0 || buffer.remaining() < 8 + recordLength) {
+                break;
+            }
+            buffer.position(buffer.position() + 8 + recordLength);
+            count++;
+        }
+        return count;
+    }
+
+    private static long calculateChecksum(byte[] record) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(record);
+        return crc32.getValue();
+    }
+}
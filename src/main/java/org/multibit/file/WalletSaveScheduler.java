@@ -0,0 +1,399 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.message.Message;
+import org.multibit.message.MessageManager;
+import org.multibit.model.bitcoin.BitcoinModel;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.store.WalletVersionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * WalletSaveScheduler saves dirty wallets in the background.
+ *
+ * Each wallet has at most one save pending. A save is run once the wallet has had no further changes
+ * for the debounce time, so a burst of changes results in a single save. A wallet that keeps changing
+ * is still saved MAXIMUM_DEBOUNCE_FACTOR debounce times after its first change. Large wallets take longer to
+ * rewrite so their debounce time grows with the size of the wallet file. Saves of different wallets
+ * run in parallel on a small thread pool so that one slow save does not hold up the others.
+ */
+public enum WalletSaveScheduler {
+    INSTANCE;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletSaveScheduler.class);
+
+    public static final long DEFAULT_DEBOUNCE_TIME = 2000; // milliseconds
+
+    public static final int DEFAULT_NUMBER_OF_SAVE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The delay before a wallet whose last save failed is saved again.
+     */
+    public static final long RETRY_DELAY = 90000; // milliseconds
+
+    public static final long MAXIMUM_TIME_TO_WAIT_FOR_SAVES = 30000; // milliseconds
+
+    /**
+     * A pending save is put off by further changes for at most this many debounce times.
+     */
+    public static final int MAXIMUM_DEBOUNCE_FACTOR = 10;
+
+    /**
+     * A wallet's debounce time goes up by the configured debounce time for every this many bytes of wallet file.
+     */
+    public static final long WALLET_SIZE_PER_DEBOUNCE_TIME = 1024 * 1024; // bytes
+
+    /**
+     * However large the wallet, its debounce time is no longer than this.
+     */
+    public static final long MAXIMUM_DEBOUNCE_TIME = 90000; // milliseconds
+
+    private BitcoinController controller;
+
+    private ScheduledThreadPoolExecutor saveExecutor;
+
+    private long debounceTime = DEFAULT_DEBOUNCE_TIME;
+
+    /**
+     * Wallets with a save scheduled but not yet started.
+     */
+    private final Map<WalletData, PendingSave> pendingSaves = new HashMap<WalletData, PendingSave>();
+
+    /**
+     * Wallets currently being saved.
+     */
+    private final Set<WalletData> savesInProgress = new HashSet<WalletData>();
+
+    /**
+     * Wallets that changed whilst they were being saved.
+     */
+    private final Set<WalletData> resavesRequested = new HashSet<WalletData>();
+
+    /**
+     * Wallets whose last save failed.
+     */
+    private final Set<WalletData> failedSaves = new HashSet<WalletData>();
+
+    // Metrics.
+    private final AtomicLong numberOfSaves = new AtomicLong();
+    private final AtomicLong numberOfFailedSaves = new AtomicLong();
+    private final AtomicLong totalSaveTime = new AtomicLong();
+    private final AtomicLong maximumSaveTime = new AtomicLong();
+    private final AtomicLong lastSaveTime = new AtomicLong();
+    private final AtomicInteger maximumQueueDepth = new AtomicInteger();
+
+    /**
+     * Start the save threads. The debounce time and number of threads can be set in the user preferences
+     * with BitcoinModel.WALLET_SAVE_DEBOUNCE_TIME and BitcoinModel.WALLET_SAVE_THREADS.
+     */
+    public synchronized void initialise(BitcoinController controller) {
+        this.controller = controller;
+
+        debounceTime = DEFAULT_DEBOUNCE_TIME;
+        int numberOfSaveThreads = DEFAULT_NUMBER_OF_SAVE_THREADS;
+        if (controller.getModel() != null) {
+            debounceTime = parsePreference(controller.getModel().getUserPreference(BitcoinModel.WALLET_SAVE_DEBOUNCE_TIME),
+                    DEFAULT_DEBOUNCE_TIME);
+            numberOfSaveThreads = (int) parsePreference(controller.getModel().getUserPreference(BitcoinModel.WALLET_SAVE_THREADS),
+                    DEFAULT_NUMBER_OF_SAVE_THREADS);
+            if (numberOfSaveThreads < 1) {
+                numberOfSaveThreads = 1;
+            }
+        }
+
+        if (saveExecutor != null) {
+            saveExecutor.shutdownNow();
+        }
+        pendingSaves.clear();
+        resavesRequested.clear();
+        failedSaves.clear();
+
+        saveExecutor = new ScheduledThreadPoolExecutor(numberOfSaveThreads, new ThreadFactoryBuilder()
+                .setNameFormat("wallet-save-%d").setDaemon(true).build());
+        // Pending saves are not needed after shutdown - the ExitAction saves every wallet itself.
+        saveExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        log.debug("WalletSaveScheduler started with " + numberOfSaveThreads + " threads and a debounce time of " + debounceTime + " ms");
+    }
+
+    /**
+     * Schedule a save of the wallet. If a save of the wallet is already pending this does nothing.
+     * Does nothing if the scheduler has not been initialised.
+     */
+    public synchronized void scheduleSave(WalletData perWalletModelData) {
+        if (perWalletModelData == null || saveExecutor == null || saveExecutor.isShutdown()) {
+            return;
+        }
+
+        if (savesInProgress.contains(perWalletModelData)) {
+            // Save it again when the current save finishes.
+            resavesRequested.add(perWalletModelData);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        PendingSave pendingSave = pendingSaves.get(perWalletModelData);
+        if (pendingSave != null) {
+            // Coalesce with the save already pending, putting it off until the changes stop.
+            pendingSave.lastChangeTime = now;
+            return;
+        }
+
+        long walletDebounceTime = calculateDebounceTime(perWalletModelData);
+        long delay = failedSaves.contains(perWalletModelData) ? Math.max(RETRY_DELAY, walletDebounceTime) : walletDebounceTime;
+        pendingSaves.put(perWalletModelData, new PendingSave(now, delay));
+        try {
+            saveExecutor.schedule(new SaveTask(perWalletModelData), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            pendingSaves.remove(perWalletModelData);
+            return;
+        }
+
+        int queueDepth = pendingSaves.size();
+        if (queueDepth > maximumQueueDepth.get()) {
+            maximumQueueDepth.set(queueDepth);
+        }
+    }
+
+    /**
+     * Stop the scheduler. Pending saves are dropped and saves in progress are waited for.
+     *
+     * @return true if all saves in progress completed
+     */
+    public boolean shutdown() {
+        ScheduledThreadPoolExecutor executorToShutdown;
+        synchronized (this) {
+            executorToShutdown = saveExecutor;
+            pendingSaves.clear();
+            resavesRequested.clear();
+        }
+        if (executorToShutdown == null) {
+            return true;
+        }
+
+        executorToShutdown.shutdown();
+        try {
+            boolean terminated = executorToShutdown.awaitTermination(MAXIMUM_TIME_TO_WAIT_FOR_SAVES, TimeUnit.MILLISECONDS);
+            if (!terminated) {
+                log.error("Wallet saves did not complete within " + MAXIMUM_TIME_TO_WAIT_FOR_SAVES + " ms");
+            }
+            return terminated;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of wallets waiting to be saved
+     */
+    public synchronized int getQueueDepth() {
+        return pendingSaves.size();
+    }
+
+    public int getMaximumQueueDepth() {
+        return maximumQueueDepth.get();
+    }
+
+    /**
+     * @return The number of wallets being saved right now
+     */
+    public synchronized int getNumberOfSavesInProgress() {
+        return savesInProgress.size();
+    }
+
+    public long getNumberOfSaves() {
+        return numberOfSaves.get();
+    }
+
+    public long getNumberOfFailedSaves() {
+        return numberOfFailedSaves.get();
+    }
+
+    /**
+     * @return The average time taken to save a wallet, in milliseconds
+     */
+    public long getAverageSaveTime() {
+        long saves = numberOfSaves.get();
+        return saves == 0 ? 0 : totalSaveTime.get() / saves;
+    }
+
+    /**
+     * @return The longest time taken to save a wallet, in milliseconds
+     */
+    public long getMaximumSaveTime() {
+        return maximumSaveTime.get();
+    }
+
+    /**
+     * @return The time taken by the most recent save, in milliseconds
+     */
+    public long getLastSaveTime() {
+        return lastSaveTime.get();
+    }
+
+    public long getDebounceTime() {
+        return debounceTime;
+    }
+
+    private void saveWallet(WalletData perWalletModelData) {
+        synchronized (this) {
+            PendingSave pendingSave = pendingSaves.get(perWalletModelData);
+            if (pendingSave == null) {
+                // The save was dropped by a shutdown or initialise.
+                return;
+            }
+            long remainingDelay = pendingSave.getSaveTime() - System.currentTimeMillis();
+            if (remainingDelay > 0) {
+                try {
+                    saveExecutor.schedule(new SaveTask(perWalletModelData), remainingDelay, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException ree) {
+                    pendingSaves.remove(perWalletModelData);
+                    return;
+                }
+            }
+            pendingSaves.remove(perWalletModelData);
+            savesInProgress.add(perWalletModelData);
+        }
+
+        boolean saveSucceeded = true;
+        long startTime = System.currentTimeMillis();
+        try {
+            if (perWalletModelData.getWalletInfo() != null && perWalletModelData.getWalletInfo().isDeleted()) {
+                return;
+            }
+            if (controller.getFileHandler() != null
+                    && (perWalletModelData.isDirty() || perWalletModelData.isJournalCompactionDue())) {
+                log.debug("Saving dirty wallet '" + perWalletModelData.getWalletFilename() + "'...");
+                controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
+                recordSaveTime(System.currentTimeMillis() - startTime);
+                log.debug("... done.");
+            }
+        } catch (WalletSaveException | WalletVersionException e) {
+            saveSucceeded = false;
+            numberOfFailedSaves.incrementAndGet();
+            String message = controller.getLocaliser().getString("createNewWalletAction.walletCouldNotBeCreated",
+                    new Object[] { perWalletModelData.getWalletFilename(), e.getMessage() });
+            log.error(message);
+            MessageManager.INSTANCE.addMessage(new Message(message));
+        } catch (RuntimeException re) {
+            saveSucceeded = false;
+            numberOfFailedSaves.incrementAndGet();
+            log.error("Unexpected error saving wallet '" + perWalletModelData.getWalletFilename() + "'. "
+                    + re.getClass().getCanonicalName() + " " + re.getMessage(), re);
+        } finally {
+            synchronized (this) {
+                savesInProgress.remove(perWalletModelData);
+                if (saveSucceeded) {
+                    failedSaves.remove(perWalletModelData);
+                } else {
+                    failedSaves.add(perWalletModelData);
+                }
+                if (resavesRequested.remove(perWalletModelData)) {
+                    scheduleSave(perWalletModelData);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The debounce time for the wallet, scaled up by the size of its wallet file
+     */
+    private long calculateDebounceTime(WalletData perWalletModelData) {
+        if (perWalletModelData.getWalletFilename() == null) {
+            return debounceTime;
+        }
+        long walletFileLength = new File(perWalletModelData.getWalletFilename()).length();
+        long walletDebounceTime = debounceTime * (1 + walletFileLength / WALLET_SIZE_PER_DEBOUNCE_TIME);
+        return Math.max(debounceTime, Math.min(walletDebounceTime, MAXIMUM_DEBOUNCE_TIME));
+    }
+
+    private void recordSaveTime(long saveTime) {
+        numberOfSaves.incrementAndGet();
+        totalSaveTime.addAndGet(saveTime);
+        lastSaveTime.set(saveTime);
+        long currentMaximum = maximumSaveTime.get();
+        while (saveTime > currentMaximum && !maximumSaveTime.compareAndSet(currentMaximum, saveTime)) {
+            currentMaximum = maximumSaveTime.get();
+        }
+    }
+
+    private static long parsePreference(String preference, long defaultValue) {
+        if (preference == null || preference.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            long value = Long.parseLong(preference.trim());
+            return value < 0 ? defaultValue : value;
+        } catch (NumberFormatException nfe) {
+            log.error("Could not parse wallet save preference '" + preference + "'. Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * When a pending save was first and last asked for.
+     */
+    private static class PendingSave {
+        private final long firstChangeTime;
+        private final long delay;
+        private long lastChangeTime;
+
+        PendingSave(long changeTime, long delay) {
+            this.firstChangeTime = changeTime;
+            this.lastChangeTime = changeTime;
+            this.delay = delay;
+        }
+
+        /**
+         * @return The time the save is due - the delay after the last change, but no more than
+         *         MAXIMUM_DEBOUNCE_FACTOR delays after the first
+         */
+        long getSaveTime() {
+            return Math.min(lastChangeTime + delay, firstChangeTime + MAXIMUM_DEBOUNCE_FACTOR * delay);
+        }
+    }
+
+    private class SaveTask implements Runnable {
+        private final WalletData perWalletModelData;
+
+        SaveTask(WalletData perWalletModelData) {
+            this.perWalletModelData = perWalletModelData;
+        }
+
+        @Override
+        public void run() {
+            saveWallet(perWalletModelData);
+        }
+    }
+}
@@ -129,6 +129,13 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
     // Wallet backup.
     public static final String WALLET_BACKUP_FILE = "walletBackupFile";
 
+    // Background wallet saving.
+    public static final String WALLET_SAVE_DEBOUNCE_TIME = "walletSaveDebounceTime";
+    public static final String WALLET_SAVE_THREADS = "walletSaveThreads";
+
+    // Open wallets other than the active one as stubs until they are used.
+    public static final String LAZY_WALLET_LOADING = "lazyWalletLoading";
+
     // AlertManager and versions
     public static final String ALERT_MANAGER_NEW_VERSION_VALUE = "alertManagerNewVersionValue";
     public static final String ALERT_MANAGER_NEW_VERSION_SEEN_COUNT = "alertManagerNewVersionSeenCount";
@@ -415,46 +422,51 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
 
         if (transactions != null) {
             for (Transaction loopTransaction : transactions) {
-                WalletTableData walletDataRow = new WalletTableData(loopTransaction);
-                walletData.add(walletDataRow);
-                walletDataRow.setCredit(loopTransaction.getValueSentToMe(perWalletModelData.getWallet()));
-                try {
-                    walletDataRow.setDebit(loopTransaction.getValueSentFromMe(perWalletModelData.getWallet()));
-                } catch (ScriptException e) {
-                    log.error(e.getMessage(), e);
-
-                }
-                List<TransactionInput> transactionInputs = loopTransaction.getInputs();
-                List<TransactionOutput> transactionOutputs = loopTransaction.getOutputs();
-                if (transactionInputs != null) {
-                    TransactionInput firstInput = transactionInputs.get(0);
-                    if (firstInput != null) {
-                        walletDataRow.setDescription(createDescription(bitcoinController, perWalletModelData.getWallet(), transactionInputs,
-                                transactionOutputs, walletDataRow.getCredit(), walletDataRow.getDebit()));
-                    }
-                }
-                walletDataRow.setDate(createDate(bitcoinController, loopTransaction));
-                walletDataRow.setHeight(workOutHeight(loopTransaction));
+                walletData.add(createWalletTableDataRow(bitcoinController, perWalletModelData, loopTransaction));
             }
         }
 
-        // Run through all the walletdata to see if both credit and debit are
-        // set (this means change was received).
-        for (WalletTableData walletDataRow : walletData) {
-            if (walletDataRow.getCredit() != null && (walletDataRow.getCredit().compareTo(BigInteger.ZERO) > 0)
-                    && (walletDataRow.getDebit() != null) && walletDataRow.getDebit().compareTo(BigInteger.ZERO) > 0) {
-                BigInteger net = walletDataRow.getCredit().subtract(walletDataRow.getDebit());
-                if (net.compareTo(BigInteger.ZERO) >= 0) {
-                    walletDataRow.setCredit(net);
-                    walletDataRow.setDebit(BigInteger.ZERO);
-                } else {
-                    walletDataRow.setCredit(BigInteger.ZERO);
-                    walletDataRow.setDebit(net.negate());
-                }
+        return walletData;
+    }
+
+    /**
+     * Convert a single wallet transaction into a walletdata record.
+     */
+    public WalletTableData createWalletTableDataRow(final BitcoinController bitcoinController, WalletData perWalletModelData,
+            Transaction transaction) {
+        WalletTableData walletDataRow = new WalletTableData(transaction);
+        walletDataRow.setCredit(transaction.getValueSentToMe(perWalletModelData.getWallet()));
+        try {
+            walletDataRow.setDebit(transaction.getValueSentFromMe(perWalletModelData.getWallet()));
+        } catch (ScriptException e) {
+            log.error(e.getMessage(), e);
+
+        }
+        List<TransactionInput> transactionInputs = transaction.getInputs();
+        List<TransactionOutput> transactionOutputs = transaction.getOutputs();
+        if (transactionInputs != null) {
+            TransactionInput firstInput = transactionInputs.get(0);
+            if (firstInput != null) {
+                walletDataRow.setDescription(createDescription(bitcoinController, perWalletModelData.getWallet(), transactionInputs,
+                        transactionOutputs, walletDataRow.getCredit(), walletDataRow.getDebit()));
             }
         }
-
-        return walletData;
+        walletDataRow.setDate(createDate(bitcoinController, transaction));
+        walletDataRow.setHeight(workOutHeight(transaction));
+
+        // If both credit and debit are set then change was received so show the net amount.
+        if (walletDataRow.getCredit() != null && (walletDataRow.getCredit().compareTo(BigInteger.ZERO) > 0)
+                && (walletDataRow.getDebit() != null) && walletDataRow.getDebit().compareTo(BigInteger.ZERO) > 0) {
+            BigInteger net = walletDataRow.getCredit().subtract(walletDataRow.getDebit());
+            if (net.compareTo(BigInteger.ZERO) >= 0) {
+                walletDataRow.setCredit(net);
+                walletDataRow.setDebit(BigInteger.ZERO);
+            } else {
+                walletDataRow.setCredit(BigInteger.ZERO);
+                walletDataRow.setDebit(net.negate());
+            }
+        }
+        return walletDataRow;
     }
 
     /**
@@ -475,33 +487,30 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
             }
         }
 
-        if (!(perWalletModelData == null)) {
+        if (!(perWalletModelData == null) && perWalletModelData.getWallet() != null) {
             List<ECKey> keyChain = perWalletModelData.getWallet().getKeychain();
             if (keyChain != null) {
                 NetworkParameters networkParameters = getNetworkParameters();
                 if (networkParameters != null) {
-                    if (perWalletModelData.getWalletInfo() != null) {
-                        // Keep a copy of the existing receiving addresses - labels will be recycled.
-                        List<WalletAddressBookData> currentReceivingAddresses = perWalletModelData.getWalletInfo().getReceivingAddresses();
+                    WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+                    if (walletInfo != null) {
+                        // Keep the labels of the existing receiving addresses - they will be recycled.
+                        Map<String, String> currentLabels = new HashMap<String, String>();
+                        for (WalletAddressBookData loopAddressBookData : walletInfo.getReceivingAddresses()) {
+                            if (!currentLabels.containsKey(loopAddressBookData.getAddress())) {
+                                currentLabels.put(loopAddressBookData.getAddress(), loopAddressBookData.getLabel());
+                            }
+                        }
 
                         // Clear the existing receiving addresses.
                         ArrayList<WalletAddressBookData> newReceivingAddresses = new ArrayList<WalletAddressBookData>();
-                        perWalletModelData.getWalletInfo().setReceivingAddresses(newReceivingAddresses);
+                        walletInfo.setReceivingAddresses(newReceivingAddresses);
 
                         // Add the new receiving addresses from the keys, checking if there is an old label.
                         for (ECKey key : keyChain) {
-                            Address address = key.toAddress(getNetworkParameters());
-                            String addressString = address.toString();
-                            WalletAddressBookData addressBookData = new WalletAddressBookData(null, addressString);
-
-                            for (WalletAddressBookData loopAddressBookData : currentReceivingAddresses) {
-                                if (loopAddressBookData.getAddress().equals(addressString)) {
-                                    // Recycle label.
-                                    addressBookData.setLabel(loopAddressBookData.getLabel());
-                                    break;
-                                }
-                            }
-                            perWalletModelData.getWalletInfo().addReceivingAddress(addressBookData, false);
+                            String addressString = walletInfo.toAddressString(key);
+                            WalletAddressBookData addressBookData = new WalletAddressBookData(currentLabels.get(addressString), addressString);
+                            walletInfo.addReceivingAddress(addressBookData, false);
                         }
                     }
                 }
@@ -607,7 +616,7 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
      * @param transaction
      * @return Date date of transaction
      */
-    private Date createDate(final BitcoinController bitcoinController, Transaction transaction) {
+    public Date createDate(final BitcoinController bitcoinController, Transaction transaction) {
         // If transaction has altered date - return that.
         if (transaction.getUpdateTime() != null) {
             return transaction.getUpdateTime();
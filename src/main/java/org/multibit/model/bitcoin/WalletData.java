@@ -16,10 +16,21 @@
 package org.multibit.model.bitcoin;
 
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.Wallet.BalanceType;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.multibit.file.WalletJournal;
+import org.multibit.file.WalletSaveScheduler;
 import org.multibit.viewsystem.swing.view.walletlist.SingleWalletPanelDownloadListener;
 
+import java.math.BigInteger;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 
 /**
  * This wrapper class wraps all the data pertaining to a single wallet.
@@ -29,7 +40,13 @@ import java.util.UUID;
  */
 public class WalletData {
 
-    private Wallet wallet;
+    /**
+     * Stub wallets are loaded one at a time on this thread, away from the EDT and the peer threads.
+     */
+    private static final ListeningExecutorService stubLoadExecutor = MoreExecutors.listeningDecorator(
+            Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("stub-wallet-load-%d").setDaemon(true).build()));
+
+    private volatile Wallet wallet;
     private String walletFilename;
     private WalletInfoData walletInfo;
     private List<WalletTableData> walletTableDataList;
@@ -54,8 +71,14 @@ public class WalletData {
     /**
      * The WalletData has changed since last been written to disk.
      */
-    private transient boolean isDirty;
+    private transient volatile boolean isDirty;
     
+    /**
+     * The wallet was read from a backup because the wallet file could not be loaded, so it needs saving
+     * as soon as it is in the model.
+     */
+    private transient boolean loadedFromBackup;
+
     /**
      * This wallet is currently busy with an operation that affects the private keys.
      * (Note this is a UI hint rather than a hard lock. Synchronize on wallet.
@@ -85,11 +108,44 @@ public class WalletData {
      */
     private transient SingleWalletPanelDownloadListener singleWalletDownloadListener;
 
+    /**
+     * Saves of this wallet are serialised on this lock so that an older snapshot is never written over a newer one.
+     * It is separate from the WalletInfoData monitor, which is only held whilst the wallet is snapshotted.
+     */
+    private final transient Object saveLock = new Object();
+
+    /**
+     * The journal of changes made since the wallet was last written out in full (null if not journalled).
+     */
+    private transient WalletJournal walletJournal;
+
+    /**
+     * Loads the wallet when a stub WalletData is first used (null if the wallet is loaded).
+     * A stub only has its wallet info - the description, cached balances, last block seen height and public keys.
+     * It is loaded when it is made active or when a transaction paying one of its keys arrives.
+     */
+    private transient volatile WalletLoader walletLoader;
+
+    private final transient Object walletLoaderLock = new Object();
+
+    /**
+     * A wallet holding only the public keys of a stub (null if none). It stands in for the stub on the block chain
+     * and in the Bloom filter, so a transaction for the stub loads it and the blocks it saw need not be replayed.
+     */
+    private transient volatile Wallet stubWatchingWallet;
+
+    /**
+     * The chain height when the stub's keys started to be watched.
+     */
+    private transient int stubWatchedFromHeight = -1;
     
     public WalletData() {
         isDirty = false;
     }
 
+    /**
+     * @return the wallet, or null if this is a stub whose wallet has not been loaded yet.
+     */
     public Wallet getWallet() {
         return wallet;
     }
@@ -158,6 +214,17 @@ public class WalletData {
 
     public void setDirty(boolean isDirty) {
         this.isDirty = isDirty;
+        if (isDirty) {
+            WalletSaveScheduler.INSTANCE.scheduleSave(this);
+        }
+    }
+
+    public boolean isLoadedFromBackup() {
+        return loadedFromBackup;
+    }
+
+    public void setLoadedFromBackup(boolean loadedFromBackup) {
+        this.loadedFromBackup = loadedFromBackup;
     }
 
     public String getWalletBackupFilename() {
@@ -215,4 +282,124 @@ public class WalletData {
     public void setReplayTaskUUID(UUID replayTaskUUID) {
         this.replayTaskUUID = replayTaskUUID;
     }
+
+    public Object getSaveLock() {
+        return saveLock;
+    }
+
+    public WalletJournal getWalletJournal() {
+        return walletJournal;
+    }
+
+    public void setWalletJournal(WalletJournal walletJournal) {
+        this.walletJournal = walletJournal;
+    }
+
+    /**
+     * @return true if the wallet has journalled changes that are due to be compacted into the wallet file.
+     */
+    public boolean isJournalCompactionDue() {
+        return walletJournal != null && walletJournal.isCompactionDue();
+    }
+
+    /**
+     * @return true if the wallet has not been loaded yet. Only the wallet info is available.
+     */
+    public boolean isStub() {
+        return walletLoader != null;
+    }
+
+    public Wallet getStubWatchingWallet() {
+        return stubWatchingWallet;
+    }
+
+    public int getStubWatchedFromHeight() {
+        return stubWatchedFromHeight;
+    }
+
+    /**
+     * @param stubWatchingWallet the wallet holding the stub's public keys, or null once the stub is no longer watched
+     * @param stubWatchedFromHeight the chain height when the watching wallet was added to the block chain
+     */
+    public void setStubWatchingWallet(Wallet stubWatchingWallet, int stubWatchedFromHeight) {
+        this.stubWatchingWallet = stubWatchingWallet;
+        this.stubWatchedFromHeight = stubWatchedFromHeight;
+    }
+
+    /**
+     * Make this WalletData a stub. The wallet is loaded by the walletLoader when it is first used.
+     */
+    public void setWalletLoader(WalletLoader walletLoader) {
+        this.walletLoader = walletLoader;
+    }
+
+    /**
+     * Load the wallet if this is a stub. Does nothing if the wallet is already loaded.
+     * This reads the wallet file so should not be called on the EDT or a peer thread - use loadWalletIfStubInBackground there.
+     */
+    public void loadWalletIfStub() {
+        synchronized (walletLoaderLock) {
+            WalletLoader loaderToUse = walletLoader;
+            if (loaderToUse == null) {
+                return;
+            }
+            // Cleared first so that the loader can use the WalletData.
+            walletLoader = null;
+            loaderToUse.loadWallet(this);
+        }
+    }
+
+    /**
+     * Load the wallet on a background thread if this is a stub.
+     *
+     * @return a future for this WalletData, completed once the wallet is loaded (or could not be loaded, in which case the wallet is null)
+     */
+    public ListenableFuture<WalletData> loadWalletIfStubInBackground() {
+        if (!isStub()) {
+            return Futures.immediateFuture(this);
+        }
+        return stubLoadExecutor.submit(new Callable<WalletData>() {
+            @Override
+            public WalletData call() {
+                loadWalletIfStub();
+                return WalletData.this;
+            }
+        });
+    }
+
+    /**
+     * @return the estimated balance - for a stub this is the balance when the wallet was last saved.
+     */
+    public BigInteger getEstimatedBalance() {
+        return getBalance(BalanceType.ESTIMATED, WalletInfoData.CACHED_ESTIMATED_BALANCE_PROPERTY);
+    }
+
+    /**
+     * @return the available balance - for a stub this is the balance when the wallet was last saved.
+     */
+    public BigInteger getAvailableBalance() {
+        return getBalance(BalanceType.AVAILABLE, WalletInfoData.CACHED_AVAILABLE_BALANCE_PROPERTY);
+    }
+
+    private BigInteger getBalance(BalanceType balanceType, String cachedBalanceProperty) {
+        if (isStub()) {
+            String cachedBalance = walletInfo == null ? null : walletInfo.getProperty(cachedBalanceProperty);
+            if (cachedBalance != null) {
+                try {
+                    return new BigInteger(cachedBalance);
+                } catch (NumberFormatException nfe) {
+                    // Fall through - a stub has no wallet so its balance is shown as zero.
+                }
+            }
+        }
+        Wallet walletToUse = getWallet();
+        return walletToUse == null ? BigInteger.ZERO : walletToUse.getBalance(balanceType);
+    }
+
+    /**
+     * @return true if the wallet has journalled changes that are not yet in the wallet file.
+     */
+    public boolean hasJournalledChanges() {
+        return walletJournal != null && walletJournal.hasChanges();
+    }
 }
@@ -17,6 +17,7 @@ package org.multibit.model.bitcoin;
 
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.Wallet;
 import org.multibit.MultiBit;
 import org.multibit.file.WalletLoadException;
@@ -27,7 +28,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * Wallet info is the companion info to the bitcoinj Wallet that multibit uses
@@ -51,6 +56,25 @@ public class WalletInfoData {
     private ArrayList<WalletAddressBookData> receivingAddresses;
     private ArrayList<WalletAddressBookData> sendingAddresses;
 
+    /**
+     * Index of each receiving address to its position in receivingAddresses.
+     * It is rebuilt if receivingAddresses is changed directly (detected by a change in size, a stale position or a miss).
+     */
+    private final Map<String, Integer> receivingAddressIndex = new HashMap<String, Integer>();
+    private int indexedReceivingAddressesSize = -1;
+
+    /**
+     * Cache of the address of each key, by public key, so that each key is only hashed once.
+     */
+    private final Map<String, String> keyToAddressCache = new HashMap<String, String>();
+
+    /**
+     * The addresses of the keys in a wallet, recalculated when the number of keys changes.
+     */
+    private Set<String> walletKeyAddresses;
+    private Wallet walletKeyAddressesWallet;
+    private int walletKeyAddressesKeyCount = -1;
+
     private static final String INFO_FILE_EXTENSION = "info";
     private static final String RECEIVE_ADDRESS_MARKER = "receive";
     private static final String SEND_ADDRESS_MARKER = "send";
@@ -62,10 +86,36 @@ public class WalletInfoData {
 
     private static final String WALLET_VERSION_MARKER = "walletVersion";
 
+    /**
+     * The binary format: magic bytes, version, then length prefixed UTF-8 strings
+     * for the wallet version, the receiving addresses (in the order they were added), the sending addresses and
+     * the properties, each section preceded by its count. A CRC32 of everything before it ends the file.
+     */
+    private static final byte[] INFO_BINARY_MAGIC_BYTES = new byte[] { (byte) 0x6D, (byte) 0x62, (byte) 0x69, (byte) 0x6E,
+            (byte) 0x66, (byte) 0x6F, (byte) 0x00 }; // mbinfo
+    private static final byte INFO_BINARY_VERSION = (byte) 0x02;
+    private static final int MAXIMUM_BINARY_STRING_LENGTH = 1024 * 1024;
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
     public static final String DESCRIPTION_PROPERTY = "walletDescription";
     public static final String SIZE_PROPERTY = "walletSize";
     public static final String DATE_LAST_MODIFED_PROPERTY = "walletLastModified";
 
+    // A summary of the wallet, written when the wallet is saved, so that a stub WalletData can be shown without loading the wallet.
+    public static final String CACHED_ESTIMATED_BALANCE_PROPERTY = "cachedEstimatedBalance";
+    public static final String CACHED_AVAILABLE_BALANCE_PROPERTY = "cachedAvailableBalance";
+    public static final String CACHED_LAST_BLOCK_SEEN_HEIGHT_PROPERTY = "cachedLastBlockSeenHeight";
+
+    /**
+     * The public keys of the wallet in hex, separated by spaces, so that a stub's keys can be watched on the block chain.
+     */
+    public static final String CACHED_PUBLIC_KEYS_PROPERTY = "cachedPublicKeys";
+
+    /**
+     * Wallets with more keys than this do not cache their public keys (and so are always loaded in full).
+     */
+    public static final int MAXIMUM_NUMBER_OF_CACHED_PUBLIC_KEYS = 10000;
+
     private String walletFilename;
     private MultiBitWalletVersion walletVersion;
     private Wallet wallet;
@@ -77,6 +127,11 @@ public class WalletInfoData {
      */
     private boolean deleted = false;
 
+    /**
+     * Flag indicating that the info file was read in the earlier comma separated format.
+     */
+    private boolean legacyFormat = false;
+
     /**
      * 
      * @param walletFilename
@@ -124,6 +179,50 @@ public class WalletInfoData {
         return walletPreferences.getProperty(key);
     }
 
+    /**
+     * @return true if the wallet summary written at the last save is present, so the wallet can be opened as a stub.
+     */
+    public boolean hasCachedWalletSummary() {
+        return walletPreferences.getProperty(CACHED_ESTIMATED_BALANCE_PROPERTY) != null
+                && walletPreferences.getProperty(CACHED_AVAILABLE_BALANCE_PROPERTY) != null
+                && walletPreferences.getProperty(CACHED_LAST_BLOCK_SEEN_HEIGHT_PROPERTY) != null
+                && walletPreferences.getProperty(CACHED_PUBLIC_KEYS_PROPERTY) != null;
+    }
+
+    /**
+     * @return the public keys of the wallet written at the last save, or an empty list if there are none
+     */
+    public List<byte[]> getCachedPublicKeys() {
+        List<byte[]> publicKeys = new ArrayList<byte[]>();
+        String cachedPublicKeys = walletPreferences.getProperty(CACHED_PUBLIC_KEYS_PROPERTY);
+        if (cachedPublicKeys != null) {
+            for (String publicKeyAsHex : cachedPublicKeys.split(" ")) {
+                if (publicKeyAsHex.length() > 0) {
+                    publicKeys.add(Utils.parseAsHexOrBase58(publicKeyAsHex));
+                }
+            }
+        }
+        return publicKeys;
+    }
+
+    /**
+     * Cache the public keys of the wallet, or clear the cache if the wallet has too many keys to cache.
+     */
+    public void putCachedPublicKeys(Wallet walletToCache) {
+        if (walletToCache.getKeychainSize() > MAXIMUM_NUMBER_OF_CACHED_PUBLIC_KEYS) {
+            walletPreferences.remove(CACHED_PUBLIC_KEYS_PROPERTY);
+            return;
+        }
+        StringBuilder publicKeys = new StringBuilder();
+        for (ECKey key : walletToCache.getKeys()) {
+            if (publicKeys.length() > 0) {
+                publicKeys.append(' ');
+            }
+            publicKeys.append(Utils.bytesToHexString(key.getPubKey()));
+        }
+        walletPreferences.put(CACHED_PUBLIC_KEYS_PROPERTY, publicKeys.toString());
+    }
+
     /**
      * Removes a property from the wallet info.
      * 
@@ -141,8 +240,9 @@ public class WalletInfoData {
         return sendingAddresses;
     }
 
-    public void setReceivingAddresses(ArrayList<WalletAddressBookData> receivingAddresses) {
+    public synchronized void setReceivingAddresses(ArrayList<WalletAddressBookData> receivingAddresses) {
         this.receivingAddresses = receivingAddresses;
+        indexedReceivingAddressesSize = -1;
     }
 
     /**
@@ -152,38 +252,23 @@ public class WalletInfoData {
      * @param receivingAddress
      * @param checkAlreadyPresent
      */
-    public void addReceivingAddress(WalletAddressBookData receivingAddress, boolean checkAlreadyPresent) {
+    public synchronized void addReceivingAddress(WalletAddressBookData receivingAddress, boolean checkAlreadyPresent) {
         if (receivingAddress == null || receivingAddress.getAddress() == null) {
             return;
         }
 
-        boolean justUpdateLabel = false;
-
         if (checkAlreadyPresent) {
             // Check the address is not already in the set.
-            for (WalletAddressBookData addressBookData : receivingAddresses) {
-                if (addressBookData.getAddress().equals(receivingAddress.getAddress())) {
-                    // Just update label.
-                    addressBookData.setLabel(receivingAddress.getLabel());
-                    justUpdateLabel = true;
-                    break;
-                }
-            }
-        }
-
-        boolean addressMatchesKey = false;
-        if (wallet != null) {
-            for (ECKey key : wallet.getKeys()) {
-                if (receivingAddress.getAddress().equals(
-                        key.toAddress(MultiBit.getBitcoinController().getModel().getNetworkParameters()).toString())) {
-                    addressMatchesKey = true;
-                    break;
-                }
+            int position = findReceivingAddressPosition(receivingAddress.getAddress());
+            if (position != -1) {
+                // Just update label.
+                receivingAddresses.get(position).setLabel(receivingAddress.getLabel());
+                return;
             }
         }
 
-        if (!justUpdateLabel && (wallet == null || addressMatchesKey)) {
-            receivingAddresses.add(receivingAddress);
+        if (wallet == null || getWalletKeyAddresses(wallet).contains(receivingAddress.getAddress())) {
+            appendReceivingAddress(receivingAddress);
         }
     }
 
@@ -191,29 +276,24 @@ public class WalletInfoData {
      * Ensure only receiving addresses actually in the wallet appear. This is to
      * prevent adding receiving addresses manually in the info file.
      */
-    public void checkAllReceivingAddressesAppearInWallet(Wallet wallet) {
-        List<WalletAddressBookData> toRemove = new ArrayList<WalletAddressBookData>();
+    public synchronized void checkAllReceivingAddressesAppearInWallet(Wallet wallet) {
         if (wallet != null) {
+            Set<String> addressesOfKeys = getWalletKeyAddresses(wallet);
+            boolean removedAddress = false;
             Iterator<WalletAddressBookData> iterator = receivingAddresses.iterator();
             while (iterator.hasNext()) {
-                boolean addressMatchesKey = false;
                 WalletAddressBookData walletAddressBookData = iterator.next();
-                for (ECKey key : wallet.getKeys()) {
-                    if (walletAddressBookData.getAddress().equals(
-                            key.toAddress(MultiBit.getBitcoinController().getModel().getNetworkParameters()).toString())) {
-                        addressMatchesKey = true;
-                        break;
-                    }
-                }
-                
-                if (!addressMatchesKey) {
+                if (!addressesOfKeys.contains(walletAddressBookData.getAddress())) {
                     // Remove from receivingAddresses and log.
-                    toRemove.add(walletAddressBookData);
+                    iterator.remove();
+                    removedAddress = true;
                     log.debug("Removed receiving address " + walletAddressBookData.getAddress() + " because it did not match a key in the wallet '" + wallet.getDescription() + "'");
                 }
             }
-            
-            receivingAddresses.removeAll(toRemove);
+
+            if (removedAddress) {
+                indexedReceivingAddressesSize = -1;
+            }
         }
     }
 
@@ -224,28 +304,18 @@ public class WalletInfoData {
      * 
      * @param receivingAddress
      */
-    public void addReceivingAddressOfKey(Address receivingAddress) {
+    public synchronized void addReceivingAddressOfKey(Address receivingAddress) {
         if (receivingAddress == null) {
             return;
         }
 
         if (!containsReceivingAddress(receivingAddress.toString())) {
-            receivingAddresses.add(new WalletAddressBookData("", receivingAddress.toString()));
+            appendReceivingAddress(new WalletAddressBookData("", receivingAddress.toString()));
         }
     }
 
-    public boolean containsReceivingAddress(String receivingAddress) {
-        boolean toReturn = false;
-        // see if the receiving address is on the current list
-        for (WalletAddressBookData addressBookData : receivingAddresses) {
-            if (addressBookData.getAddress().equals(receivingAddress.toString())) {
-                // do nothing
-                toReturn = true;
-                break;
-            }
-        }
-
-        return toReturn;
+    public synchronized boolean containsReceivingAddress(String receivingAddress) {
+        return findReceivingAddressPosition(receivingAddress) != -1;
     }
 
     public void addSendingAddress(WalletAddressBookData sendingAddress) {
@@ -269,16 +339,108 @@ public class WalletInfoData {
         }
     }
 
-    public String lookupLabelForReceivingAddress(String address) {
-        for (WalletAddressBookData addressBookData : receivingAddresses) {
-            if (addressBookData.getAddress().equals(address)) {
-                return addressBookData.getLabel();
-            }
+    public synchronized String lookupLabelForReceivingAddress(String address) {
+        int position = findReceivingAddressPosition(address);
+        if (position != -1) {
+            return receivingAddresses.get(position).getLabel();
         }
 
         return "";
     }
 
+    /**
+     * Get the address of a key, hashing the key only the first time it is seen.
+     */
+    synchronized String toAddressString(ECKey key) {
+        String publicKeyAsHex = Utils.bytesToHexString(key.getPubKey());
+        String address = keyToAddressCache.get(publicKeyAsHex);
+        if (address == null) {
+            address = key.toAddress(MultiBit.getBitcoinController().getModel().getNetworkParameters()).toString();
+            keyToAddressCache.put(publicKeyAsHex, address);
+        }
+        return address;
+    }
+
+    /**
+     * Get the addresses of all the keys in a wallet. They are only recalculated when the number of keys changes.
+     */
+    private Set<String> getWalletKeyAddresses(Wallet walletToCheck) {
+        int keyCount = walletToCheck.getKeychainSize();
+        if (walletKeyAddresses == null || walletToCheck != walletKeyAddressesWallet || keyCount != walletKeyAddressesKeyCount) {
+            Set<String> addresses = new HashSet<String>();
+            for (ECKey key : walletToCheck.getKeys()) {
+                addresses.add(toAddressString(key));
+            }
+            walletKeyAddresses = addresses;
+            walletKeyAddressesWallet = walletToCheck;
+            walletKeyAddressesKeyCount = keyCount;
+        }
+        return walletKeyAddresses;
+    }
+
+    /**
+     * Find the position of the first occurrence of an address in receivingAddresses.
+     * 
+     * The list is handed out by getReceivingAddresses so an address may have been replaced or moved without the size
+     * changing. A miss is therefore only trusted once the index has been rebuilt.
+     * 
+     * @return The position or -1 if the address is not a receiving address
+     */
+    private int findReceivingAddressPosition(String address) {
+        if (address == null) {
+            return -1;
+        }
+        boolean indexRebuilt = false;
+        if (indexedReceivingAddressesSize != receivingAddresses.size()) {
+            rebuildReceivingAddressIndex();
+            indexRebuilt = true;
+        }
+
+        Integer position = receivingAddressIndex.get(address);
+        if (position == null) {
+            if (indexRebuilt) {
+                return -1;
+            }
+            rebuildReceivingAddressIndex();
+            position = receivingAddressIndex.get(address);
+            return position == null ? -1 : position;
+        }
+        if (position < receivingAddresses.size()) {
+            WalletAddressBookData addressBookData = receivingAddresses.get(position);
+            if (addressBookData != null && address.equals(addressBookData.getAddress())) {
+                return position;
+            }
+        }
+
+        // The list has been changed directly - the index is stale.
+        rebuildReceivingAddressIndex();
+        position = receivingAddressIndex.get(address);
+        return position == null ? -1 : position;
+    }
+
+    private void rebuildReceivingAddressIndex() {
+        receivingAddressIndex.clear();
+        for (int i = 0; i < receivingAddresses.size(); i++) {
+            WalletAddressBookData addressBookData = receivingAddresses.get(i);
+            if (addressBookData != null && addressBookData.getAddress() != null
+                    && !receivingAddressIndex.containsKey(addressBookData.getAddress())) {
+                receivingAddressIndex.put(addressBookData.getAddress(), i);
+            }
+        }
+        indexedReceivingAddressesSize = receivingAddresses.size();
+    }
+
+    private void appendReceivingAddress(WalletAddressBookData receivingAddress) {
+        boolean indexIsCurrent = indexedReceivingAddressesSize == receivingAddresses.size();
+        receivingAddresses.add(receivingAddress);
+        if (indexIsCurrent) {
+            if (!receivingAddressIndex.containsKey(receivingAddress.getAddress())) {
+                receivingAddressIndex.put(receivingAddress.getAddress(), receivingAddresses.size() - 1);
+            }
+            indexedReceivingAddressesSize = receivingAddresses.size();
+        }
+    }
+
     public String lookupLabelForSendingAddress(String address) {
         for (WalletAddressBookData addressBookData : sendingAddresses) {
             if (addressBookData.getAddress().equals(address)) {
@@ -290,8 +452,10 @@ public class WalletInfoData {
     }
 
     /**
-     * Write out the wallet info to the file specified as a parameter - a comma
-     * separated file format is used.
+     * Write out the wallet info to the file specified as a parameter.
+     * 
+     * The binary format is used. The receiving addresses are written in the
+     * order they were added, without duplicates.
      * 
      * @param walletInfoFilename
      *            The full path of the wallet info file to write
@@ -301,75 +465,48 @@ public class WalletInfoData {
      *             Exception if write is unsuccessful
      */
     public void writeToFile(String walletInfoFilename, MultiBitWalletVersion walletVersion) throws WalletSaveException {
-        BufferedWriter out = null;
+        DataOutputStream out = null;
         try {
-            // We write out all the receiving addresses.
-            HashMap<String, WalletAddressBookData> allReceivingAddresses = new HashMap<String, WalletAddressBookData>();
+            // We write out all the receiving addresses, in order and without duplicates.
+            LinkedHashMap<String, WalletAddressBookData> allReceivingAddresses = new LinkedHashMap<String, WalletAddressBookData>();
             if (receivingAddresses != null) {
                 for (WalletAddressBookData addressBookData : receivingAddresses) {
-                    allReceivingAddresses.put(addressBookData.address, addressBookData);
+                    String address = addressBookData.getAddress() == null ? "" : addressBookData.getAddress();
+                    allReceivingAddresses.put(address, addressBookData);
                 }
             }
 
             // Create file.
-            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(walletInfoFilename), "UTF8"));
-
-            // Write out the multibit addressbook identifier.
-            out.write(INFO_MAGIC_TEXT + SEPARATOR + INFO_VERSION_TEXT + "\n");
-
-            // Write out the wallet version.
-            out.write(WALLET_VERSION_MARKER + SEPARATOR + walletVersion.getWalletVersionString() + "\n");
-
-            Collection<WalletAddressBookData> receiveAddressValues = allReceivingAddresses.values();
-            for (WalletAddressBookData addressBookData : receiveAddressValues) {
-                String columnOne = RECEIVE_ADDRESS_MARKER;
-                String columnTwo = addressBookData.getAddress();
-                String columnThree = addressBookData.getLabel();
-                if (columnTwo == null) {
-                    columnTwo = "";
-                }
-                out.write(columnOne + SEPARATOR + columnTwo + SEPARATOR + encodeURLString(columnThree) + "\n");
+            CRC32 checksum = new CRC32();
+            out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(walletInfoFilename)),
+                    checksum));
+
+            // Write out the multibit info identifier and the wallet version.
+            out.write(INFO_BINARY_MAGIC_BYTES);
+            out.writeByte(INFO_BINARY_VERSION);
+            writeString(out, walletVersion.getWalletVersionString());
+
+            out.writeInt(allReceivingAddresses.size());
+            for (Map.Entry<String, WalletAddressBookData> entry : allReceivingAddresses.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue().getLabel());
             }
 
+            out.writeInt(sendingAddresses.size());
             for (WalletAddressBookData addressBookData : sendingAddresses) {
-                String columnOne = SEND_ADDRESS_MARKER;
-                String columnTwo = addressBookData.getAddress();
-                String columnThree = addressBookData.getLabel();
-                if (columnTwo == null) {
-                    columnTwo = "";
-                }
-                out.write(columnOne + SEPARATOR + columnTwo + SEPARATOR + encodeURLString(columnThree) + "\n");
+                writeString(out, addressBookData.getAddress() == null ? "" : addressBookData.getAddress());
+                writeString(out, addressBookData.getLabel());
             }
 
-            // Remove some properties form the wallet file that dont need to be persisted.
-            Properties walletPreferencesClone = new Properties();
-            walletPreferencesClone.putAll(walletPreferences);
-
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_ADDRESS_IS_INVALID);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_ADDRESS_VALUE);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_INVALID);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_MISSING);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_NEGATIVE_OR_ZERO);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_VALUE);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_NOT_ENOUGH_FUNDS);
-
-            walletPreferencesClone.remove(BitcoinModel.SEND_PERFORM_PASTE_NOW);
-            
-            // These properties are obselete so removed from the info file to tidy them up.
-            walletPreferencesClone.remove("sendErrorMessage");
-            walletPreferencesClone.remove("sendWasSuccessful");
-            walletPreferencesClone.remove("earliestTransactionDate");
-
-            for (Map.Entry entry : walletPreferencesClone.entrySet()) {
-
-                String columnOne = PROPERTY_MARKER;
-                String columnTwo = (String) entry.getKey();
-                String encodedColumnThree = encodeURLString((String) entry.getValue());
-                if (columnTwo == null) {
-                    columnTwo = "";
-                }
-                out.write(columnOne + SEPARATOR + columnTwo + SEPARATOR + encodedColumnThree + "\n");
+            Properties walletPreferencesClone = createPersistentWalletPreferences();
+            out.writeInt(walletPreferencesClone.size());
+            for (Map.Entry<Object, Object> entry : walletPreferencesClone.entrySet()) {
+                writeString(out, (String) entry.getKey());
+                writeString(out, (String) entry.getValue());
             }
+
+            out.flush();
+            out.writeLong(checksum.getValue());
         } catch (IOException ioe) {
             throw new WalletSaveException("Could not write walletinfo file for wallet '" + walletInfoFilename + "'", ioe);
         } finally {
@@ -384,8 +521,34 @@ public class WalletInfoData {
         }
     }
 
+    /**
+     * Copy the wallet preferences, removing some properties that dont need to be persisted.
+     */
+    private Properties createPersistentWalletPreferences() {
+        Properties walletPreferencesClone = new Properties();
+        walletPreferencesClone.putAll(walletPreferences);
+
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_ADDRESS_IS_INVALID);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_ADDRESS_VALUE);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_INVALID);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_MISSING);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_NEGATIVE_OR_ZERO);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_VALUE);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_NOT_ENOUGH_FUNDS);
+
+        walletPreferencesClone.remove(BitcoinModel.SEND_PERFORM_PASTE_NOW);
+
+        // These properties are obselete so removed from the info file to tidy them up.
+        walletPreferencesClone.remove("sendErrorMessage");
+        walletPreferencesClone.remove("sendWasSuccessful");
+        walletPreferencesClone.remove("earliestTransactionDate");
+
+        return walletPreferencesClone;
+    }
+
     /**
      * Load the internally referenced wallet info file.
+     * Both the binary format and the earlier comma separated format are read.
      */
     public void loadFromFile() {
         String walletInfoFilename = null;
@@ -395,174 +558,309 @@ public class WalletInfoData {
 
             // Read in the wallet info data.
             walletInfoFilename = createWalletInfoFilename(walletFilename);
-            FileInputStream fileInputStream = new FileInputStream(walletInfoFilename);
-            // Get the object of DataInputStream.
-            inputStream = new DataInputStream(fileInputStream);
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, "UTF8"));
-            String inputLine;
-
-            // Check the first line is what we expect.
-            String firstLine = bufferedReader.readLine();
-            if (firstLine == null) {
-                // This is not an multibit address book.
-                throw new WalletLoadException("The file '" + walletInfoFilename
-                        + "' is not a valid wallet info file (empty line 1)");
+            inputStream = new BufferedInputStream(new FileInputStream(walletInfoFilename));
+
+            if (isBinaryFormat(inputStream)) {
+                loadFromBinaryStream(inputStream, walletInfoFilename);
+                legacyFormat = false;
+            } else {
+                loadFromLegacyStream(inputStream, walletInfoFilename);
+                legacyFormat = true;
             }
-            StringTokenizer tokenizer = new StringTokenizer(firstLine, SEPARATOR);
-            int numberOfTokens = tokenizer.countTokens();
-            if (numberOfTokens == 2) {
-                String magicText = tokenizer.nextToken();
-                String versionNumber = tokenizer.nextToken();
-                if (!INFO_MAGIC_TEXT.equals(magicText) || !INFO_VERSION_TEXT.equals(versionNumber)) {
-                    // This is not an multibit address book.
-                    throw new WalletLoadException("The file '" + walletInfoFilename
-                            + "' is not a valid wallet info file (wrong magic number on line 1)");
+        } catch (IllegalArgumentException iae) {
+            throw new WalletLoadException("Could not load walletinfo file '" + walletInfoFilename + "'", iae);
+        } catch (IOException ioe) {
+            throw new WalletLoadException("Could not load walletinfo file '" + walletInfoFilename + "'", ioe);
+        } finally {
+            // Close the input stream
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    throw new WalletLoadException("Could not close walletinfo file '" + walletInfoFilename + "'", e);
                 }
-            } else {
-                // This is not an multibit address book.
-                throw new WalletLoadException("The file '" + walletInfoFilename
-                        + "' is not a valid wallet info file (wrong number of tokens on line 1)");
             }
+        }
+    }
 
-            // Read the wallet version.
-            String secondLine = bufferedReader.readLine();
-            StringTokenizer walletVersionTokenizer = new StringTokenizer(secondLine, SEPARATOR);
-            int walletVersionTokenNumber = walletVersionTokenizer.countTokens();
-            if (walletVersionTokenNumber == 2) {
-                String walletVersionMarker = walletVersionTokenizer.nextToken();
-                String walletVersionString = walletVersionTokenizer.nextToken();
-                if (!WALLET_VERSION_MARKER.equals(walletVersionMarker)
-                        || !(MultiBitWalletVersion.SERIALIZED.getWalletVersionString().equals(walletVersionString)
-                                || MultiBitWalletVersion.PROTOBUF.getWalletVersionString().equals(walletVersionString) || MultiBitWalletVersion.PROTOBUF_ENCRYPTED
-                                .getWalletVersionString().equals(walletVersionString))) {
-                    // This refers to a version of the wallet we do not know
-                    // about.
-                    throw new WalletVersionException("Cannot understand wallet version of '" + walletVersionMarker + "', '"
-                            + walletVersionString + "'");
-                } else {
-                    // The wallet version passed in the file is used rather than
-                    // the value in the constructor
-                    if (!walletVersion.getWalletVersionString().equals(walletVersionString)) {
-                        log.debug("The wallet version in the constructor was '" + walletVersion
-                                + "'. In the wallet info file it was '" + walletVersionString + "'. Using the latter.");
-                        if (MultiBitWalletVersion.SERIALIZED.getWalletVersionString().equals(walletVersionString)) {
-                            walletVersion = MultiBitWalletVersion.SERIALIZED;
-                        } else if (MultiBitWalletVersion.PROTOBUF.getWalletVersionString().equals(walletVersionString)) {
-                            walletVersion = MultiBitWalletVersion.PROTOBUF;
-                        } else if (MultiBitWalletVersion.PROTOBUF_ENCRYPTED.getWalletVersionString().equals(walletVersionString)) {
-                            walletVersion = MultiBitWalletVersion.PROTOBUF_ENCRYPTED;
-                        }
-                    }
+    /**
+     * @return true if the info file was in the earlier comma separated format. It is written in the binary format at the next save.
+     */
+    public boolean isLegacyFormat() {
+        return legacyFormat;
+    }
+
+    private static boolean isBinaryFormat(InputStream inputStream) throws IOException {
+        byte[] magicBytes = new byte[INFO_BINARY_MAGIC_BYTES.length];
+        inputStream.mark(magicBytes.length);
+        int bytesRead = 0;
+        try {
+            while (bytesRead < magicBytes.length) {
+                int read = inputStream.read(magicBytes, bytesRead, magicBytes.length - bytesRead);
+                if (read == -1) {
+                    return false;
                 }
-            } else {
-                // The format of the info format is wrong.
-                throw new WalletVersionException("Cannot understand wallet version text of '" + secondLine + "'");
+                bytesRead = bytesRead + read;
             }
+            return Arrays.equals(INFO_BINARY_MAGIC_BYTES, magicBytes);
+        } finally {
+            inputStream.reset();
+        }
+    }
 
-            // Read the addresses and general properties.
-            boolean isMultilineColumnThree = false;
-            String previousColumnOne = null;
-            String previousColumnTwo = null;
-            String multilineColumnThreeValue = null;
-
-            while ((inputLine = bufferedReader.readLine()) != null) {
-                if (inputLine.startsWith(RECEIVE_ADDRESS_MARKER + SEPARATOR)
-                        || inputLine.startsWith(SEND_ADDRESS_MARKER + SEPARATOR)
-                        || inputLine.startsWith(PROPERTY_MARKER + SEPARATOR)) {
-                    if (isMultilineColumnThree) {
-                        // Add previous multiline column three to model.
-                        String decodedMultiLineColumnThreeValue = decodeURLString(multilineColumnThreeValue);
-
-                        if (RECEIVE_ADDRESS_MARKER.equals(previousColumnOne)) {
-                            addReceivingAddress(new WalletAddressBookData(decodedMultiLineColumnThreeValue, previousColumnTwo),
-                                    true);
-                        } else {
-                            if (SEND_ADDRESS_MARKER.equals(previousColumnOne)) {
-                                addSendingAddress(new WalletAddressBookData(decodedMultiLineColumnThreeValue, previousColumnTwo));
-                            } else {
-                                if (PROPERTY_MARKER.equals(previousColumnOne)) {
-                                    walletPreferences.put(previousColumnTwo, decodedMultiLineColumnThreeValue);
-                                }
-                            }
-                        }
-                        previousColumnOne = null;
-                        previousColumnTwo = null;
-                        multilineColumnThreeValue = null;
+    private void loadFromBinaryStream(InputStream inputStream, String walletInfoFilename) throws IOException {
+        CRC32 checksum = new CRC32();
+        DataInputStream in = new DataInputStream(new CheckedInputStream(inputStream, checksum));
 
-                        isMultilineColumnThree = false;
-                    }
-                    StringTokenizer tokenizer2 = new StringTokenizer(inputLine, SEPARATOR);
-                    int numberOfTokens2 = tokenizer2.countTokens();
-                    String columnOne = null;
-                    String columnTwo = null;
-                    String columnThree = "";
-                    if (numberOfTokens2 == 2) {
-                        columnOne = tokenizer2.nextToken();
-                        columnTwo = tokenizer2.nextToken();
-                    } else {
-                        if (numberOfTokens2 == 3) {
-                            columnOne = tokenizer2.nextToken();
-                            columnTwo = tokenizer2.nextToken();
-                            columnThree = tokenizer2.nextToken();
-                        }
-                    }
-                    String decodedColumnThreeValue = decodeURLString(columnThree);
-                    if (RECEIVE_ADDRESS_MARKER.equals(columnOne)) {
-                        addReceivingAddress(new WalletAddressBookData(decodedColumnThreeValue, columnTwo), true);
+        byte[] magicBytes = new byte[INFO_BINARY_MAGIC_BYTES.length];
+        in.readFully(magicBytes);
+        byte versionNumber = in.readByte();
+        if (versionNumber != INFO_BINARY_VERSION) {
+            throw new WalletLoadException("The file '" + walletInfoFilename
+                    + "' is not a valid wallet info file (unknown version " + versionNumber + ")");
+        }
+        useWalletVersionFromFile(readString(in));
+
+        Set<String> walletAddresses = null;
+        if (wallet != null) {
+            walletAddresses = getWalletKeyAddresses(wallet);
+        }
+
+        ArrayList<WalletAddressBookData> loadedReceivingAddresses = new ArrayList<WalletAddressBookData>();
+        int numberOfReceivingAddresses = readCount(in);
+        Set<String> loadedAddresses = new HashSet<String>();
+        for (int i = 0; i < numberOfReceivingAddresses; i++) {
+            String address = readString(in);
+            String label = readString(in);
+            if (address == null || !loadedAddresses.add(address)) {
+                continue;
+            }
+            if (walletAddresses == null || walletAddresses.contains(address)) {
+                loadedReceivingAddresses.add(new WalletAddressBookData(label, address));
+            }
+        }
+
+        ArrayList<WalletAddressBookData> loadedSendingAddresses = new ArrayList<WalletAddressBookData>();
+        int numberOfSendingAddresses = readCount(in);
+        for (int i = 0; i < numberOfSendingAddresses; i++) {
+            String address = readString(in);
+            String label = readString(in);
+            loadedSendingAddresses.add(new WalletAddressBookData(label, address));
+        }
+
+        Properties loadedWalletPreferences = new Properties();
+        int numberOfProperties = readCount(in);
+        for (int i = 0; i < numberOfProperties; i++) {
+            String key = readString(in);
+            String value = readString(in);
+            if (key != null && value != null) {
+                loadedWalletPreferences.put(key, value);
+            }
+        }
+
+        long calculatedChecksum = checksum.getValue();
+        if (in.readLong() != calculatedChecksum) {
+            throw new WalletLoadException("The file '" + walletInfoFilename + "' is not a valid wallet info file (bad checksum)");
+        }
+
+        for (WalletAddressBookData receivingAddress : loadedReceivingAddresses) {
+            appendReceivingAddress(receivingAddress);
+        }
+        for (WalletAddressBookData sendingAddress : loadedSendingAddresses) {
+            addSendingAddress(sendingAddress);
+        }
+        walletPreferences.putAll(loadedWalletPreferences);
+    }
+
+    private void loadFromLegacyStream(InputStream inputStream, String walletInfoFilename) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, "UTF8"));
+        String inputLine;
+
+        // Check the first line is what we expect.
+        String firstLine = bufferedReader.readLine();
+        if (firstLine == null) {
+            // This is not an multibit address book.
+            throw new WalletLoadException("The file '" + walletInfoFilename
+                    + "' is not a valid wallet info file (empty line 1)");
+        }
+        StringTokenizer tokenizer = new StringTokenizer(firstLine, SEPARATOR);
+        int numberOfTokens = tokenizer.countTokens();
+        if (numberOfTokens == 2) {
+            String magicText = tokenizer.nextToken();
+            String versionNumber = tokenizer.nextToken();
+            if (!INFO_MAGIC_TEXT.equals(magicText) || !INFO_VERSION_TEXT.equals(versionNumber)) {
+                // This is not an multibit address book.
+                throw new WalletLoadException("The file '" + walletInfoFilename
+                        + "' is not a valid wallet info file (wrong magic number on line 1)");
+            }
+        } else {
+            // This is not an multibit address book.
+            throw new WalletLoadException("The file '" + walletInfoFilename
+                    + "' is not a valid wallet info file (wrong number of tokens on line 1)");
+        }
+
+        // Read the wallet version.
+        String secondLine = bufferedReader.readLine();
+        StringTokenizer walletVersionTokenizer = new StringTokenizer(secondLine, SEPARATOR);
+        int walletVersionTokenNumber = walletVersionTokenizer.countTokens();
+        if (walletVersionTokenNumber == 2) {
+            String walletVersionMarker = walletVersionTokenizer.nextToken();
+            String walletVersionString = walletVersionTokenizer.nextToken();
+            if (!WALLET_VERSION_MARKER.equals(walletVersionMarker)) {
+                throw new WalletVersionException("Cannot understand wallet version of '" + walletVersionMarker + "', '"
+                        + walletVersionString + "'");
+            }
+            useWalletVersionFromFile(walletVersionString);
+        } else {
+            // The format of the info format is wrong.
+            throw new WalletVersionException("Cannot understand wallet version text of '" + secondLine + "'");
+        }
+
+        // Read the addresses and general properties.
+        boolean isMultilineColumnThree = false;
+        String previousColumnOne = null;
+        String previousColumnTwo = null;
+        String multilineColumnThreeValue = null;
+
+        while ((inputLine = bufferedReader.readLine()) != null) {
+            if (inputLine.startsWith(RECEIVE_ADDRESS_MARKER + SEPARATOR)
+                    || inputLine.startsWith(SEND_ADDRESS_MARKER + SEPARATOR)
+                    || inputLine.startsWith(PROPERTY_MARKER + SEPARATOR)) {
+                if (isMultilineColumnThree) {
+                    // Add previous multiline column three to model.
+                    String decodedMultiLineColumnThreeValue = decodeURLString(multilineColumnThreeValue);
+
+                    if (RECEIVE_ADDRESS_MARKER.equals(previousColumnOne)) {
+                        addReceivingAddress(new WalletAddressBookData(decodedMultiLineColumnThreeValue, previousColumnTwo),
+                                true);
                     } else {
-                        if (SEND_ADDRESS_MARKER.equals(columnOne)) {
-                            addSendingAddress(new WalletAddressBookData(decodedColumnThreeValue, columnTwo));
+                        if (SEND_ADDRESS_MARKER.equals(previousColumnOne)) {
+                            addSendingAddress(new WalletAddressBookData(decodedMultiLineColumnThreeValue, previousColumnTwo));
                         } else {
-                            if (PROPERTY_MARKER.equals(columnOne)) {
-                                walletPreferences.put(columnTwo, decodedColumnThreeValue);
+                            if (PROPERTY_MARKER.equals(previousColumnOne)) {
+                                walletPreferences.put(previousColumnTwo, decodedMultiLineColumnThreeValue);
                             }
                         }
                     }
+                    previousColumnOne = null;
+                    previousColumnTwo = null;
+                    multilineColumnThreeValue = null;
 
-                    previousColumnOne = columnOne;
-                    previousColumnTwo = columnTwo;
-                    multilineColumnThreeValue = columnThree;
+                    isMultilineColumnThree = false;
+                }
+                StringTokenizer tokenizer2 = new StringTokenizer(inputLine, SEPARATOR);
+                int numberOfTokens2 = tokenizer2.countTokens();
+                String columnOne = null;
+                String columnTwo = null;
+                String columnThree = "";
+                if (numberOfTokens2 == 2) {
+                    columnOne = tokenizer2.nextToken();
+                    columnTwo = tokenizer2.nextToken();
                 } else {
-                    // This is a multiline column 3 (typically a multiline
-                    // label).
-                    isMultilineColumnThree = true;
-                    multilineColumnThreeValue = multilineColumnThreeValue + "\n" + inputLine;
+                    if (numberOfTokens2 == 3) {
+                        columnOne = tokenizer2.nextToken();
+                        columnTwo = tokenizer2.nextToken();
+                        columnThree = tokenizer2.nextToken();
+                    }
                 }
-            }
-            if (isMultilineColumnThree) {
-                // Add previous multiline column three to model.
-                String decodedMultiLineColumnThreeValue = decodeURLString(multilineColumnThreeValue);
-                if (RECEIVE_ADDRESS_MARKER.equals(previousColumnOne)) {
-                    addReceivingAddress(new WalletAddressBookData(decodedMultiLineColumnThreeValue, previousColumnTwo), true);
+                String decodedColumnThreeValue = decodeURLString(columnThree);
+                if (RECEIVE_ADDRESS_MARKER.equals(columnOne)) {
+                    addReceivingAddress(new WalletAddressBookData(decodedColumnThreeValue, columnTwo), true);
                 } else {
-                    if (SEND_ADDRESS_MARKER.equals(previousColumnOne)) {
-                        addSendingAddress(new WalletAddressBookData(decodedMultiLineColumnThreeValue, previousColumnTwo));
+                    if (SEND_ADDRESS_MARKER.equals(columnOne)) {
+                        addSendingAddress(new WalletAddressBookData(decodedColumnThreeValue, columnTwo));
                     } else {
-                        if (PROPERTY_MARKER.equals(previousColumnOne)) {
-                            walletPreferences.put(previousColumnTwo, decodedMultiLineColumnThreeValue);
+                        if (PROPERTY_MARKER.equals(columnOne)) {
+                            walletPreferences.put(columnTwo, decodedColumnThreeValue);
                         }
                     }
                 }
-                previousColumnOne = null;
-                previousColumnTwo = null;
-                multilineColumnThreeValue = null;
 
-                isMultilineColumnThree = false;
+                previousColumnOne = columnOne;
+                previousColumnTwo = columnTwo;
+                multilineColumnThreeValue = columnThree;
+            } else {
+                // This is a multiline column 3 (typically a multiline
+                // label).
+                isMultilineColumnThree = true;
+                multilineColumnThreeValue = multilineColumnThreeValue + "\n" + inputLine;
             }
-        } catch (IllegalArgumentException iae) {
-            throw new WalletLoadException("Could not load walletinfo file '" + walletInfoFilename + "'", iae);
-        } catch (IOException ioe) {
-            throw new WalletLoadException("Could not load walletinfo file '" + walletInfoFilename + "'", ioe);
-        } finally {
-            // Close the input stream
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    throw new WalletLoadException("Could not close walletinfo file '" + walletInfoFilename + "'", e);
+        }
+        if (isMultilineColumnThree) {
+            // Add previous multiline column three to model.
+            String decodedMultiLineColumnThreeValue = decodeURLString(multilineColumnThreeValue);
+            if (RECEIVE_ADDRESS_MARKER.equals(previousColumnOne)) {
+                addReceivingAddress(new WalletAddressBookData(decodedMultiLineColumnThreeValue, previousColumnTwo), true);
+            } else {
+                if (SEND_ADDRESS_MARKER.equals(previousColumnOne)) {
+                    addSendingAddress(new WalletAddressBookData(decodedMultiLineColumnThreeValue, previousColumnTwo));
+                } else {
+                    if (PROPERTY_MARKER.equals(previousColumnOne)) {
+                        walletPreferences.put(previousColumnTwo, decodedMultiLineColumnThreeValue);
+                    }
                 }
             }
+            previousColumnOne = null;
+            previousColumnTwo = null;
+            multilineColumnThreeValue = null;
+
+            isMultilineColumnThree = false;
+        }
+    }
+
+    /**
+     * The wallet version in the info file is used rather than the value in the constructor.
+     */
+    private void useWalletVersionFromFile(String walletVersionString) {
+        MultiBitWalletVersion walletVersionFromFile = null;
+        if (MultiBitWalletVersion.SERIALIZED.getWalletVersionString().equals(walletVersionString)) {
+            walletVersionFromFile = MultiBitWalletVersion.SERIALIZED;
+        } else if (MultiBitWalletVersion.PROTOBUF.getWalletVersionString().equals(walletVersionString)) {
+            walletVersionFromFile = MultiBitWalletVersion.PROTOBUF;
+        } else if (MultiBitWalletVersion.PROTOBUF_ENCRYPTED.getWalletVersionString().equals(walletVersionString)) {
+            walletVersionFromFile = MultiBitWalletVersion.PROTOBUF_ENCRYPTED;
+        } else {
+            // This refers to a version of the wallet we do not know about.
+            throw new WalletVersionException("Cannot understand wallet version of '" + WALLET_VERSION_MARKER + "', '"
+                    + walletVersionString + "'");
+        }
+
+        if (walletVersion != walletVersionFromFile) {
+            log.debug("The wallet version in the constructor was '" + walletVersion
+                    + "'. In the wallet info file it was '" + walletVersionString + "'. Using the latter.");
+            walletVersion = walletVersionFromFile;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF8_CHARSET);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAXIMUM_BINARY_STRING_LENGTH) {
+            throw new IOException("Bad string length of " + length + " in wallet info file");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8_CHARSET);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad count of " + count + " in wallet info file");
         }
+        return count;
     }
 
     /**
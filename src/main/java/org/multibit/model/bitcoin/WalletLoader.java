@@ -0,0 +1,28 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+/**
+ * Interface to implement to load the wallet of a stub WalletData when it is first used.
+ */
+public interface WalletLoader {
+    /**
+     * Load the wallet of the stub 'perWalletModelData' and set it on the perWalletModelData.
+     *
+     * @param perWalletModelData The stub WalletData
+     */
+    public void loadWallet(WalletData perWalletModelData);
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import com.google.bitcoin.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The block requests of a ParallelBlockFetcher - the blocks still to be requested, the requests in flight to each peer
+ * and the measured throughput of each peer.
+ *
+ * The blocks are requested ParallelBlockFetcher.BLOCKS_PER_REQUEST at a time with at most
+ * ParallelBlockFetcher.MAXIMUM_REQUESTS_IN_FLIGHT_PER_PEER requests outstanding per peer. Blocks a peer did not send, and
+ * the outstanding blocks of a peer that is dropped, are requested again ahead of the rest.
+ *
+ * The tracker is not thread safe - callers hold the fetcher's lock - except for isAwaited and blockReceived, which the
+ * peers' network threads call as the blocks arrive.
+ *
+ * @param <P> The type of the peers
+ */
+class BlockRequestTracker<P> {
+    private static final Logger log = LoggerFactory.getLogger(BlockRequestTracker.class);
+
+    /**
+     * The number of times the blocks of a request are requested before the download is abandoned.
+     */
+    static final int MAXIMUM_NUMBER_OF_ATTEMPTS = 3;
+
+    /**
+     * A getdata request for a run of blocks.
+     */
+    static class Request<P> {
+        private final List<Sha256Hash> blockHashes;
+        private final int attempt;
+        private P peer;
+        private long sendTime;
+        private long timeTaken;
+
+        Request(List<Sha256Hash> blockHashes, int attempt) {
+            this.blockHashes = blockHashes;
+            this.attempt = attempt;
+        }
+
+        List<Sha256Hash> getBlockHashes() {
+            return blockHashes;
+        }
+
+        int getAttempt() {
+            return attempt;
+        }
+
+        P getPeer() {
+            return peer;
+        }
+
+        /**
+         * @return The time the peer took to answer the request, in milliseconds, once it has completed
+         */
+        long getTimeTaken() {
+            return timeTaken;
+        }
+    }
+
+    /**
+     * The requests and measured throughput of a fetching peer.
+     */
+    private static class PeerState<P> {
+        private final P peer;
+        private final List<Request<P>> requestsInFlight = new ArrayList<Request<P>>();
+        private int numberOfCompletedRequests;
+        private long lastCompletionTime;
+        private double throughput; // blocks per second
+        private boolean dropped;
+
+        private final Set<Sha256Hash> awaitedBlocks = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+
+        PeerState(P peer) {
+            this.peer = peer;
+        }
+    }
+
+    private final Comparator<PeerState<P>> fastestFirst = new Comparator<PeerState<P>>() {
+        @Override
+        public int compare(PeerState<P> o1, PeerState<P> o2) {
+            return Double.compare(o2.throughput, o1.throughput);
+        }
+    };
+
+    /**
+     * The peers in the order they were added, which is the order they are given requests in until their throughput is known.
+     */
+    private final Map<P, PeerState<P>> peerStates = Collections.synchronizedMap(new LinkedHashMap<P, PeerState<P>>());
+    private final Deque<Request<P>> unassignedRequests = new ArrayDeque<Request<P>>();
+    private IOException failure;
+
+    void addPeer(P peer) {
+        peerStates.put(peer, new PeerState<P>(peer));
+    }
+
+    /**
+     * @return true if the peer was added, even if it has since been dropped
+     */
+    boolean isFetchingPeer(P peer) {
+        return peerStates.containsKey(peer);
+    }
+
+    /**
+     * Queue requests for the blocks, in order, behind the requests already queued.
+     */
+    void queueBlocks(List<Sha256Hash> blockHashes) {
+        for (int start = 0; start < blockHashes.size(); start += ParallelBlockFetcher.BLOCKS_PER_REQUEST) {
+            List<Sha256Hash> requestBlockHashes = blockHashes.subList(start,
+                    Math.min(start + ParallelBlockFetcher.BLOCKS_PER_REQUEST, blockHashes.size()));
+            unassignedRequests.addLast(new Request<P>(new ArrayList<Sha256Hash>(requestBlockHashes), 1));
+        }
+    }
+
+    /**
+     * Give the unassigned requests to the fastest peers with room for them.
+     *
+     * @return The requests assigned, to be sent
+     */
+    List<Request<P>> assignRequests(long now) {
+        List<Request<P>> assignedRequests = new ArrayList<Request<P>>();
+        List<PeerState<P>> peersFastestFirst;
+        synchronized (peerStates) {
+            peersFastestFirst = new ArrayList<PeerState<P>>(peerStates.values());
+        }
+        Collections.sort(peersFastestFirst, fastestFirst);
+        for (PeerState<P> peerState : peersFastestFirst) {
+            while (!peerState.dropped && peerState.requestsInFlight.size() < ParallelBlockFetcher.MAXIMUM_REQUESTS_IN_FLIGHT_PER_PEER
+                    && !unassignedRequests.isEmpty()) {
+                Request<P> request = unassignedRequests.pollFirst();
+                request.peer = peerState.peer;
+                request.sendTime = now;
+                peerState.awaitedBlocks.addAll(request.blockHashes);
+                peerState.requestsInFlight.add(request);
+                assignedRequests.add(request);
+            }
+        }
+        return assignedRequests;
+    }
+
+    /**
+     * @return true if the block has been requested from the peer and has not yet been received from it
+     */
+    boolean isAwaited(P peer, Sha256Hash blockHash) {
+        PeerState<P> peerState = peerStates.get(peer);
+        return peerState != null && peerState.awaitedBlocks.contains(blockHash);
+    }
+
+    /**
+     * Record that the peer has sent a block. The blocks of a request may arrive in any order.
+     */
+    void blockReceived(P peer, Sha256Hash blockHash) {
+        PeerState<P> peerState = peerStates.get(peer);
+        if (peerState != null) {
+            peerState.awaitedBlocks.remove(blockHash);
+        }
+    }
+
+    /**
+     * Called once the peer has answered a request. The blocks of the request the peer did not send are requested again
+     * and the peer's throughput is updated. Peers that have become too slow are dropped.
+     *
+     * @return The number of blocks of the request the peer did not send, or -1 if the request had already been taken
+     *         from the peer because it was dropped
+     */
+    int requestCompleted(Request<P> request, long now) {
+        PeerState<P> peerState = peerStates.get(request.peer);
+        if (peerState == null || !peerState.requestsInFlight.remove(request)) {
+            return -1;
+        }
+
+        List<Sha256Hash> missingBlockHashes = new ArrayList<Sha256Hash>();
+        for (Sha256Hash blockHash : request.blockHashes) {
+            if (peerState.awaitedBlocks.remove(blockHash)) {
+                missingBlockHashes.add(blockHash);
+            }
+        }
+        if (!missingBlockHashes.isEmpty()) {
+            log.debug("Peer " + peerState.peer + " did not send " + missingBlockHashes.size() + " of " + request.blockHashes.size() + " blocks");
+            requeue(missingBlockHashes, request.attempt + 1);
+        }
+
+        // Requests are answered in turn so a request only starts being answered when the previous one is complete.
+        request.timeTaken = Math.max(1, now - Math.max(request.sendTime, peerState.lastCompletionTime));
+        double requestThroughput = 1000.0 * (request.blockHashes.size() - missingBlockHashes.size()) / request.timeTaken;
+        peerState.throughput = peerState.numberOfCompletedRequests == 0 ? requestThroughput
+                : (peerState.throughput + requestThroughput) / 2;
+        peerState.numberOfCompletedRequests++;
+        peerState.lastCompletionTime = now;
+
+        dropSlowPeers();
+        return missingBlockHashes.size();
+    }
+
+    /**
+     * Drop the peers whose throughput is well below that of the fastest peer. The fastest peer is never dropped.
+     */
+    private void dropSlowPeers() {
+        List<PeerState<P>> peerStatesCopy;
+        synchronized (peerStates) {
+            peerStatesCopy = new ArrayList<PeerState<P>>(peerStates.values());
+        }
+        double fastestThroughput = 0;
+        for (PeerState<P> peerState : peerStatesCopy) {
+            if (!peerState.dropped && peerState.numberOfCompletedRequests >= ParallelBlockFetcher.MINIMUM_REQUESTS_TO_MEASURE_THROUGHPUT) {
+                fastestThroughput = Math.max(fastestThroughput, peerState.throughput);
+            }
+        }
+        for (PeerState<P> peerState : peerStatesCopy) {
+            if (!peerState.dropped && peerState.numberOfCompletedRequests >= ParallelBlockFetcher.MINIMUM_REQUESTS_TO_MEASURE_THROUGHPUT
+                    && peerState.throughput < ParallelBlockFetcher.SLOW_PEER_THROUGHPUT_FRACTION * fastestThroughput) {
+                dropPeer(peerState.peer, "its throughput of " + (int) peerState.throughput + " blocks/s is too low");
+            }
+        }
+    }
+
+    /**
+     * Drop the peers that have not answered a request within the timeout.
+     *
+     * @return The peers dropped
+     */
+    List<P> checkForTimeouts(long now, long timeout) {
+        List<PeerState<P>> peerStatesCopy;
+        synchronized (peerStates) {
+            peerStatesCopy = new ArrayList<PeerState<P>>(peerStates.values());
+        }
+        List<P> timedOutPeers = new ArrayList<P>();
+        for (PeerState<P> peerState : peerStatesCopy) {
+            if (!peerState.dropped && !peerState.requestsInFlight.isEmpty()
+                    && now - peerState.requestsInFlight.get(0).sendTime > timeout) {
+                dropPeer(peerState.peer, "it did not answer in time");
+                timedOutPeers.add(peerState.peer);
+            }
+        }
+        return timedOutPeers;
+    }
+
+    /**
+     * @return true if a peer other than the specified one has answered a request since the specified time
+     */
+    boolean hasOtherPeerAnsweredSince(P peer, long time) {
+        synchronized (peerStates) {
+            for (PeerState<P> peerState : peerStates.values()) {
+                if (!peerState.peer.equals(peer) && peerState.numberOfCompletedRequests > 0 && peerState.lastCompletionTime >= time) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stop using a peer and requeue the blocks of its outstanding requests that it has not sent.
+     */
+    void dropPeer(P peer, String reason) {
+        PeerState<P> peerState = peerStates.get(peer);
+        if (peerState == null || peerState.dropped) {
+            return;
+        }
+        log.debug("No longer downloading blocks from " + peer + " as " + reason);
+        peerState.dropped = true;
+
+        // Requeue in reverse so that the earliest blocks are requested first.
+        for (int i = peerState.requestsInFlight.size() - 1; i >= 0; i--) {
+            Request<P> request = peerState.requestsInFlight.get(i);
+            List<Sha256Hash> blocksNotReceived = new ArrayList<Sha256Hash>();
+            for (Sha256Hash blockHash : request.blockHashes) {
+                if (peerState.awaitedBlocks.contains(blockHash)) {
+                    blocksNotReceived.add(blockHash);
+                }
+            }
+            if (!blocksNotReceived.isEmpty()) {
+                requeue(blocksNotReceived, request.attempt + 1);
+            }
+        }
+        peerState.requestsInFlight.clear();
+    }
+
+    /**
+     * Put blocks back at the front of the queue of requests.
+     */
+    private void requeue(List<Sha256Hash> blockHashes, int attempt) {
+        if (attempt > MAXIMUM_NUMBER_OF_ATTEMPTS) {
+            failure = new IOException("Could not download block " + blockHashes.get(0) + " after " + MAXIMUM_NUMBER_OF_ATTEMPTS + " attempts");
+            return;
+        }
+        unassignedRequests.addFirst(new Request<P>(blockHashes, attempt));
+    }
+
+    /**
+     * @return The reason the download cannot be completed, or null if it can
+     */
+    IOException getFailure() {
+        return failure;
+    }
+
+    int getNumberOfActivePeers() {
+        int numberOfActivePeers = 0;
+        synchronized (peerStates) {
+            for (PeerState<P> peerState : peerStates.values()) {
+                if (!peerState.dropped) {
+                    numberOfActivePeers++;
+                }
+            }
+        }
+        return numberOfActivePeers;
+    }
+
+    int getNumberOfUnassignedRequests() {
+        return unassignedRequests.size();
+    }
+}
@@ -0,0 +1,470 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * BloomFilterManager looks after the Bloom filter the PeerGroup sends to its peers.
+ *
+ * Filter recalculations requested as keys are added are batched up for KEY_BATCH_DELAY so that adding many keys sends
+ * one filter. The false positive rate each peer actually delivers is measured from the filtered blocks it sends: the
+ * transactions matched by the filter that are not relevant to any wallet, out of the transactions in the blocks.
+ * The peers add the outpoints of matched transactions to their copy of the filter so the rate creeps up over time.
+ * When it drifts past MAXIMUM_DRIFT_FACTOR times the target rate a fresh filter is sent and, if the rate is still too
+ * high with a fresh filter, the filter is made bigger by lowering the false positive rate it is sized for.
+ *
+ * The bytes of filtered blocks and transactions downloaded and the number of relevant transactions are also totalled,
+ * to show how much of the download the wallets actually use.
+ */
+public class BloomFilterManager extends AbstractPeerEventListener {
+    private static final Logger log = LoggerFactory.getLogger(BloomFilterManager.class);
+
+    /**
+     * The false positive rate the filter is sized for to start with and that the observed rate is compared with.
+     */
+    static final double TARGET_FALSE_POSITIVE_RATE = 0.0005;
+
+    /**
+     * The filter is never sized for a lower false positive rate than this, as a filter that matches only the wallet
+     * transactions tells the peers exactly which transactions are ours.
+     */
+    static final double MINIMUM_FALSE_POSITIVE_RATE = TARGET_FALSE_POSITIVE_RATE / 16;
+
+    /**
+     * The filter is changed when the observed false positive rate is more than this factor away from the target.
+     */
+    static final double MAXIMUM_DRIFT_FACTOR = 3.0;
+
+    /**
+     * The number of transactions a peer has to have tested against the filter before its false positive rate is used.
+     */
+    static final long MINIMUM_TRANSACTIONS_TO_MEASURE = 50000;
+
+    private static final long KEY_BATCH_DELAY = 2000; // ms
+
+    /**
+     * The size of a block header in a filtered block, after which comes the number of transactions in the block.
+     */
+    private static final int BLOCK_HEADER_SIZE = 80;
+
+    private final BitcoinController bitcoinController;
+
+    private volatile PeerGroup peerGroup;
+
+    private final AtomicBoolean recalculationPending = new AtomicBoolean(false);
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("bloom-filter-%d").setDaemon(true).build());
+
+    private final Map<Peer, FilterStatistics> peerStatistics = new ConcurrentHashMap<Peer, FilterStatistics>();
+
+    /**
+     * The false positive rate the filter is currently sized for.
+     */
+    private double falsePositiveRate = TARGET_FALSE_POSITIVE_RATE;
+
+    /**
+     * True when a fresh filter has been sent because of drift and the rate has not been measured since.
+     */
+    private boolean refreshedForDrift;
+
+    private long bytesDownloaded;
+    private long transactionsDownloaded;
+    private long relevantTransactions;
+
+    /**
+     * The filter statistics of a peer since its measurement was last restarted.
+     */
+    static class FilterStatistics {
+        /**
+         * The hashes of the transactions matched in the filtered blocks not yet accounted for.
+         */
+        private final Set<Sha256Hash> matchedHashes = new HashSet<Sha256Hash>();
+        private final Set<Sha256Hash> relevantHashes = new HashSet<Sha256Hash>();
+        private int matchedBlockTransactionCount;
+
+        private long transactionsTested;
+        private long transactionsMatched;
+        private long falsePositives;
+
+        /**
+         * @return The fraction of the transactions that are not ours that matched the filter anyway, or -1 if too few
+         *         transactions have been tested to tell
+         */
+        double getFalsePositiveRate() {
+            long transactionsNotOurs = transactionsTested - (transactionsMatched - falsePositives);
+            if (transactionsTested < MINIMUM_TRANSACTIONS_TO_MEASURE || transactionsNotOurs <= 0) {
+                return -1;
+            }
+            return (double) falsePositives / transactionsNotOurs;
+        }
+
+        void record(long tested, long matched, long falsePositiveCount) {
+            transactionsTested += tested;
+            transactionsMatched += matched;
+            falsePositives += falsePositiveCount;
+        }
+
+        void restart() {
+            transactionsTested = 0;
+            transactionsMatched = 0;
+            falsePositives = 0;
+        }
+    }
+
+    public BloomFilterManager(BitcoinController bitcoinController) {
+        this.bitcoinController = bitcoinController;
+    }
+
+    /**
+     * Manage the filter of a new PeerGroup. The PeerGroup a replay replaces is simply forgotten.
+     */
+    public void setPeerGroup(PeerGroup peerGroup) {
+        double rate;
+        synchronized (this) {
+            this.peerGroup = peerGroup;
+            peerStatistics.clear();
+            refreshedForDrift = false;
+            rate = falsePositiveRate;
+        }
+        peerGroup.setBloomFilterFalsePositiveRate(rate);
+        // The filtered blocks are measured on the network thread before any other listener can consume them.
+        peerGroup.addEventListener(this, Threading.SAME_THREAD);
+    }
+
+    /**
+     * Recalculate the fast catchup time and filter KEY_BATCH_DELAY after the first request, sending the filter to
+     * the peers if it has changed. Requests made in the meantime are served by the same recalculation.
+     */
+    public void requestFilterRecalculation() {
+        if (!recalculationPending.compareAndSet(false, true)) {
+            return;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Keys added from now on need another recalculation.
+                recalculationPending.set(false);
+                PeerGroup currentPeerGroup = peerGroup;
+                if (currentPeerGroup != null) {
+                    try {
+                        currentPeerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+                    } catch (RuntimeException re) {
+                        log.error("Could not recalculate the Bloom filter. " + re.getClass().getName() + " " + re.getMessage());
+                    }
+                }
+            }
+        }, KEY_BATCH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message m) {
+        if (m instanceof FilteredBlock) {
+            filteredBlockReceived(peer, (FilteredBlock) m);
+        } else if (m instanceof Transaction) {
+            transactionReceived(peer, (Transaction) m);
+        }
+        return m;
+    }
+
+    @Override
+    public void onPeerDisconnected(Peer peer, int peerCount) {
+        peerStatistics.remove(peer);
+    }
+
+    private void filteredBlockReceived(Peer peer, FilteredBlock filteredBlock) {
+        int transactionCount = getTransactionCount(filteredBlock);
+        List<Sha256Hash> transactionHashes = filteredBlock.getTransactionHashes();
+
+        // The transactions of the previous filtered block have all arrived by now.
+        FilterStatistics statistics;
+        List<Sha256Hash> previousMatchedHashes;
+        Set<Sha256Hash> previousRelevantHashes;
+        int previousTransactionCount;
+        synchronized (this) {
+            bytesDownloaded += getMessageSize(filteredBlock);
+
+            statistics = getStatistics(peer);
+            previousMatchedHashes = new ArrayList<Sha256Hash>(statistics.matchedHashes);
+            previousRelevantHashes = new HashSet<Sha256Hash>(statistics.relevantHashes);
+            previousTransactionCount = statistics.matchedBlockTransactionCount;
+
+            statistics.matchedBlockTransactionCount = Math.max(0, transactionCount);
+            statistics.matchedHashes.clear();
+            statistics.relevantHashes.clear();
+            if (transactionCount >= 0) {
+                statistics.matchedHashes.addAll(transactionHashes);
+            }
+        }
+
+        // The wallets are looked up without holding this object's lock as each wallet takes its own lock and wallet
+        // listeners can call back into this object.
+        long falsePositiveCount = countFalsePositives(previousMatchedHashes, previousRelevantHashes);
+
+        synchronized (this) {
+            relevantTransactions += previousMatchedHashes.size() - falsePositiveCount;
+            statistics.record(previousTransactionCount, previousMatchedHashes.size(), falsePositiveCount);
+            adjustFilter(peer, statistics);
+        }
+    }
+
+    private void transactionReceived(Peer peer, Transaction transaction) {
+        Sha256Hash hash = transaction.getHash();
+        FilterStatistics statistics;
+        synchronized (this) {
+            bytesDownloaded += getMessageSize(transaction);
+            transactionsDownloaded++;
+
+            statistics = peerStatistics.get(peer);
+            if (statistics == null || !statistics.matchedHashes.contains(hash)) {
+                return;
+            }
+        }
+
+        if (isRelevant(transaction)) {
+            synchronized (this) {
+                // The next filtered block may have arrived whilst the wallets were checked.
+                if (statistics.matchedHashes.contains(hash)) {
+                    statistics.relevantHashes.add(hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the matched transactions of a filtered block that are false positives. A peer does not send a matched
+     * transaction it has already announced so those are looked up in the wallets instead.
+     */
+    private long countFalsePositives(List<Sha256Hash> matchedHashes, Set<Sha256Hash> relevantHashes) {
+        long falsePositiveCount = 0;
+        for (Sha256Hash hash : matchedHashes) {
+            if (!relevantHashes.contains(hash) && !isInAWallet(hash)) {
+                falsePositiveCount++;
+            }
+        }
+        return falsePositiveCount;
+    }
+
+    /**
+     * Send a fresh filter or resize it if the false positive rate of the peer has drifted too far from the target.
+     */
+    private void adjustFilter(Peer peer, FilterStatistics statistics) {
+        double observedRate = statistics.getFalsePositiveRate();
+        if (observedRate < 0 || peerGroup == null) {
+            return;
+        }
+
+        double newFalsePositiveRate = falsePositiveRate;
+        boolean refresh = false;
+        if (observedRate > TARGET_FALSE_POSITIVE_RATE * MAXIMUM_DRIFT_FACTOR) {
+            if (!refreshedForDrift) {
+                // The peer's copy of the filter has probably filled up with outpoints so start it again.
+                refresh = true;
+            } else {
+                newFalsePositiveRate = Math.max(MINIMUM_FALSE_POSITIVE_RATE, falsePositiveRate / 2);
+            }
+        } else if (observedRate < TARGET_FALSE_POSITIVE_RATE / MAXIMUM_DRIFT_FACTOR) {
+            newFalsePositiveRate = Math.min(TARGET_FALSE_POSITIVE_RATE, falsePositiveRate * 2);
+        } else {
+            refreshedForDrift = false;
+            statistics.restart();
+            return;
+        }
+
+        if (!refresh && newFalsePositiveRate == falsePositiveRate) {
+            statistics.restart();
+            return;
+        }
+
+        log.debug("Observed a false positive rate of " + observedRate + " from peer " + peer + " with the filter sized for "
+                + falsePositiveRate + (refresh ? ", sending a fresh filter" : ", resizing the filter for " + newFalsePositiveRate));
+        falsePositiveRate = newFalsePositiveRate;
+        refreshedForDrift = refresh;
+        for (FilterStatistics peerStatistic : peerStatistics.values()) {
+            peerStatistic.restart();
+        }
+        sendFilter(refresh);
+    }
+
+    /**
+     * Send the filter off the network thread, as the PeerGroup sends it to every peer.
+     */
+    private void sendFilter(final boolean refresh) {
+        final double rate = falsePositiveRate;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PeerGroup currentPeerGroup = peerGroup;
+                if (currentPeerGroup == null) {
+                    return;
+                }
+                try {
+                    if (refresh) {
+                        // The bitcoinj 0.11 PeerGroup keeps the same tweak for its lifetime, so this resends the
+                        // same filter, which clears the outpoints the peers have added, rather than a re-tweaked one.
+                        currentPeerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.FORCE_SEND);
+                    } else {
+                        currentPeerGroup.setBloomFilterFalsePositiveRate(rate);
+                    }
+                } catch (RuntimeException re) {
+                    log.error("Could not send the Bloom filter. " + re.getClass().getName() + " " + re.getMessage());
+                }
+            }
+        });
+    }
+
+    private FilterStatistics getStatistics(Peer peer) {
+        FilterStatistics statistics = peerStatistics.get(peer);
+        if (statistics == null) {
+            statistics = new FilterStatistics();
+            peerStatistics.put(peer, statistics);
+        }
+        return statistics;
+    }
+
+    private List<Wallet> getWallets() {
+        List<Wallet> wallets = new ArrayList<Wallet>();
+        List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
+        if (perWalletModelDataList != null) {
+            for (WalletData perWalletModelData : perWalletModelDataList) {
+                if (perWalletModelData == null) {
+                    continue;
+                }
+                if (!perWalletModelData.isStub() && perWalletModelData.getWallet() != null) {
+                    wallets.add(perWalletModelData.getWallet());
+                } else if (perWalletModelData.getStubWatchingWallet() != null) {
+                    // A stub's keys are in the filter through its watching wallet.
+                    wallets.add(perWalletModelData.getStubWatchingWallet());
+                }
+            }
+        }
+        return wallets;
+    }
+
+    private boolean isRelevant(Transaction transaction) {
+        for (Wallet wallet : getWallets()) {
+            try {
+                if (wallet.isTransactionRelevant(transaction)) {
+                    return true;
+                }
+            } catch (ScriptException se) {
+                // Not a transaction the wallet can understand so not one of its own.
+            }
+        }
+        return false;
+    }
+
+    private boolean isInAWallet(Sha256Hash hash) {
+        for (Wallet wallet : getWallets()) {
+            if (wallet.getTransaction(hash) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of transactions in the block of a filtered block, read from its partial merkle tree, or -1
+     */
+    static int getTransactionCount(FilteredBlock filteredBlock) {
+        byte[] bytes = filteredBlock.bitcoinSerialize();
+        if (bytes.length < BLOCK_HEADER_SIZE + 4) {
+            return -1;
+        }
+        return (int) Utils.readUint32(bytes, BLOCK_HEADER_SIZE);
+    }
+
+    private static int getMessageSize(Message m) {
+        try {
+            return m.getMessageSize();
+        } catch (IllegalStateException ise) {
+            // A message without a known length is not counted.
+            return 0;
+        }
+    }
+
+    /**
+     * @return The false positive rate the filter is currently sized for
+     */
+    public synchronized double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * @return The false positive rate observed from the peer since its measurement was last restarted, or -1 if
+     *         too few transactions have been tested to tell
+     */
+    public synchronized double getObservedFalsePositiveRate(Peer peer) {
+        FilterStatistics statistics = peerStatistics.get(peer);
+        return statistics == null ? -1 : statistics.getFalsePositiveRate();
+    }
+
+    /**
+     * @return The number of bytes of filtered blocks and transactions downloaded
+     */
+    public synchronized long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    /**
+     * @return The number of transactions downloaded
+     */
+    public synchronized long getNumberOfTransactionsDownloaded() {
+        return transactionsDownloaded;
+    }
+
+    /**
+     * @return The number of transactions matched in filtered blocks that are relevant to a wallet
+     */
+    public synchronized long getNumberOfRelevantTransactions() {
+        return relevantTransactions;
+    }
+
+    /**
+     * @return The number of bytes downloaded per relevant transaction, or -1 if no relevant transaction has been seen
+     */
+    public synchronized long getBytesDownloadedPerRelevantTransaction() {
+        return relevantTransactions == 0 ? -1 : bytesDownloaded / relevantTransactions;
+    }
+}
@@ -1,48 +1,129 @@
 package org.multibit.network;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.multibit.file.ByteBufferInputStream;
+import org.multibit.file.FileHandler;
 
 import com.google.bitcoin.core.CheckpointManager;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
 
 public class MultiBitCheckpointManager extends CheckpointManager {
 
+    /**
+     * The CheckpointManager checkpoints a week before the requested time to cater for block header drift.
+     */
+    private static final long BLOCK_HEADER_DRIFT_IN_SECONDS = 86400 * 7;
+
+    /**
+     * The checkpoints in ascending height order, for binary searching by height.
+     */
+    private final StoredBlock[] checkpointsByHeight;
+
+    /**
+     * The file the checkpoints were loaded from and its length and last modified time when it was loaded, or null.
+     */
+    private final File checkpointsFile;
+    private final long checkpointsFileLength;
+    private final long checkpointsFileLastModified;
+
     public MultiBitCheckpointManager(NetworkParameters params, InputStream inputStream) throws IOException {
+        this(params, inputStream, null, 0, 0);
+    }
+
+    private MultiBitCheckpointManager(NetworkParameters params, InputStream inputStream, File checkpointsFile,
+            long checkpointsFileLength, long checkpointsFileLastModified) throws IOException {
         super(params, inputStream);
+        this.checkpointsFile = checkpointsFile;
+        this.checkpointsFileLength = checkpointsFileLength;
+        this.checkpointsFileLastModified = checkpointsFileLastModified;
+
+        checkpointsByHeight = checkpoints.values().toArray(new StoredBlock[checkpoints.size()]);
+        Arrays.sort(checkpointsByHeight, new Comparator<StoredBlock>() {
+            @Override
+            public int compare(StoredBlock o1, StoredBlock o2) {
+                return o1.getHeight() < o2.getHeight() ? -1 : (o1.getHeight() == o2.getHeight() ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Load the checkpoints from a checkpoints file, mapping it into memory rather than streaming it.
+     */
+    public static MultiBitCheckpointManager load(NetworkParameters params, File checkpointsFile) throws IOException {
+        File absoluteCheckpointsFile = checkpointsFile.getAbsoluteFile();
+        // The file details are read before the file so that a change whilst it is read is picked up next time.
+        long length = absoluteCheckpointsFile.length();
+        long lastModified = absoluteCheckpointsFile.lastModified();
+        return new MultiBitCheckpointManager(params, new ByteBufferInputStream(FileHandler.mapFile(absoluteCheckpointsFile)),
+                absoluteCheckpointsFile, length, lastModified);
+    }
+
+    /**
+     * @return true if these checkpoints were loaded from the specified file and it has not changed since
+     */
+    public boolean isLoadedFrom(File file) {
+        return checkpointsFile != null && checkpointsFile.equals(file.getAbsoluteFile()) && checkpointsFileLength == file.length()
+                && checkpointsFileLastModified == file.lastModified();
     }
-    
+
     /**
      * Returns a {@link StoredBlock} representing the last checkpoint before the given block height, for example, normally
      * you would want to know the checkpoint before the last block the wallet had seen.
      */
     public StoredBlock getCheckpointBeforeOrAtHeight(int height) {
-        Map.Entry<Long, StoredBlock> highestCheckpointBeforeHeight = null;
-        
-        for (Map.Entry<Long, StoredBlock> loop : checkpoints.entrySet()) {
-            if (loop.getValue().getHeight() < height) {
-                // This checkpoint is before the specified height.
-                if (highestCheckpointBeforeHeight == null) {
-                    highestCheckpointBeforeHeight = loop;
-                } else {
-                    if (highestCheckpointBeforeHeight.getValue().getHeight() < loop.getValue().getHeight()) {
-                        // This entry is later.
-                        highestCheckpointBeforeHeight = loop;
-                    }
-                }
+        // Binary search for the number of checkpoints before the specified height.
+        int low = 0;
+        int high = checkpointsByHeight.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (checkpointsByHeight[middle].getHeight() < height) {
+                low = middle + 1;
+            } else {
+                high = middle;
             }
         }
-        
-        if (highestCheckpointBeforeHeight == null) {
+
+        if (low == 0) {
             try {
                 return new StoredBlock(params.getGenesisBlock(), params.getGenesisBlock().getWork(), 0);
             } catch (VerificationException e) {
                 e.printStackTrace();
+                return null;
             }
         }
-        return highestCheckpointBeforeHeight.getValue();
+        return checkpointsByHeight[low - 1];
+    }
+
+    /**
+     * Returns the checkpoint a replay of the blockchain from the specified time starts from. This allows for block header drift
+     * in the same way as CheckpointManager.checkpoint.
+     *
+     * @param timeSecs The time, in seconds, to replay from
+     */
+    public StoredBlock getCheckpointToReplayFrom(long timeSecs) {
+        long earliestTimeSecs = params.getGenesisBlock().getTimeSeconds() + 1;
+        return getCheckpointBefore(Math.max(earliestTimeSecs, timeSecs - BLOCK_HEADER_DRIFT_IN_SECONDS));
+    }
+
+    /**
+     * Initialise the block store with the checkpoint before the specified time, as CheckpointManager.checkpoint does,
+     * but without re-reading the checkpoints.
+     *
+     * @param blockStore The empty block store to initialise
+     * @param timeSecs The time, in seconds, to checkpoint before
+     */
+    public void checkpoint(BlockStore blockStore, long timeSecs) throws BlockStoreException {
+        StoredBlock checkpoint = getCheckpointToReplayFrom(timeSecs);
+        blockStore.put(checkpoint);
+        blockStore.setChainHead(checkpoint);
     }
-}
\ No newline at end of file
+}
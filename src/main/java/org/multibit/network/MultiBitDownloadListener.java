@@ -108,6 +108,7 @@ public class MultiBitDownloadListener extends DownloadListener {
                     if (currentReplayTask.getStartHeight() != ReplayTask.UNKNOWN_START_HEIGHT) {
                         double denominator = Math.max(blocksToDownloadAtStart, ReplayManager.INSTANCE.getActualLastChainHeight() - currentReplayTask.getStartHeight());
                         pct = (int)(100 * ( 1.0 - (double)blocksSoFar/denominator));
+                        currentReplayTask.setPercentComplete((long) pct);
                     }
                     //log.debug("blocksSoFar = " + blocksSoFar + ", actualLastChainHeight = " + ReplayManager.INSTANCE.getActualLastChainHeight() +
                     //        ", startHeight = " + currentReplayTask.getStartHeight() + ", percent = " + pct);
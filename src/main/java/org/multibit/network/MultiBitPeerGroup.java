@@ -15,24 +15,86 @@
  */
 package org.multibit.network;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.FilteredBlock;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerEventListener;
 import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 public class MultiBitPeerGroup extends PeerGroup {
+    private static final Logger log = LoggerFactory.getLogger(MultiBitPeerGroup.class);
+
     private final Controller controller;
     private final BitcoinController bitcoinController;
+    private final NetworkParameters networkParameters;
+    private final BlockChain chain;
+    private final PeerScores peerScores;
     MultiBitDownloadListener multiBitDownloadListener = null;
 
     public static final int MAXIMUM_NUMBER_OF_PEERS = 6;
 
-        
-    public MultiBitPeerGroup(BitcoinController bitcoinController, NetworkParameters params, BlockChain chain) {
+    /**
+     * The blockchain is downloaded from several peers at once when at least this many peers are connected.
+     */
+    public static final int MINIMUM_NUMBER_OF_PEERS_FOR_PARALLEL_DOWNLOAD = 2;
+
+    /**
+     * The blockchain is downloaded from several peers at once when at least this many blocks are needed.
+     */
+    public static final int MINIMUM_NUMBER_OF_BLOCKS_FOR_PARALLEL_DOWNLOAD = 1000;
+
+    /**
+     * How long to wait for the peers to connect before the download is started.
+     */
+    private static final long TIME_TO_WAIT_FOR_PEERS = 10000; // ms
+
+    /**
+     * Runs the parallel downloads. The thread stops when idle as a new PeerGroup is created for each replay.
+     */
+    private final ExecutorService downloadExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setNameFormat("parallel-block-download-%d")
+                    .setDaemon(true).build());
+
+    /**
+     * The wallets added to the PeerGroup, which the parallel download looks in for transactions a filtered block
+     * arrives without.
+     */
+    private final List<Wallet> wallets = new CopyOnWriteArrayList<Wallet>();
+
+    public MultiBitPeerGroup(BitcoinController bitcoinController, NetworkParameters params, BlockChain chain, PeerScores peerScores) {
         super(params, chain);
+        this.networkParameters = params;
+        this.chain = chain;
+        this.peerScores = peerScores;
         this.bitcoinController = bitcoinController;
         this.controller = this.bitcoinController;
         multiBitDownloadListener = new MultiBitDownloadListener(this.bitcoinController);
@@ -51,6 +113,171 @@ public class MultiBitPeerGroup extends PeerGroup {
         startBlockChainDownload(multiBitDownloadListener);
     }
 
+    /**
+     * Start downloading the blockchain from peers in the background. This returns at once - the
+     * multiBitDownloadListener is told of the progress and when the download is complete.
+     *
+     * <p>When enough peers are connected and there are enough blocks to download the blocks are first fetched from
+     * several peers at once. The download peer then finishes the download and keeps the blockchain up to date.
+     */
+    public void startParallelBlockChainDownload() {
+        downloadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                downloadBlocksInParallel();
+                startBlockChainDownload(multiBitDownloadListener);
+            }
+        });
+    }
+
+    /**
+     * Download the blocks from the connected peers at once, if there are enough peers and blocks to make it worthwhile.
+     * Any blocks not downloaded are left to the download peer.
+     */
+    private void downloadBlocksInParallel() {
+        try {
+            waitForPeers(MINIMUM_NUMBER_OF_PEERS_FOR_PARALLEL_DOWNLOAD).get(TIME_TO_WAIT_FOR_PEERS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            log.debug("Could not wait for peers. " + e.getMessage());
+        } catch (TimeoutException e) {
+            // Use the peers that have connected.
+        }
+
+        // Only peers that understand Bloom filters can send filtered blocks. The best scoring peers are asked first.
+        List<Peer> peers = new ArrayList<Peer>();
+        for (Peer peer : getConnectedPeers()) {
+            if (peer.getPeerVersionMessage() != null && peer.getPeerVersionMessage().clientVersion >= FilteredBlock.MIN_PROTOCOL_VERSION) {
+                peers.add(peer);
+            }
+        }
+        peerScores.sortBestFirst(peers);
+        Peer headersPeer = null;
+        for (Peer peer : peers) {
+            if (headersPeer == null || peer.getBestHeight() > headersPeer.getBestHeight()) {
+                headersPeer = peer;
+            }
+        }
+        if (peers.size() < MINIMUM_NUMBER_OF_PEERS_FOR_PARALLEL_DOWNLOAD
+                || headersPeer.getBestHeight() - chain.getBestChainHeight() < MINIMUM_NUMBER_OF_BLOCKS_FOR_PARALLEL_DOWNLOAD) {
+            return;
+        }
+
+        log.debug("Downloading blocks from " + peers.size() + " peers at once");
+        ParallelBlockFetcher parallelBlockFetcher = new ParallelBlockFetcher(chain, networkParameters, getFastCatchupTimeSecs(), wallets,
+                Arrays.<PeerEventListener>asList(multiBitDownloadListener, bitcoinController.getPeerEventListener()), peerScores);
+
+        // The download peer would otherwise add the blocks it is told about to the chain at the same time as the fetcher.
+        Peer downloadPeer = getDownloadPeer();
+        if (downloadPeer != null) {
+            downloadPeer.setDownloadData(false);
+        }
+        try {
+            parallelBlockFetcher.fetch(peers, headersPeer);
+        } catch (IOException | VerificationException e) {
+            // The download peer carries on from wherever the parallel download got to.
+            log.error("Could not download blocks in parallel. " + e.getClass().getName() + " " + e.getMessage());
+        } finally {
+            // The download peer may have changed if the one stopped disconnected.
+            if (downloadPeer != null && downloadPeer == getDownloadPeer()) {
+                downloadPeer.setDownloadData(true);
+            }
+        }
+    }
+
+    @Override
+    public void addWallet(Wallet wallet) {
+        super.addWallet(wallet);
+        wallets.add(wallet);
+    }
+
+    @Override
+    public void removeWallet(Wallet wallet) {
+        super.removeWallet(wallet);
+        wallets.remove(wallet);
+    }
+
+    /**
+     * Choose the best scoring peer out of those as far along the chain and as up to date as the peer the PeerGroup
+     * would choose.
+     */
+    @Override
+    protected Peer selectDownloadPeer(List<Peer> peers) {
+        Peer defaultPeer = super.selectDownloadPeer(peers);
+        if (defaultPeer == null || defaultPeer.getPeerVersionMessage() == null) {
+            return defaultPeer;
+        }
+
+        Peer bestPeer = defaultPeer;
+        double bestScore = peerScores.getScore(defaultPeer);
+        for (Peer peer : peers) {
+            if (peer.getPeerVersionMessage() != null
+                    && peer.getPeerVersionMessage().clientVersion >= defaultPeer.getPeerVersionMessage().clientVersion
+                    && peer.getBestHeight() >= defaultPeer.getBestHeight()) {
+                double score = peerScores.getScore(peer);
+                if (score > bestScore) {
+                    bestPeer = peer;
+                    bestScore = score;
+                }
+            }
+        }
+        return bestPeer;
+    }
+
+    /**
+     * Ping all the connected peers at once, best scoring first, to check the connection to the bitcoin network.
+     * Peers that fail the ping or do not answer before the timeout are recorded as failing the ping, but only if
+     * another peer answered.
+     *
+     * @param timeout The time to wait for any peer to answer, in milliseconds
+     * @return true if at least one peer answered in time
+     */
+    public boolean pingPeers(long timeout) {
+        List<Peer> peers = new ArrayList<Peer>(getConnectedPeers());
+        peerScores.sortBestFirst(peers);
+
+        final CountDownLatch answered = new CountDownLatch(1);
+        Map<Peer, ListenableFuture<Long>> pings = new LinkedHashMap<Peer, ListenableFuture<Long>>();
+        for (final Peer peer : peers) {
+            log.debug("Ping: {}", peer.getAddress().toString());
+            try {
+                ListenableFuture<Long> ping = peer.ping();
+                pings.put(peer, ping);
+                Futures.addCallback(ping, new FutureCallback<Long>() {
+                    @Override
+                    public void onSuccess(Long pingTime) {
+                        peerScores.recordPingTime(peer, pingTime);
+                        answered.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. Message was " + throwable.getMessage());
+                    }
+                });
+            } catch (ProtocolException e) {
+                log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. Message was " + e.getMessage());
+            }
+        }
+        if (pings.isEmpty()) {
+            return false;
+        }
+        peerScores.recordPings(pings, timeout);
+
+        try {
+            return answered.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public PeerScores getPeerScores() {
+        return peerScores;
+    }
+
     public MultiBitDownloadListener getMultiBitDownloadListener() {
         return multiBitDownloadListener;
     }
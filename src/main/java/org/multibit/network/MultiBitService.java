@@ -23,7 +23,8 @@ import com.google.bitcoin.net.discovery.IrcDiscovery;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.SPVBlockStore;
-import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.multibit.ApplicationDataDirectoryLocator;
 import org.multibit.MultiBit;
@@ -31,12 +32,14 @@ import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandlerException;
+import org.multibit.file.WalletLoadException;
 import org.multibit.file.WalletSaveException;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.BitcoinModel;
 import org.multibit.model.bitcoin.WalletData;
 import org.multibit.model.bitcoin.WalletInfoData;
+import org.multibit.model.bitcoin.WalletLoader;
 import org.multibit.model.core.CoreModel;
 import org.multibit.model.core.StatusEnum;
 import org.multibit.store.MultiBitWalletVersion;
@@ -47,7 +50,6 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
@@ -56,9 +58,11 @@ import java.security.SecureRandom;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -86,6 +90,8 @@ public class MultiBitService {
   public static final String CHECKPOINTS_SUFFIX = ".checkpoints";
   public static final String WALLET_SUFFIX = ".wallet";
 
+  public static final int MAXIMUM_NUMBER_OF_WALLET_LOAD_THREADS = 4;
+
   public static final String IRC_CHANNEL_TEST = "#bitcoinTEST";
   public static final String IRC_CHANNEL_TESTNET3 = "#bitcoinTEST3";
 
@@ -106,9 +112,38 @@ public class MultiBitService {
 
   private SecureRandom secureRandom = new SecureRandom();
 
+  /**
+   * Loads the wallets of stub WalletData when they are first used.
+   */
+  private final WalletLoader stubWalletLoader = new WalletLoader() {
+    @Override
+    public void loadWallet(WalletData perWalletModelData) {
+      loadStubWallet(perWalletModelData);
+    }
+  };
+
+  /**
+   * The checkpoints, loaded once and reloaded only when the checkpoints file changes.
+   */
   private MultiBitCheckpointManager checkpointManager;
+  private final Object checkpointManagerLock = new Object();
   private String checkpointsFilename;
 
+  /**
+   * Batches filter recalculations and adapts the filter to the false positive rate the peers deliver.
+   */
+  private final BloomFilterManager bloomFilterManager;
+
+  /**
+   * The scores of the peers, kept across restarts.
+   */
+  private final PeerScores peerScores;
+
+  /**
+   * How long a send waits for any peer to answer a ping.
+   */
+  private static final long PING_TIMEOUT = 4000; // ms
+
   public static Date genesisBlockCreationDate;
 
 
@@ -148,6 +183,14 @@ public class MultiBitService {
     }
 
     networkParameters = this.bitcoinController.getModel().getNetworkParameters();
+    bloomFilterManager = new BloomFilterManager(this.bitcoinController);
+
+    String peersFilename = getFilePrefix() + PeerScores.PEERS_SUFFIX;
+    if (!"".equals(controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory())) {
+      peersFilename = controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory() + File.separator + peersFilename;
+    }
+    peerScores = new PeerScores(new File(peersFilename));
+    peerScores.load();
     log.debug("Network parameters = " + networkParameters);
 
     try {
@@ -175,21 +218,8 @@ public class MultiBitService {
       handleError(e);
     }
 
-    FileInputStream stream = null;
-    try {
-      stream = new FileInputStream(checkpointsFilename);
-      checkpointManager = new MultiBitCheckpointManager(networkParameters, stream);
-    } catch (IOException e) {
-      log.error("Error creating checkpointManager " + e.getClass().getName() + " " + e.getMessage());
-    } finally {
-      if (stream != null) {
-        try {
-          stream.close();
-        } catch (IOException e) {
-          log.error("Error tidying up checkpointManager creation" + e.getClass().getName() + " " + e.getMessage());
-        }
-      }
-    }
+    // Load the checkpoints now so that they are ready for the first replay.
+    getCheckpointManager();
   }
 
   private void handleError(Exception e) {
@@ -279,33 +309,24 @@ public class MultiBitService {
       }
     }
 
-    // Load the existing checkpoint file and checkpoint from today.
+    // Use the existing checkpoints and checkpoint from today.
     if (blockStore != null && checkpointsFile.exists()) {
-      FileInputStream stream = null;
-      try {
-        stream = new FileInputStream(checkpointsFile);
-        if (checkpointDate == null) {
-          if (blockStoreCreatedNew) {
-            // Brand new block store - checkpoint from today. This
-            // will go back to the last checkpoint.
-            CheckpointManager.checkpoint(networkParameters, stream, blockStore, (new Date()).getTime() / 1000);
-          }
-        } else {
-          // Use checkpoint date (block replay).
-          CheckpointManager.checkpoint(networkParameters, stream, blockStore, checkpointDate.getTime() / 1000);
-        }
-      } finally {
-        if (stream != null) {
-          stream.close();
-          stream = null;
+      if (checkpointDate == null) {
+        if (blockStoreCreatedNew) {
+          // Brand new block store - checkpoint from today. This
+          // will go back to the last checkpoint.
+          loadCheckpointManager().checkpoint(blockStore, (new Date()).getTime() / 1000);
         }
+      } else {
+        // Use checkpoint date (block replay).
+        loadCheckpointManager().checkpoint(blockStore, checkpointDate.getTime() / 1000);
       }
     }
     return blockStore;
   }
 
   public void createNewPeerGroup() {
-    peerGroup = new MultiBitPeerGroup(bitcoinController, networkParameters, blockChain);
+    peerGroup = new MultiBitPeerGroup(bitcoinController, networkParameters, blockChain, peerScores);
     peerGroup.setFastCatchupTimeSecs(0); // genesis block
     peerGroup.setUserAgent("MultiBit", controller.getLocaliser().getVersionNumber());
 
@@ -340,6 +361,13 @@ public class MultiBitService {
     }
 
     if (!peersSpecified) {
+      // Try the best peers from previous runs first.
+      for (PeerAddress peerAddress : peerScores.getBestPeerAddresses(MultiBitPeerGroup.MAXIMUM_NUMBER_OF_PEERS)) {
+        peerGroup.addAddress(peerAddress);
+      }
+      // Adding addresses raises the maximum number of connections so put it back.
+      peerGroup.setMaxConnections(MultiBitPeerGroup.MAXIMUM_NUMBER_OF_PEERS);
+
       // Use DNS for production, IRC for test.
       if (TESTNET3_GENESIS_HASH.equals(bitcoinController.getModel().getNetworkParameters().getGenesisBlock().getHashAsString())) {
         peerGroup.addPeerDiscovery(new IrcDiscovery(IRC_CHANNEL_TESTNET3));
@@ -352,6 +380,9 @@ public class MultiBitService {
     // Add the controller as a PeerEventListener.
     peerGroup.addEventListener(bitcoinController.getPeerEventListener());
 
+    bloomFilterManager.setPeerGroup(peerGroup);
+    peerScores.setPeerGroup(peerGroup);
+
     // Add all existing wallets to the PeerGroup.
     if (controller != null && controller.getModel() != null) {
       List<WalletData> perWalletDataModels = bitcoinController.getModel().getPerWalletModelDataList();
@@ -360,7 +391,8 @@ public class MultiBitService {
         if (iterator != null) {
           while (iterator.hasNext()) {
             WalletData perWalletModelData = iterator.next();
-            if (perWalletModelData != null && perWalletModelData.getWallet() != null) {
+            // Stubs are added when their wallet is loaded.
+            if (perWalletModelData != null && !perWalletModelData.isStub() && perWalletModelData.getWallet() != null) {
               peerGroup.addWallet(perWalletModelData.getWallet());
             }
           }
@@ -369,9 +401,12 @@ public class MultiBitService {
     }
   }
 
+  /**
+   * Recalculate the fast catchup time and bloom filter shortly, so that keys added together are sent in one filter.
+   */
   public void recalculateFastCatchupAndFilter() {
     if (peerGroup != null) {
-      peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.FORCE_SEND);
+      bloomFilterManager.requestFilterRecalculation();
     }
   }
 
@@ -468,45 +503,336 @@ public class MultiBitService {
     }
 
     if (wallet != null) {
-      // Add the keys for this wallet to the address book as receiving
-      // addresses.
-      List<ECKey> keys = wallet.getKeychain();
-      if (keys != null) {
-        if (!newWalletCreated) {
-          perWalletModelDataToReturn = bitcoinController.getModel().getPerWalletModelDataByWalletFilename(walletFilename);
-        }
-        if (perWalletModelDataToReturn != null) {
-          WalletInfoData walletInfo = perWalletModelDataToReturn.getWalletInfo();
-          if (walletInfo != null) {
-            for (ECKey key : keys) {
-              if (key != null) {
-                Address address = key.toAddress(networkParameters);
-                walletInfo.addReceivingAddressOfKey(address);
+      if (!newWalletCreated) {
+        perWalletModelDataToReturn = bitcoinController.getModel().getPerWalletModelDataByWalletFilename(walletFilename);
+      }
+      addReceivingAddressesOfKeys(perWalletModelDataToReturn);
+
+      List<Wallet> wallets = new ArrayList<Wallet>();
+      wallets.add(wallet);
+      addWalletsToBlockChainAndPeerGroup(wallets);
+    }
+
+    return perWalletModelDataToReturn;
+  }
+
+  /**
+   * Initialize several wallets from their filenames, as at startup.
+   * The wallet files are read and parsed in parallel. The wallets are then added to the model in the order given,
+   * so that the user's wallet order is kept, and are added to the blockchain and peergroup in one step.
+   *
+   * @param walletFilenames the wallet filenames, in the order the wallets are shown
+   * @param loadErrors      is filled in with the error for each wallet that could not be loaded, by wallet filename
+   * @return the perWalletModelData of the wallets loaded, in the order given
+   */
+  public List<WalletData> addWalletsFromFilenames(List<String> walletFilenames, Map<String, Exception> loadErrors) {
+    List<WalletData> perWalletModelDataLoaded = new ArrayList<WalletData>();
+    if (walletFilenames == null || walletFilenames.isEmpty()) {
+      return perWalletModelDataLoaded;
+    }
+
+    int numberOfThreads = Math.max(1, Math.min(walletFilenames.size(),
+            Math.min(MAXIMUM_NUMBER_OF_WALLET_LOAD_THREADS, Runtime.getRuntime().availableProcessors())));
+    ExecutorService walletLoadExecutor = Executors.newFixedThreadPool(numberOfThreads,
+            new ThreadFactoryBuilder().setNameFormat("wallet-load-%d").setDaemon(true).build());
+
+    // With lazy wallet loading, wallets other than the active one are opened as stubs where possible.
+    final boolean lazyWalletLoading = Boolean.TRUE.toString().equalsIgnoreCase(
+            bitcoinController.getModel().getUserPreference(BitcoinModel.LAZY_WALLET_LOADING));
+    final String activeWalletFilename = bitcoinController.getModel().getUserPreference(BitcoinModel.ACTIVE_WALLET_FILENAME);
+
+    try {
+      // Read and parse the wallet files in parallel. This does not touch the model.
+      List<Future<WalletData>> walletReads = new ArrayList<Future<WalletData>>();
+      for (final String walletFilename : walletFilenames) {
+        walletReads.add(walletLoadExecutor.submit(new Callable<WalletData>() {
+          @Override
+          public WalletData call() {
+            if (isDefaultWalletFilename(walletFilename)) {
+              return null;
+            }
+            File walletFile = new File(walletFilename);
+            if (lazyWalletLoading && !walletFilename.equals(activeWalletFilename)) {
+              WalletData stubPerWalletModelData = bitcoinController.getFileHandler().readStubFromFile(walletFile);
+              if (stubPerWalletModelData != null) {
+                return stubPerWalletModelData;
               }
             }
+            return bitcoinController.getFileHandler().readFromFile(walletFile);
+          }
+        }));
+      }
+
+      // Add the wallets to the model in the order given.
+      List<Wallet> walletsToAdd = new ArrayList<Wallet>();
+      List<WalletData> stubsToWatch = new ArrayList<WalletData>();
+      for (int i = 0; i < walletFilenames.size(); i++) {
+        String walletFilename = walletFilenames.get(i);
+        try {
+          WalletData perWalletModelData;
+          if (isDefaultWalletFilename(walletFilename)) {
+            // The default wallet may need creating - this is done the usual way.
+            perWalletModelData = addWalletFromFilename(walletFilename);
+          } else {
+            WalletData readPerWalletModelData = Uninterruptibles.getUninterruptibly(walletReads.get(i));
+            boolean isStub = readPerWalletModelData != null && readPerWalletModelData.getWallet() == null;
+            perWalletModelData = bitcoinController.getFileHandler().addToModel(readPerWalletModelData);
+            if (isStub) {
+              // The wallet is loaded, and added to the blockchain and peergroup, when it is first used.
+              perWalletModelData.setWalletLoader(stubWalletLoader);
+              stubsToWatch.add(perWalletModelData);
+              log.debug("Opened wallet '" + walletFilename + "' as a stub");
+            } else if (perWalletModelData != null && perWalletModelData.getWallet() != null) {
+              addReceivingAddressesOfKeys(perWalletModelData);
+              walletsToAdd.add(perWalletModelData.getWallet());
+            }
+          }
+          if (perWalletModelData != null) {
+            perWalletModelDataLoaded.add(perWalletModelData);
+          } else {
+            // The FileHandler has already told the user why.
+            loadErrors.put(walletFilename, new WalletLoadException("Wallet '" + walletFilename + "' could not be loaded"));
           }
+        } catch (ExecutionException ee) {
+          Throwable cause = ee.getCause() == null ? ee : ee.getCause();
+          log.error("Could not load wallet '" + walletFilename + "'. " + cause.getClass().getCanonicalName() + " " + cause.getMessage());
+          loadErrors.put(walletFilename, cause instanceof Exception ? (Exception) cause : ee);
+        } catch (IOException | RuntimeException e) {
+          log.error("Could not load wallet '" + walletFilename + "'. " + e.getClass().getCanonicalName() + " " + e.getMessage());
+          loadErrors.put(walletFilename, e);
         }
       }
 
-      // Add wallet to blockchain.
-      if (blockChain != null) {
-        blockChain.addWallet(wallet);
-      } else {
-        log.error("Could not add wallet '" + walletFilename + "' to the blockChain as the blockChain is missing.\n"
-                + "This is bad. MultiBit is currently looking for a blockChain at '" + blockchainFilename + "'");
+      addWalletsToBlockChainAndPeerGroup(walletsToAdd);
+      for (WalletData stubPerWalletModelData : stubsToWatch) {
+        watchStub(stubPerWalletModelData);
       }
+    } finally {
+      walletLoadExecutor.shutdown();
+    }
 
-      // Add wallet to peergroup.
-      if (peerGroup != null) {
-        peerGroup.addWallet(wallet);
-        peerGroup.addEventListener(bitcoinController.getPeerEventListener());
-      } else {
-        log.error("Could not add wallet '" + walletFilename + "' to the peerGroup as the peerGroup is null. This is bad. ");
+    return perWalletModelDataLoaded;
+  }
+
+  /**
+   * Watch the public keys of a stub on the blockchain and in the Bloom filter with a wallet holding only those keys.
+   * A transaction paying one of the keys, pending or in a block, loads the stub. (Only the stub can spend from its
+   * keys and it is loaded to do so.) Until then the blocks the watching wallet sees do not need replaying when the
+   * stub is loaded.
+   */
+  private void watchStub(final WalletData perWalletModelData) {
+    if (blockChain == null || peerGroup == null) {
+      return;
+    }
+    WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+    List<byte[]> publicKeys = walletInfo.getCachedPublicKeys();
+    if (publicKeys.isEmpty()) {
+      return;
+    }
+
+    Wallet watchingWallet = new Wallet(networkParameters);
+    long now = System.currentTimeMillis() / 1000;
+    for (byte[] publicKey : publicKeys) {
+      ECKey key = new ECKey(null, publicKey);
+      // The keys are only watched from now on - earlier blocks are covered by the wallet itself.
+      key.setCreationTimeSeconds(now);
+      watchingWallet.addKey(key);
+    }
+    try {
+      watchingWallet.setLastBlockSeenHeight(Integer.parseInt(walletInfo.getProperty(WalletInfoData.CACHED_LAST_BLOCK_SEEN_HEIGHT_PROPERTY)));
+    } catch (NumberFormatException nfe) {
+      return;
+    }
+    watchingWallet.addEventListener(new AbstractWalletEventListener() {
+      @Override
+      public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+        perWalletModelData.loadWalletIfStubInBackground();
+      }
+    });
+
+    blockChain.addWallet(watchingWallet);
+    peerGroup.addWallet(watchingWallet);
+    // Read after the wallet is added, so a block connected in between can only make this too high, never too low.
+    perWalletModelData.setStubWatchingWallet(watchingWallet, blockChain.getBestChainHeight());
+  }
+
+  /**
+   * Stop watching the keys of a stub.
+   */
+  private void stopWatchingStub(WalletData perWalletModelData) {
+    Wallet watchingWallet = perWalletModelData.getStubWatchingWallet();
+    if (watchingWallet == null) {
+      return;
+    }
+    if (blockChain != null) {
+      blockChain.removeWallet(watchingWallet);
+    }
+    if (peerGroup != null) {
+      peerGroup.removeWallet(watchingWallet);
+    }
+    perWalletModelData.setStubWatchingWallet(null, -1);
+  }
+
+  /**
+   * Load the wallet of a stub WalletData when it is first used.
+   * The wallet is added to the blockchain and peergroup and any blocks it has missed are replayed.
+   * Blocks the stub's watching wallet saw without a transaction for the stub are not replayed.
+   */
+  private void loadStubWallet(WalletData perWalletModelData) {
+    log.debug("Loading the stub wallet '" + perWalletModelData.getWalletFilename() + "'");
+    Wallet watchingWallet = perWalletModelData.getStubWatchingWallet();
+    int stubWatchedFromHeight = perWalletModelData.getStubWatchedFromHeight();
+
+    WalletData loadedPerWalletModelData;
+    try {
+      loadedPerWalletModelData = bitcoinController.getFileHandler().readFromFile(new File(perWalletModelData.getWalletFilename()));
+    } catch (WalletLoadException | WalletVersionException e) {
+      String message = controller.getLocaliser().getString("openWalletSubmitAction.walletNotLoaded",
+              new Object[] { perWalletModelData.getWalletFilename(), e.getMessage() });
+      log.error(message);
+      MessageManager.INSTANCE.addMessage(new Message(message));
+      return;
+    }
+    if (loadedPerWalletModelData == null || loadedPerWalletModelData.getWallet() == null) {
+      return;
+    }
+    // The wallet takes over from the watching wallet.
+    stopWatchingStub(perWalletModelData);
+
+    // The wallet info of the stub is kept as it may have been changed since it was read.
+    Wallet wallet = loadedPerWalletModelData.getWallet();
+    WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+    synchronized (walletInfo) {
+      perWalletModelData.setWallet(wallet);
+      perWalletModelData.setWalletJournal(loadedPerWalletModelData.getWalletJournal());
+      walletInfo.setWalletVersion(wallet.getVersion());
+      walletInfo.checkAllReceivingAddressesAppearInWallet(wallet);
+      if (loadedPerWalletModelData.isLoadedFromBackup()) {
+        // Keep the rolling backup the wallet was loaded from.
+        walletInfo.put(BitcoinModel.WALLET_BACKUP_FILE, "");
       }
+    }
+    if (loadedPerWalletModelData.isLoadedFromBackup()) {
+      try {
+        bitcoinController.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+      } catch (WalletSaveException wse) {
+        // The wallet is left dirty so the save is tried again.
+        log.error("Could not save wallet '" + perWalletModelData.getWalletFilename() + "' loaded from a backup. "
+                + wse.getClass().getCanonicalName() + " " + wse.getMessage());
+      }
+    }
 
+    wallet.addEventListener(bitcoinController);
+    perWalletModelData.setWalletTableDataList(bitcoinController.getModel().createWalletTableData(bitcoinController, perWalletModelData));
+    addReceivingAddressesOfKeys(perWalletModelData);
+
+    // If the wallet was up to date when its keys started to be watched and none of them has been used since, it is
+    // up to date as far as the watching wallet got.
+    if (watchingWallet != null && watchingWallet.getTransactions(true).isEmpty() && stubWatchedFromHeight >= 0
+            && stubWatchedFromHeight <= wallet.getLastBlockSeenHeight()
+            && watchingWallet.getLastBlockSeenHeight() > wallet.getLastBlockSeenHeight()) {
+      log.debug("Wallet '" + perWalletModelData.getWalletFilename() + "' was watched up to block "
+              + watchingWallet.getLastBlockSeenHeight() + " without being used");
+      wallet.setLastBlockSeenHeight(watchingWallet.getLastBlockSeenHeight());
+      wallet.setLastBlockSeenHash(watchingWallet.getLastBlockSeenHash());
+      bitcoinController.getFileHandler().journalLastBlockSeen(perWalletModelData);
     }
 
-    return perWalletModelDataToReturn;
+    List<Wallet> wallets = new ArrayList<Wallet>();
+    wallets.add(wallet);
+    addWalletsToBlockChainAndPeerGroup(wallets);
+
+    replayBlocksMissedByWallet(perWalletModelData);
+  }
+
+  /**
+   * If the wallet is behind the blockchain, replay the blockchain for it from its last block seen.
+   */
+  private void replayBlocksMissedByWallet(WalletData perWalletModelData) {
+    int lastBlockSeenHeight = perWalletModelData.getWallet().getLastBlockSeenHeight();
+    int currentChainHeight = -1;
+    if (blockChain != null && blockChain.getChainHead() != null) {
+      currentChainHeight = blockChain.getChainHead().getHeight();
+    }
+    if (lastBlockSeenHeight <= 0 || currentChainHeight <= 0 || lastBlockSeenHeight >= currentChainHeight) {
+      return;
+    }
+    log.debug("Wallet '" + perWalletModelData.getWalletFilename() + "' last saw block " + lastBlockSeenHeight
+            + " but the chain is at " + currentChainHeight + ". Replaying.");
+
+    StoredBlock syncFromStoredBlock = null;
+    MultiBitCheckpointManager currentCheckpointManager = getCheckpointManager();
+    if (currentCheckpointManager != null) {
+      syncFromStoredBlock = currentCheckpointManager.getCheckpointBeforeOrAtHeight(lastBlockSeenHeight);
+    }
+
+    List<WalletData> replayPerWalletModelList = new ArrayList<WalletData>();
+    replayPerWalletModelList.add(perWalletModelData);
+    ReplayTask replayTask;
+    if (syncFromStoredBlock == null) {
+      // Sync from genesis block.
+      replayTask = new ReplayTask(replayPerWalletModelList, null, 0);
+    } else {
+      Date syncDate = null;
+      if (syncFromStoredBlock.getHeader() != null) {
+        syncDate = new Date(syncFromStoredBlock.getHeader().getTimeSeconds() * 1000);
+      }
+      replayTask = new ReplayTask(replayPerWalletModelList, syncDate, syncFromStoredBlock.getHeight());
+    }
+    ReplayManager.INSTANCE.offerReplayTask(replayTask);
+  }
+
+  private boolean isDefaultWalletFilename(String walletFilename) {
+    return walletFilename == null || walletFilename.equals("") || new File(walletFilename).isDirectory();
+  }
+
+  /**
+   * Add the keys of a wallet to its address book as receiving addresses.
+   */
+  private void addReceivingAddressesOfKeys(WalletData perWalletModelData) {
+    if (perWalletModelData == null || perWalletModelData.getWallet() == null) {
+      return;
+    }
+    List<ECKey> keys = perWalletModelData.getWallet().getKeychain();
+    WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+    if (keys != null && walletInfo != null) {
+      for (ECKey key : keys) {
+        if (key != null) {
+          Address address = key.toAddress(networkParameters);
+          walletInfo.addReceivingAddressOfKey(address);
+        }
+      }
+    }
+  }
+
+  /**
+   * Add wallets to the blockchain and peergroup.
+   * The peer event listener is added once for the batch rather than once per wallet.
+   */
+  private void addWalletsToBlockChainAndPeerGroup(List<Wallet> wallets) {
+    if (wallets.isEmpty()) {
+      return;
+    }
+
+    // Add wallets to blockchain.
+    if (blockChain != null) {
+      for (Wallet wallet : wallets) {
+        blockChain.addWallet(wallet);
+      }
+    } else {
+      log.error("Could not add " + wallets.size() + " wallet(s) to the blockChain as the blockChain is missing.\n"
+              + "This is bad. MultiBit is currently looking for a blockChain at '" + blockchainFilename + "'");
+    }
+
+    // Add wallets to peergroup.
+    if (peerGroup != null) {
+      for (Wallet wallet : wallets) {
+        peerGroup.addWallet(wallet);
+      }
+      peerGroup.addEventListener(bitcoinController.getPeerEventListener());
+    } else {
+      log.error("Could not add " + wallets.size() + " wallet(s) to the peerGroup as the peerGroup is null. This is bad. ");
+    }
   }
 
   /**
@@ -542,6 +868,11 @@ public class MultiBitService {
     }
     log.debug("Blockstore is '" + blockStore + "'");
 
+    // The replay goes back in time so the stubs' watching wallets no longer say anything about the stubs.
+    for (WalletData loopPerWalletModelData : bitcoinController.getModel().getPerWalletModelDataList()) {
+      stopWatchingStub(loopPerWalletModelData);
+    }
+
     log.debug("Creating blockchain ...");
     blockChain = new MultiBitBlockChain(bitcoinController.getModel().getNetworkParameters(), blockStore);
     log.debug("Created blockchain '" + blockChain + "'");
@@ -550,7 +881,7 @@ public class MultiBitService {
     if (blockChain != null) {
       List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
       for (WalletData loopPerWalletModelData : perWalletModelDataList) {
-        if (loopPerWalletModelData.getWallet() != null) {
+        if (!loopPerWalletModelData.isStub() && loopPerWalletModelData.getWallet() != null) {
           blockChain.addWallet(loopPerWalletModelData.getWallet());
         }
       }
@@ -571,27 +902,13 @@ public class MultiBitService {
   public Transaction sendCoins(WalletData perWalletModelData, SendRequest sendRequest,
                                CharSequence password) throws java.io.IOException, AddressFormatException, KeyCrypterException {
 
-    // Ping the peers to check the bitcoin network connection
-    List<Peer> connectedPeers = peerGroup.getConnectedPeers();
-    boolean atLeastOnePingWorked = false;
-    if (connectedPeers != null) {
-      for (Peer peer : connectedPeers) {
-
-        log.debug("Ping: {}", peer.getAddress().toString());
-
-        try {
-
-          ListenableFuture<Long> result = peer.ping();
-          result.get(4, TimeUnit.SECONDS);
-          atLeastOnePingWorked = true;
-          break;
-        } catch (ProtocolException | InterruptedException | ExecutionException | TimeoutException e) {
-          log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. Message was " + e.getMessage());
-        }
-      }
+    // The wallet sent from is the active wallet, which is only made active once it is loaded.
+    if (perWalletModelData.getWallet() == null) {
+      throw new IllegalStateException("The wallet '" + perWalletModelData.getWalletFilename() + "' is not loaded");
     }
 
-    if (!atLeastOnePingWorked) {
+    // Ping the peers all at once to check the bitcoin network connection
+    if (!peerGroup.pingPeers(PING_TIMEOUT)) {
       throw new IllegalStateException("All peers failed ping test (check network)");
     }
 
@@ -661,7 +978,9 @@ public class MultiBitService {
 
         if (perWalletModelDataList != null) {
           for (WalletData loopPerWalletModelData : perWalletModelDataList) {
-            if (!perWalletModelData.getWalletFilename().equals(loopPerWalletModelData.getWalletFilename())) {
+            // A stub picks up the send when its wallet is loaded and replayed.
+            if (!perWalletModelData.getWalletFilename().equals(loopPerWalletModelData.getWalletFilename())
+                    && !loopPerWalletModelData.isStub()) {
               Wallet loopWallet = loopPerWalletModelData.getWallet();
               if (loopWallet.isPendingTransactionRelevant(sendTransaction)) {
                 // The loopPerWalletModelData is marked as dirty.
@@ -692,6 +1011,14 @@ public class MultiBitService {
     return peerGroup;
   }
 
+  public BloomFilterManager getBloomFilterManager() {
+    return bloomFilterManager;
+  }
+
+  public PeerScores getPeerScores() {
+    return peerScores;
+  }
+
   public MultiBitBlockChain getChain() {
     return blockChain;
   }
@@ -710,7 +1037,32 @@ public class MultiBitService {
     return checkpointsFilename;
   }
 
+  /**
+   * @return The checkpoints in the current checkpoints file, or null if they cannot be loaded
+   */
   public MultiBitCheckpointManager getCheckpointManager() {
-    return checkpointManager;
+    try {
+      return loadCheckpointManager();
+    } catch (IOException e) {
+      log.error("Error creating checkpointManager " + e.getClass().getName() + " " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Load the checkpoints in the current checkpoints file, unless they are already loaded and the file has not changed.
+   */
+  private MultiBitCheckpointManager loadCheckpointManager() throws IOException {
+    synchronized (checkpointManagerLock) {
+      if (checkpointsFilename == null || !new File(checkpointsFilename).exists()) {
+        return checkpointManager;
+      }
+      File checkpointsFile = new File(checkpointsFilename);
+      if (checkpointManager == null || !checkpointManager.isLoadedFrom(checkpointsFile)) {
+        checkpointManager = MultiBitCheckpointManager.load(networkParameters, checkpointsFile);
+        log.debug("Loaded checkpoints from '" + checkpointsFile.getAbsolutePath() + "'");
+      }
+      return checkpointManager;
+    }
   }
 }
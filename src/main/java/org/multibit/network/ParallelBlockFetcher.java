@@ -0,0 +1,635 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.GetDataMessage;
+import com.google.bitcoin.core.GetHeadersMessage;
+import com.google.bitcoin.core.HeadersMessage;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerEventListener;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.PrunedException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ParallelBlockFetcher downloads the blocks after the chain head from several peers at once.
+ *
+ * The block headers are fetched ahead from a single peer. The filtered blocks for them are requested BLOCKS_PER_REQUEST
+ * at a time from all the fetching peers, with at most MAXIMUM_REQUESTS_IN_FLIGHT_PER_PEER requests outstanding per peer.
+ * Each request is followed by a ping. A peer answers in order so once the pong arrives any block the peer did not send
+ * is requested again. The blocks received are put back in order before they are added to the block chain.
+ *
+ * A peer does not resend a transaction it has already sent, so a filtered block can arrive without some of its matched
+ * transactions. Those the wallets already hold are confirmed by the wallets from the block's transaction hashes. The rest
+ * are requested again from the peer before the block is added, and if they still do not arrive the download fails so the
+ * download peer carries on from the block instead.
+ *
+ * The throughput of each peer is measured as its requests complete and a peer that is much slower than the fastest peer
+ * is given no more requests. The state of the requests is kept by a BlockRequestTracker. Blocks before the fast catchup
+ * time are added as headers only, as the PeerGroup does.
+ */
+public class ParallelBlockFetcher extends AbstractPeerEventListener {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockFetcher.class);
+
+    static final int BLOCKS_PER_REQUEST = 100;
+
+    static final int MAXIMUM_REQUESTS_IN_FLIGHT_PER_PEER = 2;
+
+    /**
+     * More headers are fetched when fewer than this many blocks are waiting to be added to the block chain.
+     */
+    private static final int MINIMUM_NUMBER_OF_BLOCKS_AHEAD = 4000;
+
+    /**
+     * A headers message holds at most this many headers - fewer means the peer's tip has been reached.
+     */
+    private static final int MAXIMUM_HEADERS_PER_MESSAGE = 2000;
+
+    /**
+     * A peer is dropped when its throughput falls below this fraction of the fastest peer's throughput.
+     */
+    static final double SLOW_PEER_THROUGHPUT_FRACTION = 0.25;
+
+    /**
+     * The number of requests a peer has to complete before its throughput is compared with the other peers.
+     */
+    static final int MINIMUM_REQUESTS_TO_MEASURE_THROUGHPUT = 3;
+
+    private static final long RESPONSE_TIMEOUT = 60000; // ms
+
+    private static final long WAIT_TIME = 100; // ms
+
+    private final AbstractBlockChain blockChain;
+    private final NetworkParameters networkParameters;
+    private final long fastCatchupTimeSecs;
+    private final List<PeerEventListener> downloadListeners;
+    private final PeerScores peerScores;
+    private final List<Wallet> wallets;
+
+    /**
+     * Guards the request state and is notified when a block arrives or a request completes.
+     */
+    private final Object lock = new Object();
+
+    private final BlockRequestTracker<Peer> requests = new BlockRequestTracker<Peer>();
+
+    private final Map<Peer, PeerState> peerStates = new ConcurrentHashMap<Peer, PeerState>();
+
+    /**
+     * The blocks whose headers have been fetched but which have not yet been added to the block chain, in chain order.
+     * Only used on the fetching thread.
+     */
+    private final Deque<StoredBlock> blocksToAdd = new ArrayDeque<StoredBlock>();
+    private final Set<Sha256Hash> headerOnlyBlocks = new HashSet<Sha256Hash>();
+    private boolean fastCatchup;
+
+    private final Map<Sha256Hash, FilteredBlock> receivedBlocks = new ConcurrentHashMap<Sha256Hash, FilteredBlock>();
+
+    /**
+     * The received blocks that arrived without some of their matched transactions, by block hash.
+     */
+    private final Map<Sha256Hash, IncompleteBlock> incompleteBlocks = new ConcurrentHashMap<Sha256Hash, IncompleteBlock>();
+
+    /**
+     * The matched transactions that did not follow their filtered block, by transaction hash, with the block each is for.
+     */
+    private final Map<Sha256Hash, FilteredBlock> missingTransactions = new ConcurrentHashMap<Sha256Hash, FilteredBlock>();
+
+    private Peer headersPeer;
+    private volatile Sha256Hash awaitedHeadersAfter;
+    private final BlockingQueue<HeadersMessage> headersResponses = new LinkedBlockingQueue<HeadersMessage>();
+
+    /**
+     * The filtered block whose transactions are being received from a fetching peer. Only used on the peer's network thread.
+     */
+    private static class PeerState {
+        private FilteredBlock currentFilteredBlock;
+        private Set<Sha256Hash> currentTransactionHashes;
+    }
+
+    /**
+     * The matched transactions a filtered block arrived without and the peer that sent it.
+     */
+    private static class IncompleteBlock {
+        private final Peer peer;
+        private final Set<Sha256Hash> missingTransactionHashes;
+
+        /**
+         * The time the missing transactions were requested again, or 0 if they have not been.
+         */
+        private long requestTime;
+
+        /**
+         * Set once the peer has answered the request for the missing transactions.
+         */
+        private volatile boolean answered;
+
+        IncompleteBlock(Peer peer, Set<Sha256Hash> missingTransactionHashes) {
+            this.peer = peer;
+            this.missingTransactionHashes = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+            this.missingTransactionHashes.addAll(missingTransactionHashes);
+        }
+    }
+
+    /**
+     * @param blockChain The block chain to add the blocks to
+     * @param fastCatchupTimeSecs Blocks before this time are added as headers only
+     * @param wallets The wallets of the block chain, which are looked in for the transactions a filtered block arrives without
+     * @param downloadListeners The listeners told of the download progress, as if the blocks came from the headers peer
+     * @param peerScores The scores to record the block delivery and misbehaviour of the peers in
+     */
+    public ParallelBlockFetcher(AbstractBlockChain blockChain, NetworkParameters networkParameters, long fastCatchupTimeSecs,
+            List<Wallet> wallets, List<PeerEventListener> downloadListeners, PeerScores peerScores) {
+        this.blockChain = blockChain;
+        this.networkParameters = networkParameters;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.wallets = wallets;
+        this.downloadListeners = downloadListeners;
+        this.peerScores = peerScores;
+    }
+
+    /**
+     * Download the blocks after the chain head from the peers and add them to the block chain.
+     *
+     * @param peers The peers to download from
+     * @param headersPeer The peer to fetch the headers from - one of the peers
+     * @return The number of blocks added to the block chain
+     * @throws IOException If the download cannot be completed, for instance because every peer was dropped. The blocks
+     *             already added stay in the block chain.
+     */
+    public int fetch(List<Peer> peers, Peer headersPeer) throws IOException, VerificationException {
+        this.headersPeer = headersPeer;
+        synchronized (lock) {
+            for (Peer peer : peers) {
+                requests.addPeer(peer);
+            }
+        }
+        for (Peer peer : peers) {
+            peerStates.put(peer, new PeerState());
+            peer.addEventListener(this, Threading.SAME_THREAD);
+        }
+
+        StoredBlock lastHeader = blockChain.getChainHead();
+        fastCatchup = lastHeader.getHeader().getTimeSeconds() < fastCatchupTimeSecs;
+        boolean headersComplete = false;
+        int numberOfBlocksAdded = 0;
+        for (PeerEventListener downloadListener : downloadListeners) {
+            downloadListener.onChainDownloadStarted(headersPeer, getBlocksLeft(lastHeader, headersComplete));
+        }
+
+        try {
+            while (true) {
+                numberOfBlocksAdded += addReceivedBlocks(lastHeader, headersComplete);
+                if (headersComplete && blocksToAdd.isEmpty()) {
+                    log.debug("Added " + numberOfBlocksAdded + " blocks downloaded from " + peers.size() + " peers");
+                    return numberOfBlocksAdded;
+                }
+
+                List<BlockRequestTracker.Request<Peer>> requestsToSend;
+                synchronized (lock) {
+                    if (requests.getFailure() != null) {
+                        throw requests.getFailure();
+                    }
+                    checkForTimeouts();
+                    requestsToSend = requests.assignRequests(System.currentTimeMillis());
+                    if (requests.getNumberOfActivePeers() == 0) {
+                        throw new IOException("There are no peers left to download blocks from");
+                    }
+                }
+                sendRequests(requestsToSend);
+
+                if (!headersComplete && blocksToAdd.size() < MINIMUM_NUMBER_OF_BLOCKS_AHEAD) {
+                    // The peers keep downloading the blocks already requested whilst the next headers are fetched.
+                    List<StoredBlock> blocks = fetchHeaders(lastHeader);
+                    headersComplete = blocks.size() < MAXIMUM_HEADERS_PER_MESSAGE;
+                    if (!blocks.isEmpty()) {
+                        lastHeader = blocks.get(blocks.size() - 1);
+                        queueBlocks(blocks);
+                    }
+                    continue;
+                }
+
+                synchronized (lock) {
+                    StoredBlock nextBlock = blocksToAdd.peekFirst();
+                    if (nextBlock != null && (!receivedBlocks.containsKey(nextBlock.getHeader().getHash())
+                            || incompleteBlocks.containsKey(nextBlock.getHeader().getHash()))) {
+                        lock.wait(WAIT_TIME);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst downloading blocks", e);
+        } finally {
+            for (Peer peer : peers) {
+                peer.removeEventListener(this);
+            }
+            receivedBlocks.clear();
+            incompleteBlocks.clear();
+            missingTransactions.clear();
+        }
+    }
+
+    /**
+     * Add the blocks that are next in the chain and have been received to the block chain.
+     *
+     * @return The number of blocks added
+     */
+    private int addReceivedBlocks(StoredBlock lastHeader, boolean headersComplete) throws IOException, VerificationException {
+        int numberOfBlocksAdded = 0;
+        while (!blocksToAdd.isEmpty()) {
+            Block header = blocksToAdd.peekFirst().getHeader();
+            Sha256Hash hash = header.getHash();
+            boolean added;
+            try {
+                if (headerOnlyBlocks.remove(hash)) {
+                    added = blockChain.add(header);
+                } else {
+                    FilteredBlock filteredBlock = receivedBlocks.get(hash);
+                    if (filteredBlock == null || !fetchMissingTransactions(hash)) {
+                        break;
+                    }
+                    receivedBlocks.remove(hash);
+                    added = blockChain.add(filteredBlock);
+                }
+            } catch (PrunedException e) {
+                throw new IOException("Could not add block " + hash + " to the block chain", e);
+            }
+            if (!added) {
+                throw new VerificationException("Block " + hash + " does not connect to the block chain");
+            }
+            blocksToAdd.removeFirst();
+            numberOfBlocksAdded++;
+
+            int blocksLeft = getBlocksLeft(lastHeader, headersComplete);
+            for (PeerEventListener downloadListener : downloadListeners) {
+                downloadListener.onBlocksDownloaded(headersPeer, header, blocksLeft);
+            }
+        }
+        return numberOfBlocksAdded;
+    }
+
+    /**
+     * Make sure a received block has all its matched transactions before it is added to the block chain. The missing
+     * transactions the wallets do not hold are requested again from the peer that sent the block.
+     *
+     * @return true if the block has all its transactions, false if they have been requested and not yet arrived
+     * @throws IOException if the peer answered, or did not answer in time, without sending them all
+     */
+    private boolean fetchMissingTransactions(Sha256Hash blockHash) throws IOException {
+        final IncompleteBlock incompleteBlock = incompleteBlocks.get(blockHash);
+        if (incompleteBlock == null) {
+            return true;
+        }
+
+        if (incompleteBlock.requestTime == 0) {
+            // The wallets confirm the transactions they already hold from the block's transaction hashes.
+            for (Sha256Hash transactionHash : incompleteBlock.missingTransactionHashes) {
+                if (isInAWallet(transactionHash)) {
+                    missingTransactions.remove(transactionHash);
+                    incompleteBlock.missingTransactionHashes.remove(transactionHash);
+                }
+            }
+
+            incompleteBlock.requestTime = System.currentTimeMillis();
+            if (!incompleteBlock.missingTransactionHashes.isEmpty()) {
+                log.debug("Requesting " + incompleteBlock.missingTransactionHashes.size() + " transactions missing from filtered block "
+                        + blockHash + " from " + incompleteBlock.peer);
+                GetDataMessage getDataMessage = new GetDataMessage(networkParameters);
+                for (Sha256Hash transactionHash : incompleteBlock.missingTransactionHashes) {
+                    getDataMessage.addTransaction(transactionHash);
+                }
+                try {
+                    incompleteBlock.peer.sendMessage(getDataMessage);
+                    Futures.addCallback(incompleteBlock.peer.ping(), new FutureCallback<Long>() {
+                        @Override
+                        public void onSuccess(Long pingTime) {
+                            transactionsAnswered(incompleteBlock);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable throwable) {
+                            transactionsAnswered(incompleteBlock);
+                        }
+                    });
+                } catch (ProtocolException e) {
+                    throw new IOException("The peer " + incompleteBlock.peer + " cannot be pinged so cannot be asked for the transactions again", e);
+                } catch (RuntimeException e) {
+                    throw new IOException("The missing transactions could not be requested from " + incompleteBlock.peer, e);
+                }
+            }
+        }
+
+        if (incompleteBlock.missingTransactionHashes.isEmpty()) {
+            incompleteBlocks.remove(blockHash);
+            return true;
+        }
+        if (incompleteBlock.answered) {
+            throw new IOException("The peer " + incompleteBlock.peer + " did not send " + incompleteBlock.missingTransactionHashes.size()
+                    + " transactions of filtered block " + blockHash);
+        }
+        if (System.currentTimeMillis() - incompleteBlock.requestTime > RESPONSE_TIMEOUT) {
+            throw new IOException("Timed out waiting for the transactions of filtered block " + blockHash + " from " + incompleteBlock.peer);
+        }
+        return false;
+    }
+
+    /**
+     * Called on the peer's network thread once the peer has answered, or failed to answer, a request for missing transactions.
+     */
+    private void transactionsAnswered(IncompleteBlock incompleteBlock) {
+        synchronized (lock) {
+            incompleteBlock.answered = true;
+            lock.notifyAll();
+        }
+    }
+
+    private boolean isInAWallet(Sha256Hash transactionHash) {
+        for (Wallet wallet : wallets) {
+            if (wallet.getTransaction(transactionHash) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getBlocksLeft(StoredBlock lastHeader, boolean headersComplete) {
+        long headersLeft = headersComplete ? 0 : Math.max(0, headersPeer.getBestHeight() - lastHeader.getHeight());
+        return (int) (blocksToAdd.size() + headersLeft);
+    }
+
+    /**
+     * Queue the blocks to be added to the block chain, requesting those after the fast catchup time from the peers.
+     */
+    private void queueBlocks(List<StoredBlock> blocks) {
+        List<Sha256Hash> blocksToRequest = new ArrayList<Sha256Hash>();
+        for (StoredBlock block : blocks) {
+            blocksToAdd.addLast(block);
+            if (fastCatchup && block.getHeader().getTimeSeconds() < fastCatchupTimeSecs) {
+                headerOnlyBlocks.add(block.getHeader().getHash());
+            } else {
+                fastCatchup = false;
+                blocksToRequest.add(block.getHeader().getHash());
+            }
+        }
+
+        List<BlockRequestTracker.Request<Peer>> requestsToSend;
+        synchronized (lock) {
+            requests.queueBlocks(blocksToRequest);
+            requestsToSend = requests.assignRequests(System.currentTimeMillis());
+        }
+        sendRequests(requestsToSend);
+    }
+
+    /**
+     * Fetch the headers of the blocks after the specified block from the headers peer and check they form a chain.
+     */
+    private List<StoredBlock> fetchHeaders(StoredBlock fromBlock) throws IOException, VerificationException {
+        Sha256Hash fromHash = fromBlock.getHeader().getHash();
+        awaitedHeadersAfter = fromHash;
+        headersPeer.sendMessage(new GetHeadersMessage(networkParameters, Collections.singletonList(fromHash), Sha256Hash.ZERO_HASH));
+
+        HeadersMessage headersMessage;
+        try {
+            headersMessage = headersResponses.poll(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst waiting for block headers", e);
+        } finally {
+            awaitedHeadersAfter = null;
+        }
+        if (headersMessage == null) {
+            throw new IOException("Timed out waiting for block headers from " + headersPeer);
+        }
+
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock previousBlock = fromBlock;
+        for (Block header : headersMessage.getBlockHeaders()) {
+            if (!header.getPrevBlockHash().equals(previousBlock.getHeader().getHash())) {
+                throw new VerificationException("Block header " + header.getHashAsString() + " does not connect to the previous block");
+            }
+            header.verifyHeader();
+            previousBlock = previousBlock.build(header);
+            blocks.add(previousBlock);
+        }
+        return blocks;
+    }
+
+    /**
+     * Send the assigned requests, each followed by a ping. The lock is not held whilst sending as the peers' network threads
+     * take it to hand over the blocks.
+     */
+    private void sendRequests(List<BlockRequestTracker.Request<Peer>> requestsToSend) {
+        for (final BlockRequestTracker.Request<Peer> request : requestsToSend) {
+            final Peer peer = request.getPeer();
+            GetDataMessage getDataMessage = new GetDataMessage(networkParameters);
+            for (Sha256Hash blockHash : request.getBlockHashes()) {
+                getDataMessage.addFilteredBlock(blockHash);
+            }
+
+            try {
+                peer.sendMessage(getDataMessage);
+                Futures.addCallback(peer.ping(), new FutureCallback<Long>() {
+                    @Override
+                    public void onSuccess(Long pingTime) {
+                        requestCompleted(request);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        peerFailed(peer, "the ping failed - " + throwable.getMessage());
+                    }
+                });
+            } catch (ProtocolException e) {
+                peerFailed(peer, "it cannot be pinged");
+            } catch (RuntimeException e) {
+                peerFailed(peer, "the request could not be sent - " + e.getMessage());
+            }
+        }
+    }
+
+    private void peerFailed(Peer peer, String reason) {
+        synchronized (lock) {
+            requests.dropPeer(peer, reason);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Called on the peer's network thread once the peer has answered a request.
+     */
+    private void requestCompleted(BlockRequestTracker.Request<Peer> request) {
+        synchronized (lock) {
+            int numberOfMissingBlocks = requests.requestCompleted(request, System.currentTimeMillis());
+            if (numberOfMissingBlocks < 0) {
+                // The request was given to another peer when this peer was dropped.
+                return;
+            }
+            if (numberOfMissingBlocks > 0) {
+                peerScores.recordMisbehaviour(request.getPeer(), "it did not send the blocks it was asked for");
+            }
+            peerScores.recordBlocksDelivered(request.getPeer(), request.getBlockHashes().size() - numberOfMissingBlocks,
+                    request.getTimeTaken());
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Drop any peer that has not answered a request in time. Callers must hold the lock.
+     *
+     * The peer is only recorded as misbehaving if another peer has answered in that time, as otherwise it is more
+     * likely that our own connection failed.
+     */
+    private void checkForTimeouts() {
+        long now = System.currentTimeMillis();
+        for (Peer peer : requests.checkForTimeouts(now, RESPONSE_TIMEOUT)) {
+            if (requests.hasOtherPeerAnsweredSince(peer, now - RESPONSE_TIMEOUT)) {
+                peerScores.recordMisbehaviour(peer, "it did not answer a request for blocks in time");
+            }
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(Peer peer, int peerCount) {
+        if (peer != null && peerStates.containsKey(peer)) {
+            peerFailed(peer, "it disconnected");
+        }
+    }
+
+    /**
+     * Take the responses to the fetcher's requests off the peers' message streams. Runs on the peer's network thread.
+     */
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message m) {
+        PeerState peerState = peer == null ? null : peerStates.get(peer);
+        if (peerState == null) {
+            return m;
+        }
+
+        if (m instanceof Transaction && peerState.currentFilteredBlock != null) {
+            Transaction transaction = (Transaction) m;
+            if (peerState.currentTransactionHashes.remove(transaction.getHash())) {
+                peerState.currentFilteredBlock.provideTransaction(transaction);
+                if (peerState.currentTransactionHashes.isEmpty()) {
+                    finishFilteredBlock(peer, peerState);
+                }
+                return null;
+            }
+        }
+
+        // A transaction requested again because it did not follow its filtered block.
+        if (m instanceof Transaction) {
+            FilteredBlock filteredBlock = missingTransactions.remove(((Transaction) m).getHash());
+            if (filteredBlock != null) {
+                finishFilteredBlock(peer, peerState);
+                transactionFetched(filteredBlock, (Transaction) m);
+                return null;
+            }
+        }
+
+        // Anything else ends the run of transactions following a filtered block.
+        finishFilteredBlock(peer, peerState);
+
+        if (m instanceof HeadersMessage && peer == headersPeer) {
+            List<Block> headers = ((HeadersMessage) m).getBlockHeaders();
+            Sha256Hash headersAfter = awaitedHeadersAfter;
+            if (headersAfter != null && (headers.isEmpty() || headers.get(0).getPrevBlockHash().equals(headersAfter))) {
+                awaitedHeadersAfter = null;
+                headersResponses.add((HeadersMessage) m);
+                return null;
+            }
+        } else if (m instanceof FilteredBlock) {
+            FilteredBlock filteredBlock = (FilteredBlock) m;
+            if (requests.isAwaited(peer, filteredBlock.getHash())) {
+                peerState.currentFilteredBlock = filteredBlock;
+                peerState.currentTransactionHashes = new HashSet<Sha256Hash>(filteredBlock.getTransactionHashes());
+                if (peerState.currentTransactionHashes.isEmpty()) {
+                    finishFilteredBlock(peer, peerState);
+                }
+                return null;
+            }
+        }
+        return m;
+    }
+
+    private void finishFilteredBlock(Peer peer, PeerState peerState) {
+        FilteredBlock filteredBlock = peerState.currentFilteredBlock;
+        if (filteredBlock == null) {
+            return;
+        }
+        Set<Sha256Hash> missingTransactionHashes = peerState.currentTransactionHashes;
+        peerState.currentFilteredBlock = null;
+        peerState.currentTransactionHashes = null;
+
+        if (!missingTransactionHashes.isEmpty()) {
+            // The peer does not resend transactions it has already sent, so some may be missing. They are fetched before
+            // the block is added to the block chain.
+            log.debug("Filtered block " + filteredBlock.getHash() + " is missing " + missingTransactionHashes.size() + " transactions");
+            incompleteBlocks.put(filteredBlock.getHash(), new IncompleteBlock(peer, missingTransactionHashes));
+            for (Sha256Hash transactionHash : missingTransactionHashes) {
+                missingTransactions.put(transactionHash, filteredBlock);
+            }
+        }
+        receivedBlocks.put(filteredBlock.getHash(), filteredBlock);
+        requests.blockReceived(peer, filteredBlock.getHash());
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Provide a filtered block with a transaction it arrived without. Runs on the peer's network thread.
+     */
+    private void transactionFetched(FilteredBlock filteredBlock, Transaction transaction) {
+        filteredBlock.provideTransaction(transaction);
+        IncompleteBlock incompleteBlock = incompleteBlocks.get(filteredBlock.getHash());
+        if (incompleteBlock != null) {
+            incompleteBlock.missingTransactionHashes.remove(transaction.getHash());
+        }
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,614 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * PeerScores keeps a score for each peer address from the ping times, block delivery rate, disconnects and
+ * misbehaviour seen from the peers at that address.
+ *
+ * The scores are kept in a peers file in the application data directory so that they survive a restart. The best
+ * scoring addresses are tried first when connecting and the best scoring peers are used for downloads and pinged
+ * first before a send.
+ */
+public class PeerScores extends AbstractPeerEventListener {
+    private static final Logger log = LoggerFactory.getLogger(PeerScores.class);
+
+    public static final String PEERS_SUFFIX = ".peers";
+
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /**
+     * The weight given to a new measurement of the ping time or block delivery rate.
+     */
+    static final double MEASUREMENT_WEIGHT = 0.3;
+
+    /**
+     * A peer that disconnects within this time of connecting is counted as disconnecting early.
+     */
+    static final long EARLY_DISCONNECT_TIME = 5 * 60 * 1000; // ms
+
+    /**
+     * Ping times longer than this score nothing.
+     */
+    private static final double MAXIMUM_PING_TIME = 2000; // ms
+
+    /**
+     * Block delivery rates faster than this score no more than this rate.
+     */
+    private static final double REFERENCE_BLOCK_RATE = 200; // blocks per second
+
+    /**
+     * The block delivery rate is measured over this many blocks downloaded one after the other.
+     */
+    private static final int BLOCKS_PER_SAMPLE = 500;
+
+    /**
+     * A gap between blocks longer than this means the peer is waiting for new blocks rather than delivering them.
+     */
+    private static final long MAXIMUM_GAP_BETWEEN_BLOCKS = 10000; // ms
+
+    /**
+     * Addresses with at least this many misbehaviours are not tried first when connecting.
+     */
+    static final int MAXIMUM_NUMBER_OF_MISBEHAVIOURS = 3;
+
+    /**
+     * One misbehaviour is forgiven for each period of this length without misbehaving.
+     */
+    static final long MISBEHAVIOUR_DECAY_TIME = 24L * 60 * 60 * 1000; // ms
+
+    /**
+     * Only addresses connected to in this time are tried first when connecting.
+     */
+    private static final long MAXIMUM_AGE_OF_BEST_PEERS = 14L * 24 * 60 * 60 * 1000; // ms
+
+    static final int MAXIMUM_NUMBER_OF_PEERS_REMEMBERED = 1000;
+
+    private static final long SAVE_DELAY = 60000; // ms
+
+    private final File peersFile;
+
+    private volatile PeerGroup peerGroup;
+
+    private final Map<String, PeerScore> scores = new HashMap<String, PeerScore>();
+
+    private final Map<Peer, Connection> connections = new ConcurrentHashMap<Peer, Connection>();
+
+    private final AtomicBoolean savePending = new AtomicBoolean(false);
+
+    /**
+     * Saves the scores and records the outcome of pings.
+     */
+    private final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("peer-scores-%d").setDaemon(true).build());
+
+    /**
+     * What is known about the peers at an address.
+     */
+    static class PeerScore {
+        private final String address;
+
+        /**
+         * The smoothed ping time in milliseconds, or -1 if the peers have never answered a ping.
+         */
+        private double pingTime = -1;
+
+        /**
+         * The smoothed block delivery rate in blocks per second, or -1 if it has never been measured.
+         */
+        private double blockRate = -1;
+
+        private int numberOfConnections;
+        private int numberOfEarlyDisconnects;
+
+        /**
+         * The number of misbehaviours as of the last misbehaviour, before any have been forgiven.
+         */
+        private int numberOfMisbehaviours;
+        private long lastMisbehaviourTime;
+        private long lastConnectedTime;
+
+        PeerScore(String address) {
+            this.address = address;
+        }
+
+        void recordPingTime(long sample) {
+            pingTime = pingTime < 0 ? sample : (1 - MEASUREMENT_WEIGHT) * pingTime + MEASUREMENT_WEIGHT * sample;
+        }
+
+        double getPingTime() {
+            return pingTime;
+        }
+
+        void recordBlockRate(double sample) {
+            blockRate = blockRate < 0 ? sample : (1 - MEASUREMENT_WEIGHT) * blockRate + MEASUREMENT_WEIGHT * sample;
+        }
+
+        void recordMisbehaviour(long now) {
+            numberOfMisbehaviours = getNumberOfMisbehaviours(now) + 1;
+            lastMisbehaviourTime = now;
+        }
+
+        /**
+         * @return The number of misbehaviours not yet forgiven
+         */
+        int getNumberOfMisbehaviours(long now) {
+            long numberForgiven = Math.max(0, now - lastMisbehaviourTime) / MISBEHAVIOUR_DECAY_TIME;
+            return (int) Math.max(0, numberOfMisbehaviours - numberForgiven);
+        }
+
+        double getScore() {
+            return getScore(System.currentTimeMillis());
+        }
+
+        /**
+         * The score is the sum of a latency, a throughput and a reliability score, each from 0 to 1 and a half if not
+         * yet known, less a half for each misbehaviour not yet forgiven. The higher the better.
+         */
+        double getScore(long now) {
+            double latencyScore = pingTime < 0 ? 0.5 : 1 - Math.min(pingTime, MAXIMUM_PING_TIME) / MAXIMUM_PING_TIME;
+            double throughputScore = blockRate < 0 ? 0.5 : Math.min(blockRate, REFERENCE_BLOCK_RATE) / REFERENCE_BLOCK_RATE;
+            double reliabilityScore = numberOfConnections == 0 ? 0.5
+                    : 1 - Math.min(numberOfEarlyDisconnects, numberOfConnections) / (double) numberOfConnections;
+            return latencyScore + throughputScore + reliabilityScore - 0.5 * getNumberOfMisbehaviours(now);
+        }
+
+        String toLine() {
+            return address + FIELD_SEPARATOR + pingTime + FIELD_SEPARATOR + blockRate + FIELD_SEPARATOR + numberOfConnections
+                    + FIELD_SEPARATOR + numberOfEarlyDisconnects + FIELD_SEPARATOR + numberOfMisbehaviours + FIELD_SEPARATOR
+                    + lastConnectedTime + FIELD_SEPARATOR + lastMisbehaviourTime;
+        }
+
+        /**
+         * Parse a line of the peers file. Lines saved before misbehaviours were forgiven have no last misbehaviour time,
+         * so their misbehaviours are forgiven from when they are read.
+         */
+        static PeerScore fromLine(String line) {
+            String[] fields = line.split(FIELD_SEPARATOR);
+            if (fields.length != 7 && fields.length != 8) {
+                throw new IllegalArgumentException("Expected 7 or 8 fields but found " + fields.length);
+            }
+            PeerScore peerScore = new PeerScore(fields[0]);
+            peerScore.pingTime = Double.parseDouble(fields[1]);
+            peerScore.blockRate = Double.parseDouble(fields[2]);
+            peerScore.numberOfConnections = Integer.parseInt(fields[3]);
+            peerScore.numberOfEarlyDisconnects = Integer.parseInt(fields[4]);
+            peerScore.numberOfMisbehaviours = Integer.parseInt(fields[5]);
+            peerScore.lastConnectedTime = Long.parseLong(fields[6]);
+            peerScore.lastMisbehaviourTime = fields.length == 8 ? Long.parseLong(fields[7]) : System.currentTimeMillis();
+            return peerScore;
+        }
+    }
+
+    /**
+     * The current connection to a peer. Only used on the user thread.
+     */
+    private static class Connection {
+        private final long connectedTime = System.currentTimeMillis();
+        private long sampleStartTime;
+        private long lastBlockTime;
+        private int numberOfBlocksInSample;
+    }
+
+    private static final Comparator<PeerScore> LAST_CONNECTED_FIRST = new Comparator<PeerScore>() {
+        @Override
+        public int compare(PeerScore o1, PeerScore o2) {
+            return Long.compare(o2.lastConnectedTime, o1.lastConnectedTime);
+        }
+    };
+
+    private static final Comparator<PeerScore> BEST_FIRST = new Comparator<PeerScore>() {
+        @Override
+        public int compare(PeerScore o1, PeerScore o2) {
+            return Double.compare(o2.getScore(), o1.getScore());
+        }
+    };
+
+    /**
+     * @param peersFile The file the scores are loaded from and saved to
+     */
+    public PeerScores(File peersFile) {
+        this.peersFile = peersFile;
+    }
+
+    /**
+     * Load the scores from the peers file, if there is one. A file that cannot be read is ignored as the scores
+     * are simply measured again.
+     */
+    public void load() {
+        if (!peersFile.exists()) {
+            return;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(peersFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().length() == 0) {
+                        continue;
+                    }
+                    try {
+                        PeerScore peerScore = PeerScore.fromLine(line);
+                        synchronized (this) {
+                            scores.put(peerScore.address, peerScore);
+                        }
+                    } catch (IllegalArgumentException iae) {
+                        log.debug("Ignoring peer score '" + line + "'. " + iae.getMessage());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            log.debug("Loaded the scores of " + getNumberOfPeerScores() + " peers");
+        } catch (IOException ioe) {
+            log.error("Could not load the peer scores from '" + peersFile.getAbsolutePath() + "'. " + ioe.getClass().getName()
+                    + " " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Save the scores of the most recently connected peers to the peers file.
+     */
+    public void save() throws IOException {
+        List<PeerScore> peerScores;
+        synchronized (this) {
+            peerScores = new ArrayList<PeerScore>(scores.values());
+        }
+        Collections.sort(peerScores, LAST_CONNECTED_FIRST);
+
+        File temporaryPeersFile = File.createTempFile(peersFile.getName(), ".tmp", peersFile.getAbsoluteFile().getParentFile());
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryPeersFile);
+        try {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fileOutputStream, "UTF-8"));
+            synchronized (this) {
+                for (PeerScore peerScore : peerScores.subList(0, Math.min(peerScores.size(), MAXIMUM_NUMBER_OF_PEERS_REMEMBERED))) {
+                    writer.write(peerScore.toLine());
+                    writer.newLine();
+                }
+            }
+            writer.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+
+        try {
+            Files.move(temporaryPeersFile.toPath(), peersFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(temporaryPeersFile.toPath(), peersFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Save the scores SAVE_DELAY after the first change, so that a run of changes is saved once.
+     */
+    private void saveInBackground() {
+        if (!savePending.compareAndSet(false, true)) {
+            return;
+        }
+
+        scheduledExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                savePending.set(false);
+                try {
+                    save();
+                } catch (IOException ioe) {
+                    log.error("Could not save the peer scores. " + ioe.getClass().getName() + " " + ioe.getMessage());
+                }
+            }
+        }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Score the peers of a new PeerGroup. The PeerGroup a replay replaces is simply forgotten.
+     */
+    public void setPeerGroup(PeerGroup peerGroup) {
+        this.peerGroup = peerGroup;
+        connections.clear();
+        peerGroup.addEventListener(this);
+    }
+
+    @Override
+    public void onPeerConnected(final Peer peer, int peerCount) {
+        connections.put(peer, new Connection());
+        synchronized (this) {
+            PeerScore peerScore = getPeerScore(peer);
+            peerScore.numberOfConnections++;
+            peerScore.lastConnectedTime = System.currentTimeMillis();
+        }
+        saveInBackground();
+
+        // Measure the ping time straight away so that new peers can be compared with the others.
+        try {
+            Futures.addCallback(peer.ping(), new FutureCallback<Long>() {
+                @Override
+                public void onSuccess(Long pingTime) {
+                    recordPingTime(peer, pingTime);
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    // The peer has probably disconnected, which is recorded separately.
+                }
+            });
+        } catch (ProtocolException e) {
+            // The peer is too old to answer pings.
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(Peer peer, int peerCount) {
+        Connection connection = connections.remove(peer);
+        PeerGroup currentPeerGroup = peerGroup;
+        // Every peer disconnects when the PeerGroup is stopped so that does not count.
+        if (connection == null || currentPeerGroup == null || !currentPeerGroup.isRunning()) {
+            return;
+        }
+
+        if (System.currentTimeMillis() - connection.connectedTime < EARLY_DISCONNECT_TIME) {
+            synchronized (this) {
+                getPeerScore(peer).numberOfEarlyDisconnects++;
+            }
+            saveInBackground();
+        }
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+        Connection connection = connections.get(peer);
+        if (connection == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (blocksLeft <= 0 || connection.numberOfBlocksInSample == 0 || now - connection.lastBlockTime > MAXIMUM_GAP_BETWEEN_BLOCKS) {
+            // Start measuring again from this block.
+            connection.sampleStartTime = now;
+            connection.numberOfBlocksInSample = blocksLeft <= 0 ? 0 : 1;
+        } else {
+            connection.numberOfBlocksInSample++;
+            if (connection.numberOfBlocksInSample >= BLOCKS_PER_SAMPLE) {
+                recordBlocksDelivered(peer, connection.numberOfBlocksInSample - 1, now - connection.sampleStartTime);
+                connection.sampleStartTime = now;
+                connection.numberOfBlocksInSample = 1;
+            }
+        }
+        connection.lastBlockTime = now;
+    }
+
+    /**
+     * Record the time a peer took to answer a ping.
+     */
+    public void recordPingTime(Peer peer, long pingTime) {
+        synchronized (this) {
+            getPeerScore(peer).recordPingTime(pingTime);
+        }
+        saveInBackground();
+    }
+
+    /**
+     * Record that a peer did not answer a ping in time.
+     */
+    public void recordFailedPing(Peer peer) {
+        recordMisbehaviour(peer, "it did not answer a ping");
+    }
+
+    /**
+     * Record the outcome of pinging several peers at once, once the timeout has passed.
+     *
+     * A peer whose ping failed or was not answered in time is only recorded as failing the ping if another peer answered
+     * its ping, as otherwise it is more likely that our own connection failed.
+     *
+     * @param timeout The time the peers have to answer, in milliseconds
+     */
+    public void recordPings(final Map<Peer, ListenableFuture<Long>> pings, long timeout) {
+        scheduledExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                List<Peer> failedPeers = new ArrayList<Peer>();
+                boolean anyPeerAnswered = false;
+                for (Map.Entry<Peer, ListenableFuture<Long>> ping : pings.entrySet()) {
+                    if (hasAnswered(ping.getValue())) {
+                        anyPeerAnswered = true;
+                    } else {
+                        failedPeers.add(ping.getKey());
+                    }
+                }
+                if (anyPeerAnswered) {
+                    for (Peer failedPeer : failedPeers) {
+                        recordFailedPing(failedPeer);
+                    }
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean hasAnswered(ListenableFuture<Long> ping) {
+        if (!ping.isDone()) {
+            return false;
+        }
+        try {
+            ping.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (CancellationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record that a peer delivered a number of blocks in the given time.
+     */
+    public void recordBlocksDelivered(Peer peer, int numberOfBlocks, long timeTaken) {
+        if (numberOfBlocks <= 0) {
+            return;
+        }
+        synchronized (this) {
+            getPeerScore(peer).recordBlockRate(1000.0 * numberOfBlocks / Math.max(1, timeTaken));
+        }
+        saveInBackground();
+    }
+
+    /**
+     * Record that a peer did not do what was asked of it, such as not sending the blocks it was asked for.
+     */
+    public void recordMisbehaviour(Peer peer, String reason) {
+        log.debug("Peer " + peer + " misbehaved as " + reason);
+        synchronized (this) {
+            getPeerScore(peer).recordMisbehaviour(System.currentTimeMillis());
+        }
+        saveInBackground();
+    }
+
+    /**
+     * @return The score of the peer's address - the higher the better
+     */
+    public synchronized double getScore(Peer peer) {
+        PeerScore peerScore = scores.get(getKey(peer.getAddress()));
+        return peerScore == null ? new PeerScore(null).getScore() : peerScore.getScore();
+    }
+
+    /**
+     * Sort the peers so that the best scoring peer is first.
+     */
+    public void sortBestFirst(List<Peer> peers) {
+        final Map<Peer, Double> peerScores = new HashMap<Peer, Double>();
+        for (Peer peer : peers) {
+            peerScores.put(peer, getScore(peer));
+        }
+        Collections.sort(peers, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer o1, Peer o2) {
+                return Double.compare(peerScores.get(o2), peerScores.get(o1));
+            }
+        });
+    }
+
+    /**
+     * @param maximumNumberOfAddresses The maximum number of addresses to return
+     * @return The addresses of the best scoring peers connected to recently that have not misbehaved, best first
+     */
+    public List<PeerAddress> getBestPeerAddresses(int maximumNumberOfAddresses) {
+        List<PeerScore> candidates = new ArrayList<PeerScore>();
+        long now = System.currentTimeMillis();
+        long earliestConnectedTime = now - MAXIMUM_AGE_OF_BEST_PEERS;
+        synchronized (this) {
+            for (PeerScore peerScore : scores.values()) {
+                if (peerScore.lastConnectedTime >= earliestConnectedTime
+                        && peerScore.getNumberOfMisbehaviours(now) < MAXIMUM_NUMBER_OF_MISBEHAVIOURS) {
+                    candidates.add(peerScore);
+                }
+            }
+            Collections.sort(candidates, BEST_FIRST);
+        }
+
+        List<PeerAddress> bestPeerAddresses = new ArrayList<PeerAddress>();
+        for (PeerScore peerScore : candidates) {
+            if (bestPeerAddresses.size() >= maximumNumberOfAddresses) {
+                break;
+            }
+            PeerAddress peerAddress = toPeerAddress(peerScore.address);
+            if (peerAddress != null) {
+                bestPeerAddresses.add(peerAddress);
+            }
+        }
+        return bestPeerAddresses;
+    }
+
+    /**
+     * @return The number of peer addresses with a score
+     */
+    public synchronized int getNumberOfPeerScores() {
+        return scores.size();
+    }
+
+    /**
+     * Callers must hold the lock.
+     */
+    private PeerScore getPeerScore(Peer peer) {
+        String key = getKey(peer.getAddress());
+        PeerScore peerScore = scores.get(key);
+        if (peerScore == null) {
+            peerScore = new PeerScore(key);
+            scores.put(key, peerScore);
+        }
+        return peerScore;
+    }
+
+    static String getKey(PeerAddress peerAddress) {
+        return peerAddress.getAddr().getHostAddress() + ":" + peerAddress.getPort();
+    }
+
+    static PeerAddress toPeerAddress(String key) {
+        int portSeparator = key.lastIndexOf(':');
+        if (portSeparator <= 0) {
+            return null;
+        }
+        try {
+            // The host is a literal IP address so there is no DNS lookup.
+            return new PeerAddress(InetAddress.getByName(key.substring(0, portSeparator)), Integer.parseInt(key.substring(portSeparator + 1)));
+        } catch (UnknownHostException | NumberFormatException e) {
+            log.debug("Ignoring peer address '" + key + "'. " + e.getMessage());
+            return null;
+        }
+    }
+}
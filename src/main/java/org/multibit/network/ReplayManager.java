@@ -16,10 +16,12 @@
 
 package org.multibit.network;
 
-import com.google.bitcoin.core.CheckpointManager;
+import com.google.bitcoin.core.Peer;
 import com.google.bitcoin.core.PeerGroup;
 import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.VerificationException;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.multibit.controller.bitcoin.BitcoinController;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
@@ -29,12 +31,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.swing.*;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.util.*;
-import java.util.Timer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -49,8 +50,7 @@ public enum ReplayManager {
   INSTANCE;
 
   private static final Logger log = LoggerFactory.getLogger(ReplayManager.class);
-  private ReplayManagerTimerTask replayManagerTimerTask;
-  private Timer replayManagerTimer;
+  private ReplayTaskScheduler replayTaskScheduler;
 
   /**
    * The actual chain height prior to any replay
@@ -58,15 +58,20 @@ public enum ReplayManager {
    */
   private int actualLastChainHeight;
 
-  private static final int REPLAY_MANAGER_DELAY_TIME = 0; // ms
-  private static final int REPLAY_MANAGER_REPEAT_TIME = 333; // ms
-
   private BitcoinController controller;
 
-  private final Queue<ReplayTask> replayTaskQueue = new LinkedList<ReplayTask>();
+  private final LinkedList<ReplayTask> replayTaskQueue = new LinkedList<ReplayTask>();
 
   private static boolean regularDownloadIsRunning = false;
 
+  public static final long UNKNOWN_TIME_TO_COMPLETION = -1;
+
+  /**
+   * Rescans wallets for replay tasks that do not need the blockstore truncating.
+   */
+  private final ExecutorService rescanExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("wallet-rescan-%d").setDaemon(true).build());
+
 
   public void initialise(BitcoinController controller, boolean clearQueue) {
     this.controller = controller;
@@ -74,9 +79,11 @@ public enum ReplayManager {
     if (clearQueue) {
       replayTaskQueue.clear();
     }
-    replayManagerTimerTask = new ReplayManagerTimerTask(controller, replayTaskQueue);
-    replayManagerTimer = new Timer();
-    replayManagerTimer.scheduleAtFixedRate(replayManagerTimerTask, REPLAY_MANAGER_DELAY_TIME, REPLAY_MANAGER_REPEAT_TIME);
+    if (replayTaskScheduler != null) {
+      replayTaskScheduler.shutdown();
+    }
+    replayTaskScheduler = new ReplayTaskScheduler(replayTaskQueue);
+    replayTaskScheduler.wakeUp();
   }
 
   /**
@@ -103,6 +110,25 @@ public enum ReplayManager {
       controller.fireWalletBusyChange(true);
     }
 
+    // Replays of only some of the open wallets are rescanned so that the other wallets stay connected and up to date.
+    Peer rescanPeer = chooseRescanPeer(replayTask);
+    if (rescanPeer != null) {
+      rescanInBackground(replayTask, rescanPeer);
+      return;
+    }
+
+    replayByTruncatingBlockStore(replayTask);
+  }
+
+  /**
+   * Replay the wallets of the replay task by stopping the PeerGroup, truncating the blockstore to the replay start date
+   * and downloading the blockchain again.
+   *
+   * Returns once the download has started. The replay task completes when the download listeners are told the
+   * download is done.
+   */
+  private void replayByTruncatingBlockStore(ReplayTask replayTask) throws IOException, BlockStoreException {
+    List<WalletData> perWalletModelDataList = replayTask.getPerWalletModelDataToReplay();
     Date dateToReplayFrom = replayTask.getStartDate();
 
     MessageManager.INSTANCE.addMessage(new Message(controller.getLocaliser().getString(
@@ -157,10 +183,85 @@ public enum ReplayManager {
     log.debug("Restarted PeerGroup = " + peerGroup.toString());
 
     log.debug("About to start  blockchain download.");
-    controller.getMultiBitService().getPeerGroup().downloadBlockChain();
+    startBlockChainDownload(controller.getMultiBitService().getPeerGroup());
     log.debug("Blockchain download started.");
   }
 
+  /**
+   * Choose the peer to rescan the wallets of the replay task from.
+   *
+   * @return The peer, or null if the wallets cannot be rescanned and have to be replayed by truncating the blockstore
+   */
+  private Peer chooseRescanPeer(ReplayTask replayTask) {
+    MultiBitService multiBitService = controller.getMultiBitService();
+    List<WalletData> perWalletModelDataList = replayTask.getPerWalletModelDataToReplay();
+    if (regularDownloadIsRunning || replayTask.getStartDate() == null || perWalletModelDataList == null
+            || perWalletModelDataList.isEmpty() || multiBitService.getChain() == null || multiBitService.getPeerGroup() == null) {
+      return null;
+    }
+
+    // When every open wallet is replayed there is nothing to keep up to date so the blockstore is simply truncated.
+    if (perWalletModelDataList.size() >= controller.getModel().getPerWalletModelDataList().size()) {
+      return null;
+    }
+
+    // Prefer a peer other than the download peer so that the main chain download is not held up.
+    PeerGroup peerGroup = multiBitService.getPeerGroup();
+    Peer downloadPeer = peerGroup.getDownloadPeer();
+    Peer rescanPeer = null;
+    for (Peer peer : peerGroup.getConnectedPeers()) {
+      if (rescanPeer == null || rescanPeer == downloadPeer) {
+        rescanPeer = peer;
+      }
+    }
+    return rescanPeer;
+  }
+
+  /**
+   * Rescan the wallets of the replay task on the rescan thread, falling back to truncating the blockstore if the rescan fails.
+   */
+  private void rescanInBackground(final ReplayTask replayTask, final Peer rescanPeer) {
+    MessageManager.INSTANCE.addMessage(new Message(controller.getLocaliser().getString(
+            "resetTransactionsSubmitAction.startReplay")));
+    MessageManager.INSTANCE.addMessage(new Message(controller.getLocaliser().getString(
+            "resetTransactionSubmitAction.replayingBlockchain",
+            new Object[]{DateFormat.getDateInstance(DateFormat.MEDIUM, controller.getLocaliser().getLocale()).format(
+                    replayTask.getStartDate())}), false));
+
+    rescanExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          StoredBlock startBlock = controller.getMultiBitService().getCheckpointManager().getCheckpointToReplayFrom(
+                  replayTask.getStartDate().getTime() / 1000);
+          replayTask.setStartHeight(startBlock.getHeight());
+          log.debug("Rescanning from height " + startBlock.getHeight() + " using peer " + rescanPeer);
+
+          new WalletRescanner(controller, replayTask, rescanPeer).rescan(startBlock);
+        } catch (IOException | VerificationException | RuntimeException e) {
+          log.error("Could not rescan the wallets so replaying by truncating the blockstore. " + e.getClass().getName() + " "
+                  + e.getMessage());
+          try {
+            replayByTruncatingBlockStore(replayTask);
+          } catch (IOException | BlockStoreException e2) {
+            log.error("Could not replay the wallets. " + e2.getClass().getName() + " " + e2.getMessage());
+          }
+          return;
+        }
+
+        taskHasCompleted(replayTask.getUuid());
+        for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+          if (perWalletModelData.getSingleWalletDownloadListener() != null) {
+            perWalletModelData.getSingleWalletDownloadListener().doneDownload();
+          }
+        }
+        MessageManager.INSTANCE.addMessage(new Message(controller.getLocaliser().getString(
+                "multiBitDownloadListener.doneDownloadText"), 100));
+        controller.fireBlockDownloaded();
+      }
+    });
+  }
+
   public void addDownloadListeners(List<WalletData> perWalletModelDataList) {
     PeerGroup peerGroup = controller.getMultiBitService().getPeerGroup();
     if (peerGroup instanceof MultiBitPeerGroup) {
@@ -192,6 +293,9 @@ public enum ReplayManager {
   /**
    * Add a ReplayTask to the ReplayManager's list of tasks to do.
    *
+   * A task that has not started yet is merged with the task offered, so that the wallets of both are replayed together
+   * from the earlier start point rather than the blockchain being replayed twice.
+   *
    * @param replayTask
    */
   public boolean offerReplayTask(ReplayTask replayTask) {
@@ -204,39 +308,32 @@ public enum ReplayManager {
     // Work out for this replay task where the blockchain will be truncated to.
     int startHeight = replayTask.getStartHeight();
     if (startHeight == ReplayTask.UNKNOWN_START_HEIGHT) {
-      File checkpointsFile = new File(controller.getMultiBitService().getCheckpointsFilename());
-      System.out.println("ReplayManager#offerReplayTask checkpointsFile = " + checkpointsFile.getAbsolutePath());
-      if (checkpointsFile.exists() && replayTask.getStartDate() != null) {
-        FileInputStream stream = null;
-        try {
-          stream = new FileInputStream(checkpointsFile);
-          CheckpointManager checkpointManager = new CheckpointManager(controller.getModel().getNetworkParameters(), stream);
-          StoredBlock checkpoint = checkpointManager.getCheckpointBefore(replayTask.getStartDate().getTime() / 1000);
-          System.out.println("ReplayManager#offerReplayTask checkpoint = " + checkpoint);
-          if (checkpoint != null) {
-            startHeight = checkpoint.getHeight();
-            System.out.println("ReplayManager#offerReplayTask startHeight = " + startHeight);
-
-            // Store it in the replay task as it will be used for percents.
-            replayTask.setStartHeight(startHeight);
-          }
-        } catch (IOException e) {
-          log.error(e.getClass().getName() + " " + e.getMessage());
-        } finally {
-          if (stream != null) {
-            try {
-              stream.close();
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          }
+      MultiBitCheckpointManager checkpointManager = controller.getMultiBitService().getCheckpointManager();
+      if (checkpointManager != null && replayTask.getStartDate() != null) {
+        StoredBlock checkpoint = checkpointManager.getCheckpointBefore(replayTask.getStartDate().getTime() / 1000);
+        log.debug("ReplayManager#offerReplayTask checkpoint = " + checkpoint);
+        if (checkpoint != null) {
+          startHeight = checkpoint.getHeight();
+          log.debug("ReplayManager#offerReplayTask startHeight = " + startHeight);
+
+          // Store it in the replay task as it will be used for percents.
+          replayTask.setStartHeight(startHeight);
         }
-
       }
     }
-    log.debug("Actual replayTask offered = " + replayTask.toString());
     synchronized (replayTaskQueue) {
-      replayTaskQueue.offer(replayTask);
+      ReplayTask waitingReplayTask = getLastWaitingReplayTask(replayTaskQueue);
+      if (waitingReplayTask == null) {
+        replayTaskQueue.offer(replayTask);
+      } else {
+        ReplayTask mergedReplayTask = waitingReplayTask.mergeWith(replayTask);
+        replayTaskQueue.set(replayTaskQueue.indexOf(waitingReplayTask), mergedReplayTask);
+        log.debug("Merged replayTask " + waitingReplayTask.toString() + " into the replayTask offered");
+        replayTask = mergedReplayTask;
+        startHeight = replayTask.getStartHeight();
+      }
+      log.debug("Actual replayTask offered = " + replayTask.toString());
+
       String waitingText = "singleWalletPanel.waiting.text";
       String waitingVerb = "singleWalletPanel.waiting.verb";
 
@@ -255,9 +352,26 @@ public enum ReplayManager {
         }
       }
     }
+    if (replayTaskScheduler != null) {
+      replayTaskScheduler.wakeUp();
+    }
     return true;
   }
 
+  /**
+   * A task that has started is never merged into, even once it has completed, as the scheduler removes it from the
+   * queue without looking at it again.
+   *
+   * @return The last task in the queue if it has not started yet, otherwise null. Callers must hold the queue lock.
+   */
+  static ReplayTask getLastWaitingReplayTask(LinkedList<ReplayTask> replayTaskQueue) {
+    ReplayTask lastReplayTask = replayTaskQueue.peekLast();
+    if (lastReplayTask == null || lastReplayTask.hasStarted()) {
+      return null;
+    }
+    return lastReplayTask;
+  }
+
   /**
    * Called by the downloadlistener when the synchronise completes.
    *
@@ -276,8 +390,8 @@ public enum ReplayManager {
       }
     }
 
-    // Tell the ReplayTimerTask that we are cleaning up.
-    replayManagerTimerTask.currentTaskIsTidyingUp(true);
+    // Tell the ReplayTaskScheduler that we are cleaning up.
+    replayTaskScheduler.currentTaskIsTidyingUp(true);
 
     try {
       if (currentTask != null) {
@@ -296,10 +410,10 @@ public enum ReplayManager {
       }
     } finally {
       // No longer tidying up.
-      replayManagerTimerTask.currentTaskIsTidyingUp(false);
+      replayTaskScheduler.currentTaskIsTidyingUp(false);
 
       // Everything is completed - clear to start the next task.
-      replayManagerTimerTask.currentTaskHasCompleted();
+      replayTaskScheduler.currentTaskHasCompleted();
     }
   }
 
@@ -319,13 +433,12 @@ public enum ReplayManager {
    * @param perWalletModelData
    * @return the waiting ReplayTask or null if there is not one.
    */
-  @SuppressWarnings("unchecked")
   public ReplayTask getWaitingReplayTask(WalletData perWalletModelData) {
     synchronized (replayTaskQueue) {
       if (replayTaskQueue.isEmpty()) {
         return null;
       } else {
-        for (ReplayTask replayTask : (List<ReplayTask>) replayTaskQueue) {
+        for (ReplayTask replayTask : replayTaskQueue) {
           List<WalletData> list = replayTask.getPerWalletModelDataToReplay();
           if (list != null) {
             for (WalletData item : list) {
@@ -342,8 +455,41 @@ public enum ReplayManager {
   }
 
   /**
-   * Download the block chain.
+   * @return The number of replay tasks in the queue, including the one running
+   */
+  public int getNumberOfReplayTasks() {
+    synchronized (replayTaskQueue) {
+      return replayTaskQueue.size();
+    }
+  }
+
+  /**
+   * Estimate how long the current replay task will take to complete from its progress so far.
+   *
+   * @return The estimated time to completion in milliseconds, or UNKNOWN_TIME_TO_COMPLETION if no replay task is running
+   * or it has not made enough progress to tell
+   */
+  public long getEstimatedTimeToCompletion() {
+    synchronized (replayTaskQueue) {
+      ReplayTask currentTask = replayTaskQueue.peek();
+      if (currentTask == null || replayTaskScheduler == null || !replayTaskScheduler.isRunningATask()) {
+        return UNKNOWN_TIME_TO_COMPLETION;
+      }
+
+      long percentComplete = currentTask.getPercentComplete();
+      if (percentComplete <= 0 || percentComplete > 100) {
+        return UNKNOWN_TIME_TO_COMPLETION;
+      }
+      long timeTaken = System.currentTimeMillis() - replayTaskScheduler.getCurrentTaskStartTime();
+      return timeTaken * (100 - percentComplete) / percentComplete;
+    }
+  }
+
+  /**
+   * Start downloading the block chain.
    * This does not use a ReplayTask.
+   *
+   * The download runs in the background and downloadHasCompleted is called back when the download has completed.
    */
   public void downloadBlockChain() {
     @SuppressWarnings("rawtypes")
@@ -355,7 +501,7 @@ public enum ReplayManager {
           SendBitcoinPanel.setEnableSendButton(false);
           log.debug("Downloading blockchain - regularDownloadIsRunning = " + regularDownloadIsRunning);
 
-          controller.getMultiBitService().getPeerGroup().downloadBlockChain();
+          startBlockChainDownload(controller.getMultiBitService().getPeerGroup());
         } else {
           log.error("Cannot download blockchain as there is no PeerGroup");
         }
@@ -365,6 +511,17 @@ public enum ReplayManager {
     worker.execute();
   }
 
+  /**
+   * Start the block chain download of the PeerGroup, from several peers at once if it is a MultiBitPeerGroup.
+   */
+  private void startBlockChainDownload(PeerGroup peerGroup) {
+    if (peerGroup instanceof MultiBitPeerGroup) {
+      ((MultiBitPeerGroup) peerGroup).startParallelBlockChainDownload();
+    } else {
+      peerGroup.downloadBlockChain();
+    }
+  }
+
   /**
    * Method called back by BitcoinPeerEventListener to indicate a block chain download has completed
    */
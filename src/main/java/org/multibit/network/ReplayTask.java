@@ -1,5 +1,6 @@
 package org.multibit.network;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
@@ -36,6 +37,11 @@ public class ReplayTask {
      * The percent complete as reported by the downloadlistener.
      */
     private long percentComplete;
+
+    /**
+     * Whether the scheduler has started this task. A task that has started is never merged into.
+     */
+    private volatile boolean started;
        
     public ReplayTask( List<WalletData> perWalletModelDataToReplay, Date startDate, int startHeight) {
         this.perWalletModelDataToReplay = perWalletModelDataToReplay;
@@ -45,6 +51,52 @@ public class ReplayTask {
         this.uuid = UUID.randomUUID();
     }
 
+    /**
+     * Merge this task with another task that has not started yet.
+     * 
+     * @return A new task that replays the wallets of both tasks from the earlier of their start points
+     */
+    public ReplayTask mergeWith(ReplayTask other) {
+        if (started) {
+            throw new IllegalStateException("The replay task " + uuid + " has started so cannot be merged into");
+        }
+        List<WalletData> mergedPerWalletModelData = new ArrayList<WalletData>(perWalletModelDataToReplay);
+        for (WalletData otherPerWalletModelData : other.perWalletModelDataToReplay) {
+            if (!containsWallet(otherPerWalletModelData)) {
+                mergedPerWalletModelData.add(otherPerWalletModelData);
+            }
+        }
+
+        // A missing start date means a replay from the genesis block.
+        Date mergedStartDate;
+        if (startDate == null || other.startDate == null) {
+            mergedStartDate = null;
+        } else {
+            mergedStartDate = startDate.before(other.startDate) ? startDate : other.startDate;
+        }
+
+        int mergedStartHeight;
+        if (startHeight == UNKNOWN_START_HEIGHT || other.startHeight == UNKNOWN_START_HEIGHT) {
+            mergedStartHeight = UNKNOWN_START_HEIGHT;
+        } else {
+            mergedStartHeight = Math.min(startHeight, other.startHeight);
+        }
+
+        return new ReplayTask(mergedPerWalletModelData, mergedStartDate, mergedStartHeight);
+    }
+
+    /**
+     * @return true if this task replays the wallet with the same filename as the specified wallet
+     */
+    public boolean containsWallet(WalletData perWalletModelData) {
+        for (WalletData item : perWalletModelDataToReplay) {
+            if (item.getWalletFilename() != null && item.getWalletFilename().equals(perWalletModelData.getWalletFilename())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public List<WalletData> getPerWalletModelDataToReplay() {
         return perWalletModelDataToReplay;
     }
@@ -109,6 +161,20 @@ public class ReplayTask {
         this.percentComplete = percentComplete;
     }
 
+    /**
+     * Mark the task as started. Called by the scheduler, holding the replay task queue lock, as it starts the task.
+     */
+    void markStarted() {
+        started = true;
+    }
+
+    /**
+     * @return true if the task has been started, even if it has since completed
+     */
+    public boolean hasStarted() {
+        return started;
+    }
+
     public int getStartHeight() {
         return startHeight;
     }
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts the replay tasks in the replay task queue one at a time.
+ *
+ * The scheduler does not poll. It is woken when a task is offered and when the current task completes, and then
+ * removes the completed task and starts the next one on its own thread.
+ */
+public class ReplayTaskScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ReplayTaskScheduler.class);
+
+    // State control booleans. They are set without the replay task queue lock as a replay can complete whilst
+    // the scheduler holds it.
+    private volatile boolean currentlyRunningATask = false;
+    private volatile boolean currentTaskHasCompleted = false;
+    private volatile boolean currentTaskIsTidyingUp = false;
+
+    /**
+     * The time the current task was started, in milliseconds.
+     */
+    private volatile long currentTaskStartTime;
+
+    final private Queue<ReplayTask> replayTaskQueue;
+
+    private final ExecutorService schedulerExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("replay-scheduler-%d").setDaemon(true).build());
+
+    private final Runnable scheduleTask = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    public ReplayTaskScheduler(Queue<ReplayTask> replayTaskQueue) {
+        this.replayTaskQueue = replayTaskQueue;
+    }
+
+    /**
+     * Check the queue on the scheduler thread, removing the current task if it has completed and starting the next task.
+     */
+    public void wakeUp() {
+        if (!schedulerExecutor.isShutdown()) {
+            schedulerExecutor.execute(scheduleTask);
+        }
+    }
+
+    /**
+     * Stop scheduling tasks. A task that is already running is not stopped.
+     */
+    public void shutdown() {
+        schedulerExecutor.shutdown();
+    }
+
+    private void schedule() {
+        synchronized (replayTaskQueue) {
+            // If the current task has completed then it can be removed.
+            if (currentTaskHasCompleted) {
+                currentTaskHasCompleted = false;
+                currentlyRunningATask = false;
+
+                if (replayTaskQueue.peek() != null) {
+                    // Remove that task from the queue.
+                    log.debug("ReplayTask " + replayTaskQueue.peek().toString() + " has completed.");
+                    replayTaskQueue.poll();
+                }
+            }
+
+            // Start the new task if the current task is not running, not tidying up
+            // and there is another task waiting.
+            if (!currentlyRunningATask && !currentTaskIsTidyingUp && replayTaskQueue.peek() != null) {
+                try {
+                    currentlyRunningATask = true;
+                    currentTaskStartTime = System.currentTimeMillis();
+                    // Marked under the queue lock so that an offer never merges into a task once it has started.
+                    replayTaskQueue.peek().markStarted();
+                    ReplayManager.INSTANCE.syncWallet(replayTaskQueue.peek());
+                } catch (IOException ioe) {
+                    log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                } catch (BlockStoreException bse) {
+                    log.error(bse.getClass().getCanonicalName() + " " + bse.getMessage());
+                }
+            }
+        }
+    }
+
+    public void currentTaskHasCompleted() {
+        currentTaskHasCompleted = true;
+        wakeUp();
+    }
+
+    public void currentTaskIsTidyingUp(boolean currentTaskIsTidyingUp) {
+        this.currentTaskIsTidyingUp = currentTaskIsTidyingUp;
+        if (!currentTaskIsTidyingUp) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * @return true if the task at the head of the queue has been started and has not completed
+     */
+    boolean isRunningATask() {
+        return currentlyRunningATask && !currentTaskHasCompleted;
+    }
+
+    /**
+     * @return The time the current task was started, in milliseconds
+     */
+    long getCurrentTaskStartTime() {
+        return currentTaskStartTime;
+    }
+}
@@ -0,0 +1,815 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.AbstractBlockChainListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.BlockChainListener;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.GetDataMessage;
+import com.google.bitcoin.core.GetHeadersMessage;
+import com.google.bitcoin.core.HeadersMessage;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Threading;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.file.FileHandler;
+import org.multibit.model.bitcoin.WalletData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * WalletRescanner brings a set of wallets up to date with the blockchain without disturbing the main block chain,
+ * the PeerGroup or any other wallet.
+ *
+ * The block headers from the start checkpoint are requested from a single connected peer, followed by the filtered blocks
+ * for them. The responses are taken off the peer's message stream before the peer sees them so the main chain never
+ * sees the old blocks. The wallets being rescanned are taken out of the main chain whilst this happens. The wallets rejoin
+ * the main chain once the rescan has caught up with the tip.
+ *
+ * The headers are checked as the main chain checks them - each must connect to the one before, have a valid proof of work
+ * and have the difficulty the network rules require. As the peer could still serve a chain of its own, the transactions
+ * found are held back until the rescanned chain reaches a block on the main chain's best chain and only the blocks up to
+ * there are merged into the wallets, in block order. If the main chain reorganises whilst the wallets are out of it the
+ * wallets are reorganised too and the rescan continues from the split point.
+ *
+ * A peer does not resend a transaction it has already sent, so the matched transactions a filtered block arrives without
+ * are taken from the wallets or requested from the peer again. A batch with a block whose transactions are still missing
+ * is never merged, so a rescan never skips a transaction.
+ *
+ * Each batch merged is checkpointed in the wallet journals - the transactions found followed by the last block merged - so
+ * a rescan that is interrupted, for instance by MultiBit exiting, resumes from the last batch merged when MultiBit restarts.
+ */
+public class WalletRescanner extends AbstractPeerEventListener {
+  private static final Logger log = LoggerFactory.getLogger(WalletRescanner.class);
+
+  /**
+   * A headers message holds at most this many headers - fewer means the tip has been reached.
+   */
+  private static final int MAXIMUM_HEADERS_PER_MESSAGE = 2000;
+
+  private static final long RESPONSE_TIMEOUT_SECONDS = 60;
+
+  private final BitcoinController controller;
+  private final NetworkParameters networkParameters;
+  private final ReplayTask replayTask;
+  private final Peer peer;
+
+  /**
+   * The hash the outstanding headers request starts from, or null if there is no outstanding headers request.
+   */
+  private volatile Sha256Hash awaitedHeadersAfter;
+  private final BlockingQueue<HeadersMessage> headersResponses = new LinkedBlockingQueue<HeadersMessage>();
+
+  /**
+   * The filtered blocks requested but not yet received, and those received with all their transactions.
+   */
+  private final Set<Sha256Hash> awaitedBlocks = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+  private final Map<Sha256Hash, FilteredBlock> receivedBlocks = new ConcurrentHashMap<Sha256Hash, FilteredBlock>();
+
+  /**
+   * The filtered block whose transactions are being received and the hashes of the transactions still to come.
+   * Only used on the peer's network thread.
+   */
+  private FilteredBlock currentFilteredBlock;
+  private Set<Sha256Hash> currentTransactionHashes;
+
+  /**
+   * The matched transactions that did not follow their filtered block, by transaction hash, with the block each is for.
+   */
+  private final Map<Sha256Hash, FilteredBlock> missingTransactions = new ConcurrentHashMap<Sha256Hash, FilteredBlock>();
+
+  /**
+   * The reorganisations of the main chain whilst the wallets are out of it, not yet applied to the wallets.
+   */
+  private final List<Reorganisation> reorganisations = new ArrayList<Reorganisation>();
+
+  private final BlockChainListener mainChainListener = new AbstractBlockChainListener() {
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+      synchronized (reorganisations) {
+        reorganisations.add(new Reorganisation(splitPoint, new ArrayList<StoredBlock>(oldBlocks)));
+      }
+    }
+  };
+
+  /**
+   * A block in which transactions were found and its transactions in block order.
+   */
+  static class RescannedBlock {
+    private final StoredBlock storedBlock;
+    private final List<Transaction> transactions;
+
+    RescannedBlock(StoredBlock storedBlock, List<Transaction> transactions) {
+      this.storedBlock = storedBlock;
+      this.transactions = transactions;
+    }
+
+    StoredBlock getStoredBlock() {
+      return storedBlock;
+    }
+  }
+
+  /**
+   * A reorganisation of the main chain - the block it split at and the blocks that left the best chain.
+   */
+  private static class Reorganisation {
+    private final StoredBlock splitPoint;
+    private final List<StoredBlock> oldBlocks;
+
+    Reorganisation(StoredBlock splitPoint, List<StoredBlock> oldBlocks) {
+      this.splitPoint = splitPoint;
+      this.oldBlocks = oldBlocks;
+    }
+  }
+
+  /**
+   * The main chain, as far as the rescan needs to know it.
+   */
+  interface MainChain {
+    int getBestChainHeight();
+
+    /**
+     * @return true if the block is on the main chain's best chain
+     */
+    boolean isOnBestChain(StoredBlock block) throws IOException;
+  }
+
+  /**
+   * The chain of headers fetched by the rescan. The headers are checked as AbstractBlockChain checks them: each must
+   * connect to the one before it, pass verifyHeader and have the difficulty required by the difficulty transitions.
+   */
+  static class RescannedChain {
+    private final NetworkParameters networkParameters;
+    private StoredBlock tip;
+
+    /**
+     * The last block at the start of a difficulty interval, or null if it is not known.
+     */
+    private StoredBlock intervalStartBlock;
+
+    RescannedChain(NetworkParameters networkParameters, StoredBlock startBlock, StoredBlock intervalStartBlock) {
+      this.networkParameters = networkParameters;
+      this.tip = startBlock;
+      this.intervalStartBlock = intervalStartBlock;
+    }
+
+    StoredBlock getTip() {
+      return tip;
+    }
+
+    /**
+     * Check the headers and add them to the end of the chain.
+     *
+     * @return The blocks of the headers, in order
+     */
+    List<StoredBlock> connect(List<Block> headers) throws VerificationException {
+      List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+      for (Block header : headers) {
+        if (!header.getPrevBlockHash().equals(tip.getHeader().getHash())) {
+          throw new VerificationException("Block header " + header.getHashAsString() + " does not connect to the previous block");
+        }
+        header.verifyHeader();
+        checkDifficultyTransition(tip, header);
+
+        tip = tip.build(header);
+        if (tip.getHeight() % networkParameters.getInterval() == 0) {
+          intervalStartBlock = tip;
+        }
+        blocks.add(tip);
+      }
+      return blocks;
+    }
+
+    private void checkDifficultyTransition(StoredBlock storedPrevious, Block next) throws VerificationException {
+      if (NetworkParameters.testNet().equals(networkParameters)) {
+        // Testnet allows minimum difficulty blocks between the transitions, which only the proof of work check covers.
+        return;
+      }
+
+      Block previous = storedPrevious.getHeader();
+      int nextHeight = storedPrevious.getHeight() + 1;
+      if (nextHeight % networkParameters.getInterval() != 0) {
+        if (next.getDifficultyTarget() != previous.getDifficultyTarget()) {
+          throw new VerificationException("Unexpected change in difficulty at height " + nextHeight + ": "
+                  + Long.toHexString(next.getDifficultyTarget()) + " vs " + Long.toHexString(previous.getDifficultyTarget()));
+        }
+        return;
+      }
+
+      if (intervalStartBlock == null || intervalStartBlock.getHeight() != nextHeight - networkParameters.getInterval()) {
+        throw new VerificationException("Cannot check the difficulty transition at height " + nextHeight
+                + " as the start of the interval is not known");
+      }
+
+      // The same calculation as AbstractBlockChain, which measures the timespan from the first block of the interval.
+      int timespan = (int) (previous.getTimeSeconds() - intervalStartBlock.getHeader().getTimeSeconds());
+      int targetTimespan = networkParameters.getTargetTimespan();
+      if (timespan < targetTimespan / 4) {
+        timespan = targetTimespan / 4;
+      }
+      if (timespan > targetTimespan * 4) {
+        timespan = targetTimespan * 4;
+      }
+
+      BigInteger newDifficulty = Utils.decodeCompactBits(previous.getDifficultyTarget());
+      newDifficulty = newDifficulty.multiply(BigInteger.valueOf(timespan));
+      newDifficulty = newDifficulty.divide(BigInteger.valueOf(targetTimespan));
+      if (newDifficulty.compareTo(networkParameters.getProofOfWorkLimit()) > 0) {
+        newDifficulty = networkParameters.getProofOfWorkLimit();
+      }
+
+      // The calculated difficulty is more precise than the compact form received so is reduced to match.
+      int accuracyBytes = (int) (next.getDifficultyTarget() >>> 24) - 3;
+      BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
+      newDifficulty = newDifficulty.and(mask);
+      if (newDifficulty.compareTo(next.getDifficultyTargetAsInteger()) != 0) {
+        throw new VerificationException("The difficulty at height " + nextHeight + " does not match the difficulty transition: "
+                + newDifficulty.toString(16) + " vs " + next.getDifficultyTargetAsInteger().toString(16));
+      }
+    }
+  }
+
+  /**
+   * The blocks found by the rescan that are not yet known to be on the main chain's best chain.
+   *
+   * Blocks are only let through once the rescanned chain reaches a block on the best chain - it then follows that every
+   * block before it is on the best chain too. Once the rescanned chain has joined the best chain the blocks after it
+   * leaves again, by being ahead of the main chain or by forking from it, are never let through.
+   */
+  static class PendingBlocks {
+    private final MainChain mainChain;
+    private final List<RescannedBlock> pendingBlocks = new ArrayList<RescannedBlock>();
+
+    private StoredBlock lastBlockOnBestChain;
+    private boolean hasLeftBestChain;
+
+    /**
+     * @param fromBlock The block the rescanned chain starts from
+     */
+    PendingBlocks(MainChain mainChain, StoredBlock fromBlock) throws IOException {
+      this.mainChain = mainChain;
+      if (mainChain.isOnBestChain(fromBlock)) {
+        lastBlockOnBestChain = fromBlock;
+      }
+    }
+
+    /**
+     * Add the next batch of blocks of the rescanned chain.
+     *
+     * @param blocks          The blocks of the batch, in order
+     * @param rescannedBlocks The blocks of the batch with transactions in them, in order
+     * @return The blocks with transactions, from this batch or earlier ones, now known to be on the best chain
+     */
+    List<RescannedBlock> add(List<StoredBlock> blocks, List<RescannedBlock> rescannedBlocks) throws IOException {
+      if (hasLeftBestChain || blocks.isEmpty()) {
+        return Collections.emptyList();
+      }
+      pendingBlocks.addAll(rescannedBlocks);
+
+      // No block above the best chain height can be on the best chain.
+      int lastIndex = Math.min(blocks.size() - 1, mainChain.getBestChainHeight() - blocks.get(0).getHeight());
+      if (lastIndex >= 0 && mainChain.isOnBestChain(blocks.get(lastIndex))) {
+        if (lastIndex < blocks.size() - 1) {
+          hasLeftBestChain = true;
+        }
+        return takePendingBlocksUpTo(blocks.get(lastIndex));
+      }
+
+      if (lastBlockOnBestChain == null && (lastIndex < 0 || !mainChain.isOnBestChain(blocks.get(0)))) {
+        // Not joined the best chain yet - the blocks so far may be older than the main block store holds.
+        return Collections.emptyList();
+      }
+
+      // The rescanned chain leaves the best chain in this batch so find the last block on it.
+      hasLeftBestChain = true;
+      int low = -1;
+      int high = lastIndex;
+      while (high - low > 1) {
+        int middle = (low + high) >>> 1;
+        if (mainChain.isOnBestChain(blocks.get(middle))) {
+          low = middle;
+        } else {
+          high = middle;
+        }
+      }
+      if (low < 0) {
+        pendingBlocks.clear();
+        return Collections.emptyList();
+      }
+      return takePendingBlocksUpTo(blocks.get(low));
+    }
+
+    private List<RescannedBlock> takePendingBlocksUpTo(StoredBlock block) {
+      lastBlockOnBestChain = block;
+      List<RescannedBlock> blocksOnBestChain = new ArrayList<RescannedBlock>();
+      Iterator<RescannedBlock> iterator = pendingBlocks.iterator();
+      while (iterator.hasNext()) {
+        RescannedBlock pendingBlock = iterator.next();
+        if (pendingBlock.storedBlock.getHeight() <= block.getHeight()) {
+          blocksOnBestChain.add(pendingBlock);
+          iterator.remove();
+        }
+      }
+      if (hasLeftBestChain) {
+        pendingBlocks.clear();
+      }
+      return blocksOnBestChain;
+    }
+
+    /**
+     * @return The last block of the rescanned chain known to be on the best chain, or null if the chain has not joined it
+     */
+    StoredBlock getLastBlockOnBestChain() {
+      return lastBlockOnBestChain;
+    }
+
+    boolean hasLeftBestChain() {
+      return hasLeftBestChain;
+    }
+
+    /**
+     * Check that the rescanned chain, now fetched to its end, joined the best chain.
+     */
+    void checkJoinedBestChain() throws VerificationException {
+      if (lastBlockOnBestChain == null) {
+        throw new VerificationException("The rescanned chain never joined the main chain");
+      }
+    }
+  }
+
+  public WalletRescanner(BitcoinController controller, ReplayTask replayTask, Peer peer) {
+    this.controller = controller;
+    this.networkParameters = controller.getModel().getNetworkParameters();
+    this.replayTask = replayTask;
+    this.peer = peer;
+  }
+
+  /**
+   * Rescan the blockchain from the start block for the wallets of the replay task.
+   *
+   * If the rescan fails the wallets are returned to the main chain.
+   *
+   * @param startBlock The block to rescan from - the first block rescanned is the one after it
+   */
+  public void rescan(StoredBlock startBlock) throws IOException, VerificationException {
+    AbstractBlockChain blockChain = controller.getMultiBitService().getChain();
+    MainChain mainChain = createMainChain(blockChain);
+    List<WalletData> perWalletModelDataList = replayTask.getPerWalletModelDataToReplay();
+
+    // Take the wallets out of the main chain so that they do not see new blocks until they have caught up.
+    // The reorganisations they miss meanwhile are recorded to apply to them.
+    blockChain.addListener(mainChainListener, Threading.SAME_THREAD);
+    for (WalletData perWalletModelData : perWalletModelDataList) {
+      blockChain.removeWallet(perWalletModelData.getWallet());
+    }
+    boolean walletsAreInMainChain = false;
+
+    peer.addEventListener(this, Threading.SAME_THREAD);
+    try {
+      StoredBlock lastBlock = scan(startBlock, startBlock, mainChain);
+      log.debug("Rescanned " + (lastBlock.getHeight() - startBlock.getHeight()) + " blocks");
+
+      // Rejoin the main chain and then pick up any blocks that arrived in the meantime. Transactions seen twice are ignored.
+      for (WalletData perWalletModelData : perWalletModelDataList) {
+        blockChain.addWallet(perWalletModelData.getWallet());
+      }
+      walletsAreInMainChain = true;
+      blockChain.removeListener(mainChainListener);
+
+      scan(startBlock, applyReorganisations(lastBlock), mainChain);
+    } finally {
+      peer.removeEventListener(this);
+      blockChain.removeListener(mainChainListener);
+      if (!walletsAreInMainChain) {
+        for (WalletData perWalletModelData : perWalletModelDataList) {
+          blockChain.addWallet(perWalletModelData.getWallet());
+        }
+      }
+    }
+  }
+
+  private MainChain createMainChain(final AbstractBlockChain blockChain) {
+    return new MainChain() {
+      @Override
+      public int getBestChainHeight() {
+        return blockChain.getBestChainHeight();
+      }
+
+      @Override
+      public boolean isOnBestChain(StoredBlock block) throws IOException {
+        try {
+          StoredBlock cursor = blockChain.getChainHead();
+          while (cursor != null && cursor.getHeight() > block.getHeight()) {
+            cursor = cursor.getPrev(blockChain.getBlockStore());
+          }
+          return cursor != null && cursor.getHeader().getHash().equals(block.getHeader().getHash());
+        } catch (BlockStoreException e) {
+          throw new IOException("Could not read the main block store", e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Fetch the blocks after fromBlock until the peer's tip is reached, merging each batch into the wallets once it is known
+   * to be on the main chain's best chain.
+   *
+   * @return The last block merged
+   */
+  private StoredBlock scan(StoredBlock startBlock, StoredBlock fromBlock, MainChain mainChain) throws IOException, VerificationException {
+    StoredBlock lastMergedBlock = fromBlock;
+    RescannedChain rescannedChain = new RescannedChain(networkParameters, fromBlock, findIntervalStartBlock(fromBlock));
+    PendingBlocks pendingBlocks = new PendingBlocks(mainChain, fromBlock);
+    while (true) {
+      StoredBlock splitPoint = applyReorganisations(lastMergedBlock);
+      if (splitPoint != lastMergedBlock) {
+        // Blocks merged have left the best chain so rescan the new best chain from where it split.
+        lastMergedBlock = splitPoint;
+        rescannedChain = new RescannedChain(networkParameters, splitPoint, findIntervalStartBlock(splitPoint));
+        pendingBlocks = new PendingBlocks(mainChain, splitPoint);
+      }
+
+      List<StoredBlock> blocks = rescannedChain.connect(fetchHeaders(rescannedChain.getTip()));
+      if (blocks.isEmpty()) {
+        break;
+      }
+
+      List<RescannedBlock> rescannedBlocks = fetchFilteredBlocks(blocks);
+      List<RescannedBlock> blocksOnBestChain = pendingBlocks.add(blocks, rescannedBlocks);
+      StoredBlock lastBlockOnBestChain = pendingBlocks.getLastBlockOnBestChain();
+      if (lastBlockOnBestChain != null && lastBlockOnBestChain.getHeight() > lastMergedBlock.getHeight()) {
+        merge(blocksOnBestChain, lastBlockOnBestChain);
+        lastMergedBlock = lastBlockOnBestChain;
+      }
+      reportProgress(startBlock, blocks.get(blocks.size() - 1));
+
+      if (blocks.size() < MAXIMUM_HEADERS_PER_MESSAGE || pendingBlocks.hasLeftBestChain()) {
+        break;
+      }
+    }
+    pendingBlocks.checkJoinedBestChain();
+    return lastMergedBlock;
+  }
+
+  /**
+   * Apply the reorganisations of the main chain recorded whilst the wallets were out of it.
+   *
+   * The transactions in the blocks that left the best chain become pending again. They are confirmed again, if they
+   * are in the new best chain, by rescanning from the split point.
+   *
+   * @return The block to rescan from - the lowest split point below the last block merged, otherwise the last block merged
+   */
+  private StoredBlock applyReorganisations(StoredBlock lastMergedBlock) throws VerificationException {
+    List<Reorganisation> reorganisationsToApply;
+    synchronized (reorganisations) {
+      reorganisationsToApply = new ArrayList<Reorganisation>(reorganisations);
+      reorganisations.clear();
+    }
+
+    StoredBlock rescanFrom = lastMergedBlock;
+    for (Reorganisation reorganisation : reorganisationsToApply) {
+      if (reorganisation.splitPoint.getHeight() >= rescanFrom.getHeight()) {
+        // None of the blocks merged have left the best chain.
+        continue;
+      }
+      log.debug("The main chain reorganised at height " + reorganisation.splitPoint.getHeight() + " during the rescan");
+      for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+        perWalletModelData.getWallet().reorganize(reorganisation.splitPoint, reorganisation.oldBlocks,
+                Collections.<StoredBlock>emptyList());
+      }
+      rescanFrom = reorganisation.splitPoint;
+    }
+    return rescanFrom;
+  }
+
+  /**
+   * @return The block at the start of the difficulty interval the block is in, or null if the main block store does not hold it
+   */
+  private StoredBlock findIntervalStartBlock(StoredBlock block) throws IOException {
+    BlockStore blockStore = controller.getMultiBitService().getChain().getBlockStore();
+    try {
+      StoredBlock cursor = block;
+      while (cursor != null && cursor.getHeight() % networkParameters.getInterval() != 0) {
+        cursor = cursor.getPrev(blockStore);
+      }
+      return cursor;
+    } catch (BlockStoreException e) {
+      throw new IOException("Could not read the main block store", e);
+    }
+  }
+
+  /**
+   * Fetch the headers of the blocks after the specified block.
+   */
+  private List<Block> fetchHeaders(StoredBlock fromBlock) throws IOException {
+    Sha256Hash fromHash = fromBlock.getHeader().getHash();
+    awaitedHeadersAfter = fromHash;
+    peer.sendMessage(new GetHeadersMessage(networkParameters, Collections.singletonList(fromHash), Sha256Hash.ZERO_HASH));
+
+    HeadersMessage headersMessage;
+    try {
+      headersMessage = headersResponses.poll(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted whilst waiting for block headers", e);
+    } finally {
+      awaitedHeadersAfter = null;
+    }
+    if (headersMessage == null) {
+      throw new IOException("Timed out waiting for block headers from " + peer);
+    }
+    return headersMessage.getBlockHeaders();
+  }
+
+  /**
+   * Fetch the filtered blocks of the specified blocks.
+   *
+   * A ping is sent after the request. The peer answers requests in order so once the pong arrives every block has been received.
+   *
+   * @return The blocks with transactions in them, in block order
+   */
+  private List<RescannedBlock> fetchFilteredBlocks(List<StoredBlock> blocks) throws IOException {
+    GetDataMessage getDataMessage = new GetDataMessage(networkParameters);
+    for (StoredBlock block : blocks) {
+      Sha256Hash hash = block.getHeader().getHash();
+      awaitedBlocks.add(hash);
+      getDataMessage.addFilteredBlock(hash);
+    }
+    peer.sendMessage(getDataMessage);
+
+    try {
+      peer.ping().get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted whilst waiting for filtered blocks", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Could not wait for filtered blocks from " + peer, e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for filtered blocks from " + peer, e);
+    } catch (ProtocolException e) {
+      throw new IOException("The peer " + peer + " cannot be pinged so cannot be rescanned from", e);
+    }
+
+    if (!awaitedBlocks.isEmpty()) {
+      int numberOfMissingBlocks = awaitedBlocks.size();
+      awaitedBlocks.clear();
+      receivedBlocks.clear();
+      missingTransactions.clear();
+      throw new IOException("The peer " + peer + " did not send " + numberOfMissingBlocks + " of the filtered blocks");
+    }
+    fetchMissingTransactions();
+
+    List<RescannedBlock> rescannedBlocks = new ArrayList<RescannedBlock>();
+    for (StoredBlock block : blocks) {
+      FilteredBlock filteredBlock = receivedBlocks.remove(block.getHeader().getHash());
+      Map<Sha256Hash, Transaction> associatedTransactions = filteredBlock.getAssociatedTransactions();
+      if (!associatedTransactions.isEmpty()) {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (Sha256Hash transactionHash : filteredBlock.getTransactionHashes()) {
+          Transaction transaction = associatedTransactions.get(transactionHash);
+          if (transaction != null) {
+            transactions.add(transaction);
+          }
+        }
+        rescannedBlocks.add(new RescannedBlock(block, transactions));
+      }
+    }
+    return rescannedBlocks;
+  }
+
+  /**
+   * Provide the filtered blocks with the matched transactions the peer did not send after them. They are usually
+   * transactions the peer relayed earlier, so they are looked for in the wallets first and then requested again.
+   *
+   * @throws IOException if any are still missing, so that the batch is not merged
+   */
+  private void fetchMissingTransactions() throws IOException {
+    if (missingTransactions.isEmpty()) {
+      return;
+    }
+
+    for (Map.Entry<Sha256Hash, FilteredBlock> missingTransaction : missingTransactions.entrySet()) {
+      for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+        Transaction walletTransaction = perWalletModelData.getWallet().getTransaction(missingTransaction.getKey());
+        if (walletTransaction != null) {
+          missingTransaction.getValue().provideTransaction(walletTransaction);
+          missingTransactions.remove(missingTransaction.getKey());
+          break;
+        }
+      }
+    }
+    if (missingTransactions.isEmpty()) {
+      return;
+    }
+
+    log.debug("Requesting " + missingTransactions.size() + " transactions missing from filtered blocks from " + peer);
+    GetDataMessage getDataMessage = new GetDataMessage(networkParameters);
+    for (Sha256Hash transactionHash : missingTransactions.keySet()) {
+      getDataMessage.addTransaction(transactionHash);
+    }
+    peer.sendMessage(getDataMessage);
+
+    try {
+      peer.ping().get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted whilst waiting for transactions", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Could not wait for transactions from " + peer, e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for transactions from " + peer, e);
+    } catch (ProtocolException e) {
+      throw new IOException("The peer " + peer + " cannot be pinged so cannot be rescanned from", e);
+    }
+
+    if (!missingTransactions.isEmpty()) {
+      int numberOfMissingTransactions = missingTransactions.size();
+      missingTransactions.clear();
+      receivedBlocks.clear();
+      throw new IOException("The peer " + peer + " did not send " + numberOfMissingTransactions
+              + " transactions of the filtered blocks");
+    }
+  }
+
+  /**
+   * Merge the transactions found into the wallets in block order, bring the wallets up to the last block and checkpoint
+   * the wallets' progress in their journals.
+   */
+  private void merge(List<RescannedBlock> rescannedBlocks, StoredBlock lastBlock) throws VerificationException {
+    int bestChainHeight = Math.max(lastBlock.getHeight(), controller.getMultiBitService().getChain().getBestChainHeight());
+    FileHandler fileHandler = controller.getFileHandler();
+
+    for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+      Wallet wallet = perWalletModelData.getWallet();
+      for (RescannedBlock rescannedBlock : rescannedBlocks) {
+        for (int i = 0; i < rescannedBlock.transactions.size(); i++) {
+          Transaction transaction = rescannedBlock.transactions.get(i);
+          try {
+            // A transaction already in the wallet is received again unless it is already in this block, so that a
+            // transaction made pending by a reorganisation is confirmed again.
+            Transaction existingTransaction = wallet.getTransaction(transaction.getHash());
+            boolean isInBlock = existingTransaction != null && existingTransaction.getAppearsInHashes() != null
+                    && existingTransaction.getAppearsInHashes().containsKey(rescannedBlock.storedBlock.getHeader().getHash());
+            if (!isInBlock && (existingTransaction != null || wallet.isTransactionRelevant(transaction))) {
+              // Each wallet has its own copy of the transaction, as the block chain does.
+              Transaction walletTransaction = new Transaction(networkParameters, transaction.bitcoinSerialize());
+              wallet.receiveFromBlock(walletTransaction, rescannedBlock.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+
+              // The block is not in the block store so the transaction is journalled with it here.
+              fileHandler.journalTransaction(perWalletModelData, walletTransaction, rescannedBlock.storedBlock);
+            }
+          } catch (ScriptException e) {
+            log.error("Could not check transaction " + transaction.getHashAsString() + " for relevance. " + e.getMessage());
+          }
+        }
+      }
+
+      // The wallet missed the new best block notifications whilst it was out of the main chain so work out the depths directly.
+      for (Transaction transaction : wallet.getTransactions(false)) {
+        TransactionConfidence confidence = transaction.getConfidence();
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING) {
+          confidence.setDepthInBlocks(bestChainHeight - confidence.getAppearedAtChainHeight() + 1);
+        }
+      }
+
+      if (wallet.getLastBlockSeenHeight() < lastBlock.getHeight()) {
+        wallet.setLastBlockSeenHeight(lastBlock.getHeight());
+        wallet.setLastBlockSeenHash(lastBlock.getHeader().getHash());
+      }
+
+      // The last block seen is journalled after the transactions so a resumed rescan never skips a transaction.
+      // The batch is committed as a whole.
+      fileHandler.journalLastBlockSeen(perWalletModelData);
+      fileHandler.commitJournal(perWalletModelData);
+    }
+  }
+
+  private void reportProgress(StoredBlock startBlock, StoredBlock lastBlock) {
+    int blocksToRescan = Math.max(1, controller.getMultiBitService().getChain().getBestChainHeight() - startBlock.getHeight());
+    int blocksRescanned = lastBlock.getHeight() - startBlock.getHeight();
+    int blocksLeft = Math.max(0, blocksToRescan - blocksRescanned);
+    double percent = Math.min(MultiBitDownloadListener.DONE_FOR_DOUBLES, 100.0 * blocksRescanned / blocksToRescan);
+    replayTask.setPercentComplete((long) percent);
+
+    Date blockDate = new Date(lastBlock.getHeader().getTimeSeconds() * 1000);
+    for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+      if (perWalletModelData.getSingleWalletDownloadListener() != null) {
+        perWalletModelData.getSingleWalletDownloadListener().progress(percent, blocksLeft, blockDate);
+      }
+    }
+  }
+
+  /**
+   * Take the responses to the rescan's requests off the peer's message stream. Runs on the peer's network thread.
+   */
+  @Override
+  public Message onPreMessageReceived(Peer peer, Message m) {
+    if (m instanceof Transaction && currentFilteredBlock != null) {
+      Transaction transaction = (Transaction) m;
+      if (currentTransactionHashes.remove(transaction.getHash())) {
+        currentFilteredBlock.provideTransaction(transaction);
+        if (currentTransactionHashes.isEmpty()) {
+          finishFilteredBlock();
+        }
+        return null;
+      }
+    }
+
+    // A transaction requested again because it did not follow its filtered block.
+    if (m instanceof Transaction) {
+      FilteredBlock filteredBlock = missingTransactions.remove(((Transaction) m).getHash());
+      if (filteredBlock != null) {
+        finishFilteredBlock();
+        filteredBlock.provideTransaction((Transaction) m);
+        return null;
+      }
+    }
+
+    // Anything else ends the run of transactions following a filtered block.
+    finishFilteredBlock();
+
+    if (m instanceof HeadersMessage) {
+      List<Block> headers = ((HeadersMessage) m).getBlockHeaders();
+      Sha256Hash headersAfter = awaitedHeadersAfter;
+      if (headersAfter != null && (headers.isEmpty() || headers.get(0).getPrevBlockHash().equals(headersAfter))) {
+        awaitedHeadersAfter = null;
+        headersResponses.add((HeadersMessage) m);
+        return null;
+      }
+    } else if (m instanceof FilteredBlock) {
+      FilteredBlock filteredBlock = (FilteredBlock) m;
+      if (awaitedBlocks.contains(filteredBlock.getHash())) {
+        currentFilteredBlock = filteredBlock;
+        currentTransactionHashes = new HashSet<Sha256Hash>(filteredBlock.getTransactionHashes());
+        if (currentTransactionHashes.isEmpty()) {
+          finishFilteredBlock();
+        }
+        return null;
+      }
+    }
+    return m;
+  }
+
+  private void finishFilteredBlock() {
+    if (currentFilteredBlock == null) {
+      return;
+    }
+    if (!currentTransactionHashes.isEmpty()) {
+      // The peer does not resend transactions it has already sent, so some may be missing. They are fetched before the
+      // batch is merged.
+      log.debug("Filtered block " + currentFilteredBlock.getHash() + " is missing " + currentTransactionHashes.size() + " transactions");
+      for (Sha256Hash transactionHash : currentTransactionHashes) {
+        missingTransactions.put(transactionHash, currentFilteredBlock);
+      }
+    }
+    receivedBlocks.put(currentFilteredBlock.getHash(), currentFilteredBlock);
+    awaitedBlocks.remove(currentFilteredBlock.getHash());
+    currentFilteredBlock = null;
+    currentTransactionHashes = null;
+  }
+}
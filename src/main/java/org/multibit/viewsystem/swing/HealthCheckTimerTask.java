@@ -15,13 +15,9 @@
  */
 package org.multibit.viewsystem.swing;
 
-import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
-import org.multibit.file.WalletSaveException;
-import org.multibit.message.Message;
-import org.multibit.message.MessageManager;
+import org.multibit.file.WalletSaveScheduler;
 import org.multibit.model.bitcoin.WalletData;
-import org.multibit.store.WalletVersionException;
 import org.multibit.viewsystem.swing.action.ExitAction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,7 +28,7 @@ import java.util.TimerTask;
 
 /**
  * TimerTask to regularly check the 'health' of MultiBit.
- * It detects whether wallet files have been changed by some external process and to save dirty files.
+ * It hands any dirty wallets, or wallets with a journal due for compaction, to the WalletSaveScheduler.
  * It checks the ping times of the peers to see if they are up.
  *
  * @see java.util.Timer
@@ -45,7 +41,6 @@ public class HealthCheckTimerTask extends TimerTask {
 
   private static Logger log = LoggerFactory.getLogger(HealthCheckTimerTask.class);
 
-  private final Controller controller;
   private final BitcoinController bitcoinController;
 
   private boolean isRunning = false;
@@ -57,7 +52,6 @@ public class HealthCheckTimerTask extends TimerTask {
    */
   public HealthCheckTimerTask(BitcoinController bitcoinController) {
     this.bitcoinController = bitcoinController;
-    this.controller = bitcoinController;
   }
 
   /**
@@ -73,28 +67,17 @@ public class HealthCheckTimerTask extends TimerTask {
       if (ExitAction.isRunning()) {
         log.debug("Skipping HealthCheckTimerTask#run as the ExitAction is already running");
       } else {
-        log.debug("Checking if wallets are dirty . . .");
+        log.debug("Checking if wallets need saving . . .");
         List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
 
         if (perWalletModelDataList != null) {
           Iterator<WalletData> iterator = perWalletModelDataList.iterator();
           while (iterator.hasNext()) {
             WalletData loopModelData = iterator.next();
-            if (bitcoinController.getFileHandler() != null) {
-              // See if they are dirty - write out if so.
-              if (loopModelData.isDirty()) {
-                log.debug("Saving dirty wallet '" + loopModelData.getWalletFilename() + "'...");
-                try {
-                  bitcoinController.getFileHandler().savePerWalletModelData(loopModelData, false);
-                  log.debug("... done.");
-                } catch (WalletSaveException | WalletVersionException e) {
-                  String message = controller.getLocaliser().getString(
-                          "createNewWalletAction.walletCouldNotBeCreated",
-                          new Object[]{loopModelData.getWalletFilename(), e.getMessage()});
-                  log.error(message);
-                  MessageManager.INSTANCE.addMessage(new Message(message));
-                }
-              }
+            // Dirty wallets are normally scheduled for saving as soon as they are changed.
+            // This picks up journals that have become due for compaction and acts as a safety net.
+            if (loopModelData.isDirty() || loopModelData.isJournalCompactionDue()) {
+              WalletSaveScheduler.INSTANCE.scheduleSave(loopModelData);
             }
           }
         }
@@ -102,7 +85,7 @@ public class HealthCheckTimerTask extends TimerTask {
         log.debug("End of HealthCheckTimerTask");
       }
     } catch (java.util.ConcurrentModificationException cme) {
-      log.error("The list of open wallets was changed whilst files were being written.");
+      log.error("The list of open wallets was changed whilst it was being checked.");
     } finally {
       isRunning = false;
     }
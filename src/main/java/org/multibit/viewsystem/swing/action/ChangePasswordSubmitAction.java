@@ -16,9 +16,9 @@
 package org.multibit.viewsystem.swing.action;
 
 import com.google.bitcoin.core.Wallet;
-import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.KeyCryptoEngine;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandler;
 import org.multibit.model.bitcoin.WalletBusyListener;
@@ -116,52 +116,32 @@ public class ChangePasswordSubmitAction extends MultiBitSubmitAction implements
 
                 super.bitcoinController.fireWalletBusyChange(true);
 
-                boolean decryptSuccess = false;
-                KeyCrypter keyCrypterToUse = wallet.getKeyCrypter();
                 try {
-                    wallet.decrypt(keyCrypterToUse.deriveKey(CharBuffer.wrap(currentPasswordToUse)));
-                    decryptSuccess = true;
-                } catch (KeyCrypterException kce) {
-                    // Notify the user that the decrypt failed.
-                    changePasswordPanel.setMessage1(controller.getLocaliser().getString("changePasswordPanel.changePasswordFailed",
-                            new String[] { kce.getMessage() }));
+                    // Re-key the private keys from the current password to the new one in parallel.
+                    KeyCryptoEngine.INSTANCE.changePassword(wallet, CharBuffer.wrap(currentPasswordToUse),
+                            CharBuffer.wrap(newPasswordToUse), controller.getLocaliser());
 
-                    // Declare that wallet is no longer busy with the task.
-                    perWalletModelData.setBusyTaskKey(null);
-                    perWalletModelData.setBusy(false);
-                    super.bitcoinController.fireWalletBusyChange(false);
-                    
-                    return;
-                }
+                    // All the keys changed at once so the wallet is marked dirty once and saved straight away.
+                    perWalletModelData.setDirty(true);
+                    FileHandler fileHandler = new FileHandler(super.bitcoinController);
+                    fileHandler.savePerWalletModelData(perWalletModelData, false);
 
-                if (decryptSuccess) {
-                    try {
-                        wallet.encrypt(keyCrypterToUse, keyCrypterToUse.deriveKey(CharBuffer.wrap(newPasswordToUse)));
-                        FileHandler fileHandler = new FileHandler(super.bitcoinController);
-                        fileHandler.savePerWalletModelData(super.bitcoinController.getModel().getActivePerWalletModelData(), true);
-                        
-                        // Backup the private keys.
-                        privateKeysBackupFile = fileHandler.backupPrivateKeys(CharBuffer.wrap(newPasswordToUse));
-                        
-                        // Backup the wallet and wallet info
-                        BackupManager.INSTANCE.backupPerWalletModelData(fileHandler, perWalletModelData);                        
-                    } catch (KeyCrypterException kce) {
-                        // Notify the user that the encrypt failed.
-                        changePasswordPanel.setMessage1(controller.getLocaliser().getString(
-                                "changePasswordPanel.changePasswordFailed", new String[] { kce.getMessage() }));
-                        return;
-                    } catch (IOException ede) {
-                        // Notify the user that the private key backup failed.
-                        changePasswordPanel.setMessage2(controller.getLocaliser().getString(
-                                "changePasswordPanel.keysBackupFailed", new String[] { ede.getMessage() }));
-                        return;
-                    } finally {
-                        // Declare that wallet is no longer busy with the task.
-                        perWalletModelData.setBusyTaskKey(null);
-                        perWalletModelData.setBusy(false);
-                        super.bitcoinController.fireWalletBusyChange(false);
-                    }
-                } else {
+                    // Backup the private keys.
+                    privateKeysBackupFile = fileHandler.backupPrivateKeys(CharBuffer.wrap(newPasswordToUse));
+
+                    // Backup the wallet and wallet info
+                    BackupManager.INSTANCE.backupPerWalletModelData(fileHandler, perWalletModelData);
+                } catch (KeyCrypterException kce) {
+                    // Notify the user that the change of password failed.
+                    changePasswordPanel.setMessage1(controller.getLocaliser().getString(
+                            "changePasswordPanel.changePasswordFailed", new String[] { kce.getMessage() }));
+                    return;
+                } catch (IOException ede) {
+                    // Notify the user that the private key backup failed.
+                    changePasswordPanel.setMessage2(controller.getLocaliser().getString(
+                            "changePasswordPanel.keysBackupFailed", new String[] { ede.getMessage() }));
+                    return;
+                } finally {
                     // Declare that wallet is no longer busy with the task.
                     perWalletModelData.setBusyTaskKey(null);
                     perWalletModelData.setBusy(false);
@@ -22,6 +22,7 @@ import com.google.bitcoin.core.Wallet;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.KeyCryptoEngine;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.WalletBusyListener;
@@ -150,7 +151,7 @@ public class CheckPrivateKeysSubmitAction extends MultiBitSubmitAction implement
     List<String> badAddresses = Lists.newArrayList();
 
     try {
-      Wallet walletToCheck = perWalletModelData.getWallet();
+      final Wallet walletToCheck = perWalletModelData.getWallet();
       List<ECKey> keysToCheck = walletToCheck.getKeys();
 
       // Derive keyParameter if wallet is encrypted
@@ -158,36 +159,45 @@ public class CheckPrivateKeysSubmitAction extends MultiBitSubmitAction implement
       if (password != null && !password.equals("") && walletToCheck.isEncrypted()) {
         keyParameter = walletToCheck.getKeyCrypter().deriveKey(password);
       }
+      final KeyParameter finalKeyParameter = keyParameter;
+
+      // Check the keys in parallel - each check returns the address if the key is bad, otherwise null.
+      List<String> checkResults = KeyCryptoEngine.INSTANCE.processKeys(keysToCheck, new KeyCryptoEngine.KeyTask<String>() {
+        @Override
+        public String process(ECKey loopECKey) {
+          Address originalAddress = loopECKey.toAddress(NetworkParameters.fromID(NetworkParameters.ID_MAINNET));
+          try {
+
+            // Decrypt the ECKey if it is encrypted
+            if (loopECKey.isEncrypted()) {
+              loopECKey = loopECKey.decrypt(walletToCheck.getKeyCrypter(), finalKeyParameter);
+            }
 
-      for (ECKey loopECKey : keysToCheck) {
-        Address originalAddress = loopECKey.toAddress(NetworkParameters.fromID(NetworkParameters.ID_MAINNET));
-        try {
-
-          // Decrypt the ECKey if it is encrypted
-          if (loopECKey.isEncrypted()) {
-            loopECKey = loopECKey.decrypt(walletToCheck.getKeyCrypter(), keyParameter);
-          }
-
-          byte[] privateKeyBytes = loopECKey.getPrivKeyBytes();
-          if (privateKeyBytes == null) {
-            // The private key in the ecKey is missing
-            allKeysAreOk = false;
-
-            badAddresses.add(originalAddress.toString());
-          } else {
-            // Create an ECKey with just the private key bytes, it creates the public key - the address should be the same
-            ECKey rebornKey = new ECKey(new BigInteger(1, privateKeyBytes), null, loopECKey.isCompressed());
-            Address rebornAddress = rebornKey.toAddress(NetworkParameters.fromID(NetworkParameters.ID_MAINNET));
-            if (!rebornAddress.toString().equals(originalAddress.toString())) {
-              // The private key in the ecKey does not match the address - private key could be damaged or missing
-              allKeysAreOk = false;
-              badAddresses.add(originalAddress.toString());
+            byte[] privateKeyBytes = loopECKey.getPrivKeyBytes();
+            if (privateKeyBytes == null) {
+              // The private key in the ecKey is missing
+              return originalAddress.toString();
+            } else {
+              // Create an ECKey with just the private key bytes, it creates the public key - the address should be the same
+              ECKey rebornKey = new ECKey(new BigInteger(1, privateKeyBytes), null, loopECKey.isCompressed());
+              Address rebornAddress = rebornKey.toAddress(NetworkParameters.fromID(NetworkParameters.ID_MAINNET));
+              if (!rebornAddress.toString().equals(originalAddress.toString())) {
+                // The private key in the ecKey does not match the address - private key could be damaged or missing
+                return originalAddress.toString();
+              }
             }
+          } catch (Exception e) {
+            e.printStackTrace();
+            return originalAddress.toString();
           }
-        } catch (Exception e) {
-          e.printStackTrace();
+          return null;
+        }
+      }, super.bitcoinController.getLocaliser());
+
+      for (String badAddress : checkResults) {
+        if (badAddress != null) {
           allKeysAreOk = false;
-          badAddresses.add(originalAddress.toString());
+          badAddresses.add(badAddress);
         }
       }
 
@@ -122,7 +122,7 @@ public class CloseWalletAction extends MultiBitSubmitAction {
       // Set the new Wallet to be the active wallet.
       if (!this.bitcoinController.getModel().getPerWalletModelDataList().isEmpty()) {
         WalletData firstPerWalletModelData = this.bitcoinController.getModel().getPerWalletModelDataList().get(newWalletToSelect);
-        this.bitcoinController.getModel().setActiveWalletByFilename(firstPerWalletModelData.getWalletFilename());
+        this.bitcoinController.setActiveWalletByFilename(firstPerWalletModelData.getWalletFilename());
       } else {
         // No wallets are selected.
         // Clear all the views.
@@ -15,11 +15,13 @@
  */
 package org.multibit.viewsystem.swing.action;
 
+import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.KeyPool;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandler;
 import org.multibit.file.WalletSaveException;
@@ -39,7 +41,6 @@ import java.awt.event.ActionEvent;
 import java.io.File;
 import java.io.IOException;
 import java.nio.CharBuffer;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -74,6 +75,9 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
         this.walletPassword = walletPassword;
         this.lastPrivateKeysBackupFile = null;
         
+        // Generate keys whilst the user fills in the dialog so that the addresses can be created straight away.
+        KeyPool.INSTANCE.refillInBackground();
+
         // This action is a WalletBusyListener
         super.bitcoinController.registerWalletBusyListener(this);
         walletBusyChange(super.bitcoinController.getModel().getActivePerWalletModelData().isBusy());
@@ -177,18 +181,10 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
                         if (encryptNewKeys) {
                             aesKey = walletKeyCrypter.deriveKey(walletPassword);
                         }
-                        List<ECKey> newKeys = new ArrayList<ECKey>();
-                        for (int i = 0; i < numberOfAddressesToCreate; i++) {
-                            ECKey newKey;
-                            if (encryptNewKeys) {
-                                // Use the wallet KeyCrypter.
-                                newKey = (new ECKey()).encrypt(walletKeyCrypter, aesKey);
-                            } else {
-                                newKey = new ECKey();
-                            }
-                            newKeys.add(newKey);
-                        }
-                        
+                        // Take ready made keys from the key pool and encrypt them in one batch.
+                        List<ECKey> newKeys = KeyPool.INSTANCE.takeKeys(numberOfAddressesToCreate, encryptNewKeys ? walletKeyCrypter : null,
+                                aesKey, controller.getLocaliser());
+
                         FileHandler fileHandler = finalController.getFileHandler();
                         
                         synchronized (finalPerWalletModelData.getWallet()) {
@@ -200,11 +196,11 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
                           bitcoinController.getMultiBitService().recalculateFastCatchupAndFilter();
                         }
 
-                        // Add keys to address book.
+                        // Add keys to address book. The keys are known to be in the wallet so there is no need to look them up.
                         for (ECKey newKey : newKeys) {
-                            lastAddressString = newKey.toAddress(finalController.getModel().getNetworkParameters()).toString();
-                            finalPerWalletModelData.getWalletInfo().addReceivingAddress(new WalletAddressBookData("", lastAddressString),
-                                false);
+                            Address newAddress = newKey.toAddress(finalController.getModel().getNetworkParameters());
+                            finalPerWalletModelData.getWalletInfo().addReceivingAddressOfKey(newAddress);
+                            lastAddressString = newAddress.toString();
                         }
                         
                         // Backup the private keys.
@@ -24,7 +24,9 @@ import org.multibit.controller.bitcoin.BitcoinController;
 import org.multibit.controller.core.CoreController;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandler;
+import org.multibit.file.SecureFiles;
 import org.multibit.file.WalletSaveException;
+import org.multibit.file.WalletSaveScheduler;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.WalletData;
@@ -37,6 +39,7 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -49,6 +52,7 @@ public class ExitAction extends AbstractExitAction {
     
     private static final int MAXIMUM_TIME_TO_WAIT_FOR_HEALTH_CHECK_TASK = 30000; // ms
     private static final int TIME_TO_WAIT = 200; // ms
+    private static final int MAXIMUM_TIME_TO_WAIT_FOR_SECURE_DELETES = 30000; // ms
 
     private final MultiBitFrame mainFrame;
     private static final Logger log = LoggerFactory.getLogger(ExitAction.class);
@@ -123,6 +127,13 @@ public class ExitAction extends AbstractExitAction {
                 log.debug("PeerGroup is now stopped.");
             }
 
+            // Keep the peer scores for the next run.
+            try {
+                bitcoinController.getMultiBitService().getPeerScores().save();
+            } catch (IOException e) {
+                log.error("IOException on saving the peer scores. Message was '" + e.getMessage() + "'");
+            }
+
             // Close down the blockstore.
             BlockStore blockStore = bitcoinController.getMultiBitService().getBlockStore();
             if (blockStore != null) {
@@ -139,6 +150,9 @@ public class ExitAction extends AbstractExitAction {
             }
         }
 
+        // Stop the background saves, waiting for any in progress, as every wallet is saved below.
+        WalletSaveScheduler.INSTANCE.shutdown();
+
         if (bitcoinController != null) {
             // Save all the wallets and put their filenames in the user preferences.
             List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
@@ -163,7 +177,9 @@ public class ExitAction extends AbstractExitAction {
                                 });
                             }
                         }
-                        bitcoinController.getFileHandler().savePerWalletModelData(loopPerWalletModelData, false);
+                        // Journalled changes are compacted into the wallet file on exit.
+                        bitcoinController.getFileHandler().savePerWalletModelData(loopPerWalletModelData,
+                                loopPerWalletModelData.hasJournalledChanges());
                     } catch (WalletSaveException wse) {
                         log.error(wse.getClass().getCanonicalName() + " " + wse.getMessage());
                         MessageManager.INSTANCE.addMessage(new Message(wse.getClass().getCanonicalName() + " " + wse.getMessage()));
@@ -188,6 +204,9 @@ public class ExitAction extends AbstractExitAction {
             FileHandler.writeUserPreferences(bitcoinController);
         }
 
+        // Finish deleting old backups that were queued by the saves.
+        SecureFiles.waitForPendingDeletes(MAXIMUM_TIME_TO_WAIT_FOR_SECURE_DELETES, TimeUnit.MILLISECONDS);
+
         log.debug("Shutting down Bitcoin URI checker ...");
         ApplicationInstanceManager.shutdownSocket();
 
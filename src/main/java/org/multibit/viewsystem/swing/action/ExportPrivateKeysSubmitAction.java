@@ -16,9 +16,11 @@
 package org.multibit.viewsystem.swing.action;
 
 import com.google.bitcoin.core.MultiBitBlockChain;
+import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.file.KeyUsageIndex;
 import org.multibit.file.PrivateKeysHandler;
 import org.multibit.file.Verification;
 import org.multibit.model.bitcoin.WalletBusyListener;
@@ -209,16 +211,20 @@ public class ExportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
                 }
 
                 try {
-                    privateKeysHandler.exportPrivateKeys(exportPrivateKeysFile, finalBitcoinController.getModel().getActivePerWalletModelData()
-                            .getWallet(), blockChain, performEncryptionOfExportFile, exportPasswordToUse, walletPassword);
+                    // The wallet's keys and transactions are indexed once for both the export and its verification.
+                    Wallet wallet = finalBitcoinController.getModel().getActivePerWalletModelData().getWallet();
+                    KeyUsageIndex keyUsageIndex = KeyUsageIndex.create(wallet);
+
+                    privateKeysHandler.exportPrivateKeys(exportPrivateKeysFile, wallet, keyUsageIndex, blockChain, performEncryptionOfExportFile,
+                            exportPasswordToUse, walletPassword);
 
                     // Success.
                     uiMessage1 = controller.getLocaliser().getString("showExportPrivateKeysAction.privateKeysExportSuccess");
 
                     // Perform a verification on the exported file to see if it
                     // is correct.
-                    Verification verification = privateKeysHandler.verifyExportFile(exportPrivateKeysFile, finalBitcoinController.getModel()
-                            .getActivePerWalletModelData().getWallet(), blockChain, exportPasswordToUse, walletPassword);
+                    Verification verification = privateKeysHandler.verifyExportFile(exportPrivateKeysFile, keyUsageIndex, blockChain,
+                            exportPasswordToUse);
                     uiMessage2 = controller.getLocaliser().getString(verification.getMessageKey(), verification.getMessageData());
                     successMeasure = true;
                 } catch (IOException ioe) {
@@ -15,18 +15,14 @@
  */
 package org.multibit.viewsystem.swing.action;
 
-import com.googlecode.jcsv.CSVStrategy;
-import com.googlecode.jcsv.writer.CSVWriter;
-import com.googlecode.jcsv.writer.internal.CSVWriterBuilder;
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
-import org.multibit.file.WalletTableDataEntryConverter;
-import org.multibit.file.WalletTableDataHeaderEntryConverter;
+import org.multibit.file.ExportedTransactions;
+import org.multibit.file.TransactionsCsvExporter;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.BitcoinModel;
 import org.multibit.model.bitcoin.WalletData;
-import org.multibit.model.bitcoin.WalletTableData;
 import org.multibit.utils.ImageLoader;
 import org.multibit.viewsystem.swing.MultiBitFrame;
 import org.multibit.viewsystem.swing.view.CsvFileFilter;
@@ -39,13 +35,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.List;
 
 /**
  * This {@link Action} exports transactions from a wallet.
@@ -121,6 +111,11 @@ public class ExportTransactionsSubmitAction extends AbstractAction {
             }
             fileChooser.setSelectedFile(new File(defaultFileName));
 
+            // Offer to export only the transactions since the last export if the wallet has been exported before.
+            JCheckBox sinceLastExportCheckBox = new JCheckBox(controller.getLocaliser().getString("exportTransactionsSubmitAction.sinceLastExport"));
+            sinceLastExportCheckBox.setEnabled(hasBeenExported(bitcoinController.getModel().getActivePerWalletModelData()));
+            fileChooser.setAccessory(sinceLastExportCheckBox);
+
             fileChooser.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
             int returnVal = fileChooser.showSaveDialog(mainFrame);
 
@@ -129,7 +124,7 @@ public class ExportTransactionsSubmitAction extends AbstractAction {
                 File file = fileChooser.getSelectedFile();
                 if (file != null) {
                     exportTransactionsFilename = file.getAbsolutePath();
-                    exportTransactions(exportTransactionsFilename);
+                    exportTransactions(exportTransactionsFilename, sinceLastExportCheckBox.isSelected());
                 }
             }
         } finally {
@@ -140,7 +135,7 @@ public class ExportTransactionsSubmitAction extends AbstractAction {
         }
     }
 
-    void exportTransactions(String exportTransactionsFilename) {
+    void exportTransactions(String exportTransactionsFilename, boolean sinceLastExport) {
         String message;
         if (new File(exportTransactionsFilename).isDirectory()) {
             message = controller.getLocaliser().getString("exportTransactionsSubmitAction.fileIsADirectory",
@@ -184,7 +179,11 @@ public class ExportTransactionsSubmitAction extends AbstractAction {
         
         // Now actually perform the export.
         // (This is separated out to make it easier to test.)
-        exportTransactionsDoIt(bitcoinController.getModel().getActivePerWalletModelData(), exportTransactionsFilename);
+        if (sinceLastExport) {
+            exportTransactionsSinceLastExportDoIt(bitcoinController.getModel().getActivePerWalletModelData(), exportTransactionsFilename);
+        } else {
+            exportTransactionsDoIt(bitcoinController.getModel().getActivePerWalletModelData(), exportTransactionsFilename);
+        }
     }
     
     private void setFileChooserFont(Component[] comp) {
@@ -198,76 +197,34 @@ public class ExportTransactionsSubmitAction extends AbstractAction {
         }
     }
     
-    public void exportTransactionsDoIt(WalletData walletData, String exportTransactionsFilename) {        
-        List<WalletTableData> walletTableDataList = bitcoinController.getModel().createWalletTableData(bitcoinController, walletData);
-        
-        // Sort by date descending.
-        Comparator<WalletTableData> comparator = new Comparator<WalletTableData>() {
-            @Override
-            public int compare(WalletTableData o1, WalletTableData o2) {
-                if (o1 == null) {
-                    if (o2 == null) {
-                        return 0;
-                    } else {
-                        return 1;
-                    }
-                } else {
-                    if (o2 == null) {
-                        return -1;
-                    }
-                }
-                Date d1 = o1.getDate();
-                Date d2 = o2.getDate();
-                if (d1 == null) {
-                    // Object 1 has missing date.
-                    return 1;
-                }
-                if (d2 == null) {
-                    // Object 2 has missing date.
-                    return -1;
-                }
-                long n1 = d1.getTime();
-                long n2 = d2.getTime();
-                if (n1 == 0) {
-                    // Object 1 has missing date.
-                    return 1;
-                }
-                if (n2 == 0) {
-                    // Object 2 has missing date.
-                    return -1;
-                }
-                if (n1 < n2) {
-                    return -1;
-                } else if (n1 > n2) {
-                    return 1;
-                } else {
-                    return 0;
-                }
-            }
-        };
-        Collections.sort(walletTableDataList, Collections.reverseOrder(comparator));
-        
-        //Writer out = null;
-        OutputStreamWriter outputStreamWriter = null;
+    public void exportTransactionsDoIt(WalletData walletData, String exportTransactionsFilename) {
+        exportTransactionsDoIt(walletData, exportTransactionsFilename, false);
+    }
+
+    /**
+     * Export the transactions that have not been exported before, whatever their date. If the wallet has not been exported before all the transactions are exported.
+     */
+    public void exportTransactionsSinceLastExportDoIt(WalletData walletData, String exportTransactionsFilename) {
+        exportTransactionsDoIt(walletData, exportTransactionsFilename, true);
+    }
+
+    private void exportTransactionsDoIt(WalletData walletData, String exportTransactionsFilename, boolean onlyNotYetExported) {
         try {
-            //out = new FileWriter(exportTransactionsFilename);
-            outputStreamWriter = new OutputStreamWriter ( new FileOutputStream(exportTransactionsFilename, true ), "UTF-8" ); 
-            
-            // Write the header row.
-            WalletTableDataHeaderEntryConverter headerConverter = new WalletTableDataHeaderEntryConverter();
-            headerConverter.setBitcoinController(bitcoinController);
-            CSVWriter<WalletTableData> csvHeaderWriter = new CSVWriterBuilder<WalletTableData>(outputStreamWriter).strategy(CSVStrategy.UK_DEFAULT)
-                    .entryConverter(headerConverter).build();
-            
-            csvHeaderWriter.write(new WalletTableData(null));
-            
-            // Write the body of the CSV file.
-            WalletTableDataEntryConverter converter = new WalletTableDataEntryConverter();
-            converter.setBitcoinController(bitcoinController);
-            CSVWriter<WalletTableData> csvWriter = new CSVWriterBuilder<WalletTableData>(outputStreamWriter).strategy(CSVStrategy.UK_DEFAULT)
-                    .entryConverter(converter).build();
-            
-            csvWriter.writeAll(walletTableDataList);
+            // The transactions exported are recorded so that the next export since the last one skips them.
+            ExportedTransactions exportedTransactions = null;
+            if (walletData != null && walletData.getWalletInfo() != null && walletData.getWalletFilename() != null) {
+                exportedTransactions = ExportedTransactions.forWallet(walletData);
+                exportedTransactions.load();
+            }
+
+            int numberOfTransactions = new TransactionsCsvExporter(bitcoinController).exportTransactions(walletData,
+                    new File(exportTransactionsFilename), null, null, exportedTransactions, onlyNotYetExported);
+            log.debug("Exported " + numberOfTransactions + " transactions to '" + exportTransactionsFilename + "'");
+
+            if (exportedTransactions != null) {
+                exportedTransactions.save();
+            }
+
             String message = controller.getLocaliser().getString("exportTransactionsSubmitAction.success",
                     new Object[] { exportTransactionsFilename });
             MessageManager.INSTANCE.addMessage(new Message(message));
@@ -281,18 +238,16 @@ public class ExportTransactionsSubmitAction extends AbstractAction {
                     new Object[] { exportTransactionsFilename, e.getMessage() });
             log.error(message);
             MessageManager.INSTANCE.addMessage(new Message(message));
-        } finally {
-            if (outputStreamWriter != null) {
-                try {
-                    outputStreamWriter.flush();
-                    outputStreamWriter.close();
-                } catch (IOException ioe) {
-                    String message = controller.getLocaliser().getString("exportTransactionsSubmitAction.failure",
-                            new Object[] { exportTransactionsFilename, ioe.getMessage() });
-                    log.error(message);
-                    MessageManager.INSTANCE.addMessage(new Message(message));
-                }
-            }
         }
     }
+
+    /**
+     * @return true if any of the wallet's transactions have been exported before
+     */
+    boolean hasBeenExported(WalletData walletData) {
+        if (walletData == null || walletData.getWalletFilename() == null) {
+            return false;
+        }
+        return ExportedTransactions.forWallet(walletData).exists();
+    }
 }
\ No newline at end of file
@@ -16,14 +16,15 @@
 package org.multibit.viewsystem.swing.action;
 
 import com.google.bitcoin.core.ECKey;
-import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.KeyCryptoEngine;
 import org.multibit.file.*;
 import org.multibit.message.Message;
+import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.WalletBusyListener;
 import org.multibit.model.bitcoin.WalletData;
 import org.multibit.network.ReplayManager;
@@ -42,6 +43,7 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.util.*;
 import java.util.List;
@@ -65,6 +67,9 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
 
     private File privateKeysBackupFile;
 
+    private volatile int numberOfKeysAddedByLastImport;
+    private volatile int numberOfDuplicateKeysInLastImport;
+
     private static final long NUMBER_OF_MILLISECONDS_IN_A_SECOND = 1000;
 
     /**
@@ -210,92 +215,76 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
                 try {
                     Wallet walletToAddKeysTo = finalPerWalletModelData.getWallet();
 
-                    Collection<byte[]> unencryptedWalletPrivateKeys = new ArrayList<byte[]>();
                     Date earliestTransactionDate = new Date(DateUtils.nowUtc().getMillis());
 
                     if (walletToAddKeysTo.getEncryptionType() != EncryptionType.UNENCRYPTED) {
                         keyEncryptionRequired = true;
                     }
 
-                    try {
-                        if (walletToAddKeysTo != null) {
-                            synchronized (walletToAddKeysTo.getKeychain()) {
-                                // Work out what the unencrypted private keys are.
-                                KeyCrypter walletKeyCrypter = walletToAddKeysTo.getKeyCrypter();
-                                KeyParameter aesKey = null;
-                                if (keyEncryptionRequired) {
-                                    if (walletKeyCrypter == null) {
-                                        log.error("Missing KeyCrypter. Could not decrypt private keys.");
-                                    }
-                                    aesKey = walletKeyCrypter.deriveKey(CharBuffer.wrap(walletPassword));
-                                }
-                                for (ECKey ecKey : walletToAddKeysTo.getKeychain()) {
-                                    if (keyEncryptionRequired) {
-                                        if (ecKey.getEncryptedPrivateKey() == null
-                                                || ecKey.getEncryptedPrivateKey().getEncryptedBytes() == null
-                                                || ecKey.getEncryptedPrivateKey().getEncryptedBytes().length == 0) {
-
-                                            log.error("Missing encrypted private key bytes for key " + ecKey.toString()
-                                                    + ", enc.priv = "
-                                                    + Utils.bytesToHexString(ecKey.getEncryptedPrivateKey().getEncryptedBytes()));
-                                        } else {
-                                            byte[] decryptedPrivateKey = ecKey.getKeyCrypter().decrypt(
-                                                    ecKey.getEncryptedPrivateKey(), aesKey);
-                                            unencryptedWalletPrivateKeys.add(decryptedPrivateKey);
-                                        }
-
-                                    } else {
-                                        // Wallet is not encrypted.
-                                        unencryptedWalletPrivateKeys.add(ecKey.getPrivKeyBytes());
-                                    }
+                    long importStartTime = System.currentTimeMillis();
+                    int numberOfKeysRead = 0;
+                    int numberOfKeysAdded = 0;
+                    if (walletToAddKeysTo != null) {
+                        synchronized (walletToAddKeysTo.getKeychain()) {
+                            // The AES key is derived once for all the keys that need encrypting.
+                            KeyCrypter walletKeyCrypter = walletToAddKeysTo.getKeyCrypter();
+                            KeyParameter aesKey = null;
+                            if (keyEncryptionRequired) {
+                                if (walletKeyCrypter == null) {
+                                    log.error("Missing KeyCrypter. Could not encrypt private keys.");
                                 }
+                                aesKey = walletKeyCrypter.deriveKey(CharBuffer.wrap(walletPassword));
+                            }
 
-                                // Keep track of earliest transaction date go backwards from now.
-                                if (privateKeyAndDateArray != null) {
-                                    for (PrivateKeyAndDate privateKeyAndDate : privateKeyAndDateArray) {
-                                        ECKey keyToAdd = privateKeyAndDate.getKey();
-                                        if (keyToAdd != null) {
-                                            if (privateKeyAndDate.getDate() != null) {
-                                                keyToAdd.setCreationTimeSeconds(privateKeyAndDate.getDate().getTime()
-                                                        / NUMBER_OF_MILLISECONDS_IN_A_SECOND);
-                                            }
+                            // Index the pubkey hashes of the wallet keys so imported keys can be checked without decrypting.
+                            Set<ByteBuffer> walletPubKeyHashes = new HashSet<ByteBuffer>();
+                            for (ECKey ecKey : walletToAddKeysTo.getKeychain()) {
+                                walletPubKeyHashes.add(ByteBuffer.wrap(ecKey.getPubKeyHash()));
+                            }
 
-                                            if (!keyChainContainsPrivateKey(unencryptedWalletPrivateKeys, keyToAdd, walletPassword)) {
-                                                if (keyEncryptionRequired) {
-                                                    ECKey encryptedKey = new ECKey(walletKeyCrypter.encrypt(
-                                                            keyToAdd.getPrivKeyBytes(), aesKey), keyToAdd.getPubKey(),
-                                                            walletKeyCrypter);
-                                                    walletToAddKeysTo.addKey(encryptedKey);
-                                                } else {
-                                                    walletToAddKeysTo.addKey(keyToAdd);
-                                                }
+                            // Keep track of earliest transaction date go backwards from now.
+                            List<ECKey> keysToAdd = new ArrayList<ECKey>();
+                            if (privateKeyAndDateArray != null) {
+                                for (PrivateKeyAndDate privateKeyAndDate : privateKeyAndDateArray) {
+                                    ECKey keyToAdd = privateKeyAndDate.getKey();
+                                    if (keyToAdd != null) {
+                                        numberOfKeysRead++;
+                                        if (privateKeyAndDate.getDate() != null) {
+                                            keyToAdd.setCreationTimeSeconds(privateKeyAndDate.getDate().getTime()
+                                                    / NUMBER_OF_MILLISECONDS_IN_A_SECOND);
+                                        }
 
-                                                // Update earliest transaction date.
-                                                if (privateKeyAndDate.getDate() == null) {
-                                                    // Need to go back to the genesis block.
-                                                    earliestTransactionDate = null;
-                                                } else {
-                                                    if (earliestTransactionDate != null) {
-                                                        earliestTransactionDate = earliestTransactionDate.before(privateKeyAndDate
-                                                                .getDate()) ? earliestTransactionDate : privateKeyAndDate.getDate();
-                                                    }
+                                        // Skip keys already in the wallet (or earlier in the import).
+                                        if (walletPubKeyHashes.add(ByteBuffer.wrap(keyToAdd.getPubKeyHash()))) {
+                                            keysToAdd.add(keyToAdd);
+
+                                            // Update earliest transaction date.
+                                            if (privateKeyAndDate.getDate() == null) {
+                                                // Need to go back to the genesis block.
+                                                earliestTransactionDate = null;
+                                            } else {
+                                                if (earliestTransactionDate != null) {
+                                                    earliestTransactionDate = earliestTransactionDate.before(privateKeyAndDate
+                                                            .getDate()) ? earliestTransactionDate : privateKeyAndDate.getDate();
                                                 }
                                             }
                                         }
                                     }
                                 }
                             }
-                        }
-                    } finally {
-                        // Wipe the work collection of private key bytes to remove it from memory.
-                        for (byte[] privateKeyBytes : unencryptedWalletPrivateKeys) {
-                            if (privateKeyBytes != null) {
-                                for (int i = 0; i < privateKeyBytes.length; i++) {
-                                    privateKeyBytes[i] = 0;
-                                }
+
+                            // Encrypt the new keys in parallel before adding them.
+                            if (keyEncryptionRequired) {
+                                keysToAdd = KeyCryptoEngine.INSTANCE.encryptKeys(keysToAdd, walletKeyCrypter, aesKey,
+                                        finalBitcoinController.getLocaliser());
+                            }
+                            for (ECKey keyToAdd : keysToAdd) {
+                                walletToAddKeysTo.addKey(keyToAdd);
                             }
+                            numberOfKeysAdded = keysToAdd.size();
                         }
                     }
+                    reportImportThroughput(numberOfKeysRead, numberOfKeysAdded, System.currentTimeMillis() - importStartTime);
 
                     log.debug(walletToAddKeysTo.toString());
 
@@ -392,24 +381,22 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
     }
 
     /**
-     * Determine whether the key is already in the wallet.
-     * @throws KeyCrypterException
+     * Report how many keys were imported and how quickly.
      */
-    private boolean keyChainContainsPrivateKey(Collection<byte[]> unencryptedPrivateKeys, ECKey keyToAdd, CharSequence walletPassword) throws KeyCrypterException {
-        if (unencryptedPrivateKeys == null || keyToAdd == null) {
-            return false;
-        } else {
-            byte[] unencryptedKeyToAdd = new byte[0];
-            if (keyToAdd.isEncrypted()) {
-                unencryptedKeyToAdd = keyToAdd.getKeyCrypter().decrypt(keyToAdd.getEncryptedPrivateKey(), keyToAdd.getKeyCrypter().deriveKey(walletPassword));
-            }
-            for (byte[] loopEncryptedPrivateKey : unencryptedPrivateKeys) { 
-                if (Arrays.equals(unencryptedKeyToAdd, loopEncryptedPrivateKey)) {
-                    return true;
-                }
-            }
-            return false;
-        }
+    private void reportImportThroughput(int numberOfKeysRead, int numberOfKeysAdded, long importTimeInMilliseconds) {
+        numberOfKeysAddedByLastImport = numberOfKeysAdded;
+        numberOfDuplicateKeysInLastImport = numberOfKeysRead - numberOfKeysAdded;
+
+        double importTimeInSeconds = importTimeInMilliseconds / 1000.0;
+        long keysPerSecond = importTimeInMilliseconds == 0 ? numberOfKeysRead : Math.round(numberOfKeysRead / importTimeInSeconds);
+        log.debug("Imported " + numberOfKeysAdded + " of " + numberOfKeysRead + " private keys in " + importTimeInMilliseconds
+                + " ms (" + keysPerSecond + " keys per second)");
+
+        Message message = new Message(controller.getLocaliser().getString("importPrivateKeysSubmitAction.importThroughput",
+                new Object[] { numberOfKeysAdded, numberOfKeysRead - numberOfKeysAdded,
+                        String.format(Locale.ENGLISH, "%.1f", importTimeInSeconds), keysPerSecond }));
+        message.setShowInStatusBar(false);
+        MessageManager.INSTANCE.addMessage(message);
     }
 
     // Used in testing.
@@ -417,6 +404,16 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
         this.performReplay = performReplay;
     }
 
+    // Used in testing.
+    public int getNumberOfKeysAddedByLastImport() {
+        return numberOfKeysAddedByLastImport;
+    }
+
+    // Used in testing.
+    public int getNumberOfDuplicateKeysInLastImport() {
+        return numberOfDuplicateKeysInLastImport;
+    }
+
     @Override
     public void walletBusyChange(boolean newWalletIsBusy) {
         // Update the enable status of the action to match the wallet busy status.
@@ -136,14 +136,14 @@ public class OpenWalletAction extends AbstractAction {
                                     if (perWalletModelData != null && perWalletModelData.getWalletFilename() != null) {
                                         if (perWalletModelData.getWalletFilename().equals(selectedWalletFilename)) {
                                             walletIsAlreadyOpen = true;
-                                            this.bitcoinController.getModel().setActiveWalletByFilename(selectedWalletFilename);
+                                            this.bitcoinController.setActiveWalletByFilename(selectedWalletFilename);
                                             controller.fireDataChangedUpdateNow();
                                             break;
                                         } else {
                                             // Check if the file encrypted version of the wallet is already open - if so use it.
                                             if ((perWalletModelData.getWalletFilename() + "." + BackupManager.FILE_ENCRYPTED_WALLET_SUFFIX).equals(selectedWalletFilename)) {
                                                 walletIsAlreadyOpen = true;
-                                                this.bitcoinController.getModel().setActiveWalletByFilename(perWalletModelData.getWalletFilename());                                                    controller.fireDataChangedUpdateNow();
+                                                this.bitcoinController.setActiveWalletByFilename(perWalletModelData.getWalletFilename());                                                    controller.fireDataChangedUpdateNow();
                                                 break;
                                             }
                                         }
@@ -166,12 +166,9 @@ public class OpenWalletAction extends AbstractAction {
                                         return;
                                     }
                                     
-                                    // Read in the encrypted file and decrypt it.
+                                    // Read in the encrypted file and decrypt it to a regular wallet file.
                                     try {
-                                        byte [] walletBytes = BackupManager.INSTANCE.readFileAndDecrypt(new File(selectedWalletFilename), passwordToUse);
-                                        
-                                        // Make a regular wallet file.
-                                        FileHandler.writeFile(walletBytes, new File(decryptedWalletFileName));
+                                        BackupManager.INSTANCE.decryptFile(new File(selectedWalletFilename), new File(decryptedWalletFileName), passwordToUse);
                                         
                                         // Now just use the decrypted file and open it.
                                         selectedWalletFilename = decryptedWalletFileName;
@@ -15,7 +15,6 @@
  */
 package org.multibit.viewsystem.swing.view.walletlist;
 
-import com.google.bitcoin.core.Wallet.BalanceType;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.joda.money.Money;
 import org.multibit.controller.Controller;
@@ -24,9 +23,11 @@ import org.multibit.exchange.CurrencyConverter;
 import org.multibit.message.Message;
 import org.multibit.model.bitcoin.WalletBusyListener;
 import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletInfoData;
 import org.multibit.network.MultiBitDownloadListener;
 import org.multibit.network.ReplayManager;
 import org.multibit.network.ReplayTask;
+import org.multibit.store.MultiBitWalletVersion;
 import org.multibit.utils.ImageLoader;
 import org.multibit.viewsystem.swing.ColorAndFontConstants;
 import org.multibit.viewsystem.swing.MultiBitFrame;
@@ -238,9 +239,7 @@ public class SingleWalletPanel extends JPanel implements ActionListener, FocusLi
     walletTypeButton.setVerticalAlignment(SwingConstants.CENTER);
 
     walletTypeButton.setBorder(BorderFactory.createEmptyBorder(WALLET_TYPE_TOP_BORDER, WALLET_TYPE_LEFT_BORDER, 0, WALLET_TYPE_LEFT_BORDER));
-    if (perWalletModelData.getWallet() != null) {
-      setIconForWalletType(perWalletModelData.getWallet().getEncryptionType(), walletTypeButton);
-    }
+    updateWalletTypeIcon();
 
     constraints.fill = GridBagConstraints.NONE;
     constraints.gridx = 2;
@@ -386,6 +385,17 @@ public class SingleWalletPanel extends JPanel implements ActionListener, FocusLi
     }
   }
 
+  private void updateWalletTypeIcon() {
+    if (perWalletModelData.isStub()) {
+      // Use the wallet version rather than loading the wallet.
+      WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+      boolean encrypted = walletInfo != null && MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion();
+      setIconForWalletType(encrypted ? EncryptionType.ENCRYPTED_SCRYPT_AES : EncryptionType.UNENCRYPTED, walletTypeButton);
+    } else if (perWalletModelData.getWallet() != null) {
+      setIconForWalletType(perWalletModelData.getWallet().getEncryptionType(), walletTypeButton);
+    }
+  }
+
   private void setIconForWalletType(EncryptionType walletType, JButton button) {
     button.setHorizontalAlignment(SwingConstants.CENTER);
     button.setContentAreaFilled(false);
@@ -576,7 +586,8 @@ public class SingleWalletPanel extends JPanel implements ActionListener, FocusLi
               ColorAndFontConstants.BACKGROUND_COLOR.getBlue() - COLOR_DELTA), Math.max(0, ColorAndFontConstants.BACKGROUND_COLOR.getGreen() - COLOR_DELTA));
     }
 
-    BigInteger estimatedBalance = perWalletModelData.getWallet().getBalance(BalanceType.ESTIMATED);
+    // For a stub wallet this is the balance when it was last saved.
+    BigInteger estimatedBalance = perWalletModelData.getEstimatedBalance();
     String balanceTextToShowBTC = controller.getLocaliser().bitcoinValueToString(estimatedBalance, true, false);
     String balanceTextToShowFiat = "";
     if (CurrencyConverter.INSTANCE.getRate() != null && CurrencyConverter.INSTANCE.isShowingFiat()) {
@@ -601,9 +612,7 @@ public class SingleWalletPanel extends JPanel implements ActionListener, FocusLi
       }
     }
 
-    if (perWalletModelData.getWallet() != null) {
-      setIconForWalletType(perWalletModelData.getWallet().getEncryptionType(), walletTypeButton);
-    }
+    updateWalletTypeIcon();
 
     invalidate();
     revalidate();
@@ -243,7 +243,7 @@ public class WalletListPanel extends JPanel implements Viewable, WalletBusyListe
         if (perWalletModelDataList != null) {
             synchronized (walletPanels) {
                 for (WalletData loopPerWalletModelData : perWalletModelDataList) {
-                    if (loopPerWalletModelData.getWallet() != null) {
+                    if (loopPerWalletModelData.isStub() || loopPerWalletModelData.getWallet() != null) {
                         JPanel outerPanel = new JPanel();
                         outerPanel.setOpaque(false);
                         outerPanel.setBorder(BorderFactory.createEmptyBorder(TOP_BORDER, LEFT_BORDER, 0, RIGHT_BORDER));
@@ -356,7 +356,7 @@ public class WalletListPanel extends JPanel implements Viewable, WalletBusyListe
                     currentlySelectedWalletIndex++;
                 }
                 if (nextSelectedWalletIndex > -1) {
-                    this.bitcoinController.getModel().setActiveWalletByFilename(walletPanels.get(nextSelectedWalletIndex).getPerWalletModelData().getWalletFilename());
+                    this.bitcoinController.setActiveWalletByFilename(walletPanels.get(nextSelectedWalletIndex).getPerWalletModelData().getWalletFilename());
                     selectWalletPanelByFilename(walletPanels.get(nextSelectedWalletIndex).getPerWalletModelData().getWalletFilename());
                     controller.fireDataChangedUpdateNow();
                 }
@@ -417,8 +417,7 @@ public class WalletListPanel extends JPanel implements Viewable, WalletBusyListe
 
                 if (!selectedWalletPanel.getPerWalletModelData().getWalletFilename()
                         .equals(bitcoinController.getModel().getActiveWalletFilename())) {
-                    bitcoinController.getModel()
-                            .setActiveWalletByFilename(selectedWalletPanel.getPerWalletModelData().getWalletFilename());
+                    bitcoinController.setActiveWalletByFilename(selectedWalletPanel.getPerWalletModelData().getWalletFilename());
                     selectWalletPanelByFilename(selectedWalletPanel.getPerWalletModelData().getWalletFilename());
 
                     controller.fireDataChangedUpdateNow();
@@ -18,6 +18,7 @@ package org.multibit.crypto;
 import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -285,6 +286,51 @@ public class KeyCrypterOpenSSLTest extends TestCase {
         assertEquals( Utils.bytesToHexString(TEST_BYTES1),  Utils.bytesToHexString(truncatedRebornBytes));
     }
 
+    @Test
+    public void testEncryptDecryptStreaming() throws Exception {
+        KeyCrypterOpenSSL encrypterDecrypter = new KeyCrypterOpenSSL();
+
+        // Create a string long enough to be encrypted in several blocks.
+        StringBuffer stringBuffer = new StringBuffer();
+        for (int i = 0; i < 2000; i++) {
+            stringBuffer.append(i + " ").append(TEST_STRING1).append("\n");
+        }
+        String plainText = stringBuffer.toString();
+
+        // Encrypt a line at a time.
+        StringWriter cipherTextWriter = new StringWriter();
+        Writer encryptingWriter = encrypterDecrypter.createEncryptingWriter(cipherTextWriter, PASSWORD2);
+        for (int i = 0; i < 2000; i++) {
+            encryptingWriter.write(i + " " + TEST_STRING1 + "\n");
+        }
+        encryptingWriter.close();
+        String cipherText = cipherTextWriter.toString();
+
+        // The streamed cipher text is formatted exactly as if it was base64 encoded in one go.
+        byte[] cipherBytes = Base64.decodeBase64(cipherText.getBytes(KeyCrypterOpenSSL.STRING_ENCODING));
+        assertEquals(Base64.encodeBase64String(cipherBytes), cipherText);
+        assertEquals(plainText.trim(), encrypterDecrypter.decrypt(cipherText, PASSWORD2));
+
+        // Decrypt a line at a time.
+        BufferedReader decryptingReader = new BufferedReader(encrypterDecrypter.createDecryptingReader(new StringReader(
+                encrypterDecrypter.encrypt(plainText, PASSWORD2)), PASSWORD2));
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(i + " " + TEST_STRING1, decryptingReader.readLine());
+        }
+        assertNull(decryptingReader.readLine());
+        decryptingReader.close();
+
+        try {
+            Reader wrongPasswordReader = encrypterDecrypter.createDecryptingReader(new StringReader(cipherText), WRONG_PASSWORD);
+            while (wrongPasswordReader.read() != -1) {
+                // Keep reading.
+            }
+            fail("Decrypt with wrong password did not throw exception");
+        } catch (KeyCrypterException ede) {
+            assertTrue(ede.getMessage().indexOf("Could not decrypt") > -1);
+        }
+    }
+
     private void writeToFile(String textToWrite, File destinationFile) throws IOException {
         if (!destinationFile.exists()) {
             destinationFile.createNewFile();
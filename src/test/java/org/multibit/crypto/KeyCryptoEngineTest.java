@@ -0,0 +1,96 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.*;
+
+public class KeyCryptoEngineTest {
+
+    private static final CharSequence CURRENT_PASSWORD = "currentPassword";
+    private static final CharSequence NEW_PASSWORD = "newPassword";
+    private static final CharSequence WRONG_PASSWORD = "wrongPassword";
+
+    private static final int NUMBER_OF_KEYS = 300;
+
+    @Test
+    public void testEncryptAndDecryptKeys() throws Exception {
+        KeyCrypter keyCrypter = new KeyCrypterScrypt();
+        KeyParameter aesKey = keyCrypter.deriveKey(CURRENT_PASSWORD);
+
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            keys.add(new ECKey());
+        }
+
+        List<ECKey> encryptedKeys = KeyCryptoEngine.INSTANCE.encryptKeys(keys, keyCrypter, aesKey, null);
+        assertEquals(NUMBER_OF_KEYS, encryptedKeys.size());
+
+        List<ECKey> decryptedKeys = KeyCryptoEngine.INSTANCE.decryptKeys(encryptedKeys, keyCrypter, aesKey, null);
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            assertTrue("Key " + i + " was not encrypted", encryptedKeys.get(i).isEncrypted());
+            assertEquals("Key " + i + " was not decrypted back to the original",
+                    Utils.bytesToHexString(keys.get(i).getPrivKeyBytes()), Utils.bytesToHexString(decryptedKeys.get(i).getPrivKeyBytes()));
+        }
+    }
+
+    @Test
+    public void testChangePassword() throws Exception {
+        KeyCrypter keyCrypter = new KeyCrypterScrypt();
+        Wallet wallet = new Wallet(NetworkParameters.prodNet(), keyCrypter);
+
+        List<byte[]> originalPrivateKeys = new ArrayList<byte[]>();
+        KeyParameter currentAesKey = keyCrypter.deriveKey(CURRENT_PASSWORD);
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            ECKey key = new ECKey();
+            originalPrivateKeys.add(key.getPrivKeyBytes());
+            wallet.addKey(key.encrypt(keyCrypter, currentAesKey));
+        }
+
+        // A wrong current password leaves the wallet unchanged.
+        List<ECKey> keysBefore = new ArrayList<ECKey>(wallet.getKeychain());
+        try {
+            KeyCryptoEngine.INSTANCE.changePassword(wallet, WRONG_PASSWORD, NEW_PASSWORD, null);
+            fail("Changing the password with the wrong current password did not throw an exception");
+        } catch (KeyCrypterException kce) {
+            // Expected.
+        }
+        assertEquals(keysBefore, wallet.getKeychain());
+
+        KeyCryptoEngine.INSTANCE.changePassword(wallet, CURRENT_PASSWORD, NEW_PASSWORD, null);
+
+        KeyParameter newAesKey = keyCrypter.deriveKey(NEW_PASSWORD);
+        assertEquals(NUMBER_OF_KEYS, wallet.getKeychain().size());
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            ECKey key = wallet.getKeychain().get(i);
+            assertTrue("Key " + i + " is not encrypted", key.isEncrypted());
+            assertEquals("Key " + i + " does not decrypt with the new password", Utils.bytesToHexString(originalPrivateKeys.get(i)),
+                    Utils.bytesToHexString(key.decrypt(keyCrypter, newAesKey).getPrivKeyBytes()));
+        }
+    }
+}
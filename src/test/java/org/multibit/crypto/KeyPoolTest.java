@@ -0,0 +1,73 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static junit.framework.Assert.*;
+
+public class KeyPoolTest {
+
+    private static final CharSequence PASSWORD = "password";
+
+    @Test
+    public void testTakeKeys() throws Exception {
+        // Take more keys than the pool holds so that some have to be created on the spot.
+        int numberOfKeys = KeyPool.TARGET_NUMBER_OF_READY_KEYS + 50;
+        List<ECKey> keys = KeyPool.INSTANCE.takeKeys(numberOfKeys, null, null, null);
+        assertEquals(numberOfKeys, keys.size());
+
+        Set<ByteBuffer> pubKeys = new HashSet<ByteBuffer>();
+        for (ECKey key : keys) {
+            assertFalse(key.isEncrypted());
+            assertTrue("A key was handed out twice", pubKeys.add(ByteBuffer.wrap(key.getPubKey())));
+        }
+
+        // The pool is topped up again in the background.
+        long giveUpTime = System.currentTimeMillis() + 30000;
+        while (KeyPool.INSTANCE.getNumberOfReadyKeys() < KeyPool.TARGET_NUMBER_OF_READY_KEYS && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(50);
+        }
+        assertEquals(KeyPool.TARGET_NUMBER_OF_READY_KEYS, KeyPool.INSTANCE.getNumberOfReadyKeys());
+
+        // Pooled keys are never handed out again.
+        for (ECKey key : KeyPool.INSTANCE.takeKeys(10, null, null, null)) {
+            assertTrue("A key was handed out twice", pubKeys.add(ByteBuffer.wrap(key.getPubKey())));
+        }
+    }
+
+    @Test
+    public void testTakeEncryptedKeys() throws Exception {
+        KeyCrypter keyCrypter = new KeyCrypterScrypt();
+        KeyParameter aesKey = keyCrypter.deriveKey(PASSWORD);
+
+        List<ECKey> keys = KeyPool.INSTANCE.takeKeys(20, keyCrypter, aesKey, null);
+        assertEquals(20, keys.size());
+        for (ECKey key : keys) {
+            assertTrue(key.isEncrypted());
+            assertNotNull(key.decrypt(keyCrypter, aesKey).getPrivKeyBytes());
+        }
+    }
+}
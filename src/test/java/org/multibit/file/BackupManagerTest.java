@@ -21,7 +21,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -50,6 +54,12 @@ public class BackupManagerTest extends TestCase {
     private static final String TEST_FILE_COPY_AND_ENCRYPT = "testFileCopyAndEncrypt";
     private static final String TEST_BACKUP_WALLET_UNENCRYPTED = "testBackupWalletUnencrypted";
     private static final String TEST_BACKUP_WALLET_ENCRYPTED = "testBackupWalletEncrypted";
+    private static final String TEST_BACKUP_CHUNKS_ARE_SHARED = "testBackupChunksAreShared";
+    private static final String TEST_THIN_BACKUP_DIRECTORY = "testThinBackupDirectory";
+    private static final String TEST_FILE_LEVEL_ENCRYPT_BACKUPS = "testFileLevelEncryptBackups";
+
+    private static final long MILLISECONDS_IN_A_MINUTE = 60 * 1000;
+    private static final long MILLISECONDS_IN_A_DAY = 24 * 60 * MILLISECONDS_IN_A_MINUTE;
 
     private final CharSequence WALLET_PASSWORD = "horatio nelson 123";
 
@@ -297,4 +307,197 @@ public class BackupManagerTest extends TestCase {
         assertEquals("Wrong length of file after backup", originalBytes.length, backupBytes.length);  
         assertTrue("The wallet after the backup has changed", Arrays.areEqual(originalBytes, backupBytes));
     }
+
+    @Test
+    public void testBackupChunksAreShared() throws IOException {
+        File temporaryDirectory = FileHandler.createTempDirectory(TEST_BACKUP_CHUNKS_ARE_SHARED);
+        File backupDirectory = new File(temporaryDirectory, TEST_BACKUP_CHUNKS_ARE_SHARED + "-data" + File.separator + "wallet-backup");
+        assertTrue("Could not create the backup directory", backupDirectory.mkdirs());
+        File chunkDirectory = new File(backupDirectory.getParentFile(), BackupChunkStore.CHUNK_DIRECTORY_NAME);
+
+        // Back up some contents, then the same contents with a few bytes changed in the middle.
+        byte[] firstContents = new byte[200000];
+        new SecureRandom().nextBytes(firstContents);
+        byte[] secondContents = Arrays.clone(firstContents);
+        for (int i = 100000; i < 100010; i++) {
+            secondContents[i] = (byte) ~secondContents[i];
+        }
+
+        byte[] thirdContents = Arrays.clone(secondContents);
+        for (int i = 50000; i < 50010; i++) {
+            thirdContents[i] = (byte) ~thirdContents[i];
+        }
+
+        // The latest backup is kept whole so it can be opened by hand.
+        File firstBackup = new File(backupDirectory, TEST_BACKUP_CHUNKS_ARE_SHARED + "-20140101000000.wallet");
+        File secondBackup = new File(backupDirectory, TEST_BACKUP_CHUNKS_ARE_SHARED + "-20140102000000.wallet");
+        File thirdBackup = new File(backupDirectory, TEST_BACKUP_CHUNKS_ARE_SHARED + "-20140103000000.wallet");
+        BackupChunkStore.writeBackup(firstContents, firstBackup, null);
+        assertEquals("The latest backup is not whole", firstContents.length, firstBackup.length());
+        assertEquals("Chunks were written for the latest backup", 0, countChunks(chunkDirectory));
+
+        // The next backup moves the previous one into the chunk store.
+        BackupChunkStore.writeBackup(secondContents, secondBackup, firstBackup);
+        int numberOfChunksAfterSecondBackup = countChunks(chunkDirectory);
+        assertEquals("Wrong number of chunks after the second backup", BackupChunkStore.findChunkBoundaries(firstContents).size(), numberOfChunksAfterSecondBackup);
+        assertTrue("The previous backup manifest is not small", firstBackup.length() < 1024);
+        assertEquals("The latest backup is not whole", secondContents.length, secondBackup.length());
+
+        BackupChunkStore.writeBackup(thirdContents, thirdBackup, secondBackup);
+        int numberOfChunksAfterThirdBackup = countChunks(chunkDirectory);
+        assertTrue("The backups do not share chunks", numberOfChunksAfterThirdBackup - numberOfChunksAfterSecondBackup < numberOfChunksAfterSecondBackup / 2);
+        assertTrue("The previous backup manifest is not small", secondBackup.length() < 1024);
+
+        // All the backups read back in as they were written.
+        assertTrue("The first backup has changed", Arrays.areEqual(firstContents, FileHandler.readBackup(firstBackup)));
+        assertTrue("The second backup has changed", Arrays.areEqual(secondContents, FileHandler.readBackup(secondBackup)));
+        assertTrue("The third backup has changed", Arrays.areEqual(thirdContents, FileHandler.readBackup(thirdBackup)));
+
+        // Only reading it as a backup rebuilds a backup from its chunks.
+        assertEquals("A plain read rebuilt the backup", secondBackup.length(), FileHandler.read(secondBackup).length);
+
+        // Removing the first backup removes only its own chunks.
+        assertTrue(firstBackup.delete());
+        int numberOfChunksRemoved = BackupChunkStore.removeUnreferencedChunks(backupDirectory.getParent());
+        assertTrue("No chunks were removed", numberOfChunksRemoved > 0);
+        assertEquals("Wrong number of chunks left", BackupChunkStore.findChunkBoundaries(secondContents).size(), countChunks(chunkDirectory));
+        assertTrue("The second backup has changed after thinning", Arrays.areEqual(secondContents, FileHandler.readBackup(secondBackup)));
+        assertTrue("The third backup has changed after thinning", Arrays.areEqual(thirdContents, FileHandler.readBackup(thirdBackup)));
+
+        // A backup with a missing chunk cannot be read.
+        for (File chunkSubdirectory : chunkDirectory.listFiles()) {
+            for (File chunkFile : chunkSubdirectory.listFiles()) {
+                assertTrue(chunkFile.delete());
+            }
+        }
+        try {
+            FileHandler.readBackup(secondBackup);
+            fail("A backup with missing chunks was read");
+        } catch (IOException ioe) {
+            assertTrue("Wrong error for a missing chunk", ioe.getMessage().contains("is missing"));
+        }
+    }
+
+    @Test
+    public void testChunkLengthsClusterAroundTheNormalLength() {
+        byte[] contents = new byte[4 * 1024 * 1024];
+        new SecureRandom().nextBytes(contents);
+
+        List<Integer> chunkBoundaries = BackupChunkStore.findChunkBoundaries(contents);
+        int chunkStart = 0;
+        for (int i = 0; i < chunkBoundaries.size() - 1; i++) {
+            int chunkLength = chunkBoundaries.get(i) - chunkStart;
+            assertTrue("Chunk too short", chunkLength >= BackupChunkStore.MINIMUM_CHUNK_LENGTH);
+            assertTrue("Chunk too long", chunkLength <= BackupChunkStore.MAXIMUM_CHUNK_LENGTH);
+            chunkStart = chunkBoundaries.get(i);
+        }
+        assertEquals(contents.length, (int) chunkBoundaries.get(chunkBoundaries.size() - 1));
+
+        int averageChunkLength = contents.length / chunkBoundaries.size();
+        assertTrue("Average chunk length " + averageChunkLength + " is too far from the normal length",
+                averageChunkLength > BackupChunkStore.NORMAL_CHUNK_LENGTH / 2 && averageChunkLength < BackupChunkStore.NORMAL_CHUNK_LENGTH * 2);
+    }
+
+    @Test
+    public void testThinBackupDirectory() throws Exception {
+        File temporaryDirectory = FileHandler.createTempDirectory(TEST_THIN_BACKUP_DIRECTORY);
+        String walletFilename = temporaryDirectory.getAbsolutePath() + File.separator + TEST_THIN_BACKUP_DIRECTORY + ".wallet";
+        File backupDirectory = new File(BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(new File(walletFilename))
+                + File.separator + BackupManager.ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME);
+        assertTrue("Could not create the backup directory", backupDirectory.mkdirs());
+
+        // Make more backups than the maximum, one a day, with a burst of backups a minute apart in the middle.
+        SimpleDateFormat dateFormat = new SimpleDateFormat(BackupManager.BACKUP_SUFFIX_FORMAT);
+        long firstBackupTime = dateFormat.parse("20140101000000").getTime();
+        int numberOfBackups = BackupManager.MAXIMUM_NUMBER_OF_BACKUPS + 10;
+        List<String> backupFilenames = new ArrayList<String>();
+        for (int i = 0; i < numberOfBackups; i++) {
+            long backupTime;
+            if (i < 20) {
+                backupTime = firstBackupTime + i * MILLISECONDS_IN_A_DAY;
+            } else if (i < 40) {
+                backupTime = firstBackupTime + 20 * MILLISECONDS_IN_A_DAY + (i - 20) * MILLISECONDS_IN_A_MINUTE;
+            } else {
+                backupTime = firstBackupTime + (i - 19) * MILLISECONDS_IN_A_DAY;
+            }
+            String backupFilename = TEST_THIN_BACKUP_DIRECTORY + "-" + dateFormat.format(new Date(backupTime)) + ".wallet";
+            FileHandler.writeFile(backupFilename.getBytes("UTF-8"), new File(backupDirectory, backupFilename));
+            backupFilenames.add(backupFilename);
+        }
+
+        BackupManager.INSTANCE.thinBackupDirectory(walletFilename, BackupManager.ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME);
+        assertTrue("The thinned backups were not deleted in time", SecureFiles.waitForPendingDeletes(30, TimeUnit.SECONDS));
+
+        // All the excess backups are thinned in one go, leaving room for one more.
+        List<File> backupWallets = BackupManager.INSTANCE.getWalletsInBackupDirectory(walletFilename, BackupManager.ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME);
+        assertEquals("Wrong number of backups after thinning", BackupManager.MAXIMUM_NUMBER_OF_BACKUPS - 1, backupWallets.size());
+        assertTrue("The backup catalog was not written", new File(backupDirectory, BackupCatalog.CATALOG_FILENAME).exists());
+
+        // The first and last backups are kept and the burst of backups is thinned.
+        for (int i = 0; i < numberOfBackups; i++) {
+            if (i < BackupManager.NUMBER_OF_FIRST_WALLETS_TO_ALWAYS_KEEP || i >= numberOfBackups - BackupManager.NUMBER_OF_LAST_WALLETS_TO_ALWAYS_KEEP) {
+                assertTrue("Backup '" + backupFilenames.get(i) + "' should have been kept", new File(backupDirectory, backupFilenames.get(i)).exists());
+            }
+        }
+        int numberOfBurstBackupsLeft = 0;
+        for (File backupWallet : backupWallets) {
+            if (backupWallet.getName().startsWith(TEST_THIN_BACKUP_DIRECTORY + "-20140121")) {
+                numberOfBurstBackupsLeft++;
+            }
+        }
+        assertEquals("The burst of backups was not thinned first", 20 - 11, numberOfBurstBackupsLeft);
+    }
+
+    @Test
+    public void testFileLevelEncryptUnencryptedWalletBackups() throws Exception {
+        File temporaryDirectory = FileHandler.createTempDirectory(TEST_FILE_LEVEL_ENCRYPT_BACKUPS);
+        String walletFilename = temporaryDirectory.getAbsolutePath() + File.separator + TEST_FILE_LEVEL_ENCRYPT_BACKUPS + ".wallet";
+        File backupDirectory = new File(BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(new File(walletFilename))
+                + File.separator + BackupManager.UNENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME);
+        assertTrue("Could not create the backup directory", backupDirectory.mkdirs());
+
+        // Some backups, one of them several encryption chunks long and one an exact number of cipher blocks.
+        int[] backupLengths = new int[] { 1, KeyCrypterScrypt.BLOCK_LENGTH * 4, 1000, BackupManager.FILE_ENCRYPTION_CHUNK_SIZE * 3 + 7 };
+        List<File> backupFiles = new ArrayList<File>();
+        List<byte[]> backupContents = new ArrayList<byte[]>();
+        SecureRandom secureRandom = new SecureRandom();
+        for (int i = 0; i < backupLengths.length; i++) {
+            File backupFile = new File(backupDirectory, TEST_FILE_LEVEL_ENCRYPT_BACKUPS + "-2014010100000" + i + ".wallet");
+            byte[] contents = new byte[backupLengths[i]];
+            secureRandom.nextBytes(contents);
+            FileHandler.writeFile(contents, backupFile);
+            backupFiles.add(backupFile);
+            backupContents.add(contents);
+        }
+
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletFilename(walletFilename);
+        BackupManager.INSTANCE.fileLevelEncryptUnencryptedWalletBackups(perWalletModelData, WALLET_PASSWORD);
+
+        // Each backup is replaced by an encrypted copy.
+        for (int i = 0; i < backupFiles.size(); i++) {
+            File backupFile = backupFiles.get(i);
+            File encryptedBackupFile = new File(backupFile.getAbsolutePath() + "." + BackupManager.FILE_ENCRYPTED_WALLET_SUFFIX);
+            assertFalse("Unencrypted backup '" + backupFile.getName() + "' was not deleted", backupFile.exists());
+            assertTrue("Encrypted backup '" + encryptedBackupFile.getName() + "' was not written", encryptedBackupFile.exists());
+
+            byte[] decryptedBytes = BackupManager.INSTANCE.readFileAndDecrypt(encryptedBackupFile, WALLET_PASSWORD);
+            assertTrue("Backup '" + backupFile.getName() + "' changed in the encrypt roundtrip", Arrays.areEqual(backupContents.get(i), decryptedBytes));
+
+            File decryptedBackupFile = new File(backupFile.getAbsolutePath() + ".decrypted");
+            BackupManager.INSTANCE.decryptFile(encryptedBackupFile, decryptedBackupFile, WALLET_PASSWORD);
+            assertTrue("Backup '" + backupFile.getName() + "' changed in the decrypt to file", Arrays.areEqual(backupContents.get(i), FileHandler.read(decryptedBackupFile)));
+        }
+    }
+
+    private int countChunks(File chunkDirectory) {
+        int numberOfChunks = 0;
+        File[] chunkSubdirectories = chunkDirectory.listFiles();
+        if (chunkSubdirectories != null) {
+            for (File chunkSubdirectory : chunkSubdirectories) {
+                numberOfChunks = numberOfChunks + chunkSubdirectory.list().length;
+            }
+        }
+        return numberOfChunks;
+    }
 }
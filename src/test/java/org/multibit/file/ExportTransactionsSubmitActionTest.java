@@ -137,4 +137,96 @@ public class ExportTransactionsSubmitActionTest extends TestCase {
         assertEquals("Row 1 incorrect", row1Expected, line1);
         assertEquals("Row 2 incorrect", row2Expected, line2);
     }
+
+    @Test
+    public void testExportTransactionsInDateRange() throws Exception {
+        // Create MultiBit controller.
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        final BitcoinController bitcoinController = controllers.bitcoinController;
+
+        // Load up the test wallet /wallets/protobuf1.
+        File directory = new File(".");
+        String testWalletFile = directory.getAbsolutePath() + File.separator + Constants.TESTDATA_DIRECTORY + File.separator
+                + WALLETS_TESTDATA_DIRECTORY + File.separator + PROTOBUF1_WALLET_FILE;
+        FileHandler fileHandler = new FileHandler(bitcoinController);
+        Wallet testWallet = fileHandler.loadFromFile(new File(testWalletFile)).getWallet();
+
+        WalletData walletData = new WalletData();
+        walletData.setWallet(testWallet);
+        walletData.setWalletFilename(testWalletFile);
+
+        File exportFile = File.createTempFile(TEST_EXPORT_PREFIX, ".csv");
+        exportFile.delete();
+        exportFile.deleteOnExit();
+
+        // Only the debit at 29 Jul 2013 10:23 is in the range - the credit at 10:00 is before it.
+        TransactionsCsvExporter exporter = new TransactionsCsvExporter(bitcoinController);
+        int numberOfTransactions = exporter.exportTransactions(walletData, exportFile, new Date(1375089700000l), new Date(1375089800000l));
+        assertEquals("Wrong number of transactions exported", 1, numberOfTransactions);
+
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(exportFile), "UTF-8"));
+        String line0 = bufferedReader.readLine();
+        String line1 = bufferedReader.readLine();
+        String line2 = bufferedReader.readLine();
+        bufferedReader.close();
+
+        assertNotNull("No header row read in", line0);
+        assertNotNull("No row 1 read in", line1);
+        assertTrue("Wrong transaction exported", line1.endsWith("28916ed8592a4cf216d8eac7e5ccb5a08771f439e508ec2861b7ff612e15b827"));
+        assertNull("Transaction outside the date range exported", line2);
+    }
+
+    @Test
+    public void testExportTransactionsNotYetExported() throws Exception {
+        // Create MultiBit controller.
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        final BitcoinController bitcoinController = controllers.bitcoinController;
+
+        // Load up the test wallet /wallets/protobuf1.
+        File directory = new File(".");
+        String testWalletFile = directory.getAbsolutePath() + File.separator + Constants.TESTDATA_DIRECTORY + File.separator
+                + WALLETS_TESTDATA_DIRECTORY + File.separator + PROTOBUF1_WALLET_FILE;
+        FileHandler fileHandler = new FileHandler(bitcoinController);
+        Wallet testWallet = fileHandler.loadFromFile(new File(testWalletFile)).getWallet();
+        int numberOfTransactionsInWallet = testWallet.getTransactions(false).size();
+
+        WalletData walletData = new WalletData();
+        walletData.setWallet(testWallet);
+        walletData.setWalletFilename(testWalletFile);
+
+        File recordFile = File.createTempFile(TEST_EXPORT_PREFIX, "." + ExportedTransactions.EXPORTED_TRANSACTIONS_FILENAME);
+        recordFile.delete();
+        recordFile.deleteOnExit();
+        ExportedTransactions exportedTransactions = new ExportedTransactions(recordFile);
+        exportedTransactions.load();
+
+        // Export only the debit at 29 Jul 2013 10:23.
+        TransactionsCsvExporter exporter = new TransactionsCsvExporter(bitcoinController);
+        assertEquals(1, exporter.exportTransactions(walletData, createExportFile(), new Date(1375089700000l), new Date(1375089800000l),
+                exportedTransactions, false));
+        exportedTransactions.save();
+
+        // The transactions not yet exported include the credit, although it is dated before the last export.
+        ExportedTransactions reloadedExportedTransactions = new ExportedTransactions(recordFile);
+        reloadedExportedTransactions.load();
+        assertEquals(1, reloadedExportedTransactions.size());
+        File exportFile = createExportFile();
+        assertEquals(numberOfTransactionsInWallet - 1, exporter.exportTransactions(walletData, exportFile, null, null,
+                reloadedExportedTransactions, true));
+        String exportedText = new String(FileHandler.read(exportFile), "UTF-8");
+        assertFalse("An exported transaction was exported again", exportedText.contains("28916ed8592a4cf216d8eac7e5ccb5a08771f439e508ec2861b7ff612e15b827"));
+        reloadedExportedTransactions.save();
+
+        // Now every transaction has been exported.
+        reloadedExportedTransactions.load();
+        assertEquals(numberOfTransactionsInWallet, reloadedExportedTransactions.size());
+        assertEquals(0, exporter.exportTransactions(walletData, createExportFile(), null, null, reloadedExportedTransactions, true));
+    }
+
+    private File createExportFile() throws IOException {
+        File exportFile = File.createTempFile(TEST_EXPORT_PREFIX, ".csv");
+        exportFile.delete();
+        exportFile.deleteOnExit();
+        return exportFile;
+    }
 }
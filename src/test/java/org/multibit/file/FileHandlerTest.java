@@ -31,17 +31,28 @@ import org.junit.Test;
 import org.multibit.Constants;
 import org.multibit.CreateControllers;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.BitcoinModel;
 import org.multibit.model.bitcoin.WalletData;
 import org.multibit.model.bitcoin.WalletInfoData;
+import org.multibit.model.bitcoin.WalletLoader;
 import org.multibit.store.MultiBitWalletVersion;
 import org.multibit.store.WalletVersionException;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static junit.framework.Assert.*;
 
@@ -62,6 +73,14 @@ public class FileHandlerTest {
     private static final String TEST_WALLET_VERSION_2_PREFIX = "testWalletVersion";
 
     private static final String TEST_SCRYPT_PARAMETERS = "testScryptParameters";
+
+    private static final String TEST_MAP_FILE_PREFIX = "testMapFile";
+
+    private static final String TEST_ATOMIC_SAVE_PREFIX = "testAtomicSave";
+
+    private static final String TEST_STUB_WALLET_PREFIX = "testStubWallet";
+
+    private static final String TEST_PARALLEL_LOAD_PREFIX = "testParallelLoad";
     
     private final CharSequence WALLET_PASSWORD = "horatio nelson 123";
 
@@ -487,4 +506,201 @@ public class FileHandlerTest {
         WalletInfoData rebornWalletInfo = perWalletModelDataReborn.getWalletInfo();
         assertEquals("Wallet version was incorrect.", MultiBitWalletVersion.PROTOBUF, rebornWalletInfo.getWalletVersion());;
     }
+
+    @Test
+    public void testSaveKeepsRollingBackupOfPreviousWallet() throws Exception {
+        File temporaryDirectory = FileHandler.createTempDirectory(TEST_ATOMIC_SAVE_PREFIX);
+        String newWalletFilename = temporaryDirectory.getAbsolutePath() + File.separator + TEST_ATOMIC_SAVE_PREFIX + ".wallet";
+
+        // Create a new protobuf wallet with one key.
+        Wallet newWallet = new Wallet(NetworkParameters.prodNet());
+        newWallet.getKeychain().add(new ECKey());
+        WalletData perWalletModelData = new WalletData();
+        WalletInfoData walletInfo = new WalletInfoData(newWalletFilename, newWallet, MultiBitWalletVersion.PROTOBUF);
+
+        perWalletModelData.setWalletInfo(walletInfo);
+        perWalletModelData.setWallet(newWallet);
+        perWalletModelData.setWalletFilename(newWalletFilename);
+        perWalletModelData.setWalletDescription(TEST_ATOMIC_SAVE_PREFIX);
+        BackupManager.INSTANCE.createBackupDirectories(new File(newWalletFilename));
+
+        // First save - there is no previous wallet so there is no rolling backup.
+        fileHandler.savePerWalletModelData(perWalletModelData, true);
+        File walletFile = new File(newWalletFilename);
+        assertTrue(walletFile.exists());
+        long firstWalletLength = walletFile.length();
+
+        // Add a key and save again - the first wallet becomes the rolling backup.
+        newWallet.getKeychain().add(new ECKey());
+        fileHandler.savePerWalletModelData(perWalletModelData, true);
+        assertFalse("Wallet should not be dirty after a save", perWalletModelData.isDirty());
+
+        String rollingBackupFilename = walletInfo.getProperty(BitcoinModel.WALLET_BACKUP_FILE);
+        assertNotNull("No rolling backup was recorded", rollingBackupFilename);
+        File rollingBackupFile = new File(rollingBackupFilename);
+        assertTrue("Rolling backup '" + rollingBackupFilename + "' does not exist", rollingBackupFile.exists());
+        assertEquals("Rolling backup is not the previous wallet", firstWalletLength, rollingBackupFile.length());
+
+        // Check the live wallet is the new one and no temporary files were left behind.
+        WalletData perWalletModelDataReborn = fileHandler.loadFromFile(walletFile);
+        assertEquals(2, perWalletModelDataReborn.getWallet().getKeychain().size());
+        String[] walletDirectoryContents = temporaryDirectory.list();
+        for (String filename : walletDirectoryContents) {
+            assertFalse("Temporary file '" + filename + "' was left behind", filename.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    public void testMapFile() throws Exception {
+        File temporaryFile = File.createTempFile(TEST_MAP_FILE_PREFIX, ".wallet");
+        temporaryFile.deleteOnExit();
+
+        byte[] contents = new byte[100000];
+        new SecureRandom().nextBytes(contents);
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+        try {
+            fileOutputStream.write(contents);
+        } finally {
+            fileOutputStream.close();
+        }
+
+        ByteBuffer mappedContents = FileHandler.mapFile(temporaryFile);
+        assertEquals(contents.length, mappedContents.remaining());
+        assertEquals(contents[contents.length - 1], mappedContents.get(contents.length - 1));
+        assertTrue(Arrays.equals(contents, FileHandler.read(temporaryFile)));
+
+        // An empty file maps to an empty buffer.
+        File emptyFile = File.createTempFile(TEST_MAP_FILE_PREFIX, ".wallet");
+        emptyFile.deleteOnExit();
+        assertEquals(0, FileHandler.mapFile(emptyFile).remaining());
+    }
+
+    @Test
+    public void testWalletsReadInParallelAreOnlySavedWhenAddedToTheModel() throws Exception {
+        File temporaryDirectory = FileHandler.createTempDirectory(TEST_PARALLEL_LOAD_PREFIX);
+
+        // Save three wallets, each twice so that each has a rolling backup of its first version with one key.
+        List<File> walletFiles = new ArrayList<File>();
+        for (int i = 0; i < 3; i++) {
+            String walletFilename = temporaryDirectory.getAbsolutePath() + File.separator + TEST_PARALLEL_LOAD_PREFIX + i + ".wallet";
+            Wallet wallet = new Wallet(NetworkParameters.prodNet());
+            wallet.getKeychain().add(new ECKey());
+            WalletData perWalletModelData = new WalletData();
+            perWalletModelData.setWalletInfo(new WalletInfoData(walletFilename, wallet, MultiBitWalletVersion.PROTOBUF));
+            perWalletModelData.setWallet(wallet);
+            perWalletModelData.setWalletFilename(walletFilename);
+            BackupManager.INSTANCE.createBackupDirectories(new File(walletFilename));
+            fileHandler.savePerWalletModelData(perWalletModelData, true);
+            wallet.getKeychain().add(new ECKey());
+            fileHandler.savePerWalletModelData(perWalletModelData, true);
+            walletFiles.add(new File(walletFilename));
+        }
+
+        // Corrupt the second wallet so that it is loaded from its rolling backup.
+        File corruptWalletFile = walletFiles.get(1);
+        byte[] corruptWalletBytes = new byte[(int) corruptWalletFile.length()];
+        secureRandom.nextBytes(corruptWalletBytes);
+        FileHandler.writeFile(corruptWalletBytes, corruptWalletFile);
+
+        // Read the wallets in parallel, as at startup.
+        ExecutorService walletLoadExecutor = Executors.newFixedThreadPool(walletFiles.size());
+        List<Future<WalletData>> walletReads = new ArrayList<Future<WalletData>>();
+        try {
+            for (final File walletFile : walletFiles) {
+                walletReads.add(walletLoadExecutor.submit(new Callable<WalletData>() {
+                    @Override
+                    public WalletData call() {
+                        return fileHandler.readFromFile(walletFile);
+                    }
+                }));
+            }
+            for (Future<WalletData> walletRead : walletReads) {
+                walletRead.get();
+            }
+        } finally {
+            walletLoadExecutor.shutdown();
+        }
+
+        // Reading did not add the wallets to the model or save the wallet loaded from its backup.
+        for (File walletFile : walletFiles) {
+            assertNull(controller.getModel().getPerWalletModelDataByWalletFilename(walletFile.getAbsolutePath()));
+        }
+        assertFalse(walletReads.get(0).get().isLoadedFromBackup());
+        assertTrue(walletReads.get(1).get().isLoadedFromBackup());
+        assertEquals(1, walletReads.get(1).get().getWallet().getKeychain().size());
+        assertTrue(Arrays.equals(corruptWalletBytes, FileHandler.read(corruptWalletFile)));
+
+        // The wallets are added to the model on this thread, in order, and the wallet loaded from its backup is saved.
+        for (Future<WalletData> walletRead : walletReads) {
+            assertNotNull(fileHandler.addToModel(walletRead.get()));
+        }
+        for (int i = 0; i < walletFiles.size(); i++) {
+            assertEquals(walletFiles.get(i).getAbsolutePath(), controller.getModel().getPerWalletModelDataList().get(i).getWalletFilename());
+        }
+        WalletData rebornPerWalletModelData = fileHandler.readFromFile(corruptWalletFile);
+        assertFalse(rebornPerWalletModelData.isLoadedFromBackup());
+        assertEquals(1, rebornPerWalletModelData.getWallet().getKeychain().size());
+    }
+
+    @Test
+    public void testStubWalletIsOnlyLoadedExplicitly() throws Exception {
+        File temporaryDirectory = FileHandler.createTempDirectory(TEST_STUB_WALLET_PREFIX);
+        String newWalletFilename = temporaryDirectory.getAbsolutePath() + File.separator + TEST_STUB_WALLET_PREFIX + ".wallet";
+        File walletFile = new File(newWalletFilename);
+
+        // A wallet info without the wallet summary cannot be opened as a stub.
+        assertNull(fileHandler.readStubFromFile(walletFile));
+
+        // Create and save a protobuf wallet with two keys - this writes the wallet summary.
+        Wallet newWallet = new Wallet(NetworkParameters.prodNet());
+        newWallet.getKeychain().add(new ECKey());
+        newWallet.getKeychain().add(new ECKey());
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletInfo(new WalletInfoData(newWalletFilename, newWallet, MultiBitWalletVersion.PROTOBUF));
+        perWalletModelData.setWallet(newWallet);
+        perWalletModelData.setWalletFilename(newWalletFilename);
+        perWalletModelData.setWalletDescription(TEST_STUB_WALLET_PREFIX);
+        BackupManager.INSTANCE.createBackupDirectories(walletFile);
+        fileHandler.savePerWalletModelData(perWalletModelData, true);
+
+        // Open it as a stub.
+        final WalletData stubPerWalletModelData = fileHandler.readStubFromFile(walletFile);
+        assertNotNull(stubPerWalletModelData);
+        final int[] numberOfLoads = new int[1];
+        stubPerWalletModelData.setWalletLoader(new WalletLoader() {
+            @Override
+            public void loadWallet(WalletData perWalletModelDataToLoad) {
+                numberOfLoads[0]++;
+                perWalletModelDataToLoad.setWallet(fileHandler.readFromFile(new File(perWalletModelDataToLoad.getWalletFilename())).getWallet());
+            }
+        });
+        assertTrue(stubPerWalletModelData.isStub());
+        assertEquals(TEST_STUB_WALLET_PREFIX, stubPerWalletModelData.getWalletDescription());
+        assertEquals(BigInteger.ZERO, stubPerWalletModelData.getEstimatedBalance());
+        assertEquals(BigInteger.ZERO, stubPerWalletModelData.getAvailableBalance());
+
+        // The stub's public keys are cached so that they can be watched without loading the wallet.
+        List<byte[]> cachedPublicKeys = stubPerWalletModelData.getWalletInfo().getCachedPublicKeys();
+        assertEquals(2, cachedPublicKeys.size());
+        assertTrue(Arrays.equals(newWallet.getKeychain().get(0).getPubKey(), cachedPublicKeys.get(0)));
+
+        // Saving a stub only writes the wallet info and does not load the wallet.
+        long walletLastModified = walletFile.lastModified();
+        stubPerWalletModelData.setWalletDescription(TEST_STUB_WALLET_PREFIX + "2");
+        fileHandler.savePerWalletModelData(stubPerWalletModelData, false);
+        assertEquals(0, numberOfLoads[0]);
+        assertEquals(walletLastModified, walletFile.lastModified());
+
+        // Getting the wallet of a stub does not load it.
+        assertNull(stubPerWalletModelData.getWallet());
+        assertEquals(0, numberOfLoads[0]);
+
+        // The wallet is loaded, once, when it is explicitly loaded.
+        assertSame(stubPerWalletModelData, stubPerWalletModelData.loadWalletIfStubInBackground().get());
+        assertEquals(2, stubPerWalletModelData.getWallet().getKeychain().size());
+        assertFalse(stubPerWalletModelData.isStub());
+        stubPerWalletModelData.loadWalletIfStubInBackground().get();
+        stubPerWalletModelData.loadWalletIfStub();
+        assertEquals(1, numberOfLoads[0]);
+    }
 }
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static junit.framework.Assert.*;
+
+public class KeyUsageIndexTest {
+
+    private static final NetworkParameters NETWORK_PARAMETERS = NetworkParameters.prodNet();
+
+    @Test
+    public void testEarliestAndLatestUsage() throws Exception {
+        ECKey receivingKey = new ECKey();
+        ECKey spendingKey = new ECKey();
+        ECKey unusedKey = new ECKey();
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        transactions.add(createTransaction(new Date(3000), null, receivingKey));
+        transactions.add(createTransaction(new Date(1000), null, receivingKey));
+        transactions.add(createTransaction(new Date(2000), spendingKey, receivingKey));
+
+        // A transaction with no update time does not count as a usage.
+        transactions.add(createTransaction(null, spendingKey, unusedKey));
+
+        KeyUsageIndex keyUsageIndex = KeyUsageIndex.create(transactions);
+
+        assertEquals(new Date(1000), keyUsageIndex.getEarliestUsageDate(receivingKey));
+        assertEquals(new Date(3000), keyUsageIndex.getLatestUsageDate(receivingKey));
+
+        // The spending key is found from its pubkey in the input script.
+        assertEquals(new Date(2000), keyUsageIndex.getEarliestUsageDate(spendingKey));
+        assertEquals(new Date(2000), keyUsageIndex.getLatestUsageDate(spendingKey));
+
+        assertNull(keyUsageIndex.getEarliestUsageDate(unusedKey));
+        assertNull(keyUsageIndex.getLatestUsageDate(unusedKey));
+    }
+
+    @Test
+    public void testParallelIndex() throws Exception {
+        ECKey[] keys = new ECKey[10];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new ECKey();
+        }
+
+        // Enough transactions to be indexed in parallel.
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < KeyUsageIndex.MINIMUM_NUMBER_OF_TRANSACTIONS_TO_INDEX_IN_PARALLEL + 100; i++) {
+            transactions.add(createTransaction(new Date(1000 + i * 7919 % 100000), null, keys[i % keys.length]));
+        }
+
+        KeyUsageIndex parallelIndex = KeyUsageIndex.create(transactions);
+
+        for (int k = 0; k < keys.length; k++) {
+            Date earliest = null;
+            Date latest = null;
+            for (int i = k; i < transactions.size(); i += keys.length) {
+                Date updateTime = transactions.get(i).getUpdateTime();
+                earliest = earliest == null || updateTime.before(earliest) ? updateTime : earliest;
+                latest = latest == null || updateTime.after(latest) ? updateTime : latest;
+            }
+            assertEquals(earliest, parallelIndex.getEarliestUsageDate(keys[k]));
+            assertEquals(latest, parallelIndex.getLatestUsageDate(keys[k]));
+        }
+    }
+
+    @Test
+    public void testWalletKeys() throws Exception {
+        ECKey walletKey = new ECKey();
+        Wallet wallet = new Wallet(NETWORK_PARAMETERS);
+        wallet.addKey(walletKey);
+
+        KeyUsageIndex keyUsageIndex = KeyUsageIndex.create(wallet);
+
+        // The index keeps its copy of the keys when the wallet gains a key.
+        wallet.addKey(new ECKey());
+        assertEquals(1, keyUsageIndex.getKeys().size());
+        assertTrue(keyUsageIndex.containsKey(walletKey));
+        assertFalse(keyUsageIndex.containsKey(new ECKey()));
+        assertNull(keyUsageIndex.getEarliestUsageDate(walletKey));
+    }
+
+    private Transaction createTransaction(Date updateTime, ECKey spendingKey, ECKey receivingKey) {
+        Transaction transaction = new Transaction(NETWORK_PARAMETERS);
+        if (spendingKey != null) {
+            TransactionSignature signature = new TransactionSignature(spendingKey.sign(Sha256Hash.ZERO_HASH),
+                    Transaction.SigHash.ALL, false);
+            transaction.addInput(new TransactionInput(NETWORK_PARAMETERS, transaction, ScriptBuilder.createInputScript(signature,
+                    spendingKey).getProgram()));
+        }
+        transaction.addOutput(Utils.toNanoCoins(1, 0), receivingKey.toAddress(NETWORK_PARAMETERS));
+        transaction.setUpdateTime(updateTime);
+        return transaction;
+    }
+}
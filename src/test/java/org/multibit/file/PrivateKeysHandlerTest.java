@@ -17,8 +17,11 @@ package org.multibit.file;
 
 
 
+import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
 import junit.framework.TestCase;
 import org.junit.Test;
 import org.multibit.Constants;
@@ -43,6 +46,8 @@ public class PrivateKeysHandlerTest extends TestCase {
     public static final CharSequence ENCRYPTED_TEST1_PASSWORD = "password";
     public static final String ENCRYPTED_TEST1_PRIVATE_KEYS_FILE = "encryptedTest1.key";
 
+    private static final String TEST_FAILED_EXPORT_PREFIX = "testFailedExport";
+
     public static final String[] EXPECTED_ADDRESSES_FOR_TEST1_WALLET = new String[]{"15ZLe7GCAfdTTMMkbm38KTtahq9y549rB2", 
         "1KPNYRuDJoBexHAcCwuA5EhGdzoVHTRNTX", "162zJokk8matsjGGGmyJTCBLTDc3juRxEs", "13FHXieWVDMMPuVgx9mRYmMEJTRrrSU3Ct",
         "166ofzumkuBB8gpDqd3usn3PypRXA4wTS6", "1NcfaCrfNTRMBhCrF8uw8W6U6sRWYAH6QK", "13T5wgZj4VsWx5np4L2NNkWR8bLxzYz3b6"};
@@ -82,6 +87,62 @@ public class PrivateKeysHandlerTest extends TestCase {
         assertEquals(expectedFileContents, actualFileContents);
     }
     
+    @Test
+    public void testFailedExportLeavesExportFileUnchanged() throws Exception {
+        PrivateKeysHandler privateKeysHandler = new PrivateKeysHandler(NetworkParameters.prodNet());
+
+        // An encrypted wallet with two keys.
+        Wallet encryptedWallet = new Wallet(NetworkParameters.prodNet(), new KeyCrypterScrypt());
+        for (int i = 0; i < 2; i++) {
+            encryptedWallet.addKey(new ECKey().encrypt(encryptedWallet.getKeyCrypter(), encryptedWallet.getKeyCrypter().deriveKey(ENCRYPTED_TEST1_PASSWORD)));
+        }
+
+        File exportDirectory = FileHandler.createTempDirectory(TEST_FAILED_EXPORT_PREFIX);
+        File exportFile = new File(exportDirectory, TEST_FAILED_EXPORT_PREFIX + ".key");
+        FileHandler.writeFile("previous export\n".getBytes("UTF-8"), exportFile);
+
+        // The keys cannot be decrypted with the wrong wallet password.
+        try {
+            privateKeysHandler.exportPrivateKeys(exportFile, encryptedWallet, null, false, null, "wrong password");
+            fail("The export should fail with the wrong wallet password");
+        } catch (KeyCrypterException kce) {
+            // Expected.
+        }
+
+        // The previous export is untouched and no partial export is left behind.
+        assertEquals("previous export" + System.getProperty("line.separator"), readFile(exportFile));
+        assertEquals(1, exportDirectory.listFiles().length);
+
+        // With the right password the export replaces the previous one.
+        privateKeysHandler.exportPrivateKeys(exportFile, encryptedWallet, null, false, null, ENCRYPTED_TEST1_PASSWORD);
+        assertEquals(2, privateKeysHandler.readInPrivateKeys(exportFile, null).size());
+        assertEquals(1, exportDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testVerifyExportFile() throws Exception {
+        PrivateKeysHandler privateKeysHandler = new PrivateKeysHandler(NetworkParameters.prodNet());
+
+        Wallet encryptedWallet = new Wallet(NetworkParameters.prodNet(), new KeyCrypterScrypt());
+        for (int i = 0; i < 2; i++) {
+            encryptedWallet.addKey(new ECKey().encrypt(encryptedWallet.getKeyCrypter(), encryptedWallet.getKeyCrypter().deriveKey(ENCRYPTED_TEST1_PASSWORD)));
+        }
+        KeyUsageIndex keyUsageIndex = KeyUsageIndex.create(encryptedWallet);
+
+        File exportDirectory = FileHandler.createTempDirectory(TEST_FAILED_EXPORT_PREFIX);
+        File exportFile = new File(exportDirectory, TEST_FAILED_EXPORT_PREFIX + ".key");
+        privateKeysHandler.exportPrivateKeys(exportFile, encryptedWallet, keyUsageIndex, null, false, null, ENCRYPTED_TEST1_PASSWORD);
+
+        // The export is verified against the keys it was written from without the wallet password.
+        assertTrue(privateKeysHandler.verifyExportFile(exportFile, keyUsageIndex, null, null).isCorrect());
+
+        // A key added to the wallet since is missing from the export.
+        encryptedWallet.addKey(new ECKey().encrypt(encryptedWallet.getKeyCrypter(), encryptedWallet.getKeyCrypter().deriveKey(ENCRYPTED_TEST1_PASSWORD)));
+        Verification verification = privateKeysHandler.verifyExportFile(exportFile, KeyUsageIndex.create(encryptedWallet), null, null);
+        assertFalse(verification.isCorrect());
+        assertEquals("privateKeysHandler.wrongNumberOfKeys", verification.getMessageKey());
+    }
+
     @Test
     public void testImport() throws Exception {
         NetworkParameters prodNet = NetworkParameters.prodNet();
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.*;
+
+public class SecureFilesTest {
+
+    private static final String TEST_SECURE_DELETE_PREFIX = "testSecureDelete";
+
+    @Test
+    public void testSecureDelete() throws Exception {
+        // A file larger than the overwrite buffer, so it is overwritten in several chunks.
+        File file = createFile(SecureFiles.OVERWRITE_BUFFER_SIZE + 12345);
+
+        SecureFiles.secureDelete(file);
+        assertFalse("File was not deleted", file.exists());
+
+        // Deleting a file that has gone is not an error.
+        SecureFiles.secureDelete(file);
+    }
+
+    @Test
+    public void testSlowSecureDelete() throws Exception {
+        File file = createFile(100000);
+
+        SecureFiles.slowSecureDelete(file);
+        assertFalse("File was not deleted", file.exists());
+    }
+
+    @Test
+    public void testSecureDeleteLater() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 5; i++) {
+            files.add(createFile(10000 * (i + 1)));
+        }
+
+        for (File file : files) {
+            SecureFiles.secureDeleteLater(file);
+        }
+        assertTrue("Deletes did not finish in time", SecureFiles.waitForPendingDeletes(30, TimeUnit.SECONDS));
+
+        assertEquals(0, SecureFiles.getNumberOfPendingDeletes());
+        for (File file : files) {
+            assertFalse("File '" + file.getAbsolutePath() + "' was not deleted", file.exists());
+        }
+    }
+
+    @Test
+    public void testSecureDeleteOfHardLinkLeavesOtherLinkIntact() throws Exception {
+        File file = createFile(10000);
+        File link = new File(file.getAbsolutePath() + ".link");
+        link.deleteOnExit();
+        try {
+            Files.createLink(link.toPath(), file.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            // The file system cannot link files so there is nothing to test.
+            return;
+        }
+
+        byte[] contents = Files.readAllBytes(file.toPath());
+        SecureFiles.secureDelete(link);
+        assertFalse("Link was not deleted", link.exists());
+        assertTrue("Linked file was overwritten", Arrays.equals(contents, Files.readAllBytes(file.toPath())));
+    }
+
+    private File createFile(int length) throws Exception {
+        File file = File.createTempFile(TEST_SECURE_DELETE_PREFIX, ".tmp");
+        file.deleteOnExit();
+        byte[] contents = new byte[length];
+        for (int i = 0; i < length; i++) {
+            contents[i] = (byte) i;
+        }
+        FileHandler.writeFile(contents, file);
+        assertEquals(length, file.length());
+        return file;
+    }
+}
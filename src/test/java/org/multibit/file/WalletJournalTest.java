@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Wallet;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static junit.framework.Assert.*;
+
+public class WalletJournalTest {
+
+    private static final String TEST_JOURNAL_PREFIX = "testJournal";
+
+    @Test
+    public void testReplayLastBlockSeen() throws IOException {
+        File walletFile = createTemporaryWalletFile();
+        Sha256Hash blockHash = Sha256Hash.create(new byte[]{1, 2, 3});
+
+        WalletJournal walletJournal = new WalletJournal(walletFile);
+        walletJournal.appendLastBlockSeen(100, null);
+        walletJournal.appendLastBlockSeen(100, null);
+        walletJournal.appendLastBlockSeen(101, blockHash);
+        assertEquals("Repeated heights should not be journalled", 2, walletJournal.getNumberOfRecords());
+        assertTrue(walletJournal.hasChanges());
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        WalletJournal replayJournal = new WalletJournal(walletFile);
+        assertEquals(2, replayJournal.replay(wallet));
+        assertEquals(101, wallet.getLastBlockSeenHeight());
+        assertEquals(blockHash, wallet.getLastBlockSeenHash());
+
+        walletJournal.delete();
+        assertFalse(walletJournal.getJournalFile().exists());
+    }
+
+    @Test
+    public void testReplayDiscardsTornRecord() throws IOException {
+        File walletFile = createTemporaryWalletFile();
+
+        WalletJournal walletJournal = new WalletJournal(walletFile);
+        walletJournal.appendLastBlockSeen(200, null);
+        long goodLength = walletJournal.getPosition();
+        walletJournal.appendLastBlockSeen(201, null);
+
+        // Simulate a crash part way through writing the last record.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(walletJournal.getJournalFile(), "rw");
+        try {
+            randomAccessFile.setLength(goodLength + 6);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        WalletJournal replayJournal = new WalletJournal(walletFile);
+        assertEquals(1, replayJournal.replay(wallet));
+        assertEquals(200, wallet.getLastBlockSeenHeight());
+        assertEquals("Torn record should be cut off", goodLength, replayJournal.getJournalFile().length());
+
+        replayJournal.delete();
+    }
+
+    @Test
+    public void testDiscardUpToKeepsLaterRecords() throws IOException {
+        File walletFile = createTemporaryWalletFile();
+
+        WalletJournal walletJournal = new WalletJournal(walletFile);
+        walletJournal.appendLastBlockSeen(300, null);
+        long snapshotPosition = walletJournal.getPosition();
+        long snapshotTime = System.currentTimeMillis();
+        walletJournal.appendLastBlockSeen(301, null);
+
+        walletJournal.discardUpTo(snapshotPosition, snapshotTime);
+        assertEquals(1, walletJournal.getNumberOfRecords());
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        WalletJournal replayJournal = new WalletJournal(walletFile);
+        assertEquals(1, replayJournal.replay(wallet));
+        assertEquals(301, wallet.getLastBlockSeenHeight());
+
+        walletJournal.discardUpTo(walletJournal.getPosition(), System.currentTimeMillis());
+        assertEquals(0, walletJournal.getNumberOfRecords());
+        assertFalse(walletJournal.hasChanges());
+        assertEquals(WalletJournal.HEADER_LENGTH, walletJournal.getJournalFile().length());
+
+        walletJournal.delete();
+    }
+
+    @Test
+    public void testLastBlockSeenIsJournalledOncePerCommit() throws IOException {
+        File walletFile = createTemporaryWalletFile();
+
+        WalletJournal walletJournal = new WalletJournal(walletFile);
+        for (int height = 400; height < 410; height++) {
+            walletJournal.noteLastBlockSeen(height, null);
+        }
+        assertEquals("Nothing should be written before the commit", 0, walletJournal.getNumberOfRecords());
+        assertTrue(walletJournal.hasChanges());
+
+        walletJournal.commit();
+        walletJournal.commit();
+        assertEquals("Only the latest block should be journalled", 1, walletJournal.getNumberOfRecords());
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        WalletJournal replayJournal = new WalletJournal(walletFile);
+        assertEquals(1, replayJournal.replay(wallet));
+        assertEquals(409, wallet.getLastBlockSeenHeight());
+
+        walletJournal.delete();
+    }
+
+    private File createTemporaryWalletFile() throws IOException {
+        File temporaryDirectory = File.createTempFile(TEST_JOURNAL_PREFIX, "");
+        temporaryDirectory.delete();
+        temporaryDirectory.mkdir();
+        temporaryDirectory.deleteOnExit();
+        return new File(temporaryDirectory, TEST_JOURNAL_PREFIX + ".wallet");
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.CreateControllers;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.BitcoinModel;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletInfoData;
+import org.multibit.store.MultiBitWalletVersion;
+
+import java.io.File;
+
+import static junit.framework.Assert.*;
+
+public class WalletSaveSchedulerTest {
+
+    private static final String TEST_SAVE_SCHEDULER_PREFIX = "testSaveScheduler";
+
+    private static final int MAXIMUM_TIME_TO_WAIT = 10000; // milliseconds
+
+    private BitcoinController controller;
+
+    @Before
+    public void setUp() throws Exception {
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        controller = controllers.bitcoinController;
+        controller.getModel().setUserPreference(BitcoinModel.WALLET_SAVE_DEBOUNCE_TIME, "200");
+        WalletSaveScheduler.INSTANCE.initialise(controller);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        WalletSaveScheduler.INSTANCE.shutdown();
+    }
+
+    @Test
+    public void testChangesAreCoalescedIntoOneSave() throws Exception {
+        WalletData perWalletModelData = createWalletData(TEST_SAVE_SCHEDULER_PREFIX);
+        long numberOfSavesAtStart = WalletSaveScheduler.INSTANCE.getNumberOfSaves();
+
+        // A burst of changes results in one pending save.
+        for (int i = 0; i < 5; i++) {
+            perWalletModelData.getWallet().getKeychain().add(new ECKey());
+            perWalletModelData.setDirty(true);
+        }
+        assertEquals(1, WalletSaveScheduler.INSTANCE.getQueueDepth());
+
+        waitForSaves();
+
+        assertFalse("Wallet should not be dirty after the save", perWalletModelData.isDirty());
+        assertEquals(numberOfSavesAtStart + 1, WalletSaveScheduler.INSTANCE.getNumberOfSaves());
+        assertTrue(new File(perWalletModelData.getWalletFilename()).exists());
+
+        WalletData perWalletModelDataReborn = controller.getFileHandler().loadFromFile(new File(perWalletModelData.getWalletFilename()));
+        assertEquals(5, perWalletModelDataReborn.getWallet().getKeychain().size());
+    }
+
+    @Test
+    public void testSaveWaitsUntilTheChangesStop() throws Exception {
+        WalletData perWalletModelData = createWalletData(TEST_SAVE_SCHEDULER_PREFIX);
+        long numberOfSavesAtStart = WalletSaveScheduler.INSTANCE.getNumberOfSaves();
+
+        // Changes closer together than the debounce time keep putting the save off.
+        for (int i = 0; i < 8; i++) {
+            perWalletModelData.setDirty(true);
+            Thread.sleep(50);
+        }
+        assertEquals(numberOfSavesAtStart, WalletSaveScheduler.INSTANCE.getNumberOfSaves());
+        assertEquals(1, WalletSaveScheduler.INSTANCE.getQueueDepth());
+
+        waitForSaves();
+
+        assertEquals(numberOfSavesAtStart + 1, WalletSaveScheduler.INSTANCE.getNumberOfSaves());
+    }
+
+    @Test
+    public void testWalletsAreSavedIndependently() throws Exception {
+        WalletData perWalletModelData1 = createWalletData(TEST_SAVE_SCHEDULER_PREFIX + "1");
+        WalletData perWalletModelData2 = createWalletData(TEST_SAVE_SCHEDULER_PREFIX + "2");
+        long numberOfSavesAtStart = WalletSaveScheduler.INSTANCE.getNumberOfSaves();
+
+        perWalletModelData1.setDirty(true);
+        perWalletModelData2.setDirty(true);
+        assertEquals(2, WalletSaveScheduler.INSTANCE.getQueueDepth());
+
+        waitForSaves();
+
+        assertEquals(numberOfSavesAtStart + 2, WalletSaveScheduler.INSTANCE.getNumberOfSaves());
+        assertTrue(new File(perWalletModelData1.getWalletFilename()).exists());
+        assertTrue(new File(perWalletModelData2.getWalletFilename()).exists());
+        assertTrue(WalletSaveScheduler.INSTANCE.getMaximumSaveTime() >= WalletSaveScheduler.INSTANCE.getAverageSaveTime());
+    }
+
+    private WalletData createWalletData(String walletName) throws Exception {
+        File temporaryDirectory = FileHandler.createTempDirectory(walletName);
+        String walletFilename = temporaryDirectory.getAbsolutePath() + File.separator + walletName + ".wallet";
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletInfo(new WalletInfoData(walletFilename, wallet, MultiBitWalletVersion.PROTOBUF));
+        perWalletModelData.setWallet(wallet);
+        perWalletModelData.setWalletFilename(walletFilename);
+        BackupManager.INSTANCE.createBackupDirectories(new File(walletFilename));
+        return perWalletModelData;
+    }
+
+    private void waitForSaves() throws InterruptedException {
+        int timeWaited = 0;
+        while ((WalletSaveScheduler.INSTANCE.getQueueDepth() > 0 || WalletSaveScheduler.INSTANCE.getNumberOfSavesInProgress() > 0)
+                && timeWaited < MAXIMUM_TIME_TO_WAIT) {
+            Thread.sleep(100);
+            timeWaited = timeWaited + 100;
+        }
+        assertEquals("Saves did not complete in time", 0, WalletSaveScheduler.INSTANCE.getQueueDepth());
+    }
+}
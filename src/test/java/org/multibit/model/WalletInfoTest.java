@@ -19,6 +19,12 @@ import org.multibit.model.bitcoin.WalletAddressBookData;
 import org.multibit.model.bitcoin.WalletInfoData;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
 
 import junit.framework.TestCase;
 
@@ -26,6 +32,7 @@ import org.junit.Test;
 import org.multibit.Constants;
 import org.multibit.CreateControllers;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.file.FileHandler;
 import org.multibit.store.MultiBitWalletVersion;
 
 public class WalletInfoTest extends TestCase {
@@ -36,6 +43,10 @@ public class WalletInfoTest extends TestCase {
 
     public static final String NON_EXISTENT_WALLET = "nonExistentWallet.wallet";
 
+    public static final String LEGACY_INFO_FILE = "protobuf1.info";
+    public static final String LEGACY_RECEIVING_ADDRESS = "1GtMdodCNN5ewFcEUxxVBziBrLtQzSuZvq";
+    public static final String LEGACY_SENDING_ADDRESS_LABEL = "unencrypted-1-\u5317\u4eac";
+
     public static final String EXAMPLE_RECEIVING_ADDRESS = "1NzESHfiazCbxwhTCg2jiTWcZgpSMKDKhy";
     public static final String EXAMPLE_RECEIVING_ADDRESS_LABEL = "myReceivingAddress label, text after comma\n text after return";
 
@@ -109,6 +120,128 @@ public class WalletInfoTest extends TestCase {
         assertEquals(PROPERTY_VALUE2, rebornWalletInfo.getProperty(PROPERTY_NAME2));
     }
 
+    @Test
+    public void testLegacyFormatIsMigratedOnSave() throws Exception {
+        // Create MultiBit controller.
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        final BitcoinController controller = controllers.bitcoinController;
+
+        // Copy a legacy info file next to a temporary wallet.
+        File temporaryDirectory = FileHandler.createTempDirectory("testLegacyFormat");
+        String walletName = temporaryDirectory.getAbsolutePath() + File.separator + "legacy.wallet";
+        File legacyInfoFile = new File(Constants.TESTDATA_DIRECTORY + File.separator + WALLET_TESTDATA_DIRECTORY + File.separator
+                + LEGACY_INFO_FILE);
+        File walletInfoFile = new File(WalletInfoData.createWalletInfoFilename(walletName));
+        FileHandler.copyFile(legacyInfoFile, walletInfoFile);
+
+        WalletInfoData walletInfo = new WalletInfoData(walletName, null, MultiBitWalletVersion.SERIALIZED);
+        assertTrue(walletInfo.isLegacyFormat());
+        assertEquals(MultiBitWalletVersion.PROTOBUF, walletInfo.getWalletVersion());
+        assertEquals(1, walletInfo.getReceivingAddresses().size());
+        assertEquals(LEGACY_SENDING_ADDRESS_LABEL, walletInfo.getSendingAddresses().get(0).getLabel());
+
+        // Write it back out - it is migrated to the binary format.
+        walletInfo.writeToFile(walletInfoFile.getAbsolutePath(), walletInfo.getWalletVersion());
+
+        WalletInfoData rebornWalletInfo = new WalletInfoData(walletName, null, MultiBitWalletVersion.SERIALIZED);
+        assertFalse(rebornWalletInfo.isLegacyFormat());
+        assertEquals(MultiBitWalletVersion.PROTOBUF, rebornWalletInfo.getWalletVersion());
+        assertEquals(1, rebornWalletInfo.getReceivingAddresses().size());
+        assertEquals(LEGACY_RECEIVING_ADDRESS, rebornWalletInfo.getReceivingAddresses().get(0).getAddress());
+        assertEquals(walletInfo.lookupLabelForReceivingAddress(LEGACY_RECEIVING_ADDRESS),
+                rebornWalletInfo.lookupLabelForReceivingAddress(LEGACY_RECEIVING_ADDRESS));
+        assertEquals(LEGACY_SENDING_ADDRESS_LABEL, rebornWalletInfo.getSendingAddresses().get(0).getLabel());
+        assertEquals(walletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY),
+                rebornWalletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY));
+    }
+
+    @Test
+    public void testReceivingAddressesKeepTheirOrder() throws Exception {
+        // Create MultiBit controller.
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        final BitcoinController controller = controllers.bitcoinController;
+
+        File temporaryDirectory = FileHandler.createTempDirectory("testReceivingAddressOrder");
+        String walletName = temporaryDirectory.getAbsolutePath() + File.separator + "order.wallet";
+
+        // Add the receiving addresses in reverse address order.
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            ECKey key = new ECKey();
+            wallet.addKey(key);
+            addresses.add(key.toAddress(NetworkParameters.prodNet()).toString());
+        }
+        Collections.sort(addresses, Collections.reverseOrder());
+
+        WalletInfoData walletInfo = new WalletInfoData(walletName, wallet, MultiBitWalletVersion.PROTOBUF);
+        for (String address : addresses) {
+            walletInfo.addReceivingAddress(new WalletAddressBookData("label " + address, address), true);
+        }
+        walletInfo.writeToFile(WalletInfoData.createWalletInfoFilename(walletName), MultiBitWalletVersion.PROTOBUF);
+
+        // They are read back in the order they were added.
+        WalletInfoData rebornWalletInfo = new WalletInfoData(walletName, wallet, MultiBitWalletVersion.PROTOBUF);
+        assertEquals(addresses.size(), rebornWalletInfo.getReceivingAddresses().size());
+        for (int i = 0; i < addresses.size(); i++) {
+            assertEquals(addresses.get(i), rebornWalletInfo.getReceivingAddresses().get(i).getAddress());
+            assertEquals("label " + addresses.get(i), rebornWalletInfo.getReceivingAddresses().get(i).getLabel());
+        }
+    }
+
+    @Test
+    public void testReceivingAddressIndex() throws Exception {
+        // Create MultiBit controller.
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        final BitcoinController controller = controllers.bitcoinController;
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        wallet.addKey(key1);
+        String address1 = key1.toAddress(NetworkParameters.prodNet()).toString();
+        String address2 = key2.toAddress(NetworkParameters.prodNet()).toString();
+
+        WalletInfoData walletInfo = new WalletInfoData(NON_EXISTENT_WALLET, wallet, MultiBitWalletVersion.PROTOBUF);
+
+        // Only addresses of keys in the wallet are added.
+        walletInfo.addReceivingAddress(new WalletAddressBookData("label1", address1), true);
+        walletInfo.addReceivingAddress(new WalletAddressBookData("label2", address2), true);
+        assertTrue(walletInfo.containsReceivingAddress(address1));
+        assertFalse(walletInfo.containsReceivingAddress(address2));
+
+        // Adding a key makes its address acceptable.
+        wallet.addKey(key2);
+        walletInfo.addReceivingAddress(new WalletAddressBookData("label2", address2), true);
+        assertTrue(walletInfo.containsReceivingAddress(address2));
+        assertEquals("label2", walletInfo.lookupLabelForReceivingAddress(address2));
+
+        // Adding an address already present just updates the label.
+        walletInfo.addReceivingAddress(new WalletAddressBookData("label1 updated", address1), true);
+        assertEquals(2, walletInfo.getReceivingAddresses().size());
+        assertEquals("label1 updated", walletInfo.lookupLabelForReceivingAddress(address1));
+
+        // Changes made directly to the list are picked up.
+        walletInfo.getReceivingAddresses().set(0, new WalletAddressBookData("label1 replaced", address1));
+        assertEquals("label1 replaced", walletInfo.lookupLabelForReceivingAddress(address1));
+
+        // Including a reorder or a replacement with a different address, which leave the size unchanged.
+        Collections.reverse(walletInfo.getReceivingAddresses());
+        assertEquals("label1 replaced", walletInfo.lookupLabelForReceivingAddress(address1));
+        assertEquals("label2", walletInfo.lookupLabelForReceivingAddress(address2));
+        ECKey key3 = new ECKey();
+        String address3 = key3.toAddress(NetworkParameters.prodNet()).toString();
+        walletInfo.getReceivingAddresses().set(1, new WalletAddressBookData("label3", address3));
+        assertTrue(walletInfo.containsReceivingAddress(address3));
+        assertFalse(walletInfo.containsReceivingAddress(address1));
+        walletInfo.getReceivingAddresses().set(1, new WalletAddressBookData("label1 replaced", address1));
+        Collections.reverse(walletInfo.getReceivingAddresses());
+        walletInfo.getReceivingAddresses().remove(0);
+        assertFalse(walletInfo.containsReceivingAddress(address1));
+        assertEquals("label2", walletInfo.lookupLabelForReceivingAddress(address2));
+        assertEquals("", walletInfo.lookupLabelForReceivingAddress(address1));
+    }
+
     @Test
     public void testloadNonExistentInfoFile() throws Exception {
         // Create MultiBit controller.
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+public class BlockRequestTrackerTest extends TestCase {
+    @Test
+    public void testBlocksNotSentAreRequestedAgain() throws Exception {
+        BlockRequestTracker<String> tracker = new BlockRequestTracker<String>();
+        tracker.addPeer("peer1");
+        List<Sha256Hash> blockHashes = createBlockHashes(3);
+        tracker.queueBlocks(blockHashes);
+
+        List<BlockRequestTracker.Request<String>> requests = tracker.assignRequests(1000);
+        assertEquals(1, requests.size());
+
+        // The peer answered with a notfound for the second block.
+        tracker.blockReceived("peer1", blockHashes.get(0));
+        tracker.blockReceived("peer1", blockHashes.get(2));
+        assertEquals(1, tracker.requestCompleted(requests.get(0), 2000));
+
+        requests = tracker.assignRequests(2000);
+        assertEquals(1, requests.size());
+        assertEquals(Arrays.asList(blockHashes.get(1)), requests.get(0).getBlockHashes());
+        assertEquals(2, requests.get(0).getAttempt());
+
+        // The download is abandoned once the attempts run out.
+        for (int attempt = 2; attempt <= BlockRequestTracker.MAXIMUM_NUMBER_OF_ATTEMPTS; attempt++) {
+            assertNull(tracker.getFailure());
+            tracker.requestCompleted(requests.get(0), 3000);
+            requests = tracker.assignRequests(3000);
+        }
+        assertNotNull(tracker.getFailure());
+    }
+
+    @Test
+    public void testBlocksArrivingOutOfOrderAreAllReceived() throws Exception {
+        BlockRequestTracker<String> tracker = new BlockRequestTracker<String>();
+        tracker.addPeer("peer1");
+        List<Sha256Hash> blockHashes = createBlockHashes(ParallelBlockFetcher.BLOCKS_PER_REQUEST + 2);
+        tracker.queueBlocks(blockHashes);
+
+        List<BlockRequestTracker.Request<String>> requests = tracker.assignRequests(1000);
+        assertEquals(2, requests.size());
+
+        // A block of the second request arrives first and the blocks of the first request arrive in reverse.
+        tracker.blockReceived("peer1", blockHashes.get(ParallelBlockFetcher.BLOCKS_PER_REQUEST + 1));
+        for (int i = ParallelBlockFetcher.BLOCKS_PER_REQUEST - 1; i >= 0; i--) {
+            assertTrue(tracker.isAwaited("peer1", blockHashes.get(i)));
+            tracker.blockReceived("peer1", blockHashes.get(i));
+            assertFalse(tracker.isAwaited("peer1", blockHashes.get(i)));
+        }
+        assertEquals(0, tracker.requestCompleted(requests.get(0), 2000));
+
+        tracker.blockReceived("peer1", blockHashes.get(ParallelBlockFetcher.BLOCKS_PER_REQUEST));
+        assertEquals(0, tracker.requestCompleted(requests.get(1), 3000));
+        assertEquals(0, tracker.getNumberOfUnassignedRequests());
+        assertNull(tracker.getFailure());
+    }
+
+    @Test
+    public void testRequestsOfADroppedPeerGoToTheOtherPeers() throws Exception {
+        BlockRequestTracker<String> tracker = new BlockRequestTracker<String>();
+        tracker.addPeer("peer1");
+        tracker.addPeer("peer2");
+        List<Sha256Hash> blockHashes = createBlockHashes(3 * ParallelBlockFetcher.BLOCKS_PER_REQUEST);
+        tracker.queueBlocks(blockHashes);
+
+        List<BlockRequestTracker.Request<String>> requests = tracker.assignRequests(1000);
+        assertEquals(3, requests.size());
+        assertEquals("peer1", requests.get(0).getPeer());
+        assertEquals("peer1", requests.get(1).getPeer());
+        assertEquals("peer2", requests.get(2).getPeer());
+
+        // The first peer sends the first block and then disconnects.
+        tracker.blockReceived("peer1", blockHashes.get(0));
+        tracker.dropPeer("peer1", "it disconnected");
+        assertEquals(1, tracker.getNumberOfActivePeers());
+        assertEquals(2, tracker.getNumberOfUnassignedRequests());
+
+        // The blocks it did not send are requested from the other peer, earliest first.
+        List<BlockRequestTracker.Request<String>> reassignedRequests = tracker.assignRequests(2000);
+        assertEquals(1, reassignedRequests.size());
+        assertEquals("peer2", reassignedRequests.get(0).getPeer());
+        assertEquals(blockHashes.subList(1, ParallelBlockFetcher.BLOCKS_PER_REQUEST), reassignedRequests.get(0).getBlockHashes());
+
+        // An answer from the dropped peer that arrives late is ignored.
+        assertEquals(-1, tracker.requestCompleted(requests.get(0), 3000));
+
+        // A peer that stops answering is dropped too, leaving no peers.
+        assertEquals(Arrays.asList("peer2"), tracker.checkForTimeouts(100000, 60000));
+        assertEquals(0, tracker.getNumberOfActivePeers());
+    }
+
+    @Test
+    public void testTimeoutsAreOnlyBlamedOnThePeerIfAnotherPeerAnswered() throws Exception {
+        BlockRequestTracker<String> tracker = new BlockRequestTracker<String>();
+        tracker.addPeer("peer1");
+        tracker.addPeer("peer2");
+        List<Sha256Hash> blockHashes = createBlockHashes(2 * ParallelBlockFetcher.BLOCKS_PER_REQUEST);
+        tracker.queueBlocks(blockHashes);
+        List<BlockRequestTracker.Request<String>> requests = tracker.assignRequests(1000);
+        assertEquals(2, requests.size());
+
+        // Nobody has answered, so the connection itself may have failed.
+        assertFalse(tracker.hasOtherPeerAnsweredSince("peer1", 1000));
+
+        tracker.requestCompleted(requests.get(0), 2000);
+        assertFalse(tracker.hasOtherPeerAnsweredSince("peer1", 1000));
+        assertTrue(tracker.hasOtherPeerAnsweredSince("peer2", 1000));
+        assertFalse(tracker.hasOtherPeerAnsweredSince("peer2", 3000));
+    }
+
+    private static List<Sha256Hash> createBlockHashes(int numberOfBlocks) {
+        List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < numberOfBlocks; i++) {
+            blockHashes.add(Sha256Hash.create(new byte[] { (byte) (i >> 8), (byte) i }));
+        }
+        return blockHashes;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VarInt;
+
+public class BloomFilterManagerTest extends TestCase {
+    @Test
+    public void testGetTransactionCount() throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        Block genesisBlock = params.getGenesisBlock();
+
+        // A filtered genesis block matching its only transaction.
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(genesisBlock.cloneAsHeader().bitcoinSerialize());
+        Utils.uint32ToByteStreamLE(1, stream);
+        stream.write(new VarInt(1).encode());
+        stream.write(Utils.reverseBytes(genesisBlock.getMerkleRoot().getBytes()));
+        stream.write(new VarInt(1).encode());
+        stream.write(1);
+
+        FilteredBlock filteredBlock = new FilteredBlock(params, stream.toByteArray());
+        assertEquals(1, BloomFilterManager.getTransactionCount(filteredBlock));
+    }
+
+    @Test
+    public void testFalsePositiveRate() throws Exception {
+        BloomFilterManager.FilterStatistics statistics = new BloomFilterManager.FilterStatistics();
+
+        // Too few transactions to tell.
+        statistics.record(BloomFilterManager.MINIMUM_TRANSACTIONS_TO_MEASURE - 1, 10, 5);
+        assertEquals(-1.0, statistics.getFalsePositiveRate(), 0.0);
+
+        // 6 of the matched transactions are ours and the other 6 are false positives.
+        statistics.record(1, 2, 1);
+        assertEquals(6.0 / (BloomFilterManager.MINIMUM_TRANSACTIONS_TO_MEASURE - 6), statistics.getFalsePositiveRate(), 1e-12);
+
+        statistics.restart();
+        assertEquals(-1.0, statistics.getFalsePositiveRate(), 0.0);
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.CheckpointManager;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+
+import static junit.framework.Assert.*;
+
+public class MultiBitCheckpointManagerTest {
+
+    private static final String CHECKPOINTS_FILE = "src/main/resources/multibit.checkpoints";
+
+    private static final NetworkParameters NETWORK_PARAMETERS = NetworkParameters.prodNet();
+
+    @Test
+    public void testGetCheckpointBeforeOrAtHeight() throws Exception {
+        MultiBitCheckpointManager checkpointManager = MultiBitCheckpointManager.load(NETWORK_PARAMETERS, new File(CHECKPOINTS_FILE));
+
+        // Before the first checkpoint the genesis block is used.
+        assertEquals(0, checkpointManager.getCheckpointBeforeOrAtHeight(0).getHeight());
+
+        int previousCheckpointHeight = 0;
+        for (int height = 1; height < 300000; height += 997) {
+            StoredBlock checkpoint = checkpointManager.getCheckpointBeforeOrAtHeight(height);
+            assertTrue("Checkpoint is not before the height " + height, checkpoint.getHeight() < height);
+            assertTrue("Checkpoints went backwards at height " + height, checkpoint.getHeight() >= previousCheckpointHeight);
+            previousCheckpointHeight = checkpoint.getHeight();
+        }
+        assertTrue("No checkpoints were found", previousCheckpointHeight > 0);
+
+        // A checkpoint is not before its own height but is before the next height.
+        StoredBlock checkpoint = checkpointManager.getCheckpointBeforeOrAtHeight(previousCheckpointHeight + 1);
+        assertEquals(previousCheckpointHeight, checkpoint.getHeight());
+        assertTrue(checkpointManager.getCheckpointBeforeOrAtHeight(previousCheckpointHeight).getHeight() < previousCheckpointHeight);
+    }
+
+    @Test
+    public void testLoadMatchesStreamedCheckpoints() throws Exception {
+        MultiBitCheckpointManager loadedCheckpointManager = MultiBitCheckpointManager.load(NETWORK_PARAMETERS, new File(CHECKPOINTS_FILE));
+
+        InputStream stream = new FileInputStream(CHECKPOINTS_FILE);
+        CheckpointManager streamedCheckpointManager;
+        try {
+            streamedCheckpointManager = new CheckpointManager(NETWORK_PARAMETERS, stream);
+        } finally {
+            stream.close();
+        }
+
+        long time = NETWORK_PARAMETERS.getGenesisBlock().getTimeSeconds() + 1;
+        for (int i = 0; i < 100; i++, time += 86400 * 10) {
+            assertEquals(streamedCheckpointManager.getCheckpointBefore(time), loadedCheckpointManager.getCheckpointBefore(time));
+        }
+    }
+
+    @Test
+    public void testIsLoadedFrom() throws Exception {
+        File checkpointsFile = File.createTempFile("multibit", ".checkpoints");
+        checkpointsFile.deleteOnExit();
+        copy(new File(CHECKPOINTS_FILE), checkpointsFile);
+
+        MultiBitCheckpointManager checkpointManager = MultiBitCheckpointManager.load(NETWORK_PARAMETERS, checkpointsFile);
+        assertTrue(checkpointManager.isLoadedFrom(checkpointsFile));
+        assertFalse(checkpointManager.isLoadedFrom(new File(CHECKPOINTS_FILE)));
+
+        // Changing the file means the checkpoints need loading again.
+        assertTrue(checkpointsFile.setLastModified(checkpointsFile.lastModified() - 10000));
+        assertFalse(checkpointManager.isLoadedFrom(checkpointsFile));
+    }
+
+    private void copy(File source, File destination) throws Exception {
+        InputStream in = new FileInputStream(source);
+        OutputStream out = new FileOutputStream(destination);
+        try {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.PeerAddress;
+
+public class PeerScoresTest extends TestCase {
+    @Test
+    public void testScore() throws Exception {
+        PeerScores.PeerScore unknownPeer = new PeerScores.PeerScore("10.0.0.1:8333");
+
+        PeerScores.PeerScore fastPeer = PeerScores.PeerScore.fromLine(unknownPeer.toLine());
+        fastPeer.recordPingTime(50);
+        fastPeer.recordBlockRate(400);
+        assertTrue(fastPeer.getScore() > unknownPeer.getScore());
+
+        PeerScores.PeerScore misbehavingPeer = PeerScores.PeerScore.fromLine("10.0.0.2:8333\t50.0\t400.0\t4\t0\t2\t0");
+        assertTrue(misbehavingPeer.getScore() < fastPeer.getScore());
+
+        // Later measurements only move the smoothed ping time part of the way.
+        fastPeer.recordPingTime(150);
+        assertEquals(50 + PeerScores.MEASUREMENT_WEIGHT * 100, PeerScores.PeerScore.fromLine(fastPeer.toLine()).getPingTime(), 1e-9);
+    }
+
+    @Test
+    public void testMisbehavioursAreForgivenOverTime() throws Exception {
+        long now = System.currentTimeMillis();
+        PeerScores.PeerScore peerScore = PeerScores.PeerScore.fromLine("10.0.0.1:8333\t50.0\t400.0\t4\t0\t0\t" + now + "\t0");
+        double scoreWithoutMisbehaviours = peerScore.getScore(now);
+
+        peerScore.recordMisbehaviour(now);
+        peerScore.recordMisbehaviour(now);
+        assertEquals(2, peerScore.getNumberOfMisbehaviours(now));
+        assertEquals(scoreWithoutMisbehaviours - 1.0, peerScore.getScore(now), 1e-9);
+
+        // One misbehaviour is forgiven for each decay time without misbehaving.
+        long oneDecayLater = now + PeerScores.MISBEHAVIOUR_DECAY_TIME;
+        assertEquals(1, peerScore.getNumberOfMisbehaviours(oneDecayLater));
+        assertEquals(0, peerScore.getNumberOfMisbehaviours(now + 5 * PeerScores.MISBEHAVIOUR_DECAY_TIME));
+        assertEquals(scoreWithoutMisbehaviours, peerScore.getScore(now + 5 * PeerScores.MISBEHAVIOUR_DECAY_TIME), 1e-9);
+
+        // A new misbehaviour counts on top of those not yet forgiven, and the decay survives a save and load.
+        peerScore.recordMisbehaviour(oneDecayLater);
+        PeerScores.PeerScore reloadedPeerScore = PeerScores.PeerScore.fromLine(peerScore.toLine());
+        assertEquals(2, reloadedPeerScore.getNumberOfMisbehaviours(oneDecayLater));
+        assertEquals(1, reloadedPeerScore.getNumberOfMisbehaviours(oneDecayLater + PeerScores.MISBEHAVIOUR_DECAY_TIME));
+    }
+
+    @Test
+    public void testLoadAndGetBestPeerAddresses() throws Exception {
+        File peersFile = File.createTempFile("multibit", PeerScores.PEERS_SUFFIX);
+        peersFile.deleteOnExit();
+        long now = System.currentTimeMillis();
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(peersFile), "UTF-8");
+        try {
+            writer.write("10.0.0.1:8333\t900.0\t20.0\t2\t1\t0\t" + now + "\n");
+            writer.write("10.0.0.2:8333\t40.0\t300.0\t2\t0\t0\t" + now + "\n");
+            // Misbehaved too often to be tried first.
+            writer.write("10.0.0.3:8333\t10.0\t500.0\t2\t0\t" + PeerScores.MAXIMUM_NUMBER_OF_MISBEHAVIOURS + "\t" + now + "\n");
+            // Not connected to for a long time.
+            writer.write("10.0.0.4:8333\t10.0\t500.0\t2\t0\t0\t0\n");
+            writer.write("not a peer score\n");
+            // An IPv6 address.
+            writer.write("0:0:0:0:0:0:0:1:18333\t-1.0\t-1.0\t1\t0\t0\t" + now + "\n");
+        } finally {
+            writer.close();
+        }
+
+        PeerScores peerScores = new PeerScores(peersFile);
+        peerScores.load();
+        assertEquals(5, peerScores.getNumberOfPeerScores());
+
+        List<PeerAddress> bestPeerAddresses = peerScores.getBestPeerAddresses(10);
+        assertEquals(3, bestPeerAddresses.size());
+        assertEquals("10.0.0.2:8333", PeerScores.getKey(bestPeerAddresses.get(0)));
+        assertEquals("0:0:0:0:0:0:0:1:18333", PeerScores.getKey(bestPeerAddresses.get(1)));
+        assertEquals("10.0.0.1:8333", PeerScores.getKey(bestPeerAddresses.get(2)));
+
+        assertEquals(1, peerScores.getBestPeerAddresses(1).size());
+
+        // The scores survive a save and load.
+        peerScores.save();
+        PeerScores reloadedPeerScores = new PeerScores(peersFile);
+        reloadedPeerScores.load();
+        assertEquals(5, reloadedPeerScores.getNumberOfPeerScores());
+        assertEquals("10.0.0.2:8333", PeerScores.getKey(reloadedPeerScores.getBestPeerAddresses(1).get(0)));
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.model.bitcoin.WalletData;
+
+public class ReplayTaskTest extends TestCase {
+    @Test
+    public void testMergeWith() throws Exception {
+        WalletData wallet1 = createWalletData("wallet1.wallet");
+        WalletData wallet2 = createWalletData("wallet2.wallet");
+        WalletData wallet3 = createWalletData("wallet3.wallet");
+
+        ReplayTask earlierTask = new ReplayTask(Arrays.asList(wallet1, wallet2), new Date(1000000000000L), 150000);
+        ReplayTask laterTask = new ReplayTask(Arrays.asList(wallet2, wallet3), new Date(1300000000000L), 250000);
+
+        ReplayTask mergedTask = laterTask.mergeWith(earlierTask);
+
+        // The merged task replays each wallet once from the earlier start point.
+        assertEquals(Arrays.asList(wallet2, wallet3, wallet1), mergedTask.getPerWalletModelDataToReplay());
+        assertEquals(new Date(1000000000000L), mergedTask.getStartDate());
+        assertEquals(150000, mergedTask.getStartHeight());
+        assertFalse(mergedTask.getUuid().equals(laterTask.getUuid()));
+
+        // A task without a start date replays from the genesis block so it is the earlier.
+        ReplayTask genesisTask = new ReplayTask(Arrays.asList(wallet3), null, ReplayTask.UNKNOWN_START_HEIGHT);
+        mergedTask = earlierTask.mergeWith(genesisTask);
+        assertNull(mergedTask.getStartDate());
+        assertEquals(ReplayTask.UNKNOWN_START_HEIGHT, mergedTask.getStartHeight());
+        assertTrue(mergedTask.containsWallet(wallet3));
+    }
+
+    @Test
+    public void testOfferAfterCompletionIsNotMergedIntoTheCompletedTask() throws Exception {
+        WalletData wallet1 = createWalletData("wallet1.wallet");
+        WalletData wallet2 = createWalletData("wallet2.wallet");
+        LinkedList<ReplayTask> replayTaskQueue = new LinkedList<ReplayTask>();
+
+        ReplayTask firstTask = new ReplayTask(Arrays.asList(wallet1), new Date(1000000000000L), 150000);
+        replayTaskQueue.add(firstTask);
+        assertSame(firstTask, ReplayManager.getLastWaitingReplayTask(replayTaskQueue));
+
+        // The task has run to completion but the scheduler has not removed it from the queue yet.
+        firstTask.markStarted();
+        assertNull(ReplayManager.getLastWaitingReplayTask(replayTaskQueue));
+        try {
+            firstTask.mergeWith(new ReplayTask(Arrays.asList(wallet2), new Date(1300000000000L), 250000));
+            fail("A task that has started was merged into");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        // A task offered after it waits behind it, and can itself be merged into until it starts.
+        ReplayTask secondTask = new ReplayTask(Arrays.asList(wallet2), new Date(1300000000000L), 250000);
+        replayTaskQueue.add(secondTask);
+        assertSame(secondTask, ReplayManager.getLastWaitingReplayTask(replayTaskQueue));
+    }
+
+    private WalletData createWalletData(String walletFilename) {
+        WalletData walletData = new WalletData();
+        walletData.setWalletFilename(walletFilename);
+        return walletData;
+    }
+}
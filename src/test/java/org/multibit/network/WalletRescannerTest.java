@@ -0,0 +1,203 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.CreateControllers;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Ping;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VarInt;
+import com.google.bitcoin.core.VerificationException;
+
+public class WalletRescannerTest extends TestCase {
+    @Test
+    public void testMessagesNotRequestedByTheRescanArePassedOn() throws Exception {
+        BitcoinController controller = CreateControllers.createControllers().bitcoinController;
+        ReplayTask replayTask = new ReplayTask(new ArrayList<WalletData>(), new Date(), ReplayTask.UNKNOWN_START_HEIGHT);
+        WalletRescanner walletRescanner = new WalletRescanner(controller, replayTask, null);
+
+        // Nothing has been requested so the peer sees every message as usual.
+        Message transaction = new Transaction(controller.getModel().getNetworkParameters());
+        assertSame(transaction, walletRescanner.onPreMessageReceived(null, transaction));
+
+        Message ping = new Ping(1);
+        assertSame(ping, walletRescanner.onPreMessageReceived(null, ping));
+    }
+
+    @Test
+    public void testHeadersThatDoNotConnectAreRejected() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        StoredBlock genesis = createGenesisBlock(params);
+        WalletRescanner.RescannedChain rescannedChain = new WalletRescanner.RescannedChain(params, genesis, genesis);
+
+        Block header1 = createHeader(params, genesis.getHeader(), genesis.getHeader().getDifficultyTarget());
+        Block unconnectedHeader = createHeader(params, createHeader(params, header1, header1.getDifficultyTarget()), header1.getDifficultyTarget());
+        try {
+            rescannedChain.connect(Arrays.asList(header1, unconnectedHeader));
+            fail("Headers that do not connect were accepted");
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testUnexpectedDifficultyIsRejected() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        StoredBlock genesis = createGenesisBlock(params);
+        long difficultyTarget = genesis.getHeader().getDifficultyTarget();
+
+        // The difficulty only changes at a transition.
+        WalletRescanner.RescannedChain rescannedChain = new WalletRescanner.RescannedChain(params, genesis, genesis);
+        Block header1 = createHeader(params, genesis.getHeader(), difficultyTarget);
+        assertEquals(1, rescannedChain.connect(Collections.singletonList(header1)).size());
+        try {
+            rescannedChain.connect(Collections.singletonList(createHeader(params, header1, difficultyTarget - 1)));
+            fail("A change in difficulty between transitions was accepted");
+        } catch (VerificationException e) {
+            // Expected.
+        }
+
+        // The blocks come far faster than the target timespan so the difficulty must rise at the transition.
+        rescannedChain = new WalletRescanner.RescannedChain(params, genesis, genesis);
+        List<Block> headers = new ArrayList<Block>();
+        Block previous = genesis.getHeader();
+        for (int i = 1; i < params.getInterval(); i++) {
+            previous = createHeader(params, previous, difficultyTarget);
+            headers.add(previous);
+        }
+        assertEquals(params.getInterval() - 1, rescannedChain.connect(headers).size());
+        try {
+            rescannedChain.connect(Collections.singletonList(createHeader(params, previous, difficultyTarget)));
+            fail("An unchanged difficulty at a transition was accepted");
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testBlocksAreOnlyMergedOnceOnTheBestChain() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        StoredBlock genesis = createGenesisBlock(params);
+        List<Block> headers = new ArrayList<Block>();
+        Block previous = genesis.getHeader();
+        for (int i = 1; i <= 4; i++) {
+            previous = createHeader(params, previous, previous.getDifficultyTarget());
+            headers.add(previous);
+        }
+        List<StoredBlock> blocks = new WalletRescanner.RescannedChain(params, genesis, genesis).connect(headers);
+        List<WalletRescanner.RescannedBlock> rescannedBlocks = Arrays.asList(
+                new WalletRescanner.RescannedBlock(blocks.get(0), new ArrayList<Transaction>()),
+                new WalletRescanner.RescannedBlock(blocks.get(3), new ArrayList<Transaction>()));
+
+        // A chain that never joins the best chain has nothing merged.
+        WalletRescanner.PendingBlocks pendingBlocks = new WalletRescanner.PendingBlocks(new TestMainChain(10), genesis);
+        assertTrue(pendingBlocks.add(blocks, rescannedBlocks).isEmpty());
+        assertNull(pendingBlocks.getLastBlockOnBestChain());
+        try {
+            pendingBlocks.checkJoinedBestChain();
+            fail("A chain that never joined the main chain was accepted");
+        } catch (VerificationException e) {
+            // Expected.
+        }
+
+        // The main chain is only as far as the third block so the fourth is held back.
+        TestMainChain mainChain = new TestMainChain(3);
+        mainChain.add(blocks.get(1));
+        mainChain.add(blocks.get(2));
+        pendingBlocks = new WalletRescanner.PendingBlocks(mainChain, genesis);
+        List<WalletRescanner.RescannedBlock> blocksOnBestChain = pendingBlocks.add(blocks, rescannedBlocks);
+        assertEquals(1, blocksOnBestChain.size());
+        assertSame(blocks.get(0), blocksOnBestChain.get(0).getStoredBlock());
+        assertSame(blocks.get(2), pendingBlocks.getLastBlockOnBestChain());
+        assertTrue(pendingBlocks.hasLeftBestChain());
+        pendingBlocks.checkJoinedBestChain();
+    }
+
+    private static StoredBlock createGenesisBlock(NetworkParameters params) {
+        Block genesisBlock = params.getGenesisBlock();
+        return new StoredBlock(genesisBlock.cloneAsHeader(), genesisBlock.getWork(), 0);
+    }
+
+    /**
+     * Create a header with a valid proof of work following the previous one by a second.
+     */
+    private static Block createHeader(NetworkParameters params, Block previous, long difficultyTarget) throws Exception {
+        BigInteger target = Utils.decodeCompactBits(difficultyTarget);
+        for (long nonce = 0; ; nonce++) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            Utils.uint32ToByteStreamLE(1, stream);
+            stream.write(Utils.reverseBytes(previous.getHash().getBytes()));
+            stream.write(Utils.reverseBytes(Sha256Hash.ZERO_HASH.getBytes()));
+            Utils.uint32ToByteStreamLE(previous.getTimeSeconds() + 1, stream);
+            Utils.uint32ToByteStreamLE(difficultyTarget, stream);
+            Utils.uint32ToByteStreamLE(nonce, stream);
+            stream.write(new VarInt(0).encode());
+
+            Block header = new Block(params, stream.toByteArray());
+            if (header.getHash().toBigInteger().compareTo(target) <= 0) {
+                return header;
+            }
+        }
+    }
+
+    /**
+     * A best chain of the blocks added to it.
+     */
+    private static class TestMainChain implements WalletRescanner.MainChain {
+        private final int bestChainHeight;
+        private final Set<Sha256Hash> blockHashes = new HashSet<Sha256Hash>();
+
+        TestMainChain(int bestChainHeight) {
+            this.bestChainHeight = bestChainHeight;
+        }
+
+        void add(StoredBlock block) {
+            blockHashes.add(block.getHeader().getHash());
+        }
+
+        @Override
+        public int getBestChainHeight() {
+            return bestChainHeight;
+        }
+
+        @Override
+        public boolean isOnBestChain(StoredBlock block) throws IOException {
+            return blockHashes.contains(block.getHeader().getHash());
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package org.multibit.viewsystem.swing.action;
 
 import java.io.File;
+import java.util.List;
 
 import junit.framework.TestCase;
 
@@ -24,6 +25,7 @@ import org.multibit.Constants;
 import org.multibit.CreateControllers;
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.file.FileHandler;
 import org.multibit.file.PrivateKeysHandlerTest;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
@@ -31,6 +33,7 @@ import org.multibit.viewsystem.swing.view.panels.ImportPrivateKeysPanel;
 import org.multibit.viewsystem.swing.view.components.FontSizer;
 
 import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 
 public class ImportPrivateKeysSubmitActionTest extends TestCase {   
@@ -297,6 +300,85 @@ public class ImportPrivateKeysSubmitActionTest extends TestCase {
         assertEquals("The label on the original address was not correct after import", ActionTestUtils.LABEL_OF_ADDRESS_ADDED, controller.getModel().getActivePerWalletModelData().getWalletInfo().getReceivingAddresses().get(0).getLabel());
     }
     
+    @Test
+    public void testImportKeysAlreadyInTheWallet() throws Exception {
+        // Create MultiBit controller.
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        BitcoinController controller = controllers.bitcoinController;
+
+        // Create a new unencrypted wallet and put it in the model as the active wallet.
+        ActionTestUtils.createNewActiveWallet(controller, "testImportKeysAlreadyInTheWallet", false, null);
+
+        FontSizer.INSTANCE.initialise(controller);
+        ImportPrivateKeysPanel importPanel = new ImportPrivateKeysPanel(controller, null);
+        ImportPrivateKeysSubmitAction importAction = importPanel.getImportPrivateKeysSubmitAction();
+        importAction.setPerformReplay(false);
+
+        File directory = new File(".");
+        String currentPath = directory.getAbsolutePath();
+        String testDirectory = currentPath + File.separator + Constants.TESTDATA_DIRECTORY + File.separator
+                + PrivateKeysHandlerTest.PRIVATE_KEYS_TESTDATA_DIRECTORY;
+        importPanel.setOutputFilename(testDirectory + File.separator + PrivateKeysHandlerTest.TEST1_PRIVATE_KEYS_FILE);
+
+        // The first import adds every key.
+        importAction.actionPerformed(null);
+        Thread.sleep(DELAY_TO_COMPLETE_IMPORT);
+        assertEquals("Wrong message after the first import", EXPECTED_IMPORTED_PRIVATE_KEYS, importPanel.getMessageText1());
+        int numberOfKeysInFile = PrivateKeysHandlerTest.EXPECTED_ADDRESSES_FOR_TEST1_WALLET.length;
+        assertEquals("Wrong number of keys added by the first import", numberOfKeysInFile, importAction.getNumberOfKeysAddedByLastImport());
+        assertEquals("Wrong number of duplicate keys in the first import", 0, importAction.getNumberOfDuplicateKeysInLastImport());
+        assertEquals("Wrong number of keys after the first import", 1 + numberOfKeysInFile, controller.getModel().getActiveWallet().getKeychain().size());
+
+        // Importing the same keys again adds nothing. (The replay that would clear the busy flag is switched off.)
+        controller.getModel().getActivePerWalletModelData().setBusy(false);
+        importAction.actionPerformed(null);
+        Thread.sleep(DELAY_TO_COMPLETE_IMPORT);
+        assertEquals("Wrong message after the second import", EXPECTED_IMPORTED_PRIVATE_KEYS, importPanel.getMessageText1());
+        assertEquals("Wrong number of keys added by the second import", 0, importAction.getNumberOfKeysAddedByLastImport());
+        assertEquals("Wrong number of duplicate keys in the second import", numberOfKeysInFile, importAction.getNumberOfDuplicateKeysInLastImport());
+        assertEquals("Wrong number of keys after the second import", 1 + numberOfKeysInFile, controller.getModel().getActiveWallet().getKeychain().size());
+        checkEveryExpectedKeyIsPresent(controller);
+    }
+
+    @Test
+    public void testImportCompressedAndUncompressedKeysWithTheSamePrivateKey() throws Exception {
+        // Create MultiBit controller.
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        BitcoinController controller = controllers.bitcoinController;
+        NetworkParameters networkParameters = controller.getModel().getNetworkParameters();
+
+        // Create a new unencrypted wallet and put it in the model as the active wallet.
+        ActionTestUtils.createNewActiveWallet(controller, "testImportCompressedAndUncompressedKeys", false, null);
+        ECKey walletKey = controller.getModel().getActiveWallet().getKeychain().get(0);
+
+        // The compressed and uncompressed forms of a private key have different addresses so both are added.
+        // The wallet key and the repeated compressed key are duplicates.
+        ECKey compressedKey = new ECKey(new ECKey().getPrivKey(), null, true);
+        ECKey uncompressedKey = new ECKey(compressedKey.getPrivKey(), null, false);
+        String keys = walletKey.getPrivateKeyEncoded(networkParameters) + "\n" + compressedKey.getPrivateKeyEncoded(networkParameters) + "\n"
+                + uncompressedKey.getPrivateKeyEncoded(networkParameters) + "\n" + compressedKey.getPrivateKeyEncoded(networkParameters) + "\n";
+        File importFile = new File(FileHandler.createTempDirectory("testImportCompressedAndUncompressedKeys"), "keys.key");
+        FileHandler.writeFile(keys.getBytes("UTF-8"), importFile);
+
+        FontSizer.INSTANCE.initialise(controller);
+        ImportPrivateKeysPanel importPanel = new ImportPrivateKeysPanel(controller, null);
+        ImportPrivateKeysSubmitAction importAction = importPanel.getImportPrivateKeysSubmitAction();
+        importAction.setPerformReplay(false);
+        importPanel.setOutputFilename(importFile.getAbsolutePath());
+
+        importAction.actionPerformed(null);
+        Thread.sleep(DELAY_TO_COMPLETE_IMPORT);
+        assertEquals("Wrong message after the import", EXPECTED_IMPORTED_PRIVATE_KEYS, importPanel.getMessageText1());
+        assertEquals("Wrong number of keys added", 2, importAction.getNumberOfKeysAddedByLastImport());
+        assertEquals("Wrong number of duplicate keys", 2, importAction.getNumberOfDuplicateKeysInLastImport());
+
+        List<ECKey> keychain = controller.getModel().getActiveWallet().getKeychain();
+        assertEquals("Wrong number of keys after the import", 3, keychain.size());
+        assertTrue("The compressed key was not added", keychain.get(1).isCompressed());
+        assertFalse("The uncompressed key was not added", keychain.get(2).isCompressed());
+        assertEquals("The keys do not have the same private key", compressedKey.getPrivKey(), keychain.get(2).getPrivKey());
+    }
+
     @Test
     public void testNoWalletSelected() throws Exception {
         // Create MultiBit controller.